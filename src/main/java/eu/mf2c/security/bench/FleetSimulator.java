@@ -0,0 +1,376 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import eu.mf2c.security.comm.Channel;
+import eu.mf2c.security.comm.protocol.coap.CoapRelay;
+import eu.mf2c.security.comm.protocol.http.HttpRelayServer;
+import eu.mf2c.security.comm.protocol.loopback.LoopbackHub;
+import eu.mf2c.security.comm.util.LatencyHistogram;
+import eu.mf2c.security.comm.util.Protocol;
+
+/**
+ * Fleet simulator running many agents in one JVM.  Every agent is a real {@link Channel <em>Channel</em>} whose
+ * destination is a shared leader channel, so creating an agent covers the connection to the broker and the key
+ * handshake with the leader, and the agents then ping the leader once every time&#45;out interval.  The broker is a
+ * local stand&#45;in&#58; the in&#45;memory hub for LOOPBACK, an {@link HttpRelayServer <em>HttpRelayServer</em>}
+ * for HTTP and a {@link CoapRelay <em>CoapRelay</em>} for COAP.
+ * <p>
+ * The fleet is driven by a script of comma separated steps&#58;
+ * <pre>
+ *  join:[n]	create n agents, reporting the handshake completion time percentiles
+ *  leave:[n]	destroy n agents picked at random
+ *  restart	stop the broker and start a new one on the same port, reporting how long the fleet takes to reconnect
+ *  wait:[s]	idle for s seconds, reporting the broker message rate every second
+ * </pre>
+ * Usage&#58;
+ * <pre>
+ * java eu.mf2c.security.bench.FleetSimulator [--protocol=COAP] [--parallel=32] [--keepAlive=10] [--timeOut=30]
+ *      [--converge=120] [--script=join:200,wait:5,restart,wait:10,leave:50,join:50,wait:5]
+ * </pre>
+ * <code>parallel</code> is the number of agents joining or leaving at once and <code>converge</code> the longest
+ * time in seconds to wait for the fleet to reconnect after a restart.  The in&#45;memory hub cannot be restarted,
+ * so <code>restart</code> is skipped for LOOPBACK.  Each agent runs a handful of threads, so large fleets need
+ * a raised process limit and possibly a smaller thread stack size.
+ */
+public class FleetSimulator {
+	/** friendy name of the leader */
+	public static final String LEADER = "fleet-leader";
+	/** the protocol */
+	private final Protocol protocol;
+	/** handler properties shared by the channels */
+	private final HashMap<String, String> properties = new HashMap<String, String>();
+	/** number of agents joining or leaving at once */
+	private final ExecutorService pool;
+	/** longest reconnection wait in seconds */
+	private final long converge;
+	/** the HTTP stand&#45;in */
+	private HttpRelayServer httpRelay;
+	/** the CoAP stand&#45;in */
+	private CoapRelay coapRelay;
+	/** the in&#45;memory hub */
+	private LoopbackHub hub;
+	/** the leader */
+	private Channel leader;
+	/** the live agents */
+	private final List<Channel> agents = Collections.synchronizedList(new ArrayList<Channel>());
+	/** agent counter, keeps friendy names unique */
+	private int joined = 0;
+
+	/**
+	 * Construct a simulator and start the broker stand&#45;in and the leader.
+	 * <p>
+	 * @param protocol	the protocol, LOOPBACK, HTTP or COAP
+	 * @param parallel	number of agents joining or leaving at once
+	 * @param keepAlive	the keep&#45;alive interval in seconds
+	 * @param timeOut	the handshake and publish time out, and the ping interval, in seconds
+	 * @param converge	longest reconnection wait in seconds
+	 * @throws Exception if the broker or the leader cannot be started
+	 */
+	public FleetSimulator(Protocol protocol, int parallel, int keepAlive, int timeOut, long converge) throws Exception {
+		this.protocol = protocol;
+		this.pool = Executors.newFixedThreadPool(parallel);
+		this.converge = converge;
+		this.properties.put("keepAlive", String.valueOf(keepAlive));
+		this.properties.put("timeOut", String.valueOf(timeOut));
+		//fresh key directory so old runs do not leak in
+		this.properties.put("peerKeyDir", System.getProperty("java.io.tmpdir") + "/mf2c-fleet-" + System.nanoTime());
+		this.properties.put("broker", this.startBroker(0));
+		this.leader = new Channel(null, this.protocol, LEADER, this.properties);
+	}
+
+	/**
+	 * Start the broker stand&#45;in.
+	 * <p>
+	 * @param port	the port, 0 for an ephemeral port
+	 * @return the broker address
+	 * @throws IOException if the port cannot be bound
+	 */
+	private String startBroker(int port) throws IOException {
+		switch(this.protocol){
+			case LOOPBACK :
+				this.hub = LoopbackHub.getHub("fleet", LoopbackHub.DEFAULT_CAPACITY);
+				return "loopback://fleet";
+			case HTTP :
+				this.httpRelay = new HttpRelayServer(port, 64, HttpRelayServer.DEFAULT_INBOX_CAPACITY);
+				this.httpRelay.start();
+				return this.httpRelay.getBaseUrl();
+			case COAP :
+				this.coapRelay = new CoapRelay(port, CoapRelay.DEFAULT_BACKLOG);
+				return this.coapRelay.getUri();
+			default :
+				throw new IllegalArgumentException("No stand-in broker for " + this.protocol);
+		}
+	}
+
+	/**
+	 * @return the number of messages the broker has accepted
+	 */
+	public long getMessageCount(){
+		if(this.coapRelay != null){
+			return this.coapRelay.getMessageCount();
+		}
+		return (this.httpRelay != null ? this.httpRelay.getMessageCount() : this.hub.getMessageCount());
+	}
+
+	/**
+	 * @return the number of channels the broker is delivering to
+	 */
+	public int getSubscriberCount(){
+		if(this.coapRelay != null){
+			return this.coapRelay.getSubscriberCount();
+		}
+		return (this.httpRelay != null ? this.httpRelay.getSubscriberCount() : this.hub.getSubscriberCount());
+	}
+
+	/**
+	 * @return the number of live agents
+	 */
+	public int getAgentCount(){
+		return this.agents.size();
+	}
+
+	/**
+	 * @return the number of live agents connected to the broker
+	 */
+	public int getConnectedCount(){
+		int count = 0;
+		synchronized(this.agents){
+			for(Channel agent : this.agents){
+				if(agent.isConnected()){
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	//////////////////////////////////////////////////////steps////////////////////////////////////////////////////
+
+	/**
+	 * Create agents.
+	 * <p>
+	 * @param n	number of agents
+	 * @return the handshake completion times in nanoseconds, failed agents excluded
+	 * @throws InterruptedException if interrupted
+	 */
+	public LatencyHistogram join(int n) throws InterruptedException {
+		LatencyHistogram handshakes = new LatencyHistogram();
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for(int i = 0; i < n; i++){
+			String name = "fleet-agent-" + (++this.joined);
+			futures.add(this.pool.submit(() -> {
+				long t0 = System.nanoTime();
+				Channel agent = new Channel(LEADER, this.protocol, name, this.properties);
+				long elapsed = System.nanoTime() - t0;
+				synchronized(handshakes){
+					handshakes.record(elapsed);
+				}
+				this.agents.add(agent);
+				return null;
+			}));
+		}
+		int failed = this.await(futures);
+		if(failed > 0){
+			System.out.println("#   " + failed + " agent(s) failed to join");
+		}
+		return handshakes;
+	}
+
+	/**
+	 * Destroy agents picked at random.
+	 * <p>
+	 * @param n	number of agents
+	 * @throws InterruptedException if interrupted
+	 */
+	public void leave(int n) throws InterruptedException {
+		List<Channel> leaving;
+		synchronized(this.agents){
+			Collections.shuffle(this.agents);
+			leaving = new ArrayList<Channel>(this.agents.subList(0, Math.min(n, this.agents.size())));
+			this.agents.removeAll(leaving);
+		}
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for(Channel agent : leaving){
+			futures.add(this.pool.submit(() -> {
+				agent.destruct();
+				return null;
+			}));
+		}
+		this.await(futures);
+	}
+
+	/**
+	 * Restart the broker on the same port and wait for the fleet to reconnect.
+	 * <p>
+	 * @return the convergence time in nanoseconds, -1 if the fleet has not reconnected within the limit
+	 * @throws Exception if the broker cannot be restarted
+	 */
+	public long restart() throws Exception {
+		if(this.coapRelay != null){
+			int port = this.coapRelay.getPort();
+			this.coapRelay.stop();
+			this.startBroker(port);
+		}else if(this.httpRelay != null){
+			int port = this.httpRelay.getPort();
+			this.httpRelay.stop();
+			this.startBroker(port);
+		}else{
+			throw new UnsupportedOperationException("The " + this.protocol + " broker cannot be restarted");
+		}
+		long t0 = System.nanoTime();
+		long deadline = t0 + TimeUnit.SECONDS.toNanos(this.converge);
+		//the leader counts as a subscriber too
+		while(this.getSubscriberCount() < this.getAgentCount() + 1 || this.getConnectedCount() < this.getAgentCount()){
+			if(System.nanoTime() > deadline){
+				return -1;
+			}
+			Thread.sleep(50);
+		}
+		return System.nanoTime() - t0;
+	}
+
+	/**
+	 * Idle, reporting the broker message rate every second.
+	 * <p>
+	 * @param seconds	idle time
+	 * @throws InterruptedException if interrupted
+	 */
+	public void idle(int seconds) throws InterruptedException {
+		long last = this.getMessageCount();
+		for(int i = 0; i < seconds; i++){
+			Thread.sleep(1000);
+			long count = this.getMessageCount();
+			System.out.println(String.format("#   %3ds  %8d msgs/s  %6d agents  %6d connected  %6d subscribers",
+					i + 1, count - last, this.getAgentCount(), this.getConnectedCount(), this.getSubscriberCount()));
+			last = count;
+		}
+	}
+
+	/**
+	 * Destroy the fleet, the leader and the broker stand&#45;in.
+	 */
+	public void shutdown(){
+		try{
+			this.leave(Integer.MAX_VALUE);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		this.pool.shutdownNow();
+		this.leader.destruct();
+		if(this.httpRelay != null){
+			this.httpRelay.stop();
+		}
+		if(this.coapRelay != null){
+			this.coapRelay.stop();
+		}
+	}
+
+	/**
+	 * Wait for the tasks, reporting the first failure.
+	 * <p>
+	 * @return the number of failed tasks
+	 */
+	private int await(List<Future<?>> futures) throws InterruptedException {
+		int failed = 0;
+		for(Future<?> future : futures){
+			try{
+				future.get();
+			}catch(ExecutionException e){
+				if(++failed == 1){
+					System.out.println("#   first error : " + e.getCause());
+				}
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * Run a script.
+	 * <p>
+	 * @param args	see the class description
+	 * @throws Exception on any error
+	 */
+	public static void main(String[] args) throws Exception {
+		HashMap<String, String> opts = new HashMap<String, String>();
+		for(String arg : args){
+			int eq = arg.indexOf('=');
+			if(!arg.startsWith("--") || eq < 0){
+				System.err.println("Unrecognised argument " + arg + ", expected --name=value");
+				System.exit(1);
+			}
+			opts.put(arg.substring(2, eq), arg.substring(eq + 1));
+		}
+		Protocol protocol = Protocol.valueOf(opts.getOrDefault("protocol", "COAP"));
+		String script = opts.getOrDefault("script", "join:200,wait:5,restart,wait:10,leave:50,join:50,wait:5");
+		FleetSimulator fleet = new FleetSimulator(protocol, Integer.parseInt(opts.getOrDefault("parallel", "32")),
+				Integer.parseInt(opts.getOrDefault("keepAlive", "10")), Integer.parseInt(opts.getOrDefault("timeOut", "30")),
+				Long.parseLong(opts.getOrDefault("converge", "120")));
+		System.out.println("# " + protocol + " fleet, script " + script);
+		try{
+			for(String step : script.split(",")){
+				String[] parts = step.trim().split(":");
+				System.out.println("> " + step.trim());
+				long t0 = System.nanoTime();
+				switch(parts[0]){
+					case "join" :
+						LatencyHistogram handshakes = fleet.join(Integer.parseInt(parts[1]));
+						System.out.println(String.format("#   %d joined in %.2fs, handshake p50 %.1fms p99 %.1fms max %.1fms, %d agents",
+								handshakes.getCount(), (System.nanoTime() - t0) / 1e9, handshakes.getValueAtPercentile(50) / 1e6,
+								handshakes.getValueAtPercentile(99) / 1e6, handshakes.getMax() / 1e6, fleet.getAgentCount()));
+						break;
+					case "leave" :
+						fleet.leave(Integer.parseInt(parts[1]));
+						System.out.println(String.format("#   left in %.2fs, %d agents", (System.nanoTime() - t0) / 1e9, fleet.getAgentCount()));
+						break;
+					case "restart" :
+						if(protocol == Protocol.LOOPBACK){
+							System.out.println("#   skipped, the in-memory hub cannot be restarted");
+							break;
+						}
+						long converged = fleet.restart();
+						if(converged < 0){
+							System.out.println(String.format("#   not converged after %ds, %d of %d agents connected, %d subscribers",
+									fleet.converge, fleet.getConnectedCount(), fleet.getAgentCount(), fleet.getSubscriberCount()));
+						}else{
+							System.out.println(String.format("#   %d agents reconnected in %.2fs", fleet.getAgentCount(), converged / 1e9));
+						}
+						break;
+					case "wait" :
+						fleet.idle(Integer.parseInt(parts[1]));
+						break;
+					default :
+						System.err.println("Unrecognised step " + step);
+						System.exit(1);
+				}
+			}
+		}finally{
+			fleet.shutdown();
+		}
+		System.exit(0);
+	}
+}
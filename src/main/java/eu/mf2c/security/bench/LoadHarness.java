@@ -0,0 +1,332 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import eu.mf2c.security.comm.Channel;
+import eu.mf2c.security.comm.protocol.coap.CoapRelay;
+import eu.mf2c.security.comm.protocol.http.HttpRelayServer;
+import eu.mf2c.security.comm.util.LatencyHistogram;
+import eu.mf2c.security.comm.util.Privacy;
+import eu.mf2c.security.comm.util.Protocol;
+import eu.mf2c.security.comm.util.QoS;
+import eu.mf2c.security.comm.util.Security;
+import eu.mf2c.security.data.Message;
+import eu.mf2c.security.exception.ChannelException;
+
+/**
+ * End&#45;to&#45;end load harness for {@link Channel <em>Channel</em>}.  For every combination of payload size,
+ * {@link Security <em>Security</em>} level, {@link QoS <em>QoS</em>} and number of producers, it starts one consumer
+ * and the producer channels, has each producer send a fixed number of messages to the consumer as fast as it can,
+ * and reports the throughput and the send&#45;to&#45;pop latency percentiles.  Latency is measured within the JVM,
+ * the send time travelling in the payload, so it covers packing, signing and encryption, the transport and
+ * unpacking.
+ * <p>
+ * With no <code>broker</code> the harness brings its own stand&#45;in&#58; the in&#45;memory hub for LOOPBACK, an
+ * {@link HttpRelayServer <em>HttpRelayServer</em>} for HTTP and a {@link CoapRelay <em>CoapRelay</em>} for COAP.
+ * MQTT needs the address of a running broker.  Usage&#58;
+ * <pre>
+ * java eu.mf2c.security.bench.LoadHarness [--protocol=LOOPBACK] [--broker=uri] [--sizes=64,1024,8192]
+ *      [--security=PUBLIC,PROTECTED] [--qos=ATMOSTONCE,ATLEASTONCE] [--concurrency=1,4]
+ *      [--messages=2000] [--warmup=500] [--drain=30] [--hgrm=dir]
+ * </pre>
+ * <code>messages</code> is per producer and <code>drain</code> is how long in seconds the consumer waits for
+ * stragglers once the producers are done.  With <code>hgrm</code>, the latency distribution of every run is also
+ * written to <code>[dir]/[run].hgrm</code> in the HdrHistogram format, in microseconds.  PRIVATE payloads are
+ * encrypted with RSA, so large sizes fail and are counted as errors.
+ */
+public class LoadHarness {
+	/** the protocol */
+	private final Protocol protocol;
+	/** handler properties shared by the channels */
+	private final HashMap<String, String> properties = new HashMap<String, String>();
+	/** drain time in seconds */
+	private final long drain;
+	/** run counter, keeps friendy names unique */
+	private int runs = 0;
+
+	/**
+	 * Construct a harness.
+	 * <p>
+	 * @param protocol	the protocol
+	 * @param broker	the broker address, or null for the stand&#45;in
+	 * @param drain		drain time in seconds
+	 */
+	public LoadHarness(Protocol protocol, String broker, long drain){
+		this.protocol = protocol;
+		this.drain = drain;
+		if(broker != null){
+			this.properties.put("broker", broker);
+		}
+		this.properties.put("timeOut", "30");
+		//fresh key directory so old runs do not leak in
+		this.properties.put("peerKeyDir", System.getProperty("java.io.tmpdir") + "/mf2c-bench-" + System.nanoTime());
+	}
+
+	/**
+	 * Run one combination.
+	 * <p>
+	 * @param size			payload size in characters
+	 * @param sec			the security level
+	 * @param qos			the quality of service
+	 * @param concurrency	number of producer channels, one thread each
+	 * @param messages		messages per producer
+	 * @return the {@link Result <em>Result</em>}
+	 * @throws ChannelException if a channel cannot be created
+	 * @throws InterruptedException if interrupted
+	 */
+	public Result run(int size, Security sec, QoS qos, int concurrency, int messages) throws ChannelException, InterruptedException {
+		int run = ++this.runs;
+		String consumerName = "bench-c" + run;
+		Channel consumer = new Channel(null, this.protocol, consumerName, this.properties);
+		List<Channel> producers = new ArrayList<Channel>();
+		Result result = new Result(size, sec, qos, concurrency);
+		try{
+			for(int i = 0; i < concurrency; i++){
+				//listening channels, they send with an explicit target
+				producers.add(new Channel(null, this.protocol, "bench-p" + run + "-" + i, this.properties));
+			}
+			Set<Enum<?>> flags = new HashSet<Enum<?>>(Arrays.asList(sec, qos, Privacy.NOTPII));
+			CountDownLatch start = new CountDownLatch(1);
+			CountDownLatch done = new CountDownLatch(concurrency);
+			AtomicLong sent = new AtomicLong();
+			AtomicLong errors = new AtomicLong();
+			for(Channel producer : producers){
+				Thread t = new Thread(() -> {
+					try{
+						start.await();
+						char[] padding = new char[size];
+						Arrays.fill(padding, 'x');
+						for(int i = 0; i < messages; i++){
+							String stamp = System.nanoTime() + ":";
+							HashMap<String, Object> payload = new HashMap<String, Object>();
+							payload.put("source", "bench");
+							payload.put("payload", stamp + new String(padding, 0, Math.max(0, size - stamp.length())));
+							try{
+								producer.send(new Message(payload), flags, consumerName);
+								sent.incrementAndGet();
+							}catch(ChannelException e){
+								if(errors.incrementAndGet() == 1){
+									result.firstError = e.getMessage();
+								}
+							}
+						}
+					}catch(InterruptedException e){
+						Thread.currentThread().interrupt();
+					}finally{
+						done.countDown();
+					}
+				}, "LoadHarness-producer");
+				t.setDaemon(true);
+				t.start();
+			}
+			long t0 = System.nanoTime();
+			start.countDown();
+			long expected = (long) concurrency * messages;
+			long last = t0;
+			long deadline = Long.MAX_VALUE;
+			while(result.received + errors.get() < expected && System.nanoTime() < deadline){
+				if(deadline == Long.MAX_VALUE && done.getCount() == 0){
+					deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.drain);
+				}
+				if(!consumer.poll()){
+					LockSupport.parkNanos(20000);
+					continue;
+				}
+				Message msg = consumer.pop();
+				if(msg == null){
+					result.unpackErrors++;
+					continue;
+				}
+				last = System.nanoTime();
+				Object body = msg.getPayloadHM().get(sec == Security.PRIVATE ? "decryptedPayload" : "payload");
+				String text = String.valueOf(body);
+				int colon = text.indexOf(':');
+				if(colon > 0){
+					result.latency.record(last - Long.parseLong(text.substring(0, colon)));
+				}
+				result.received++;
+			}
+			done.await();
+			result.sent = sent.get();
+			result.sendErrors = errors.get();
+			result.elapsedNanos = last - t0;
+		}finally{
+			for(Channel producer : producers){
+				producer.destruct();
+			}
+			consumer.destruct();
+		}
+		return result;
+	}
+
+	/**
+	 * The outcome of one run.
+	 */
+	public static class Result {
+		/** payload size */
+		public final int size;
+		/** security level */
+		public final Security sec;
+		/** quality of service */
+		public final QoS qos;
+		/** number of producers */
+		public final int concurrency;
+		/** messages sent */
+		public long sent;
+		/** messages received */
+		public long received;
+		/** sends that failed */
+		public long sendErrors;
+		/** messages that failed to unpack */
+		public long unpackErrors;
+		/** time from the start to the last message received */
+		public long elapsedNanos;
+		/** the first send error, if any */
+		public volatile String firstError;
+		/** send&#45;to&#45;pop latency in nanoseconds */
+		public final LatencyHistogram latency = new LatencyHistogram();
+
+		private Result(int size, Security sec, QoS qos, int concurrency){
+			this.size = size;
+			this.sec = sec;
+			this.qos = qos;
+			this.concurrency = concurrency;
+		}
+		/**
+		 * @return received messages per second
+		 */
+		public double getThroughput(){
+			return (this.elapsedNanos <= 0 ? 0 : this.received * 1e9 / this.elapsedNanos);
+		}
+		/**
+		 * @return a name for the run
+		 */
+		public String getName(){
+			return this.sec + "-" + this.qos + "-" + this.size + "b-x" + this.concurrency;
+		}
+		/**
+		 * @return a report line, latencies in microseconds
+		 */
+		public String toString(){
+			return String.format("%-10s %-12s %7d %4d %8d %8d %6d %10.0f %9.1f %9.1f %9.1f %9.1f",
+					this.sec, this.qos, this.size, this.concurrency, this.sent, this.received, this.sendErrors + this.unpackErrors,
+					this.getThroughput(), this.latency.getValueAtPercentile(50) / 1e3, this.latency.getValueAtPercentile(99) / 1e3,
+					this.latency.getValueAtPercentile(99.9) / 1e3, this.latency.getMax() / 1e3);
+		}
+		/**
+		 * @return the header matching {@link #toString() <em>toString</em>}
+		 */
+		public static String header(){
+			return String.format("%-10s %-12s %7s %4s %8s %8s %6s %10s %9s %9s %9s %9s",
+					"security", "qos", "size", "conc", "sent", "recv", "errors", "msgs/s", "p50(us)", "p99(us)", "p999(us)", "max(us)");
+		}
+	}
+
+	/**
+	 * Run the sweep.
+	 * <p>
+	 * @param args	see the class description
+	 * @throws Exception on any error
+	 */
+	public static void main(String[] args) throws Exception {
+		HashMap<String, String> opts = new HashMap<String, String>();
+		for(String arg : args){
+			int eq = arg.indexOf('=');
+			if(!arg.startsWith("--") || eq < 0){
+				System.err.println("Unrecognised argument " + arg + ", expected --name=value");
+				System.exit(1);
+			}
+			opts.put(arg.substring(2, eq), arg.substring(eq + 1));
+		}
+		Protocol protocol = Protocol.valueOf(opts.getOrDefault("protocol", "LOOPBACK"));
+		String broker = opts.get("broker");
+		HttpRelayServer httpRelay = null;
+		CoapRelay coapRelay = null;
+		if(broker == null){
+			switch(protocol){
+				case LOOPBACK :
+					broker = "loopback://bench";
+					break;
+				case HTTP :
+					httpRelay = new HttpRelayServer(0, 64, HttpRelayServer.DEFAULT_INBOX_CAPACITY * 10);
+					httpRelay.start();
+					broker = httpRelay.getBaseUrl();
+					break;
+				case COAP :
+					coapRelay = new CoapRelay(0, CoapRelay.DEFAULT_BACKLOG);
+					broker = coapRelay.getUri();
+					break;
+				default :
+					System.err.println("No stand-in broker for " + protocol + ", pass --broker");
+					System.exit(1);
+			}
+		}
+		File hgrm = (opts.get("hgrm") == null ? null : new File(opts.get("hgrm")));
+		if(hgrm != null){
+			hgrm.mkdirs();
+		}
+		int messages = Integer.parseInt(opts.getOrDefault("messages", "2000"));
+		int warmup = Integer.parseInt(opts.getOrDefault("warmup", "500"));
+		LoadHarness harness = new LoadHarness(protocol, broker, Long.parseLong(opts.getOrDefault("drain", "30")));
+		try{
+			if(warmup > 0){
+				harness.run(256, Security.PROTECTED, QoS.ATLEASTONCE, 1, warmup);
+			}
+			System.out.println("# " + protocol + " via " + broker + ", " + messages + " messages per producer");
+			System.out.println(Result.header());
+			for(String sec : opts.getOrDefault("security", "PUBLIC,PROTECTED").split(",")){
+				for(String qos : opts.getOrDefault("qos", "ATMOSTONCE,ATLEASTONCE").split(",")){
+					for(String size : opts.getOrDefault("sizes", "64,1024,8192").split(",")){
+						for(String concurrency : opts.getOrDefault("concurrency", "1,4").split(",")){
+							Result result = harness.run(Integer.parseInt(size), Security.valueOf(sec), QoS.valueOf(qos), Integer.parseInt(concurrency), messages);
+							System.out.println(result);
+							if(result.firstError != null){
+								System.out.println("#   first error : " + result.firstError);
+							}
+							if(hgrm != null){
+								try(PrintStream out = new PrintStream(new FileOutputStream(new File(hgrm, protocol + "-" + result.getName() + ".hgrm")))){
+									result.latency.outputPercentileDistribution(out, 1000.0);
+								}
+							}
+						}
+					}
+				}
+			}
+		}finally{
+			if(httpRelay != null){
+				httpRelay.stop();
+			}
+			if(coapRelay != null){
+				coapRelay.stop();
+			}
+		}
+		System.exit(0);
+	}
+}
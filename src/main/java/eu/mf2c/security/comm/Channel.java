@@ -15,17 +15,38 @@
  */
 package eu.mf2c.security.comm;
 
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
+import net.minidev.json.JSONValue;
+import net.minidev.json.parser.ParseException;
+
 import eu.mf2c.security.comm.protocol.ProtocolHandler;
 import eu.mf2c.security.comm.protocol.ProtocolHandlers;
+import eu.mf2c.security.comm.util.ChannelMetrics;
+import eu.mf2c.security.comm.util.ConflatingQueue;
+import eu.mf2c.security.comm.util.DeltaCodec;
+import eu.mf2c.security.comm.util.Outbox;
 import eu.mf2c.security.comm.util.Privacy;
 import eu.mf2c.security.comm.util.Protocol;
 import eu.mf2c.security.comm.util.QoS;
+import eu.mf2c.security.comm.util.ReorderBuffer;
 import eu.mf2c.security.comm.util.Security;
+import eu.mf2c.security.comm.util.Trace;
 import eu.mf2c.security.data.Identity;
 import eu.mf2c.security.data.Message;
 import eu.mf2c.security.exception.ChannelException;
@@ -52,6 +73,8 @@ public class Channel implements Channelable {
 	
 	private final static Logger LOGGER = Logger
 			.getLogger(Channel.class.getName());
+	/** default shortest time in milliseconds between two resyncs served to the same recipient */
+	public static final long DEFAULT_RESYNC_INTERVAL = 1000;
 	/** Transport type  */
 	protected Protocol transport = null; //initialised to null	
 	/** Channel friendy name */
@@ -70,6 +93,38 @@ public class Channel implements Channelable {
 	private String broker = "vds095.gridpp.rl.ac.uk"; //hardcoded for the moment, needs to be discovered during the bootstrap process
 	/** time out value in seconds */ //hardcoded for the moment, needs to be configurable
 	private int timeout = 60;
+	/** fraction of sent messages traced, 0 to 1 */
+	private double traceSampleRate = 0;
+	/** extra protocol handler properties supplied by the caller */
+	private final HashMap<String, String> properties = new HashMap<String, String>();
+	/** asynchronous send pipeline, created on first use */
+	private OutboundPipeline pipeline;
+	/** bundles small outgoing messages, null unless the <code>coalesceWindow</code> property is set */
+	private Coalescer<HashMap<String, Object>> coalescer;
+	/** latest unsent message per conflation key, created on first use */
+	private ConflatingQueue<String, Update> conflated;
+	/** the thread sending the conflated messages */
+	private Thread conflater;
+	/** flag indicating state of the conflater */
+	private volatile boolean conflating = true;
+	/** delta encodes the messages of a delta stream and rebuilds the received ones */
+	private DeltaCodec deltaCodec;
+	/** session of this channel, numbering the messages sent to each recipient */
+	private final String session = Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, 36);
+	/** sequence number of the next message to each recipient */
+	private final ConcurrentHashMap<String, AtomicLong> sequences = new ConcurrentHashMap<String, AtomicLong>();
+	/** releases the received messages in sequence, null unless the <code>reorderTimeout</code> property is set */
+	private ReorderBuffer<Message> reorder;
+	/** latest messages sent to each recipient, resent on request, null unless the <code>outboxSize</code> property is set */
+	private Outbox<Update> outbox;
+	/** the thread serving and requesting resyncs, null unless the channel retains or reorders messages */
+	private ExecutorService resyncExecutor;
+	/** shortest time in milliseconds between two resyncs served to the same recipient */
+	private long resyncInterval = DEFAULT_RESYNC_INTERVAL;
+	/** when the last resync was served to each recipient, in milliseconds */
+	private final HashMap<String, Long> resyncServed = new HashMap<String, Long>();
+	/** unpacked messages released in order, including those split from a bundle, handed out before the next message is taken from the handler */
+	private final ConcurrentLinkedQueue<Message> ready = new ConcurrentLinkedQueue<Message>();
 	
 	
 	
@@ -83,6 +138,19 @@ public class Channel implements Channelable {
 	 * @throws {@link ChannelException} on {@link #initChannel(String, Protocol)} error
 	 */
 	public Channel(String destination, Protocol protocol, String friendyName) throws ChannelException{
+		this(destination, protocol, friendyName, null);
+	}
+	/**
+	 * Construct an instance with extra {@link ProtocolHandler <em>ProtocolHandler</em>} properties, e.g. the
+	 * <code>broker</code> address or the <code>timeOut</code>.  These override the channel defaults.
+	 * <p>
+	 * @param destination  {@link java.lang.String <em>String</em> representation of the communication destination
+	 * @param transport    {@link Protocol <em>Protocol</em>} flag
+	 * @param friendyName  {@link java.lang.String <em>String</em> representation of the instance&#39;s friendy name
+	 * @param properties   handler properties, may be null
+	 * @throws {@link ChannelException} on {@link #initChannel(String, Protocol)} error
+	 */
+	public Channel(String destination, Protocol protocol, String friendyName, HashMap<String, String> properties) throws ChannelException{
 		//validate entry
 		if(protocol == null){
 			throw new ChannelException("transport protocol cannot be null!");
@@ -90,6 +158,7 @@ public class Channel implements Channelable {
 		if(friendyName == null || friendyName.isEmpty()){
 			throw new ChannelException("friendyName cannot be null or empty!");
 		}
+		this.transport = protocol;
 		if(destination == null){	// just a listening channel, temporary fix until we use PKI
 			LOGGER.debug("Creating a listening Channel instance : " + friendyName + ", using " + transport);
 		}else{
@@ -97,6 +166,19 @@ public class Channel implements Channelable {
 			LOGGER.debug("Creating a Channel instance : " + friendyName + ", using " + transport + " to " + destination);
 		}		
 		this.friendyName = friendyName;
+		if(properties != null){
+			this.properties.putAll(properties);
+		}
+		if(this.properties.get("broker") != null){
+			this.broker = this.properties.get("broker");
+		}
+		if(this.properties.get("timeOut") != null){
+			this.timeout = Integer.parseInt(this.properties.get("timeOut"));
+		}
+		if(this.properties.get("traceSampleRate") != null){
+			this.traceSampleRate = Double.parseDouble(this.properties.get("traceSampleRate"));
+		}
+		this.deltaCodec = new DeltaCodec(this.properties.get("deltaKeyframe") == null ? DeltaCodec.DEFAULT_KEYFRAME_INTERVAL : Integer.parseInt(this.properties.get("deltaKeyframe")));
 		try{
 			//bootstrap the identity... this is passed to the protocolHandler on instantiation
 			this.identity = Identity.getInstance();
@@ -104,6 +186,12 @@ public class Channel implements Channelable {
 			this.initChannel();
 			//this creates the Listener object
 			createListener();			
+			//bundles small messages if asked to
+			createCoalescer();
+			//puts the received messages back in order if asked to
+			createReorderBuffer();
+			//catches up with the messages missed while disconnected
+			createResync();
 			//starts the ping service
 			startPingService();
 		}catch(Exception e){
@@ -119,16 +207,112 @@ public class Channel implements Channelable {
 		
 		//create the handler
 		this.handler = ProtocolHandlers.newProtocolHandler(this.transport);
-		//initiaise it
+		//initiaise it, the caller's properties go on top of the defaults
 		HashMap<String, String> properties = new HashMap<String, String>();
 		properties.put("friendyName", this.friendyName);
 		properties.put("broker", this.broker);
 		properties.put("destination", (destination == null ? null : this.destination)); //could be null
 		properties.put("keepAlive",String.valueOf(this.timeout));
 		properties.put("timeOut", String.valueOf(this.timeout));
+		properties.putAll(this.properties);
+		properties.put("friendyName", this.friendyName);
 		//
 		this.handler.setup(properties); //set up handles key exchange etc.		
 	}
+	/**
+	 * Create the {@link Coalescer <em>Coalescer</em>} if the <code>coalesceWindow</code> property, the longest
+	 * time in milliseconds a message waits for its bundle, is set.  A bundle is also closed when it reaches
+	 * <code>coalesceMaxMessages</code> messages or <code>coalesceMaxBytes</code> bytes.
+	 */
+	private void createCoalescer(){
+		long window = (this.properties.get("coalesceWindow") == null ? 0 : Long.parseLong(this.properties.get("coalesceWindow")));
+		if(window <= 0){
+			return;
+		}
+		int maxMessages = (this.properties.get("coalesceMaxMessages") == null ? Coalescer.DEFAULT_MAX_MESSAGES : Integer.parseInt(this.properties.get("coalesceMaxMessages")));
+		int maxBytes = (this.properties.get("coalesceMaxBytes") == null ? Coalescer.DEFAULT_MAX_BYTES : Integer.parseInt(this.properties.get("coalesceMaxBytes")));
+		this.coalescer = new Coalescer<HashMap<String, Object>>(this.friendyName, window, maxMessages, maxBytes);
+		this.handler.getMetrics().gauge(ChannelMetrics.COALESCE_QUEUE, this.coalescer::size);
+		LOGGER.debug("Coalescing messages for " + window + "ms, up to " + maxMessages + " messages or " + maxBytes + " bytes");
+	}
+	/**
+	 * Create the {@link ReorderBuffer <em>ReorderBuffer</em>} if the <code>reorderTimeout</code> property, the longest
+	 * time in milliseconds a missing message holds up the later messages of its source, is set.  At most
+	 * <code>reorderCapacity</code> messages are held per source.
+	 */
+	private void createReorderBuffer(){
+		long timeOut = (this.properties.get("reorderTimeout") == null ? 0 : Long.parseLong(this.properties.get("reorderTimeout")));
+		if(timeOut <= 0){
+			return;
+		}
+		int capacity = (this.properties.get("reorderCapacity") == null ? ReorderBuffer.DEFAULT_CAPACITY : Integer.parseInt(this.properties.get("reorderCapacity")));
+		this.reorder = new ReorderBuffer<Message>(timeOut, capacity, this::gap, this::drop);
+		ChannelMetrics metrics = this.handler.getMetrics();
+		metrics.gauge(ChannelMetrics.REORDER_QUEUE, this.reorder::size);
+		metrics.gauge(ChannelMetrics.GAPS, this.reorder::getGaps);
+		metrics.gauge(ChannelMetrics.MISSING, this.reorder::getMissing);
+		metrics.gauge(ChannelMetrics.LATE, this.reorder::getLate);
+		LOGGER.debug("Reordering messages for up to " + timeOut + "ms, holding up to " + capacity + " messages per source");
+	}
+	/**
+	 * Set up the catch&#45;up resync.  If the <code>outboxSize</code> property is set, that many of the latest messages
+	 * to each recipient are retained and resent when the recipient asks for them.  If the channel reorders messages,
+	 * it asks its sources for the messages it missed when it reconnects to the broker, or when a source publishes
+	 * its connected status.  A recipient is served at most one resync every <code>resyncInterval</code> milliseconds.
+	 */
+	private void createResync(){
+		int size = (this.properties.get("outboxSize") == null ? 0 : Integer.parseInt(this.properties.get("outboxSize")));
+		if(this.properties.get("resyncInterval") != null){
+			this.resyncInterval = Long.parseLong(this.properties.get("resyncInterval"));
+		}
+		if(size > 0){
+			this.outbox = new Outbox<Update>(size);
+			this.handler.getMetrics().gauge(ChannelMetrics.OUTBOX, this.outbox::size);
+		}
+		if(this.outbox == null && this.reorder == null){
+			return;
+		}
+		this.resyncExecutor = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "Resync-" + this.friendyName);
+			t.setDaemon(true);
+			return t;
+		});
+		this.handler.setResyncListener(new ProtocolHandler.ResyncListener() {
+			@Override
+			public void reconnected() {
+				if(reorder != null){
+					for(String source : reorder.getSources()){
+						resyncLater(source);
+					}
+				}
+			}
+			@Override
+			public void peerConnected(String peer) {
+				if(reorder != null && reorder.getNext(peer) >= 0){
+					resyncLater(peer);
+				}
+			}
+			@Override
+			public void resyncRequested(Message request) {
+				if(outbox != null){
+					resyncExecutor.execute(() -> serveResync(request));
+				}
+			}
+		});
+	}
+	/**
+	 * A gap in the messages from a source was skipped.
+	 */
+	private void gap(String source, String session, long first, long last){
+		LOGGER.warn("Skipped missing message(s) " + first + " to " + last + " from " + source);
+	}
+	/**
+	 * Commit a received message dropped on its way to the application, e.g. rejected or late, so that it does not
+	 * hold up the truncation of the inbound journal and is not handed back after a restart.
+	 */
+	private void drop(Message rm){
+		this.handler.commit(rm);
+	}
 	/**
 	 * Create an instance of the {@link Listener <em>Listener</em>} to handle
 	 * incoming ping requests and ping acknowledgements.
@@ -152,7 +336,7 @@ public class Channel implements Channelable {
 			noPing = true;
 		}
 		this.pingService = new PingService(this.timeout, this.listener, noPing); //try every 60 seconds as the ping interval, could make this configurable
-		Thread pingServiceThread = new Thread(this.pingService, "PingService");
+		Thread pingServiceThread = new Thread(this.pingService, "PingService-" + this.friendyName); //one per channel, name it after the owner
 		pingServiceThread.start();
 		
 	}
@@ -172,7 +356,201 @@ public class Channel implements Channelable {
 	 */
 	@Override
 	public void send(Message message, Set<Enum<?>> flags) throws ChannelException {
-		//validate 
+		this.send(message, flags, this.destination);
+	}
+	/**
+	 * A message waiting to be sent, conflated, or retained in the {@link #outbox <em>outbox</em>}.
+	 */
+	private static class Update {
+		/** the conflation key, qualified by the target */
+		final String key;
+		/** the message key values, packed afresh on each attempt */
+		final HashMap<String, Object> payload;
+		/** security flag */
+		final Security sec;
+		/** QoS flag */
+		final QoS qos;
+		/** friendy name of the recipient */
+		final String target;
+		/** delta stream name or null */
+		final String deltaStream;
+
+		Update(String key, HashMap<String, Object> payload, Security sec, QoS qos, String target, String deltaStream){
+			this.key = key;
+			this.payload = payload;
+			this.sec = sec;
+			this.qos = qos;
+			this.target = target;
+			this.deltaStream = deltaStream;
+		}
+	}
+	/**
+	 * {@inheritDoc}
+	 * A private message needs the recipient&#39;s public key.  If it is not known yet, it is requested through
+	 * the handshake and the call blocks until it arrives or the channel time out expires.
+	 * <p>
+	 * A message with a {@link Message#getConflationKey() <em>conflation key</em>} is queued and the call returns
+	 * at once.  The channel&#39;s conflater thread sends the queued messages while connected, and a message still
+	 * queued is replaced in place by the next one with the same key and target.  During a disconnection only the
+	 * latest message per key is kept, and it is signed with a fresh timestamp when it is finally sent.
+	 * <p>
+	 * If the channel coalesces messages, public and protected messages are added to the bundle of their
+	 * destination and flags and the call returns at once.  A bundle is signed once and sent as one message, errors
+	 * sending it are logged and counted in the {@link ChannelMetrics <em>ChannelMetrics</em>}.  Private messages
+	 * are not bundled, each is encrypted for its recipient.
+	 * <p>
+	 * A message of a {@link Message#getDeltaStream() <em>delta stream</em>} that is neither conflated nor bundled
+	 * only carries the key values changed since the previous message of the stream to the same target.
+	 * <p>
+	 * Every message, or bundle, is numbered in this channel&#39;s session, counting the messages to the same target, so
+	 * that a recipient with the <code>reorderTimeout</code> property set pops them in order.  A message that fails to
+	 * send leaves a gap, skipped by the recipient after its time out.
+	 */
+	@Override
+	public void send(Message message, Set<Enum<?>> flags, String target) throws ChannelException {
+		this.validate(message, flags, target);
+		Security sec = (Security) getFlag(Security.class, flags);
+		QoS qos = (QoS) getFlag(QoS.class, flags);
+		String deltaKey = null;
+		//we are safe now, go ahead
+		try{
+			if(message.getConflationKey() != null){
+				this.getConflated().put(target + "|" + message.getConflationKey(), 
+						new Update(target + "|" + message.getConflationKey(), new HashMap<String, Object>(message.getPayloadHM()), sec, qos, target, message.getDeltaStream()));
+				return;
+			}
+			if(this.coalescer != null && !sec.equals(Security.PRIVATE)){
+				this.coalesce(message, sec, qos, target);
+				return;
+			}
+			PublicKey recipientPK = this.peerKey(sec, target);
+			deltaKey = (message.getDeltaStream() == null ? null : message.encodeDelta(this.deltaCodec, target));
+			this.sequence(message, target, sec, qos);
+			boolean traced = this.pack(message, sec, qos, recipientPK);
+			this.publish(message, this.handler.getDestination(target, sec), qos, traced);
+		}catch(Exception e){
+			if(deltaKey != null){
+				//the recipient may not have the base, start the stream again
+				this.deltaCodec.reset(deltaKey);
+			}
+			this.handler.getMetrics().sendFailed();
+			LOGGER.error("Error sending message: " + e.getMessage());
+			throw new ChannelException("Error sending message: " + e.getMessage());
+		}		
+	}
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> sendAsync(Message message, Set<Enum<?>> flags) throws ChannelException {
+		return this.sendAsync(message, flags, this.destination);
+	}
+	/**
+	 * {@inheritDoc}
+	 * The message is signed and encrypted on the shared crypto worker pool and published by the channel&#39;s
+	 * publisher thread in the order of the <code>sendAsync</code> calls.  The recipient&#39;s public key of a
+	 * private message is resolved before the call returns.
+	 */
+	@Override
+	public CompletableFuture<Void> sendAsync(Message message, Set<Enum<?>> flags, String target) throws ChannelException {
+		this.validate(message, flags, target);
+		Security sec = (Security) getFlag(Security.class, flags);
+		QoS qos = (QoS) getFlag(QoS.class, flags);
+		CompletableFuture<Void> sent;
+		try{
+			PublicKey recipientPK = this.peerKey(sec, target);
+			String topic = this.handler.getDestination(target, sec);
+			this.sequence(message, target, sec, qos);
+			sent = this.getPipeline().submit(() -> this.pack(message, sec, qos, recipientPK), 
+					traced -> this.publish(message, topic, qos, traced), this.timeout);
+		}catch(Exception e){
+			this.handler.getMetrics().sendFailed();
+			LOGGER.error("Error queueing message: " + e.getMessage());
+			throw new ChannelException("Error queueing message: " + e.getMessage());
+		}
+		return sent.whenComplete((v, e) -> {
+			if(e != null){
+				this.handler.getMetrics().sendFailed();
+				LOGGER.error("Error sending message: " + e.getMessage());
+			}
+		});
+	}
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Message> request(Message message, Set<Enum<?>> flags, long timeOut) throws ChannelException {
+		return this.request(message, flags, this.destination, timeOut);
+	}
+	/**
+	 * {@inheritDoc}
+	 * The request carries a new correlation id in its header and is sent like {@link #sendAsync(Message, Set, String) <em>sendAsync</em>},
+	 * it is neither conflated, bundled nor delta encoded.  The peer pops it as any other message and answers with
+	 * {@link #reply(Message, Message, Set) <em>reply</em>}, to the reply topic of this channel.  The reply is verified and
+	 * decrypted on the transport thread that delivered it and completes the future there, it is not queued for
+	 * {@link #pop() <em>pop</em>}.
+	 */
+	@Override
+	public CompletableFuture<Message> request(Message message, Set<Enum<?>> flags, String target, long timeOut) throws ChannelException {
+		this.validate(message, flags, target);
+		PendingCalls calls = this.handler.getCalls();
+		String cid = calls.nextCorrelationId();
+		message.getPayloadHM().put(Message.CORRELATION, cid);
+		CompletableFuture<Message> reply = calls.register(cid, target, timeOut);
+		try{
+			this.sendAsync(message, flags, target).whenComplete((v, e) -> {
+				if(e != null){
+					calls.fail(cid, e);
+				}
+			});
+		}catch(ChannelException e){
+			calls.fail(cid, e);
+			throw e;
+		}
+		return reply;
+	}
+	/**
+	 * {@inheritDoc}
+	 * The reply goes to the reply topic of the requesting channel with the request&#39;s correlation id.  It is sent
+	 * straight away, neither conflated, bundled nor delta encoded.  The requesting channel drops unsigned replies,
+	 * so a public reply is refused.
+	 */
+	@Override
+	public void reply(Message request, Message response, Set<Enum<?>> flags) throws ChannelException {
+		String cid = (request == null ? null : request.getCorrelationId());
+		if(cid == null){
+			LOGGER.error("Unable to send reply, the message is not a request!");
+			throw new ChannelException("Unable to send reply, the message is not a request!");
+		}
+		String target = (String) request.getPayloadHM().get("source");
+		this.validate(response, flags, target);
+		Security sec = (Security) getFlag(Security.class, flags);
+		QoS qos = (QoS) getFlag(QoS.class, flags);
+		if(sec.equals(Security.PUBLIC)){
+			LOGGER.error("Unable to send reply, a reply must be protected or private!");
+			throw new ChannelException("Unable to send reply, a reply must be protected or private!");
+		}
+		response.getPayloadHM().put(Message.CORRELATION, cid);
+		try{
+			PublicKey recipientPK = this.peerKey(sec, target);
+			boolean traced = this.pack(response, sec, qos, recipientPK);
+			this.publish(response, this.handler.getReplyDest(target), qos, traced);
+		}catch(Exception e){
+			this.handler.getMetrics().sendFailed();
+			LOGGER.error("Error sending reply: " + e.getMessage());
+			throw new ChannelException("Error sending reply: " + e.getMessage());
+		}
+	}
+	/**
+	 * Validate the arguments of a send.
+	 * <p>
+	 * @throws ChannelException if an argument is missing
+	 */
+	private void validate(Message message, Set<Enum<?>> flags, String target) throws ChannelException {
+		if(target == null || target.isEmpty()){
+			LOGGER.error("Unable to send message, no destination for a listening channel!");
+			throw new ChannelException("Unable to send message, no destination for a listening channel!");
+		}
 		if(message == null || message.getPayloadHM() == null || message.getPayloadHM().isEmpty() ){
 			LOGGER.error("Unable to send message, there is no message or message payload!");
 			throw new ChannelException("Unable to send message, there is no message or message payload!");
@@ -181,30 +559,347 @@ public class Channel implements Channelable {
 			LOGGER.error("Unable to send message, need to specify flags!");
 			throw new ChannelException("Unable to send message, need to specify flags!");
 		}
-		Security sec = (Security) getFlag(Security.class, flags);
-		if(sec == null ){
+		if(getFlag(Security.class, flags) == null ){
 			LOGGER.error("Unable to send message, need to specify security flag!");
 			throw new ChannelException("Unable to send message, need to specify security flag!");
 		}
-		QoS qos = (QoS) getFlag(QoS.class, flags);
-		if(qos == null ){
+		if(getFlag(QoS.class, flags) == null ){
 			LOGGER.error("Unable to send message, need to specify QoS flag!");
 			throw new ChannelException("Unable to send message, need to specify QoS flag!");
 		}
-		Privacy privacy = (Privacy) getFlag(Privacy.class, flags);
-		if(privacy == null ){
+		if(getFlag(Privacy.class, flags) == null ){
 			LOGGER.error("Unable to send message, need to specify privacy flag!");
 			throw new ChannelException("Unable to send message, need to specify privacy flag!");
 		}
-		//we are safe now, go ahead
+	}
+	/**
+	 * Get the recipient&#39;s public key of a private message, blocking on the handshake if it is not known yet.
+	 * <p>
+	 * @return the key, or null unless the message is private
+	 */
+	private PublicKey peerKey(Security sec, String target) throws Exception {
+		if(sec.equals(Security.PRIVATE)){
+			return this.handler.requestPeerKey(target).get(this.timeout, TimeUnit.SECONDS);
+		}
+		return null;
+	}
+	/**
+	 * Add a message to the bundle of its destination and flags.
+	 */
+	private void coalesce(Message message, Security sec, QoS qos, String target) throws Exception {
+		String topic = this.handler.getDestination(target, sec);
+		String source = this.friendyName;
+		HashMap<String, Object> item = new HashMap<String, Object>(message.getPayloadHM());
+		//close enough for the size limit, the Json key values add a little to the payload
+		int size = String.valueOf(item.get("payload")).length() + 64;
+		this.coalescer.add(topic + "|" + sec + "|" + qos, item, size, items -> {
+			try{
+				Message bundle = Message.bundle(source, items);
+				this.sequence(bundle, target, sec, qos);
+				boolean traced = this.pack(bundle, sec, qos, null);
+				this.publish(bundle, topic, qos, traced);
+			}catch(Exception e){
+				this.handler.getMetrics().sendFailed();
+				throw e;
+			}
+		});
+	}
+	/**
+	 * Number a message in this channel&#39;s session, counting the messages to its recipient, and retain it in the
+	 * {@link #outbox <em>outbox</em>} if there is one.  The message is retained before it is packed, so that it is
+	 * signed afresh if it is resent.  Public messages are not numbered, the recipient cannot trust the numbering of
+	 * an unsigned message and does not reorder it.
+	 */
+	private void sequence(Message message, String target, Security sec, QoS qos){
+		if(sec.equals(Security.PUBLIC)){
+			return;
+		}
+		HashMap<String, Object> hm = message.getPayloadHM();
+		hm.put(Message.SESSION, this.session);
+		AtomicLong next = this.sequences.computeIfAbsent(target, k -> new AtomicLong());
+		if(this.outbox == null){
+			hm.put(Message.SEQUENCE, next.getAndIncrement());
+			return;
+		}
+		//numbered and retained together, the outbox is kept in sequence order
+		synchronized(this.outbox){
+			long seq = next.getAndIncrement();
+			hm.put(Message.SEQUENCE, seq);
+			this.outbox.retain(target, seq, new Update(null, new HashMap<String, Object>(hm), sec, qos, target, null));
+		}
+	}
+	/**
+	 * Ask a source to resend the messages it sent to this channel after the last one released.  The messages
+	 * come back in bundles and go through the reorder buffer, those the source no longer retains are skipped.
+	 * The channel must reorder messages, see the <code>reorderTimeout</code> property, and the source must retain
+	 * them, see the <code>outboxSize</code> property.
+	 * <p>
+	 * @param source	friendy name of the source
+	 * @throws ChannelException if the channel does not reorder messages or on processing errors
+	 */
+	public void resync(String source) throws ChannelException {
+		if(this.reorder == null){
+			LOGGER.error("Unable to resync, the channel does not reorder messages!");
+			throw new ChannelException("Unable to resync, the channel does not reorder messages!");
+		}
+		String ssn = this.reorder.getSession(source);
+		if(ssn == null){
+			LOGGER.debug("Nothing to resync from " + source);
+			return;
+		}
+		HashMap<String, Object> ask = new HashMap<String, Object>();
+		ask.put("ssn", ssn);
+		ask.put("from", this.reorder.getNext(source));
+		HashMap<String, Object> hm = new HashMap<String, Object>();
+		hm.put("source", this.friendyName);
+		hm.put("payload", JSONValue.toJSONString(ask));
+		Message request = new Message(hm);
 		try{
-			message.packMsg(sec, this.transport, qos, null);
-			this.handler.publish(this.handler.getDestination(sec),qos, message.getPayloadHM());
-			
+			boolean traced = this.pack(request, Security.PROTECTED, QoS.ATLEASTONCE, null);
+			this.publish(request, this.handler.getResyncDest(source), QoS.ATLEASTONCE, traced);
+			LOGGER.debug("Asked " + source + " to resend from " + ask.get("from"));
 		}catch(Exception e){
-			LOGGER.error("Error sending message: " + e.getMessage());
-			throw new ChannelException("Error sending message: " + e.getMessage());
-		}		
+			this.handler.getMetrics().sendFailed();
+			LOGGER.error("Error sending resync request: " + e.getMessage());
+			throw new ChannelException("Error sending resync request: " + e.getMessage());
+		}
+	}
+	/**
+	 * Ask a source to resync on the resync thread.
+	 */
+	private void resyncLater(String source){
+		this.resyncExecutor.execute(() -> {
+			try{
+				this.resync(source);
+			}catch(ChannelException e){
+				//logged
+			}
+		});
+	}
+	/**
+	 * Resend the retained messages a recipient asked for, up to the last one sent when it asked.  Public and
+	 * protected messages are resent in protected bundles, signed once per bundle, private messages are encrypted
+	 * again one by one.  They go through the {@link OutboundPipeline <em>OutboundPipeline</em>}, so the resend is
+	 * held back while the pipeline is full.  The request must be signed with the key held for the recipient in the
+	 * peer key directory, and the recipient is served at most one resync every {@link #resyncInterval
+	 * <em>resyncInterval</em>}.  Requests run on the single resync thread.
+	 */
+	@SuppressWarnings("unchecked")
+	private void serveResync(Message request){
+		try{
+			request.setMetrics(this.handler.getMetrics());
+			request.unpackMsg(this.handler.getReplayFilter());
+			String target = (String) request.getPayloadHM().get("source");
+			if(target == null){
+				LOGGER.warn("Dropped a resync request without a source");
+				return;
+			}
+			PublicKey peerKey = this.handler.getPeerKey(target);
+			if(peerKey == null){
+				peerKey = this.handler.requestPeerKey(target).get(this.timeout, TimeUnit.SECONDS);
+			}
+			if(!peerKey.equals(request.getDestKey())){
+				LOGGER.warn("Dropped a resync request from " + target + " not signed with its key");
+				return;
+			}
+			long now = System.currentTimeMillis();
+			Long served = this.resyncServed.get(target);
+			if(served != null && now - served < this.resyncInterval){
+				LOGGER.warn("Dropped a resync request from " + target + ", the last one was served " + (now - served) + "ms ago");
+				return;
+			}
+			this.resyncServed.put(target, now);
+			HashMap<String, Object> ask = (HashMap<String, Object>) JSONValue.parseStrict((String) request.getPayloadHM().get("payload"));
+			if(!this.session.equals(ask.get("ssn")) || !(ask.get("from") instanceof Number)){
+				LOGGER.debug("Ignored a resync request for another session from " + target);
+				return;
+			}
+			long from = ((Number) ask.get("from")).longValue();
+			AtomicLong next = this.sequences.get(target);
+			long end = (next == null ? 0 : next.get());
+			int maxMessages = (this.properties.get("coalesceMaxMessages") == null ? Coalescer.DEFAULT_MAX_MESSAGES : Integer.parseInt(this.properties.get("coalesceMaxMessages")));
+			int maxBytes = (this.properties.get("coalesceMaxBytes") == null ? Coalescer.DEFAULT_MAX_BYTES : Integer.parseInt(this.properties.get("coalesceMaxBytes")));
+			long first = this.outbox.first(target);
+			List<HashMap<String, Object>> items = new ArrayList<HashMap<String, Object>>();
+			int bytes = 0;
+			int resent = 0;
+			List<Outbox.Entry<Update>> range;
+			//each pass moves on, the first message of the range is before the end
+			while(from < end && !(range = this.outbox.range(target, from, maxMessages)).isEmpty() && range.get(0).seq < end){
+				for(Outbox.Entry<Update> entry : range){
+					if(entry.seq >= end){
+						break;
+					}
+					from = entry.seq + 1;
+					resent++;
+					if(entry.item.sec.equals(Security.PRIVATE)){
+						this.resendBundle(target, items, first);
+						items = new ArrayList<HashMap<String, Object>>();
+						bytes = 0;
+						this.resendPrivate(target, entry.item, first);
+						continue;
+					}
+					items.add(entry.item.payload);
+					bytes += String.valueOf(entry.item.payload.get("payload")).length() + 64;
+					if(items.size() >= maxMessages || bytes >= maxBytes){
+						this.resendBundle(target, items, first);
+						items = new ArrayList<HashMap<String, Object>>();
+						bytes = 0;
+					}
+				}
+			}
+			this.resendBundle(target, items, first);
+			LOGGER.info("Resent " + resent + " message(s) to " + target);
+		}catch(MessageException | ParseException | ClassCastException e){
+			LOGGER.warn("Dropped an invalid resync request : " + e.getMessage());
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}catch(Exception e){
+			this.handler.getMetrics().sendFailed();
+			LOGGER.error("Error resending messages: " + e.getMessage());
+		}
+	}
+	/**
+	 * Queue a bundle of resent messages on the outbound pipeline.
+	 */
+	private void resendBundle(String target, List<HashMap<String, Object>> items, long first) throws Exception {
+		if(items.isEmpty()){
+			return;
+		}
+		Message bundle = Message.bundle(this.friendyName, items);
+		bundle.getPayloadHM().put(Message.SESSION, this.session);
+		bundle.getPayloadHM().put(Message.RESYNC, first);
+		String topic = this.handler.getDestination(target, Security.PROTECTED);
+		this.getPipeline().submit(() -> this.pack(bundle, Security.PROTECTED, QoS.ATLEASTONCE, null), 
+				traced -> this.publish(bundle, topic, QoS.ATLEASTONCE, traced), this.timeout);
+	}
+	/**
+	 * Queue a resent private message on the outbound pipeline.
+	 */
+	private void resendPrivate(String target, Update update, long first) throws Exception {
+		Message message = new Message(new HashMap<String, Object>(update.payload));
+		message.getPayloadHM().put(Message.RESYNC, first);
+		PublicKey recipientPK = this.peerKey(Security.PRIVATE, target);
+		String topic = this.handler.getDestination(target, Security.PRIVATE);
+		this.getPipeline().submit(() -> this.pack(message, Security.PRIVATE, update.qos, recipientPK), 
+				traced -> this.publish(message, topic, update.qos, traced), this.timeout);
+	}
+	/**
+	 * Sign and encrypt a message.
+	 * <p>
+	 * @return true if the message is traced
+	 */
+	private boolean pack(Message message, Security sec, QoS qos, PublicKey recipientPK) throws Exception {
+		boolean traced = Trace.sample(this.traceSampleRate);
+		if(traced){
+			message.startTrace();
+		}
+		message.setMetrics(this.handler.getMetrics());
+		message.packMsg(sec, this.transport, qos, recipientPK, this.handler.getCompressThreshold());
+		return traced;
+	}
+	/**
+	 * Publish a packed message.
+	 */
+	private void publish(Message message, String topic, QoS qos, boolean traced) throws Exception {
+		message.tracePublished();
+		this.handler.publish(topic, qos, message.getPayloadHM());
+		if(traced){
+			message.traceStage(Trace.ACKED);
+			this.handler.getMetrics().recordTrace(message.getTrace());
+		}
+	}
+	/**
+	 * Get the conflating queue, starting the conflater on the first conflated send.
+	 */
+	private synchronized ConflatingQueue<String, Update> getConflated(){
+		if(this.conflated == null){
+			this.conflated = new ConflatingQueue<String, Update>();
+			this.handler.getMetrics().gauge(ChannelMetrics.CONFLATE_QUEUE, this.conflated::size);
+			this.handler.getMetrics().gauge(ChannelMetrics.CONFLATED, this.conflated::getConflated);
+			this.conflater = new Thread(this::drainConflated, "Conflater-" + this.friendyName);
+			this.conflater.setDaemon(true);
+			this.conflater.start();
+		}
+		return this.conflated;
+	}
+	/**
+	 * Send the conflated messages in queue order, holding them while disconnected.
+	 */
+	private void drainConflated(){
+		while(this.conflating){
+			Update update;
+			try{
+				update = this.conflated.poll(100);
+				if(update == null){
+					continue;
+				}
+				if(!this.handler.isConnack()){
+					//hold it, a newer update may still replace it
+					this.conflated.putBack(update.key, update);
+					Thread.sleep(100);
+					continue;
+				}
+			}catch(InterruptedException e){
+				break;
+			}
+			String deltaKey = null;
+			try{
+				Message message = new Message(update.payload);
+				PublicKey recipientPK = this.peerKey(update.sec, update.target);
+				if(update.deltaStream != null){
+					message.setDeltaStream(update.deltaStream);
+					deltaKey = message.encodeDelta(this.deltaCodec, update.target);
+				}
+				this.sequence(message, update.target, update.sec, update.qos);
+				boolean traced = this.pack(message, update.sec, update.qos, recipientPK);
+				this.publish(message, this.handler.getDestination(update.target, update.sec), update.qos, traced);
+			}catch(Exception e){
+				if(deltaKey != null){
+					this.deltaCodec.reset(deltaKey);
+				}
+				this.handler.getMetrics().sendFailed();
+				LOGGER.error("Error sending conflated message: " + e.getMessage());
+				if(!this.handler.isConnack()){
+					//lost the connection, try again later unless superseded
+					this.conflated.putBack(update.key, update);
+				}
+			}
+		}
+		LOGGER.debug("Conflater stopping.....");
+	}
+	/**
+	 * Stop the conflater once the queue is drained, or after the channel time out if the channel stays
+	 * disconnected.
+	 */
+	private void stopConflater(){
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(this.timeout);
+		try{
+			while(this.conflated.size() > 0 && System.currentTimeMillis() < deadline){
+				Thread.sleep(50);
+			}
+			if(this.conflated.size() > 0){
+				LOGGER.warn("Conflater not drained, " + this.conflated.size() + " message(s) abandoned");
+			}
+			this.conflating = false;
+			this.conflater.join(TimeUnit.SECONDS.toMillis(this.timeout));
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+	/**
+	 * Get the outbound pipeline, creating it on the first asynchronous send.
+	 */
+	private synchronized OutboundPipeline getPipeline(){
+		if(this.pipeline == null){
+			int capacity = OutboundPipeline.DEFAULT_CAPACITY;
+			if(this.properties.get("pipelineCapacity") != null){
+				capacity = Integer.parseInt(this.properties.get("pipelineCapacity"));
+			}
+			this.pipeline = new OutboundPipeline(this.friendyName, capacity);
+			this.handler.getMetrics().gauge(ChannelMetrics.OUT_QUEUE, this.pipeline::size);
+		}
+		return this.pipeline;
 	}
 	/**
 	 * {@inheritDoc}
@@ -227,6 +922,24 @@ public class Channel implements Channelable {
 	public void destruct() {
 		//stop the ping service which also controls the listener
 		this.stopPingService();
+		if(this.resyncExecutor != null){
+			this.handler.setResyncListener(null);
+			this.resyncExecutor.shutdownNow();
+		}
+		//let the bundled, conflated and the queued asynchronous sends out
+		if(this.coalescer != null){
+			this.coalescer.close(this.timeout);
+		}
+		synchronized(this){
+			if(this.pipeline != null){
+				this.pipeline.close(this.timeout);
+			}
+			if(this.conflater != null){
+				this.stopConflater();
+			}
+		}
+		//the calls still waiting will not be answered
+		this.handler.closeCalls();
 		// flush() and gracefully terminate the connection
 		this.friendyName = null;
 		this.flush();
@@ -240,28 +953,193 @@ public class Channel implements Channelable {
 	@Override
 	public boolean poll() {
 		//poll whether a message is available 
-		return this.handler.poll();
+		if(this.reorder != null){
+			//messages held up by a gap that is now skipped are available
+			synchronized(this.ready){
+				this.release(this.reorder.expire(System.currentTimeMillis()));
+			}
+		}
+		return !this.ready.isEmpty() || this.handler.poll();
 	}
 	/**
 	 * {@inheritDoc}
+	 * If the channel reorders messages, a message from a source is held until the earlier messages of the
+	 * source are popped or the gap before it times out, so pop may return null although the handler received
+	 * a message.
 	 */
 	@Override
 	public Message pop()  {
 		// pops a message off the message queue
 		// returns null if queue is empty, caller must guard for NULL
-		try {
-			Message rm = this.handler.pop();
-			//
-				rm.unpackMsg(); //this should, if necessary, verify signature and decrypt payload msg
-				//we can have this returning just the payload hashmap, pending further discussion re requirements.
-				//so far so good, signed message is verified and encrypted message decrypted at this stage
-				LOGGER.debug("Unpacked message, verified signature and decrypted payload as per secuirty requirement.");
+		Message rm = this.ready.poll();
+		if(rm != null){
+			return rm;
+		}
+		if(this.reorder != null){
+			synchronized(this.ready){
+				this.release(this.reorder.expire(System.currentTimeMillis()));
+			}
+			if((rm = this.ready.poll()) != null){
 				return rm;
+			}
+		}
+		rm = this.handler.pop();
+		if(rm == null){
+			return null;
+		}
+		long popped = Trace.nowMicros();
+		rm.setMetrics(this.handler.getMetrics());
+		try {
+			rm.unpackMsg(this.handler.getReplayFilter()); //this should, if necessary, verify signature and decrypt payload msg
 		} catch (MessageException me) {
 			// 
 			LOGGER.error("Error unpacking message: " + me.getMessage());
+			this.drop(rm);
 			return null;
-		}  
+		}
+		String source = (String) rm.getPayloadHM().get("source");
+		//anyone can claim any source in an unsigned message, it neither counts as traffic nor is reordered
+		boolean signed = (rm.getDestKey() != null);
+		if(signed && !this.signedBySource(rm, source)){
+			LOGGER.warn("Dropped a message from " + source + " not signed with its pinned key");
+			this.drop(rm);
+			return null;
+		}
+		if(signed && this.handler.getPresence() != null){
+			this.handler.getPresence().touch(source);
+		}
+		if(rm.getTrace() != null){
+			rm.getTrace().put(Trace.POPPED, popped);
+			rm.traceStage(Trace.UNPACKED);
+			this.handler.getMetrics().recordTrace(rm.getTrace());
+		}
+		if(this.reorder != null && signed && source != null && rm.getSession() != null){
+			synchronized(this.ready){
+				this.reorder(rm, source);
+			}
+		}else{
+			this.release(Collections.singletonList(rm));
+		}
+		//so far so good, signed message is verified and encrypted message decrypted at this stage
+		LOGGER.debug("Unpacked message, verified signature and decrypted payload as per secuirty requirement.");
+		return this.ready.poll();
+	}
+	/**
+	 * Pass a numbered message through the reorder buffer.  A bundle of resent messages is split first and
+	 * its messages are passed through one by one.
+	 */
+	private void reorder(Message rm, String source){
+		long now = System.currentTimeMillis();
+		if(rm.getPayloadHM().get(Message.RESYNC) instanceof Number){
+			//the source no longer has the messages before its oldest retained one
+			this.release(this.reorder.skipTo(source, rm.getSession(), ((Number) rm.getPayloadHM().get(Message.RESYNC)).longValue(), now));
+		}
+		if(rm.getSequence() >= 0){
+			this.release(this.reorder.offer(source, rm.getSession(), rm.getSequence(), rm, now));
+			return;
+		}
+		if(!rm.isBundle()){
+			this.release(Collections.singletonList(rm));
+			return;
+		}
+		try {
+			for(Message part : rm.unbundle()){
+				Object partSource = part.getPayloadHM().get("source");
+				String stream = (partSource instanceof String ? (String) partSource : source);
+				if(!this.signedBySource(part, stream)){
+					LOGGER.warn("Dropped a bundled message from " + stream + " not signed with its pinned key");
+					this.drop(part);
+				}else if(part.getSequence() < 0 || part.getSession() == null){
+					this.release(Collections.singletonList(part));
+				}else{
+					this.release(this.reorder.offer(stream, part.getSession(), part.getSequence(), part, now));
+				}
+			}
+		} catch (MessageException me) {
+			LOGGER.error("Error unpacking message: " + me.getMessage());
+			this.drop(rm);
+		}
+	}
+	/**
+	 * Check that a signed message does not claim a source whose pinned key is another one than the signer&#39;s.
+	 * Sources with no key pinned are taken at their word, as the signature is checked against the key the message
+	 * carries.
+	 * <p>
+	 * @return false if another key is pinned for the source
+	 */
+	private boolean signedBySource(Message rm, String source){
+		PublicKey pinned = (source == null ? null : this.handler.getPeerKey(source));
+		return pinned == null || pinned.equals(rm.getDestKey());
+	}
+	/**
+	 * Queue unpacked messages for {@link #pop() <em>pop</em>} in order, splitting the bundles and rebuilding the
+	 * delta encoded messages.
+	 */
+	private void release(List<Message> messages){
+		for(Message rm : messages){
+			try {
+				if(rm.isBundle()){
+					//verified once for all its messages
+					List<Message> parts = rm.unbundle();
+					if(parts.isEmpty()){
+						this.drop(rm);
+					}
+					this.ready.addAll(parts);
+					continue;
+				}
+				if(rm.isDelta()){
+					rm.decodeDelta(this.deltaCodec);
+				}
+				this.ready.add(rm);
+			} catch (MessageException me) {
+				LOGGER.error("Error unpacking message: " + me.getMessage());
+				this.drop(rm);
+			}
+		}
+	}
+	/**
+	 * Get the metrics of this channel, also registered over JMX unless the <code>jmx</code> property is false.
+	 * <p>
+	 * @return the {@link ChannelMetrics <em>ChannelMetrics</em>}
+	 */
+	public ChannelMetrics getMetrics() {
+		return this.handler.getMetrics();
+	}
+	/**
+	 * Get the presence of the other channels, tracked if the <code>presence</code> property is true and the
+	 * protocol supports it, Mqtt and loopback.
+	 * <p>
+	 * @return the {@link PresenceService <em>PresenceService</em>} or null if presence is not tracked
+	 */
+	public PresenceService getPresence() {
+		return this.handler.getPresence();
+	}
+	/**
+	 * @return true if the {@link ProtocolHandler <em>ProtocolHandler</em>} is connected to the broker
+	 */
+	public boolean isConnected() {
+		return this.handler.isConnack();
+	}
+	/**
+	 * Mark a popped message as processed.  When the handler journals incoming messages, messages that are
+	 * popped but not committed are handed back again after a restart.
+	 * <p>
+	 * @param message	the {@link Message <em>Message</em>} returned by {@link #pop() <em>pop</em>}
+	 */
+	public void commit(Message message) {
+		if(message != null){
+			this.handler.commit(message);
+		}
+	}
+	/**
+	 * Forget the public key pinned for a peer, so that the key carried by its next handshake is accepted.  This is
+	 * the operator action for a peer known to have generated a new key pair, a different key is otherwise rejected
+	 * until the pinned one expires.
+	 * <p>
+	 * @param peer	friendy name of the peer
+	 */
+	public void forgetPeerKey(String peer) {
+		this.handler.forgetPeerKey(peer);
 	}
 	///////////////////////////////////////////instance methods///////////////////////////////////////
 	/**
@@ -16,6 +16,7 @@
 package eu.mf2c.security.comm;
 
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import eu.mf2c.security.data.Message;
 import eu.mf2c.security.exception.ChannelException;
@@ -46,6 +47,84 @@ public interface Channelable {
 	 * @throws ChannelException	on processing errors
 	 */
 	public void send(Message message, Set<Enum<?>> flags) throws ChannelException;
+	/**
+	 * Send a message to a named peer rather than the channel&#39;s destination
+	 * <p>
+	 * @param message	The {@link Message <em>Message</em>} object
+	 * @param flagHM	A {@link java.util.Set <em>Set</em>} of  
+	 * 						{@link java.lang.Enum <em>Enum</em>} flags specifying
+	 * 						the security, privacy and quality of service requirements  
+	 * @param target	The friendy name of the recipient
+	 * @throws ChannelException	on processing errors
+	 */
+	public void send(Message message, Set<Enum<?>> flags, String target) throws ChannelException;
+	/**
+	 * Send a message asynchronously.  The call returns once the message is queued, blocking while the
+	 * channel&#39;s outbound pipeline is full.
+	 * <p>
+	 * @param message	The {@link Message <em>Message</em>} object
+	 * @param flagHM	A {@link java.util.Set <em>Set</em>} of  
+	 * 						{@link java.lang.Enum <em>Enum</em>} flags specifying
+	 * 						the security, privacy and quality of service requirements  
+	 * @return a {@link java.util.concurrent.CompletableFuture <em>CompletableFuture</em>} completed once the
+	 * 						message is published
+	 * @throws ChannelException	on invalid arguments or if the message cannot be queued
+	 */
+	public CompletableFuture<Void> sendAsync(Message message, Set<Enum<?>> flags) throws ChannelException;
+	/**
+	 * Send a message asynchronously to a named peer rather than the channel&#39;s destination
+	 * <p>
+	 * @param message	The {@link Message <em>Message</em>} object
+	 * @param flagHM	A {@link java.util.Set <em>Set</em>} of  
+	 * 						{@link java.lang.Enum <em>Enum</em>} flags specifying
+	 * 						the security, privacy and quality of service requirements  
+	 * @param target	The friendy name of the recipient
+	 * @return a {@link java.util.concurrent.CompletableFuture <em>CompletableFuture</em>} completed once the
+	 * 						message is published
+	 * @throws ChannelException	on invalid arguments or if the message cannot be queued
+	 */
+	public CompletableFuture<Void> sendAsync(Message message, Set<Enum<?>> flags, String target) throws ChannelException;
+	/**
+	 * Send a request to the channel&#39;s destination and wait asynchronously for its reply
+	 * <p>
+	 * @param message	The request {@link Message <em>Message</em>} object
+	 * @param flagHM	A {@link java.util.Set <em>Set</em>} of  
+	 * 						{@link java.lang.Enum <em>Enum</em>} flags specifying
+	 * 						the security, privacy and quality of service requirements  
+	 * @param timeOut	The longest wait for the reply in milliseconds
+	 * @return a {@link java.util.concurrent.CompletableFuture <em>CompletableFuture</em>} completed with the
+	 * 						reply, or failed with a {@link java.util.concurrent.TimeoutException <em>TimeoutException</em>}
+	 * 						if none arrives in time
+	 * @throws ChannelException	on invalid arguments or if the request cannot be queued
+	 */
+	public CompletableFuture<Message> request(Message message, Set<Enum<?>> flags, long timeOut) throws ChannelException;
+	/**
+	 * Send a request to a named peer rather than the channel&#39;s destination and wait asynchronously for its reply
+	 * <p>
+	 * @param message	The request {@link Message <em>Message</em>} object
+	 * @param flagHM	A {@link java.util.Set <em>Set</em>} of  
+	 * 						{@link java.lang.Enum <em>Enum</em>} flags specifying
+	 * 						the security, privacy and quality of service requirements  
+	 * @param target	The friendy name of the recipient
+	 * @param timeOut	The longest wait for the reply in milliseconds
+	 * @return a {@link java.util.concurrent.CompletableFuture <em>CompletableFuture</em>} completed with the
+	 * 						reply, or failed with a {@link java.util.concurrent.TimeoutException <em>TimeoutException</em>}
+	 * 						if none arrives in time
+	 * @throws ChannelException	on invalid arguments or if the request cannot be queued
+	 */
+	public CompletableFuture<Message> request(Message message, Set<Enum<?>> flags, String target, long timeOut) throws ChannelException;
+	/**
+	 * Answer a request received from a peer
+	 * <p>
+	 * @param request	The popped request {@link Message <em>Message</em>}
+	 * @param response	The reply {@link Message <em>Message</em>} object
+	 * @param flagHM	A {@link java.util.Set <em>Set</em>} of  
+	 * 						{@link java.lang.Enum <em>Enum</em>} flags specifying
+	 * 						the security, privacy and quality of service requirements, the reply
+	 * 						must be protected or private
+	 * @throws ChannelException	if the message is not a request, the reply is public or on processing errors
+	 */
+	public void reply(Message request, Message response, Set<Enum<?>> flags) throws ChannelException;
 	
 	/** flush the message buffers */
 	public void flush();
@@ -0,0 +1,182 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Gathers the outgoing messages of a {@link Channel <em>Channel</em>} into batches, one per key, e.g. per
+ * destination and flags.  A batch is flushed when it is a window old, or as soon as it reaches the message
+ * or byte limit, whichever comes first.  The flushes run on the coalescer&#39;s own thread, so batches are
+ * flushed in the order they are closed and the senders never wait for the flush.
+ */
+public class Coalescer<T> {
+	/** message logger */
+	private static final Logger LOGGER = Logger.getLogger(Coalescer.class.getName());
+	/** default maximum number of messages in a batch */
+	public static final int DEFAULT_MAX_MESSAGES = 64;
+	/** default maximum batch size in bytes */
+	public static final int DEFAULT_MAX_BYTES = 32 * 1024;
+	/** the open batches keyed on the caller&#39;s key */
+	private final HashMap<String, Batch<T>> batches = new HashMap<String, Batch<T>>();
+	/** the flush thread */
+	private final ScheduledExecutorService timer;
+	/** longest time a message waits in milliseconds */
+	private final long window;
+	/** maximum number of messages in a batch */
+	private final int maxMessages;
+	/** maximum batch size in bytes */
+	private final int maxBytes;
+	/** flag indicating state of the coalescer */
+	private boolean closed = false;
+
+	/**
+	 * Flushes a closed batch.
+	 */
+	public interface Flusher<T> {
+		/**
+		 * @param items	the batched items, in the order they were added
+		 * @throws Exception on processing errors, the batch is lost
+		 */
+		void flush(List<T> items) throws Exception;
+	}
+
+	/**
+	 * An open batch.
+	 */
+	private static class Batch<T> {
+		/** the items */
+		final List<T> items = new ArrayList<T>();
+		/** flushes the batch */
+		final Flusher<T> flusher;
+		/** approximate size in bytes */
+		int bytes = 0;
+
+		Batch(Flusher<T> flusher){
+			this.flusher = flusher;
+		}
+	}
+
+	/**
+	 * Construct a coalescer and start its flush thread.
+	 * <p>
+	 * @param name			friendy name of the channel, for the thread name
+	 * @param window		longest time a message waits in milliseconds
+	 * @param maxMessages	maximum number of messages in a batch
+	 * @param maxBytes		maximum batch size in bytes
+	 */
+	public Coalescer(String name, long window, int maxMessages, int maxBytes){
+		this.window = window;
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread t = new Thread(r, "Coalescer-" + name);
+			t.setDaemon(true);
+			return t;
+		});
+		//close flushes the open batches itself
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		this.timer = executor;
+	}
+
+	/**
+	 * Add an item to the batch of a key, opening the batch if needed.
+	 * <p>
+	 * @param key		the batch key
+	 * @param item		the item
+	 * @param size		approximate size of the item in bytes
+	 * @param flusher	flushes the batch, only used if the item opens it
+	 * @throws IllegalStateException if the coalescer is closed
+	 */
+	public synchronized void add(String key, T item, int size, Flusher<T> flusher){
+		if(this.closed){
+			throw new IllegalStateException("The coalescer is closed!");
+		}
+		Batch<T> batch = this.batches.computeIfAbsent(key, k -> {
+			Batch<T> opened = new Batch<T>(flusher);
+			this.timer.schedule(() -> this.close(k, opened), this.window, TimeUnit.MILLISECONDS);
+			return opened;
+		});
+		batch.items.add(item);
+		batch.bytes += size;
+		if(batch.items.size() >= this.maxMessages || batch.bytes >= this.maxBytes){
+			this.batches.remove(key);
+			this.timer.execute(() -> flush(batch));
+		}
+	}
+
+	/**
+	 * @return the number of items waiting in open batches
+	 */
+	public synchronized int size(){
+		int size = 0;
+		for(Batch<T> batch : this.batches.values()){
+			size += batch.items.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Flush the open batches and stop the flush thread, waiting for the flushes to finish.
+	 * <p>
+	 * @param timeOut	longest wait in seconds
+	 */
+	public void close(long timeOut){
+		synchronized(this){
+			this.closed = true;
+			for(Batch<T> batch : this.batches.values()){
+				this.timer.execute(() -> flush(batch));
+			}
+			this.batches.clear();
+		}
+		//the window timers are no longer needed
+		this.timer.shutdown();
+		try{
+			if(!this.timer.awaitTermination(timeOut, TimeUnit.SECONDS)){
+				LOGGER.warn("Coalescer not drained after " + timeOut + "s");
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Close a batch at the end of its window, unless it was already flushed on size.
+	 */
+	private void close(String key, Batch<T> batch){
+		synchronized(this){
+			if(!this.batches.remove(key, batch)){
+				return;
+			}
+		}
+		flush(batch);
+	}
+
+	private static <T> void flush(Batch<T> batch){
+		try{
+			batch.flusher.flush(batch.items);
+		}catch(Exception e){
+			LOGGER.error("Failed to flush a batch of " + batch.items.size() + " message(s): " + e.getMessage());
+		}
+	}
+}
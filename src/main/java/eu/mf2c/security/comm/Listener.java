@@ -74,8 +74,9 @@ public class Listener implements Runnable {
 		try{
 			msg.unpackMsg(); //it is a public msg, no need to verify signature & decrypt payload
 			String target = (String) msg.getPayloadHM().get("source");			
+			this.touch(target);
 			Message ackMsg = new Message((HashMap<String, Object>) this.handler.getPingMessage(msg.getPayloadHM().get("timestamp")));
-			msg.packMsg( Security.PUBLIC, this.handler.getProtocol(), QoS.EXACTLYONCE, null);
+			ackMsg.packMsg( Security.PUBLIC, this.handler.getProtocol(), QoS.EXACTLYONCE, null);
 			this.handler.publish(this.handler.getPingAckDest(target), QoS.EXACTLYONCE, ackMsg.getPayloadHM());
 			this.lastPing = Instant.now().getEpochSecond();
 		}catch(Exception e){
@@ -91,8 +92,9 @@ public class Listener implements Runnable {
 		//
 		try {
 			msg.unpackMsg();
-			this.lastPingAck = (long) msg.getPayloadHM().get("timestamp");
-			if(this.lastPingAck - (long) msg.getPayloadHM().get("pingRequestTS") > this.timeout ){
+			this.touch((String) msg.getPayloadHM().get("source"));
+			this.lastPingAck = ((Number) msg.getPayloadHM().get("timestamp")).longValue();
+			if(this.lastPingAck - ((Number) msg.getPayloadHM().get("pingRequestTS")).longValue() > this.timeout ){
 				//what are we going to do??????????????????  
 				LOGGER.warn("ping acknowledgement took longer than the time out value!");
 			}
@@ -104,6 +106,17 @@ public class Listener implements Runnable {
 		
 	}
 
+	/**
+	 * Record a ping from a peer in the handler&#39;s {@link PresenceService <em>PresenceService</em>}, if any.
+	 * <p>
+	 * @param peer	friendy name of the peer
+	 */
+	private void touch(String peer){
+		if(this.handler.getPresence() != null){
+			this.handler.getPresence().touch(peer);
+		}
+	}
+
 	@Override
 	public void run() {
 		//
@@ -116,6 +129,9 @@ public class Listener implements Runnable {
 				LOGGER.warn("Ping acknowledgement took longer than timeout value!");
 			}*/
 		}
+		while ((pingMsg = this.handler.popPingAck()) != null){
+			this.processPingAck(pingMsg);
+		}
 		LOGGER.debug("Current run completing.....");
 	}
 	
@@ -0,0 +1,187 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Staged outbound pipeline of a {@link Channel <em>Channel</em>}.  A submitted message is packed, i.e. signed
+ * and encrypted, on a crypto worker pool shared by all the channels of the JVM and sized to the number of cores,
+ * then published by the channel&#39;s publisher thread in submission order, whatever the order the workers
+ * finish in.  The pipeline holds a bounded number of messages, submitting to a full pipeline blocks, so
+ * producers are slowed to the pace of the crypto and the transport.
+ */
+public class OutboundPipeline {
+	/** message logger */
+	private static final Logger LOGGER = Logger.getLogger(OutboundPipeline.class.getName());
+	/** default capacity in messages */
+	public static final int DEFAULT_CAPACITY = 1024;
+	/** crypto worker counter, for the thread names */
+	private static final AtomicInteger WORKERS = new AtomicInteger();
+	/** crypto worker pool shared by the channels */
+	private static final ExecutorService CRYPTO_POOL = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+		Thread t = new Thread(r, "CryptoWorker-" + WORKERS.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	});
+	/** the messages in submission order */
+	private final ArrayBlockingQueue<Task<?>> tasks;
+	/** the publisher thread */
+	private final Thread publisher;
+	/** flag indicating state of the publisher */
+	private volatile boolean keepRunning = true;
+
+	/**
+	 * A stage consuming the result of the previous one.
+	 */
+	public interface Stage<T> {
+		/**
+		 * @param input	the result of the previous stage
+		 * @throws Exception on processing errors, failing the message
+		 */
+		void accept(T input) throws Exception;
+	}
+
+	/**
+	 * A message in the pipeline.
+	 */
+	private static class Task<T> {
+		/** completed with the packed message */
+		final CompletableFuture<T> packed = new CompletableFuture<T>();
+		/** the publish stage */
+		final Stage<T> publish;
+		/** completed once published */
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+		Task(Stage<T> publish){
+			this.publish = publish;
+		}
+		/**
+		 * Wait for the packing and publish.
+		 */
+		void publish(){
+			try{
+				this.publish.accept(this.packed.get());
+				this.done.complete(null);
+			}catch(ExecutionException e){
+				this.done.completeExceptionally(e.getCause());
+			}catch(Exception e){
+				this.done.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * Construct a pipeline and start its publisher.
+	 * <p>
+	 * @param name		friendy name of the channel, for the thread name
+	 * @param capacity	capacity in messages
+	 */
+	public OutboundPipeline(String name, int capacity){
+		this.tasks = new ArrayBlockingQueue<Task<?>>(capacity);
+		this.publisher = new Thread(this::publishLoop, "Publisher-" + name);
+		this.publisher.setDaemon(true);
+		this.publisher.start();
+	}
+
+	/**
+	 * Submit a message, blocking while the pipeline is full.
+	 * <p>
+	 * @param pack		the pack stage, run on the crypto worker pool
+	 * @param publish	the publish stage, run on the publisher thread in submission order
+	 * @param timeOut	longest wait for room in seconds
+	 * @return a {@link java.util.concurrent.CompletableFuture <em>CompletableFuture</em>} completed once the
+	 * 		message is published, or exceptionally if a stage fails
+	 * @throws TimeoutException if the pipeline stays full
+	 * @throws InterruptedException if interrupted while waiting for room
+	 * @throws IllegalStateException if the pipeline is closed
+	 */
+	public <T> CompletableFuture<Void> submit(Callable<T> pack, Stage<T> publish, long timeOut) throws TimeoutException, InterruptedException {
+		if(!this.keepRunning){
+			throw new IllegalStateException("The outbound pipeline is closed!");
+		}
+		Task<T> task = new Task<T>(publish);
+		if(!this.tasks.offer(task, timeOut, TimeUnit.SECONDS)){
+			throw new TimeoutException("Outbound pipeline full for " + timeOut + "s");
+		}
+		CRYPTO_POOL.execute(() -> {
+			try{
+				task.packed.complete(pack.call());
+			}catch(Exception e){
+				task.packed.completeExceptionally(e);
+			}
+		});
+		if(!this.publisher.isAlive() && this.tasks.remove(task)){
+			//closed while we were queueing
+			task.done.completeExceptionally(new IllegalStateException("The outbound pipeline is closed!"));
+		}
+		return task.done;
+	}
+
+	/**
+	 * @return the number of messages in the pipeline
+	 */
+	public int size(){
+		return this.tasks.size();
+	}
+
+	/**
+	 * Stop accepting messages and wait for the pipeline to drain.
+	 * <p>
+	 * @param timeOut	longest wait in seconds
+	 */
+	public void close(long timeOut){
+		this.keepRunning = false;
+		try{
+			this.publisher.join(TimeUnit.SECONDS.toMillis(timeOut));
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		if(this.publisher.isAlive()){
+			LOGGER.warn("Outbound pipeline not drained, " + this.tasks.size() + " message(s) abandoned");
+			this.publisher.interrupt();
+		}
+	}
+
+	private void publishLoop(){
+		while(this.keepRunning || !this.tasks.isEmpty()){
+			try{
+				Task<?> task = this.tasks.poll(100, TimeUnit.MILLISECONDS);
+				if(task != null){
+					task.publish();
+				}
+			}catch(InterruptedException e){
+				break;
+			}
+		}
+		//fail whatever an interrupt left behind
+		Task<?> task;
+		while((task = this.tasks.poll()) != null){
+			task.done.completeExceptionally(new IllegalStateException("The outbound pipeline is closed!"));
+		}
+		LOGGER.debug("Outbound pipeline publisher stopping.....");
+	}
+}
@@ -0,0 +1,205 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import eu.mf2c.security.comm.util.ChannelMetrics;
+import eu.mf2c.security.comm.util.TimingWheel;
+import eu.mf2c.security.data.Message;
+import eu.mf2c.security.exception.ChannelException;
+
+/**
+ * Table of the requests of a {@link Channel <em>Channel</em>} waiting for their reply, keyed on correlation id.
+ * A reply completes its call on the thread that delivered it, so the caller does not wait for a poll.  The time
+ * outs are kept on a {@link TimingWheel <em>TimingWheel</em>} ticking every {@value #TICK} milliseconds, a call
+ * that is not answered in time fails with a {@link java.util.concurrent.TimeoutException <em>TimeoutException</em>}.
+ */
+public class PendingCalls {
+	/** message logger */
+	private static final Logger LOGGER = Logger.getLogger(PendingCalls.class.getName());
+	/** tick length in milliseconds */
+	public static final long TICK = 10;
+	/** correlation id counter, starting from a random base so that ids are not reused across restarts */
+	private final AtomicLong nextId = new AtomicLong(new SecureRandom().nextLong() & 0x7fffffffffffffffL);
+	/** the calls keyed on correlation id */
+	private final ConcurrentHashMap<String, Call> calls = new ConcurrentHashMap<String, Call>();
+	/** call deadlines */
+	private final TimingWheel<String> wheel;
+	/** metrics of the channel */
+	private final ChannelMetrics metrics;
+	/** the ticking thread */
+	private final Thread ticker;
+	/** flag indicating state of the ticker */
+	private volatile boolean keepRunning = true;
+
+	/**
+	 * A call waiting for its reply.
+	 */
+	private static class Call {
+		/** friendy name of the peer expected to answer */
+		final String peer;
+		/** completed with the reply */
+		final CompletableFuture<Message> future = new CompletableFuture<Message>();
+		/** time the call was made in nanoseconds */
+		final long started = System.nanoTime();
+
+		Call(String peer){
+			this.peer = peer;
+		}
+	}
+
+	/**
+	 * Construct the table and start its ticker.
+	 * <p>
+	 * @param name		friendy name of the owner, for the thread name
+	 * @param metrics	metrics of the channel, recording the round trips
+	 */
+	public PendingCalls(String name, ChannelMetrics metrics){
+		this.metrics = metrics;
+		//a turn of the wheel covers a minute, the default channel time out
+		this.wheel = new TimingWheel<String>(TICK, (int) (60000 / TICK), System.currentTimeMillis());
+		this.ticker = new Thread(this::tick, "PendingCalls-" + name);
+		this.ticker.setDaemon(true);
+		this.ticker.start();
+	}
+
+	/**
+	 * @return a new correlation id, unique for the owner
+	 */
+	public String nextCorrelationId(){
+		return Long.toString(this.nextId.getAndIncrement(), 36);
+	}
+
+	/**
+	 * Register a call before its request is sent.  The call is removed from the table when it completes,
+	 * however it completes, including when the caller cancels it.
+	 * <p>
+	 * @param cid		the correlation id of the request
+	 * @param peer		friendy name of the peer the request is sent to
+	 * @param timeOut	longest wait for the reply in milliseconds
+	 * @return a {@link java.util.concurrent.CompletableFuture <em>CompletableFuture</em>} completed with the reply
+	 * @throws ChannelException if the table is closed
+	 */
+	public CompletableFuture<Message> register(String cid, String peer, long timeOut) throws ChannelException {
+		if(!this.keepRunning){
+			throw new ChannelException("The channel is closed!");
+		}
+		Call call = new Call(peer);
+		this.calls.put(cid, call);
+		this.wheel.schedule(cid, timeOut, System.currentTimeMillis());
+		call.future.whenComplete((reply, e) -> {
+			if(this.calls.remove(cid, call)){
+				this.wheel.cancel(cid);
+			}
+		});
+		return call.future;
+	}
+
+	/**
+	 * @param cid	the correlation id
+	 * @return friendy name of the peer expected to answer the call, or null if there is no such call waiting
+	 */
+	public String getPeer(String cid){
+		Call call = (cid == null ? null : this.calls.get(cid));
+		return (call == null ? null : call.peer);
+	}
+
+	/**
+	 * Complete the call answered by an unpacked reply.  The caller checks that the reply is signed with the key
+	 * of the {@link #getPeer(String) <em>peer</em>} called.  Replies to unknown calls, e.g. those already timed out,
+	 * and replies from a peer other than the one called are dropped.
+	 * <p>
+	 * @param reply	the unpacked reply {@link Message <em>Message</em>}
+	 * @return true if the reply completed a call
+	 */
+	public boolean complete(Message reply){
+		String cid = reply.getCorrelationId();
+		Call call = (cid == null ? null : this.calls.get(cid));
+		if(call == null){
+			LOGGER.debug("Dropped a reply to an unknown call " + cid);
+			return false;
+		}
+		if(!call.peer.equals(reply.getPayloadHM().get("source"))){
+			LOGGER.warn("Dropped a reply to call " + cid + " from " + reply.getPayloadHM().get("source") + " instead of " + call.peer);
+			return false;
+		}
+		this.metrics.record(ChannelMetrics.RPC, System.nanoTime() - call.started);
+		return call.future.complete(reply);
+	}
+
+	/**
+	 * Fail a call, e.g. when its request cannot be sent.
+	 * <p>
+	 * @param cid	the correlation id
+	 * @param e		the cause
+	 */
+	public void fail(String cid, Throwable e){
+		Call call = this.calls.get(cid);
+		if(call != null){
+			call.future.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * @return the number of calls waiting for their reply
+	 */
+	public int size(){
+		return this.calls.size();
+	}
+
+	/**
+	 * Stop the ticker and fail the calls still waiting.
+	 */
+	public void close(){
+		this.keepRunning = false;
+		this.ticker.interrupt();
+		for(Call call : new ArrayList<Call>(this.calls.values())){
+			call.future.completeExceptionally(new ChannelException("The channel is closed!"));
+		}
+	}
+
+	/**
+	 * A call&#39;s deadline expired.
+	 */
+	private void expire(String cid){
+		Call call = this.calls.get(cid);
+		if(call != null){
+			call.future.completeExceptionally(new TimeoutException("No reply to call " + cid + " from " + call.peer));
+		}
+	}
+
+	private void tick(){
+		while(this.keepRunning){
+			try{
+				Thread.sleep(TICK);
+				this.wheel.advance(System.currentTimeMillis(), this::expire);
+			}catch(InterruptedException e){
+				//closing
+			}catch(RuntimeException e){
+				LOGGER.error("Error expiring calls : " + e.getMessage());
+			}
+		}
+		LOGGER.debug("Pending calls stopping.....");
+	}
+}
@@ -43,11 +43,13 @@ public class PingService implements Runnable{
 	//Listener listener;
 	protected long lastPing;
 	/** flag indicating state of the thread */
-	private boolean keepRunning = false;
+	private volatile boolean keepRunning = false;
 	/** ping interval in seconds **/
 	private int interval;
 	/** protocol handler attribute */ 
 	private Listener listener;
+	/** longest time in seconds between two listener runs */
+	private static final int LISTEN_INTERVAL = 1;
 	/** ping request flag. Ping request is send if set to false  */
 	private boolean noPing = false;
 	/** last time Listener
@@ -78,18 +80,16 @@ public class PingService implements Runnable{
 	 */
 	public void ping() throws PingServiceException{
 		//in the botch version, we don't ping if there is no target destination!!!!
-		//
-		while(keepRunning){
-			try {
-				Message msg = new Message((HashMap<String, Object>) this.listener.getHandler().getPingMessage(null)); 
-				msg.packMsg( Security.PUBLIC, this.listener.getHandler().getProtocol(), QoS.EXACTLYONCE, null);
-				this.listener.getHandler().publish(this.listener.getHandler().getPingRequestDest(), QoS.EXACTLYONCE, msg.getPayloadHM());
-				
-			} catch (Exception e) {
-				// 
-				LOGGER.error("Ping error : " + e.getMessage());
-				throw new PingServiceException(e);
-			}
+		//one request per call, the run loop paces them at the ping interval
+		try {
+			Message msg = new Message((HashMap<String, Object>) this.listener.getHandler().getPingMessage(null)); 
+			msg.packMsg( Security.PUBLIC, this.listener.getHandler().getProtocol(), QoS.EXACTLYONCE, null);
+			this.listener.getHandler().publish(this.listener.getHandler().getPingRequestDest(), QoS.EXACTLYONCE, msg.getPayloadHM());
+			this.lastPing = Instant.now().getEpochSecond();
+		} catch (Exception e) {
+			// 
+			LOGGER.error("Ping error : " + e.getMessage());
+			throw new PingServiceException(e);
 		}
 		
 		//TODO need to refine the logic, e.g. if ping is timed out, needs to update status flag
@@ -114,37 +114,28 @@ public class PingService implements Runnable{
 	
 	
 	/**
-	 * Run the PingService as a thread.  Also launch a {@link Listener <em>Listener</em>} 
-	 * {@link java.lang.Thread <em>Thread</em>} to process the incoming ping acknowledgements
-	 * and ping requests.  We do not launch a new {@link Listener <em>Listener</em>} {@link java.lang.Thread <em>Thread</em>}
-	 * if the previous one is still active.
+	 * Run the PingService as a thread.  A ping request is sent once every ping interval, and the
+	 * {@link Listener <em>Listener</em>} is run on this thread at least every second to process the
+	 * incoming ping requests and acknowledgements.
 	 */
 	@Override
 	public void run() {
 		LOGGER.debug("Setting PingService thread status to true before running thread");
 		this.keepRunning = true;
 		//
-
-		//need another thread to listen to the arriving ping acknowledgement, request.....
 		while(keepRunning){
 			try{
-				long waitTime = Instant.now().getEpochSecond() - this.lastPing;
-				if(!noPing){
-					if(waitTime <=0){
-						this.ping();
+				if(!noPing && Instant.now().getEpochSecond() - this.lastPing >= this.interval){
+					if(this.recentlySeen()){
+						//no need to probe, the presence table has heard from the destination
+						this.lastPing = Instant.now().getEpochSecond();
 					}else{
-						Thread.sleep(waitTime * 1000); // sleep is in milliseconds
 						this.ping();
 					}
 				}
-				//launch a thread to run the listener to acknowledge pings
-				Thread listenerThread = getNewThread();
-				if(listenerThread.getState().equals(Thread.State.TERMINATED)){
-					listenerThread.start();
-				}else{
-					LOGGER.debug("Not starting new listener thread, existing one not yet terminated....");
-				}
-				Thread.sleep(this.interval * 1000); //sleep is in milliseconds
+				//run the listener on this thread to acknowledge pings, a thread per run is too heavy for a fleet of channels
+				this.listener.run();
+				Thread.sleep(Math.min(this.interval, LISTEN_INTERVAL) * 1000); //sleep is in milliseconds
 			}catch(InterruptedException e){
 				if(keepRunning){
 					LOGGER.error("InterruptedException : " + e.getMessage());
@@ -154,12 +145,22 @@ public class PingService implements Runnable{
 				
 			} catch (PingServiceException e) {
 				LOGGER.error("Ping Exception : " + e.getMessage());
+				//retry at the next interval rather than straight away
+				this.lastPing = Instant.now().getEpochSecond();
 			}
 			
 		}
 		LOGGER.warn("PingService thread stopping.....");
 	}
 	//////////////////////////////////////////////////////utilities////////////////////////////////////////////////////
+	/**
+	 * @return true if the handler tracks presence and the destination was seen within the ping interval
+	 */
+	private boolean recentlySeen(){
+		PresenceService presence = this.listener.getHandler().getPresence();
+		String destination = this.listener.getHandler().getDestinationName();
+		return presence != null && destination != null && presence.seenWithin(destination, this.interval * 1000L);
+	}
 	
 	
 }
@@ -0,0 +1,243 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import eu.mf2c.security.comm.util.TimingWheel;
+
+/**
+ * Table of peer presence built from the status messages the peers publish to <code>mf2c/[friendyName]/status</code>
+ * on connection and disconnection, including the broker&#39;s last will for an ungraceful disconnection, and from
+ * any other traffic seen from the peers.  Only status messages signed with the key pinned for the peer count, see
+ * {@link eu.mf2c.security.comm.protocol.ProtocolHandler <em>ProtocolHandler</em>}.  A connected peer that has not been seen for the time to live is marked
+ * {@link State#STALE <em>STALE</em>}, and a peer that is not connected is forgotten after the time to live.  The
+ * deadlines are kept on a {@link TimingWheel <em>TimingWheel</em>} ticking every second, so the upkeep does not grow
+ * with the size of the table.
+ */
+public class PresenceService {
+	/** message logger */
+	private static final Logger LOGGER = Logger.getLogger(PresenceService.class.getName());
+	/** tick length in milliseconds */
+	private static final long TICK = 1000;
+	/** the peers keyed on friendy name */
+	private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<String, Peer>();
+	/** peer deadlines */
+	private final TimingWheel<String> wheel;
+	/** time to live in milliseconds */
+	private final long ttl;
+	/** the ticking thread */
+	private final Thread ticker;
+	/** flag indicating state of the ticker */
+	private volatile boolean keepRunning = true;
+
+	/**
+	 * Peer states.
+	 */
+	public enum State {
+		/** connected and seen within the time to live */
+		CONNECTED,
+		/** disconnected gracefully */
+		DISCONNECTED,
+		/** disconnected ungracefully, reported by the broker */
+		LOST,
+		/** connected but not seen within the time to live */
+		STALE;
+
+		/**
+		 * Map a status message code.
+		 * <p>
+		 * @param status	the code, <code>C</code>, <code>DG</code> or <code>DU</code>
+		 * @return the state or null for an unknown code
+		 */
+		public static State fromStatus(String status){
+			switch(status){
+				case "C" : return CONNECTED;
+				case "DG" : return DISCONNECTED;
+				case "DU" : return LOST;
+				default : return null;
+			}
+		}
+	}
+
+	/**
+	 * A peer entry.
+	 */
+	private static class Peer {
+		/** the state */
+		volatile State state;
+		/** last seen in epoch milliseconds */
+		volatile long lastSeen;
+
+		Peer(State state, long lastSeen){
+			this.state = state;
+			this.lastSeen = lastSeen;
+		}
+	}
+
+	/**
+	 * Construct the service and start its ticker.
+	 * <p>
+	 * @param name	friendy name of the owner, for the thread name
+	 * @param ttl	time to live in seconds
+	 */
+	public PresenceService(String name, long ttl){
+		this.ttl = ttl * 1000;
+		//a turn of the wheel covers the time to live
+		this.wheel = new TimingWheel<String>(TICK, (int) Math.min(1 << 16, Math.max(64, this.ttl / TICK + 1)), System.currentTimeMillis());
+		this.ticker = new Thread(this::tick, "Presence-" + name);
+		this.ticker.setDaemon(true);
+		this.ticker.start();
+	}
+
+	/**
+	 * Record a peer&#39;s status message.
+	 * <p>
+	 * @param peer		friendy name of the peer
+	 * @param status	the status code
+	 */
+	public void update(String peer, String status){
+		State state = State.fromStatus(status);
+		if(state == null){
+			LOGGER.debug("Ignored unknown status " + status + " of " + peer);
+			return;
+		}
+		this.set(peer, state);
+	}
+
+	/**
+	 * Record traffic from a peer, which is therefore connected.
+	 * <p>
+	 * @param peer	friendy name of the peer
+	 */
+	public void touch(String peer){
+		if(peer != null){
+			this.set(peer, State.CONNECTED);
+		}
+	}
+
+	/**
+	 * @param peer	friendy name of the peer
+	 * @return the state or null if the peer is not known
+	 */
+	public State getState(String peer){
+		Peer p = this.peers.get(peer);
+		return (p == null ? null : p.state);
+	}
+
+	/**
+	 * @param peer	friendy name of the peer
+	 * @return the time the peer was last seen in epoch milliseconds, or -1 if the peer is not known
+	 */
+	public long getLastSeen(String peer){
+		Peer p = this.peers.get(peer);
+		return (p == null ? -1 : p.lastSeen);
+	}
+
+	/**
+	 * @param peer	friendy name of the peer
+	 * @return true if the peer is connected and was seen within the time to live
+	 */
+	public boolean isAlive(String peer){
+		return this.getState(peer) == State.CONNECTED;
+	}
+
+	/**
+	 * @param peer		friendy name of the peer
+	 * @param millis	the period in milliseconds
+	 * @return true if the peer is connected and was seen within the period
+	 */
+	public boolean seenWithin(String peer, long millis){
+		Peer p = this.peers.get(peer);
+		return p != null && p.state == State.CONNECTED && System.currentTimeMillis() - p.lastSeen <= millis;
+	}
+
+	/**
+	 * @return a snapshot of the peer states keyed on friendy name
+	 */
+	public Map<String, State> getPeers(){
+		HashMap<String, State> snapshot = new HashMap<String, State>();
+		for(Map.Entry<String, Peer> entry : this.peers.entrySet()){
+			snapshot.put(entry.getKey(), entry.getValue().state);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @return the number of peers known
+	 */
+	public int size(){
+		return this.peers.size();
+	}
+
+	/**
+	 * Stop the ticker.
+	 */
+	public void close(){
+		this.keepRunning = false;
+		this.ticker.interrupt();
+	}
+
+	private void set(String peer, State state){
+		long now = System.currentTimeMillis();
+		this.peers.compute(peer, (k, p) -> {
+			if(p == null){
+				return new Peer(state, now);
+			}
+			p.state = state;
+			p.lastSeen = now;
+			return p;
+		});
+		this.wheel.schedule(peer, this.ttl, now);
+	}
+
+	/**
+	 * A peer&#39;s deadline expired.
+	 */
+	private void expire(String peer){
+		long now = System.currentTimeMillis();
+		this.peers.computeIfPresent(peer, (k, p) -> {
+			if(now - p.lastSeen < this.ttl){
+				//seen again since, a deadline is already scheduled
+				return p;
+			}
+			if(p.state == State.CONNECTED){
+				p.state = State.STALE;
+				this.wheel.schedule(peer, this.ttl, now);
+				return p;
+			}
+			return null;
+		});
+	}
+
+	private void tick(){
+		while(this.keepRunning){
+			try{
+				Thread.sleep(TICK);
+				this.wheel.advance(System.currentTimeMillis(), this::expire);
+			}catch(InterruptedException e){
+				//closing
+			}catch(RuntimeException e){
+				LOGGER.error("Error expiring peers : " + e.getMessage());
+			}
+		}
+		LOGGER.debug("Presence service stopping.....");
+	}
+}
@@ -15,25 +15,37 @@
  */
 package eu.mf2c.security.comm.protocol;
 
+import java.io.File;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.security.PublicKey;
 import java.security.Signature;
+import java.time.Instant;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.crypto.Cipher;
 
 import org.apache.log4j.Logger;
 
+import eu.mf2c.security.comm.PendingCalls;
+import eu.mf2c.security.comm.PresenceService;
 import eu.mf2c.security.comm.Receiver;
+import eu.mf2c.security.comm.util.ChannelMetrics;
 import eu.mf2c.security.comm.util.Privacy;
 import eu.mf2c.security.comm.util.Protocol;
 import eu.mf2c.security.comm.util.QoS;
+import eu.mf2c.security.comm.util.InboundJournal;
+import eu.mf2c.security.comm.util.ReplayFilter;
 import eu.mf2c.security.comm.util.Security;
 import eu.mf2c.security.data.Identity;
 import eu.mf2c.security.data.Message;
+import eu.mf2c.security.data.PeerKeyDirectory;
 import eu.mf2c.security.exception.IdentityException;
+import eu.mf2c.security.exception.MessageException;
 import eu.mf2c.security.exception.ProtocolHandlerException;
 
 /**
@@ -53,15 +65,48 @@ public abstract class ProtocolHandler {
 	/** message logger */
 	private static Logger LOGGER = Logger.getLogger(ProtocolHandler.class.getName());
 	//
-	/** friendy name of this Channel*/
-	protected static String friendyName;
+	/** friendy name of this Channel, held per instance so that several channels can share a JVM */
+	protected String friendyName;
 	//external services such as MQTT broker, remote key issuance service need to be discovered through NDP protocol
 	/** broker address */ //this should be discovered in the bootstrapping process	
 	protected String broker;
-	/** Destination &#40;recipient&#41; of the communication channel */
-	protected static String destination;	
-	/** Target recipient&#39;s public key, it is obtained in the initial handshade operation*/
-	protected PublicKey destPK = null;
+	/** Destination &#40;recipient&#41; of the communication channel, null for a listening channel */
+	protected String destination;	
+	/** Public keys of the peers, learnt through the handshake and kept across restarts */
+	protected PeerKeyDirectory peerKeys;
+	/** Single thread processing handshake messages away from the transport&#39;s callback thread */
+	protected ExecutorService handshakeExecutor;
+	/** Default root directory of the peer key directories */
+	protected static final String DEFAULT_PEER_KEY_DIR = System.getProperty("java.io.tmpdir") + "/mf2c-peers";
+	/** Default time in seconds a peer key is held */
+	protected static final long DEFAULT_PEER_KEY_TTL = 24 * 3600;
+	/** Payload of the connected status message, also used as the handshake message */
+	protected static final String STATUS_CONNECTED = "C";
+	/** Topic filter of the status topics of all the channels */
+	protected static final String STATUS_TOPIC_FILTER = "mf2c/+/status";
+	/** Constant for gracefully disconnected connection status */
+	protected static final String STATUS_GRACE_DISCONNECT = "DG";
+	
+	/***************Topics**********************/
+	//topic names are derived from the friendy name on setup, so each handler instance owns its own set
+	/** Name for the public destination topic */
+	protected String topicPublic;
+	/** Name for the private destination topic */
+	protected String topicPrivate;
+	/** Name for the protected destination topic */
+	protected String topicProtected;
+	/** Name for the handshake topic */
+	protected String topicMyHandshake; //for exchanging PK until we switch to certificate, subscribe to this
+	/** Name for the reply topic of our requests */
+	protected String topicMyReply;
+	/** Name for the resync request topic */
+	protected String topicMyResync;
+	/** Name for the ping request topic */
+	protected String topicPingReq;
+	/** Name for the ping acknowledgement topic */
+	protected String topicPingAck;
+	/** Name for this channel&#39;s status topic */
+	protected String topicMyStatus; //we just publish to this
 	
 	/** 
 	 * Keepalive interval, the maximum number of seconds allowed between communications
@@ -76,31 +121,175 @@ public abstract class ProtocolHandler {
 	/** The incoming message queue attribute */
 	protected ConcurrentLinkedQueue<Message> msgQ = new ConcurrentLinkedQueue<Message>(); //may need to block until something is in the buffer
     //also need to check the removeAll operation is threadsafe
+	/** Optional crash&#45;safe journal of the messages offered to {@link #msgQ <em>msgQ</em>}, null if not enabled */
+	protected InboundJournal journal = null;
+	/** Default root directory of the inbound journals */
+	protected static final String DEFAULT_JOURNAL_DIR = System.getProperty("java.io.tmpdir") + "/mf2c-journal";
+	/** Default inbound journal segment size in bytes */
+	protected static final int DEFAULT_JOURNAL_SEGMENT_BYTES = 8 * 1024 * 1024;
+	/** Default maximum time in milliseconds a journalled message waits for its sync */
+	protected static final long DEFAULT_JOURNAL_SYNC_MS = 5;
+	/** Number of journalled messages waiting for their sync that triggers an early sync */
+	protected static final int JOURNAL_MAX_BATCH = 256;
+	/** Replay filter applied to incoming signed messages, null if replay protection is disabled */
+	protected ReplayFilter replayFilter = null;
+	/** Width of a replay filter time bucket in seconds */
+	protected static final long REPLAY_BUCKET_SECONDS = 10;
+	/** Minimum payload size in bytes for compression, negative to disable compression */
+	protected int compressThreshold = -1;
+	/** Metrics of the channel, created on {@link #setup(HashMap) <em>setup</em>} */
+	protected ChannelMetrics metrics = null;
+	/** Peer presence built from the status topics, null unless the <code>presence</code> property is true */
+	protected PresenceService presence = null;
+	/** Requests waiting for their reply, created on the first request */
+	protected volatile PendingCalls calls = null;
+	/** Notified of the events calling for a resync, null if resync is not used */
+	protected volatile ResyncListener resyncListener = null;
 	/** Buffer for outgoing messages attribute  */
 	protected ConcurrentLinkedQueue<Message> outMsgBuffer = new ConcurrentLinkedQueue<Message>();
 
 	/** {@link Protocol <em>Protocol</em>} attribute */
 	protected Protocol protocol;
-	/** Connection status flag */
-	protected boolean connack = false; 
+	/** Connection status flag, set from the transport callbacks */
+	protected volatile boolean connack = false; 
 	/** Time out attribute in milliseconds */
 	protected long timeOut;
 	
+	/**
+	 * Notified of the events calling for a catch&#45;up resync of the messages missed while disconnected.  The
+	 * methods are called on the transport&#39;s callback thread and must hand any lengthy work over.
+	 */
+	public interface ResyncListener {
+		/**
+		 * The connection to the broker was re&#45;established.
+		 */
+		void reconnected();
+		/**
+		 * A peer published its connected status, e.g. after reconnecting.
+		 * <p>
+		 * @param peer	friendy name of the peer
+		 */
+		void peerConnected(String peer);
+		/**
+		 * A peer asked for the messages it missed.
+		 * <p>
+		 * @param request	the received resync request, still packed
+		 */
+		void resyncRequested(Message request);
+	}
 	/**
 	 * Default constructor
 	 */
 	public ProtocolHandler(){
 		
+	}
+	/**
+	 * Getter for the {@link #friendyName <em>friendyName</em>} attribute
+	 * <p>
+	 * @return the friendy name of the owning channel
+	 */
+	public String getFriendyName(){
+		return friendyName;
+	}
+	/**
+	 * Getter for the {@link #presence <em>presence</em>} attribute
+	 * <p>
+	 * @return the {@link PresenceService <em>PresenceService</em>} or null if presence is not tracked
+	 */
+	public PresenceService getPresence(){
+		return presence;
+	}
+	/**
+	 * Get the {@link #calls <em>pending calls</em>}, creating them on the first request.
+	 * <p>
+	 * @return the {@link PendingCalls <em>PendingCalls</em>}
+	 */
+	public synchronized PendingCalls getCalls(){
+		if(this.calls == null){
+			this.calls = new PendingCalls(this.friendyName, this.metrics);
+			this.metrics.gauge(ChannelMetrics.PENDING_CALLS, this.calls::size);
+		}
+		return this.calls;
+	}
+	/**
+	 * Fail the requests still waiting for their reply, if any request was made.
+	 */
+	public synchronized void closeCalls(){
+		if(this.calls != null){
+			this.calls.close();
+		}
+	}
+	/**
+	 * Setter for the {@link #resyncListener <em>resyncListener</em>} attribute
+	 * <p>
+	 * @param listener	the {@link ResyncListener <em>ResyncListener</em>}, or null to drop resync requests
+	 */
+	public void setResyncListener(ResyncListener listener){
+		this.resyncListener = listener;
+	}
+	/**
+	 * Getter for the {@link #destination <em>destination</em>} attribute
+	 * <p>
+	 * @return the destination friendy name or null if this is a listening channel
+	 */
+	public String getDestinationName(){
+		return destination;
 	}
 	/**
 	 * Getter for the the recipient&#39;s public key attribute
 	 * <p>
-	 * @param pk  the destination recipient&#39;s public key 
+	 * @return the destination recipient&#39;s public key or null if it is not known yet
 	 */
 	public PublicKey getDestPK(){
-		return destPK;
+		return (destination == null ? null : this.getPeerKey(destination));
+	}
+	/**
+	 * Get the public key of a peer from the {@link #peerKeys <em>peer key directory</em>}.
+	 * <p>
+	 * @param name	friendy name of the peer
+	 * @return the peer&#39;s public key or null if it is not known yet
+	 */
+	public PublicKey getPeerKey(String name){
+		return this.peerKeys.get(name);
+	}
+	/**
+	 * Forget the public key pinned for a peer in the {@link #peerKeys <em>peer key directory</em>}, so that the key
+	 * carried by its next handshake is accepted.
+	 * <p>
+	 * @param name	friendy name of the peer
+	 */
+	public void forgetPeerKey(String name){
+		this.peerKeys.remove(name);
+	}
+	/**
+	 * Get the public key of a peer, requesting it through the handshake if it is not known.
+	 * <p>
+	 * @param name	friendy name of the peer
+	 * @return a {@link java.util.concurrent.CompletableFuture <em>CompletableFuture</em>} completed when the key is known
+	 */
+	public CompletableFuture<PublicKey> requestPeerKey(String name){
+		CompletableFuture<PublicKey> future = this.peerKeys.await(name);
+		if(!future.isDone()){
+			long t0 = System.nanoTime();
+			future.thenRun(() -> this.metrics.record(ChannelMetrics.HANDSHAKE, System.nanoTime() - t0));
+			try {
+				this.sendPK(name, false);
+			} catch (Exception e) {
+				LOGGER.error("Error sending handshake request to " + name + " : " + e.getMessage());
+				future.completeExceptionally(e);
+			}
+		}
+		return future;
 	}
 	
+	/**
+	 * Getter for the {@link #metrics <em>metrics</em>} attribute
+	 * <p>
+	 * @return the {@link ChannelMetrics <em>ChannelMetrics</em>}, null before set up
+	 */
+	public ChannelMetrics getMetrics(){
+		return metrics;
+	}
 	/**
 	 * @return the {@link #connack <em>connack</em>} attribute 
 	 */
@@ -114,6 +303,22 @@ public abstract class ProtocolHandler {
 	public Protocol getProtocol(){
 		return protocol;
 	}
+	/**
+	 * Getter for the {@link #replayFilter <em>replayFilter</em>} attribute
+	 * <p>
+	 * @return the {@link ReplayFilter <em>ReplayFilter</em>} or null if replay protection is disabled
+	 */
+	public ReplayFilter getReplayFilter(){
+		return replayFilter;
+	}
+	/**
+	 * Getter for the {@link #compressThreshold <em>compressThreshold</em>} attribute
+	 * <p>
+	 * @return the minimum payload size in bytes for compression, negative if compression is disabled
+	 */
+	public int getCompressThreshold(){
+		return compressThreshold;
+	}
 	/**
 	 * Check if there are any messages in the incoming message queue.
 	 * <p>
@@ -136,6 +341,47 @@ public abstract class ProtocolHandler {
 		//
 		return msgQ.poll();
 	}
+	/**
+	 * Mark a popped message as consumed so that it is not handed back from the inbound journal after
+	 * a restart.  Messages dropped on the way to the application are committed too, else the journal could
+	 * never be truncated past them.  This has no effect if the journal is not enabled.
+	 * <p>
+	 * @param msg	the {@link Message <em>Message</em>} the application has finished processing, or dropped
+	 */
+	public void commit(Message msg){
+		if(this.journal != null && msg.commitJournal()){
+			this.journal.markConsumed(msg.getJournalPosition());
+		}
+	}
+	/**
+	 * Look an arriving message up in the {@link #replayFilter <em>replayFilter</em>}, so that redeliveries are dropped
+	 * before they are queued.  Only the header is parsed, the payload is neither verified nor decrypted, so nothing
+	 * is recorded here&#58; the message is recorded by {@link Message#unpackMsg(eu.mf2c.security.comm.util.ReplayFilter) <em>unpackMsg</em>}
+	 * once its signature is verified.  Public messages and messages without a usable header are let through.
+	 * <p>
+	 * @param msg	the received {@link Message <em>Message</em>}
+	 * @return true if the message was already delivered or is stale, else false
+	 */
+	protected boolean isDuplicate(Message msg){
+		if(this.replayFilter == null){
+			return false;
+		}
+		try {
+			HashMap<String, Object> header = msg.peekHeader();
+			Object sec = header.get("sec");
+			Object msgId = header.get("msgId");
+			Object timestamp = header.get("timestamp");
+			//the header of an unsigned message cannot be trusted
+			if(!(sec instanceof Number) || ((Number) sec).intValue() == Security.PUBLIC.ordinal()
+					|| !(msgId instanceof Number) || !(timestamp instanceof Number) || !(header.get("source") instanceof String)){
+				return false;
+			}
+			return !this.replayFilter.isFresh((String) header.get("source"), (String) header.get("publicKey"),
+					((Number) msgId).longValue(), ((Number) timestamp).longValue(), Instant.now().getEpochSecond());
+		} catch (MessageException | ClassCastException e) {
+			return false;
+		}
+	}
 	/**
 	 * Pop a ping request message from the head of the ping request message queue. 
 	 * Use this in a loop to get more than one message&#58;
@@ -163,6 +409,21 @@ public abstract class ProtocolHandler {
 		return pingAckQ.poll();		
 	}
 	
+	/**
+	 * Compile the default topic names for this handler instance from the {@link #friendyName <em>friendyName</em>}.
+	 */
+	protected void initTopics(){
+		String root = "mf2c/" + this.friendyName;
+		this.topicPublic = root + "/public";
+		this.topicPrivate = root + "/private";
+		this.topicProtected = root + "/protected";
+		this.topicMyHandshake = root + "/handshake";
+		this.topicMyReply = root + "/reply";
+		this.topicMyResync = root + "/resync";
+		this.topicPingReq = root + "/public/pingreq";
+		this.topicPingAck = root + "/public/pingack";
+		this.topicMyStatus = root + "/status";
+	}
 	/**		
 	 * Assembly contents for the status message.   Status messages are public by default.
 	 * <p>
@@ -170,7 +431,23 @@ public abstract class ProtocolHandler {
 	 * @return	a {@link java.util.HashMap <em>HashMap</em>} of key values for input into the communication payload.
 	 * @throws ProtocolHandlerException on error access the owner&#39;s public key
 	 */
-	public abstract  HashMap<String, Object> getStatusMessage(String status) throws ProtocolHandlerException;
+	public HashMap<String, Object> getStatusMessage(String status) throws ProtocolHandlerException{
+		//we use String, Object to comply with the Smart-Json processing further downstream
+		//status messages are public	
+		HashMap<String, Object> statusHM = new HashMap<String, Object>();
+		statusHM.put("source", friendyName); //always do this in as soon as possible
+		statusHM.put("payload", "status : " + status);
+		
+		if(status.equals(STATUS_CONNECTED)){
+			try {
+				statusHM.put("publicKey", Identity.getInstance().getPublicKeyString());
+			} catch (IdentityException e) {
+				LOGGER.error("Failed to get a String representation of the public key : " + e.getMessage());
+				throw new ProtocolHandlerException(e);
+			}
+		}
+		return statusHM;
+	}
 	/**
 	 * Generate a ping request or acknowledgement message payload.
 	 * <p>
@@ -179,28 +456,90 @@ public abstract class ProtocolHandler {
 	 * @return	{@link java.util.HashMap <em>HashMap</em>} representation of the message payload.
 	 * @throws ProtocolHandlerException on error 
 	 */
-	public abstract HashMap<String, Object>  getPingMessage(Object reqTS) throws ProtocolHandlerException;
+	public HashMap<String, Object> getPingMessage(Object reqTS) throws ProtocolHandlerException{
+		//we use String, Object to comply with the Smart-Json processing further downstream
+		//ping messages are public	
+		//payload.timestamp is added by the protocolHandler.publish function
+		HashMap<String, Object> pingHM = new HashMap<String, Object>();
+		pingHM.put("source", this.friendyName); //always do this in as soon as possible
+		if(reqTS != null){ //ping ack message
+			pingHM.put("pingRequestTS", reqTS); //the ping request publish timestamp in epoch seconds
+		}
+		return pingHM;
+	}
 	
 	/**
 	 * Compile the target ping request topic name.
 	 * <p>
 	 * @return			The topic name.
 	 */
-	public abstract String getPingRequestDest();
+	public String getPingRequestDest(){
+		return "mf2c/" + destination + "/public/pingreq";
+	}
 	/**
 	 * Compile the target ping acknowledgement topic name.
 	 * <p>
 	 * @param target 	The target friendly name.
 	 * @return			The topic name.
 	 */
-	public abstract String getPingAckDest(String target);
+	public String getPingAckDest(String target){
+		return "mf2c/" + target + "/public/pingack";
+	}
 	
 	/** Compile the target destination 
 	 * <p>
 	 * @param sec	The {@link Security <em>Security</em>} flag
 	 * @return			the destination {@link java.lang.String <em>String</em>}
 	 */
-	public abstract String getDestination(Security sec); //destination is already populated
+	public String getDestination(Security sec){ //destination is already populated
+		//the topics of the destination, not our own inboxes
+		return this.getDestination(destination, sec);
+	}
+	/** Compile the destination for a given target, so that one channel can address several peers
+	 * <p>
+	 * @param target	The target friendly name.
+	 * @param sec		The {@link Security <em>Security</em>} flag
+	 * @return			the destination {@link java.lang.String <em>String</em>}
+	 */
+	public String getDestination(String target, Security sec){
+		switch(sec){
+			case PRIVATE :
+				return "mf2c/" + target + "/private";
+			case PROTECTED :
+				return "mf2c/" + target + "/protected";
+			case PUBLIC :
+				return "mf2c/" + target + "/public";
+			default :
+				return null;
+		}
+	}
+	/**
+	 * Compile the target handshake destination.
+	 * <p>
+	 * @param target 	The target friendly name.
+	 * @return			The destination {@link java.lang.String <em>String</em>}.
+	 */
+	public String getHandshakeDest(String target){
+		return "mf2c/" + target + "/handshake";
+	}
+	/**
+	 * Compile the destination of the replies to the requests of a channel.
+	 * <p>
+	 * @param target 	The friendly name of the requesting channel.
+	 * @return			The destination {@link java.lang.String <em>String</em>}.
+	 */
+	public String getReplyDest(String target){
+		return "mf2c/" + target + "/reply";
+	}
+	/**
+	 * Compile the destination of the resync requests to a channel.
+	 * <p>
+	 * @param target 	The friendly name of the channel asked to resend.
+	 * @return			The destination {@link java.lang.String <em>String</em>}.
+	 */
+	public String getResyncDest(String target){
+		return "mf2c/" + target + "/resync";
+	}
 	
 	
 	/**
@@ -211,6 +550,8 @@ public abstract class ProtocolHandler {
 	 *	mf2c/[friendyName]/protected
 	 *	mf2c/[friendyName]/private
 	 *	mf2c/[friendyName]/handshake
+	 *	mf2c/[friendyName]/reply
+	 *	mf2c/[friendyName]/resync
 	 *	mf2c/[friendyName]/public/pingreq
 	 *	mf2c/[friendyName]/public/pingack
 	 * </pre>
@@ -221,25 +562,257 @@ public abstract class ProtocolHandler {
 	 */
 	public void setup(HashMap<String, String> properties) throws ProtocolHandlerException{
 		//protocol specific operations to be defined by the concrete classes
-		friendyName = properties.get("friendyName");
-		broker = properties.get("broker");
+		this.friendyName = properties.get("friendyName");
+		this.broker = properties.get("broker");
+		this.initTopics();
+		//the queue sizes are only counted when the metrics are read
+		this.metrics = new ChannelMetrics(this.friendyName);
+		this.metrics.gauge(ChannelMetrics.MSG_QUEUE, () -> this.msgQ.size());
+		this.metrics.gauge(ChannelMetrics.PING_REQUEST_QUEUE, () -> this.pingReqQ.size());
+		this.metrics.gauge(ChannelMetrics.PING_ACK_QUEUE, () -> this.pingAckQ.size());
+		if(!"false".equals(properties.get("jmx"))){
+			this.metrics.register();
+		}
 		//This is a botch to ensure the application works w/o PKI and will be updated in a later version
-		if((properties.get("destination") != null) || (!properties.get("destination").isEmpty())){
-			destination = properties.get("destination");			
+		if((properties.get("destination") != null) && (!properties.get("destination").isEmpty())){
+			this.destination = properties.get("destination");			
 		}else{			
 			LOGGER.debug("no destination, this is just a subscriber!");
 		}
 		
 		keepAlive = Integer.valueOf(properties.get("keepAlive"));
 		timeOut = Long.valueOf(properties.get("timeOut"));
+		//replay window in seconds, off unless configured as peers without message ids would be rejected
+		if(properties.get("replayWindow") != null && Long.valueOf(properties.get("replayWindow")) > 0){
+			this.replayFilter = new ReplayFilter(Long.valueOf(properties.get("replayWindow")), REPLAY_BUCKET_SECONDS);
+		}
+		
+		//off unless configured as peers without compression support cannot read compressed payloads
+		if(properties.get("compressThreshold") != null){
+			this.compressThreshold = Integer.valueOf(properties.get("compressThreshold"));
+		}
+		
+		//keys of known peers survive a restart
+		String keyDir = properties.get("peerKeyDir");
+		long keyTtl = (properties.get("peerKeyTtl") == null ? DEFAULT_PEER_KEY_TTL : Long.valueOf(properties.get("peerKeyTtl")));
+		this.peerKeys = new PeerKeyDirectory(new File((keyDir == null ? DEFAULT_PEER_KEY_DIR : keyDir), this.friendyName + ".keys"), keyTtl * 1000);
+		this.handshakeExecutor = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "Handshake-" + this.friendyName);
+			t.setDaemon(true);
+			return t;
+		});
 		
 		//!!!rest of processing MUST be implemented by the specific protocol handler
 	}
+	/**
+	 * Open the {@link #journal <em>inbound journal</em>} and hand back the messages left unconsumed by a previous run.
+	 * Handlers journalling the messages they queue call this once {@link #setup(HashMap) <em>setup</em>} has read the
+	 * common properties, if the <code>inboundJournal</code> property is true.  A warning is logged once more than
+	 * <code>journalMaxOutstanding</code> messages are waiting for their commit.
+	 * <p>
+	 * @param properties	a {@link java.util.HashMap <em>HashMap</em>} of configuration key value pairs
+	 * @throws Exception on journal errors
+	 */
+	protected void openJournal(HashMap<String, String> properties) throws Exception {
+		String dir = properties.get("journalDir");
+		String syncMs = properties.get("journalSyncMillis");
+		String segmentBytes = properties.get("outboxSegmentBytes");
+		String maxOutstanding = properties.get("journalMaxOutstanding");
+		this.journal = new InboundJournal(new File((dir == null ? DEFAULT_JOURNAL_DIR : dir), friendyName),
+				(segmentBytes == null ? DEFAULT_JOURNAL_SEGMENT_BYTES : Integer.parseInt(segmentBytes)),
+				(syncMs == null ? DEFAULT_JOURNAL_SYNC_MS : Long.parseLong(syncMs)), JOURNAL_MAX_BATCH,
+				(maxOutstanding == null ? InboundJournal.DEFAULT_MAX_OUTSTANDING : Integer.parseInt(maxOutstanding)));
+		this.metrics.gauge(ChannelMetrics.JOURNAL, this.journal::getOutstanding);
+		this.journal.replay((position, topic, payload) -> {
+			Message message = new Message(payload, null);
+			message.setJournalPosition(position);
+			this.msgQ.offer(message);
+		});
+	}
+	/**
+	 * Start the {@link #presence <em>presence</em>} service if the <code>presence</code> property is true.  The
+	 * <code>presenceTtl</code> property sets the time to live in seconds, three keep alive intervals by default.
+	 * Handlers able to subscribe to {@link #STATUS_TOPIC_FILTER <em>STATUS_TOPIC_FILTER</em>} call this once
+	 * {@link #setup(HashMap) <em>setup</em>} has read the common properties.
+	 * <p>
+	 * @param properties	a {@link java.util.HashMap <em>HashMap</em>} of configuration key value pairs
+	 */
+	protected void startPresence(HashMap<String, String> properties){
+		if(Boolean.parseBoolean(properties.get("presence"))){
+			long ttl = (properties.get("presenceTtl") == null ? 3L * this.keepAlive : Long.valueOf(properties.get("presenceTtl")));
+			this.presence = new PresenceService(this.friendyName, ttl);
+		}
+	}
+	/**
+	 * Record a status message from a status topic in the {@link #presence <em>presence</em>} table.  Anyone can
+	 * publish to a status topic, so the message must be signed with the key pinned for its source in the
+	 * {@link #peerKeys <em>peer key directory</em>}&#58; the first key seen for a peer is pinned as by the handshake,
+	 * a status signed with a different key is dropped.  Our own status messages are ignored.
+	 * <p>
+	 * @param payload	the received message
+	 */
+	protected void offerStatus(byte[] payload){
+		try {
+			Message msg = new Message(payload, null);
+			msg.unpackMsg();
+			String source = (String) msg.getPayloadHM().get("source");
+			String status = String.valueOf(msg.getPayloadHM().get("payload"));
+			if(source == null || source.equals(this.friendyName) || !status.startsWith("status : ")){
+				return;
+			}
+			if(msg.getDestKey() == null){
+				LOGGER.warn("Dropped an unsigned status message from " + source);
+				return;
+			}
+			if(!this.peerKeys.put(source, msg.getDestKey())){
+				LOGGER.warn("Dropped a status message from " + source + " not signed with its pinned key");
+				return;
+			}
+			this.presence.update(source, status.substring("status : ".length()));
+			ResyncListener listener = this.resyncListener;
+			if(listener != null && status.equals("status : " + STATUS_CONNECTED)){
+				listener.peerConnected(source);
+			}
+		} catch (MessageException | RuntimeException e) {
+			LOGGER.warn("Dropped an invalid status message : " + e.getMessage());
+		}
+	}
+	/**
+	 * Complete the pending call answered by a message from the reply topic, on the thread that delivered it.
+	 * The reply is verified and decrypted first, replies arriving when no request was made are dropped.  Anyone can
+	 * publish to the reply topic, so the reply must be signed with the key pinned for the peer called in the
+	 * {@link #peerKeys <em>peer key directory</em>}.  If that key is not known yet, it is requested through the
+	 * handshake and the call is completed once it arrives, on the handshake thread.
+	 * <p>
+	 * @param payload	the received message
+	 */
+	protected void offerReply(byte[] payload){
+		PendingCalls pending = this.calls;
+		if(pending == null){
+			LOGGER.debug("Dropped a reply, no request was made");
+			return;
+		}
+		Message msg = new Message(payload, null);
+		if(this.isDuplicate(msg)){
+			return;
+		}
+		try {
+			msg.setMetrics(this.metrics);
+			msg.unpackMsg(this.replayFilter);
+			if(msg.getDestKey() == null){
+				LOGGER.warn("Dropped an unsigned reply from " + msg.getPayloadHM().get("source"));
+				return;
+			}
+			String peer = pending.getPeer(msg.getCorrelationId());
+			if(peer == null){
+				LOGGER.debug("Dropped a reply to an unknown call " + msg.getCorrelationId());
+				return;
+			}
+			this.requestPeerKey(peer).thenAccept(key -> {
+				if(!key.equals(msg.getDestKey())){
+					LOGGER.warn("Dropped a reply to call " + msg.getCorrelationId() + " not signed with the key of " + peer);
+					return;
+				}
+				if(this.presence != null){
+					this.presence.touch(peer);
+				}
+				pending.complete(msg);
+			});
+		} catch (MessageException | RuntimeException e) {
+			LOGGER.warn("Dropped an invalid reply : " + e.getMessage());
+		}
+	}
+	/**
+	 * Count a reconnection to the broker and notify the {@link #resyncListener <em>resyncListener</em>}.
+	 */
+	protected void reconnected(){
+		this.metrics.reconnected();
+		ResyncListener listener = this.resyncListener;
+		if(listener != null){
+			listener.reconnected();
+		}
+	}
+	/**
+	 * Hand a message from the resync topic to the {@link #resyncListener <em>resyncListener</em>}, or drop it
+	 * if this channel does not resend.
+	 * <p>
+	 * @param payload	the received message
+	 */
+	protected void offerResync(byte[] payload){
+		ResyncListener listener = this.resyncListener;
+		if(listener == null){
+			LOGGER.debug("Dropped a resync request, resync is not enabled");
+			return;
+		}
+		listener.resyncRequested(new Message(payload, null));
+	}
 	/**
 	 * Clean up and disconnect the client.
 	 */
 	public abstract void disconnect();
 	
+	/**
+	 * Queue a received handshake message for {@link #processHandshake(Message) <em>processHandshake</em>} on the
+	 * {@link #handshakeExecutor <em>handshakeExecutor</em>}, so that the transport&#39;s callback thread is not held
+	 * up by the signature check or the reply.
+	 * <p>
+	 * @param msg	the received handshake {@link Message <em>Message</em>}
+	 */
+	protected void offerHandshake(Message msg){
+		this.handshakeExecutor.execute(() -> {
+			try {
+				this.processHandshake(msg);
+			} catch (Exception e) {
+				LOGGER.error("Error processing handshake message : " + e.getMessage());
+			}
+		});
+	}
+	/**
+	 * Process a handshake message.  The sender&#39;s public key is recorded in the {@link #peerKeys <em>peer key directory</em>},
+	 * completing any callers waiting for it, and our own key is sent back unless the message is itself a reply.  A handshake
+	 * carrying a different key from the one pinned for the sender is ignored.
+	 * <p>
+	 * @param msg	the received handshake {@link Message <em>Message</em>}
+	 * @throws Exception on processing errors
+	 */
+	protected void processHandshake(Message msg) throws Exception {
+		//PKs are just sent and cached, there is no validation of the integrity of both parties until we introduce PKI
+		msg.setMetrics(this.metrics);
+		msg.unpackMsg(this.replayFilter);
+		HashMap<String, Object> hm = msg.getPayloadHM();
+		if(!("status : " + STATUS_CONNECTED).equals(hm.get("payload"))){
+			return;
+		}
+		String source = (String) hm.get("source");
+		if(source == null || source.equals(this.friendyName)){
+			return;
+		}
+		if(msg.getDestKey() == null){
+			throw new Exception("No sender's public key in the handshake message from " + source + "!");
+		}
+		if(!this.peerKeys.put(source, msg.getDestKey())){
+			//a different key is pinned for the source, possibly an impostor
+			return;
+		}
+		if(!"reply".equals(hm.get("handshake"))){
+			this.sendPK(source, true);
+		}
+	}
+	/**
+	 * Send our public key to the handshake destination of the given peer.
+	 * <p>
+	 * @param target	friendy name of the peer
+	 * @param reply		true if this answers a handshake from the peer, false to request the peer&#39;s key in return
+	 * @throws Exception on processing errors 
+	 */
+	protected void sendPK(String target, boolean reply) throws Exception {
+		Message msg = new Message(this.getStatusMessage(STATUS_CONNECTED));
+		msg.getPayloadHM().put("handshake", (reply ? "reply" : "request"));
+		msg.setMetrics(this.metrics);
+		msg.packMsg(Security.PROTECTED, this.protocol, QoS.ATLEASTONCE, null); //sign the payload
+		this.publish(this.getHandshakeDest(target), QoS.ATLEASTONCE, msg.getPayloadHM());
+	}
+	
 	/**
 	 * Complete the metadata and publish a message.  If the {@link QoS <en><QoS/em>} flag is set to ATLEASTONCE, the message is published
 	 * asynchronously, i.e. send and forget.  Otherwise, the message is published synchronously.
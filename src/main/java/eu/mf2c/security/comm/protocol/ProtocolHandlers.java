@@ -16,7 +16,9 @@
 package eu.mf2c.security.comm.protocol;
 
 import eu.mf2c.security.comm.protocol.ble.BleHandler;
+import eu.mf2c.security.comm.protocol.coap.CoapHandler;
 import eu.mf2c.security.comm.protocol.http.HttpHandler;
+import eu.mf2c.security.comm.protocol.loopback.LoopbackHandler;
 import eu.mf2c.security.comm.protocol.mqtt3.Mqtt3Handler;
 import eu.mf2c.security.comm.util.Protocol;
 import eu.mf2c.security.exception.ProtocolHandlerException;
@@ -46,6 +48,8 @@ public class ProtocolHandlers {
 				case BLE: return new BleHandler();
 				case MQTT: return new Mqtt3Handler();
 				case HTTP: return new HttpHandler(); 
+				case COAP: return new CoapHandler();
+				case LOOPBACK: return new LoopbackHandler();
 				//18Jan2018 only supports BLE, MQTT and HTTP in iteration 1
 				default: throw new ProtocolHandlerException("Unsupported protocol: " + protocol);  	
 				//ideally we should use a separate ProtocolHandlerFactoryException, but we want to have a compact application.
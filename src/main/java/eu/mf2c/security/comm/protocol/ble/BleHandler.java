@@ -96,4 +96,40 @@ public class BleHandler extends ProtocolHandler {
 		// TODO Auto-generated method stub
 		return null;
 	}
+
+	/**
+	 * Not supported until a Ble transport is implemented.
+	 * <p>
+	 * @throws UnsupportedOperationException always
+	 */
+	@Override
+	public String getDestination(String target, Security sec) {
+		throw new UnsupportedOperationException("The Ble protocol handler is not implemented!");
+	}
+
+	/**
+	 * Not supported until a Ble transport is implemented.
+	 * <p>
+	 * @throws UnsupportedOperationException always
+	 */
+	@Override
+	public String getHandshakeDest(String target) {
+		throw new UnsupportedOperationException("The Ble protocol handler is not implemented!");
+	}
+
+	/**
+	 * Not supported until a Ble transport is implemented.
+	 * <p>
+	 * @throws UnsupportedOperationException always
+	 */
+	@Override
+	public String getReplyDest(String target) {
+		throw new UnsupportedOperationException("The Ble protocol handler is not implemented!");
+	}
+
+	@Override
+	public String getResyncDest(String target) {
+		throw new UnsupportedOperationException("The Ble protocol handler is not implemented!");
+	}
+
 }
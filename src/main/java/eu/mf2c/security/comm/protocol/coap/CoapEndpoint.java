@@ -0,0 +1,791 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.protocol.coap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A CoAP endpoint over a non&#45;blocking {@link java.nio.channels.DatagramChannel <em>DatagramChannel</em>},
+ * acting as both client and server.  One I&#47;O thread receives datagrams, retransmits unacknowledged confirmable
+ * messages with the RFC 7252 exponential back off and runs the queued tasks, so request handlers and response
+ * callbacks must not block.  Sending is thread safe.
+ * <p>
+ * The endpoint implements&#58;
+ * <ul>
+ * <li>confirmable and non&#45;confirmable messages, with duplicate detection on the message id.  Non&#45;confirmable
+ * requests are not answered, as if they carried a No&#45;Response option, so they cost one datagram each&#59;</li>
+ * <li>block&#45;wise transfer&#58; request bodies larger than the block size are sent as Block1 blocks and reassembled
+ * by the server, large responses and notifications carry the first Block2 block and an ETag, and the client
+ * fetches the remaining blocks of that representation with GET requests&#59;</li>
+ * <li>observe&#58; a GET with Observe 0 registers the client for notifications on the path, sent with
+ * {@link #notifyObservers(String, byte[], boolean) <em>notifyObservers</em>}.  An observer is dropped when it
+ * resets a notification or a confirmable notification times out.</li>
+ * </ul>
+ * The exchange lifetime is cut to {@link #EXCHANGE_LIFETIME_MS <em>EXCHANGE_LIFETIME_MS</em>} to keep the
+ * duplicate cache small, and the NSTART limit is not enforced, as both ends are mF2C agents on the fog network.
+ */
+public class CoapEndpoint {
+	/** message logger */
+	private static final Logger LOGGER = Logger.getLogger(CoapEndpoint.class.getName());
+	/** initial retransmission time out in milliseconds */
+	public static final long ACK_TIMEOUT_MS = 2000;
+	/** maximum number of retransmissions */
+	public static final int MAX_RETRANSMIT = 4;
+	/** how long received message ids and cached representations are kept, in milliseconds */
+	public static final long EXCHANGE_LIFETIME_MS = 60000;
+	/** default block size exponent, 2^(6+4) = 1024 bytes */
+	public static final int DEFAULT_SZX = 6;
+	/** largest body reassembled from blocks */
+	public static final int MAX_BODY = 4 * 1024 * 1024;
+	/** largest datagram */
+	private static final int MAX_DATAGRAM = 65507;
+	/** period of the retransmission scan in milliseconds */
+	private static final long TICK_MS = 20;
+
+	/**
+	 * Server side request handler.  It is called on the I&#47;O thread and must not block.
+	 */
+	public interface RequestHandler {
+		/**
+		 * Handle a complete request, block&#45;wise bodies already reassembled.
+		 * <p>
+		 * @param source	the client address
+		 * @param request	the request
+		 * @return the response, only the code, options and payload are used.  Null means 2.04 Changed.
+		 */
+		CoapMessage handle(InetSocketAddress source, CoapMessage request);
+	}
+
+	/** the channel */
+	private final DatagramChannel channel;
+	/** the selector */
+	private final Selector selector;
+	/** the I/O thread */
+	private final Thread thread;
+	/** the request handler, may be null for a client only endpoint */
+	private final RequestHandler handler;
+	/** block size exponent */
+	private final int szx;
+	/** flag indicating the state of the I/O thread */
+	private volatile boolean running = true;
+	/** next message id */
+	private final AtomicInteger nextMid = new AtomicInteger(new SecureRandom().nextInt(0x10000));
+	/** next token */
+	private final AtomicLong nextToken = new AtomicLong(new SecureRandom().nextLong());
+	/** confirmable messages awaiting acknowledgement, keyed on message id */
+	private final ConcurrentHashMap<Integer, Transmission> pending = new ConcurrentHashMap<Integer, Transmission>();
+	/** client exchanges awaiting a response or notifications, keyed on token */
+	private final ConcurrentHashMap<Long, Exchange> exchanges = new ConcurrentHashMap<Long, Exchange>();
+	/** the token of the current observation of each address and path */
+	private final ConcurrentHashMap<String, Long> observations = new ConcurrentHashMap<String, Long>();
+	/** registered observers, keyed on path then client address */
+	private final ConcurrentHashMap<String, ConcurrentHashMap<InetSocketAddress, Observer>> observers = new ConcurrentHashMap<String, ConcurrentHashMap<InetSocketAddress, Observer>>();
+	/** representations served block&#45;wise, keyed on ETag */
+	private final ConcurrentHashMap<Long, Representation> representations = new ConcurrentHashMap<Long, Representation>();
+	/** tasks to run on the I/O thread */
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	/** recently received message ids and the response sent, I/O thread only */
+	private final LinkedHashMap<String, Object[]> recent = new LinkedHashMap<String, Object[]>();
+	/** request bodies being reassembled from Block1 blocks, I/O thread only */
+	private final HashMap<String, ByteArrayOutputStream> block1 = new HashMap<String, ByteArrayOutputStream>();
+
+	/**
+	 * Bind an endpoint and start its I&#47;O thread.
+	 * <p>
+	 * @param address	the local address, port 0 for an ephemeral port
+	 * @param handler	the request handler, or null for a client only endpoint
+	 * @param szx		block size exponent, 0 to 6 for blocks of 16 to 1024 bytes
+	 * @param name		name used for the I&#47;O thread
+	 * @throws IOException if the address cannot be bound
+	 */
+	public CoapEndpoint(InetSocketAddress address, RequestHandler handler, int szx, String name) throws IOException {
+		this.handler = handler;
+		this.szx = Math.max(0, Math.min(szx, 6));
+		this.channel = DatagramChannel.open();
+		//absorb bursts of non-confirmable messages
+		this.channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+		this.channel.setOption(StandardSocketOptions.SO_SNDBUF, 1024 * 1024);
+		this.channel.bind(address);
+		this.channel.configureBlocking(false);
+		this.selector = Selector.open();
+		this.channel.register(this.selector, SelectionKey.OP_READ);
+		this.thread = new Thread(this::run, "CoapEndpoint-" + name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * @return the bound port
+	 */
+	public int getPort(){
+		try {
+			return ((InetSocketAddress) this.channel.getLocalAddress()).getPort();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Stop the I&#47;O thread and close the channel.  Outstanding exchanges fail.
+	 */
+	public void close(){
+		this.running = false;
+		this.selector.wakeup();
+		try {
+			this.thread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			this.selector.close();
+			this.channel.close();
+		} catch (IOException e) {
+			LOGGER.debug("Error closing the CoAP endpoint : " + e.getMessage());
+		}
+		IOException closed = new IOException("Endpoint closed");
+		for(Exchange ex : this.exchanges.values()){
+			ex.future.completeExceptionally(closed);
+		}
+		this.exchanges.clear();
+		this.pending.clear();
+	}
+
+	/**
+	 * Run a task on the I&#47;O thread.
+	 * <p>
+	 * @param task	the task, it must not block
+	 */
+	public void execute(Runnable task){
+		this.tasks.add(task);
+		this.selector.wakeup();
+	}
+
+	/////////////////////////////////////////////////client//////////////////////////////////////////////////////
+	/**
+	 * POST a body.  Bodies larger than one block are always sent confirmable, block by block.
+	 * <p>
+	 * @param dest			the server address
+	 * @param path			the resource path
+	 * @param payload		the body
+	 * @param confirmable	true for a confirmable request
+	 * @return a future completed with the response, or with null straight away for a non&#45;confirmable request.
+	 * 		   It fails with a {@link java.util.concurrent.TimeoutException <em>TimeoutException</em>} if the server
+	 * 		   does not acknowledge the request.
+	 */
+	public CompletableFuture<CoapMessage> post(InetSocketAddress dest, String path, byte[] payload, boolean confirmable){
+		CoapMessage request = new CoapMessage(confirmable ? CoapMessage.CON : CoapMessage.NON, CoapMessage.POST);
+		request.setUriPath(path);
+		if(payload.length <= this.blockSize()){
+			request.setPayload(payload);
+			if(!confirmable){
+				request.setToken(this.token());
+				this.send(request, dest, null);
+				return CompletableFuture.completedFuture(null);
+			}
+			return this.request(dest, request, null, null);
+		}
+		request.setType(CoapMessage.CON);
+		return this.request(dest, request, payload, null);
+	}
+
+	/**
+	 * Observe a resource.  A repeated observation of the same address and path replaces the earlier one.
+	 * <p>
+	 * @param dest		the server address
+	 * @param path		the resource path
+	 * @param listener	receives the payload of every notification, on the I&#47;O thread
+	 * @return a future completed with the registration response
+	 */
+	public CompletableFuture<CoapMessage> observe(InetSocketAddress dest, String path, Consumer<byte[]> listener){
+		CoapMessage request = new CoapMessage(CoapMessage.CON, CoapMessage.GET);
+		request.setUriPath(path);
+		request.addOption(CoapMessage.OPT_OBSERVE, 0);
+		return this.request(dest, request, null, listener);
+	}
+
+	/**
+	 * Start a client exchange.
+	 * <p>
+	 * @param dest		the server address
+	 * @param request	the request, the token and message id are set here
+	 * @param body		a body to send block&#45;wise, or null
+	 * @param listener	the notification listener of an observation, or null
+	 */
+	private CompletableFuture<CoapMessage> request(InetSocketAddress dest, CoapMessage request, byte[] body, Consumer<byte[]> listener){
+		byte[] token = this.token();
+		request.setToken(token);
+		Exchange ex = new Exchange(request, body, listener);
+		long key = tokenKey(token);
+		this.exchanges.put(key, ex);
+		if(listener != null){
+			Long previous = this.observations.put(dest + "/" + request.getUriPath(), key);
+			if(previous != null){
+				this.exchanges.remove(previous);
+			}
+		}
+		if(body != null){
+			this.setBlock1(ex, 0);
+		}
+		this.send(request, dest, () -> {
+			this.exchanges.remove(key);
+			ex.future.completeExceptionally(new TimeoutException("No acknowledgement from " + dest));
+		});
+		return ex.future;
+	}
+
+	/**
+	 * Load block <code>num</code> of the exchange body into its request.
+	 */
+	private void setBlock1(Exchange ex, int num){
+		int size = this.blockSize();
+		int offset = num * size;
+		int length = Math.min(size, ex.body.length - offset);
+		byte[] block = new byte[length];
+		System.arraycopy(ex.body, offset, block, 0, length);
+		ex.request.removeOption(CoapMessage.OPT_BLOCK1);
+		ex.request.addOption(CoapMessage.OPT_BLOCK1, CoapMessage.block(num, offset + length < ex.body.length, this.szx));
+		ex.request.setPayload(block);
+	}
+
+	/**
+	 * Match a response or notification to its exchange.
+	 */
+	private void handleResponse(CoapMessage response, InetSocketAddress source){
+		long key = tokenKey(response.getToken());
+		Exchange ex = this.exchanges.get(key);
+		if(ex == null){
+			if(response.getType() != CoapMessage.ACK){
+				//unknown token, tell the server to stop notifying
+				this.reply(response, source, new CoapMessage(CoapMessage.RST, CoapMessage.EMPTY));
+			}
+			return;
+		}
+		int block1 = response.getIntOption(CoapMessage.OPT_BLOCK1);
+		if(ex.body != null && response.getCode() == CoapMessage.CONTINUE && block1 >= 0){
+			//server wants the next block
+			this.setBlock1(ex, CoapMessage.blockNum(block1) + 1);
+			this.send(ex.request, source, () -> {
+				this.exchanges.remove(key);
+				ex.future.completeExceptionally(new TimeoutException("No acknowledgement from " + source));
+			});
+			return;
+		}
+		if(ex.listener == null){
+			this.exchanges.remove(key);
+		}
+		int block2 = response.getIntOption(CoapMessage.OPT_BLOCK2);
+		//block requests of fetchBlocks are assembled by it
+		if(block2 >= 0 && CoapMessage.blockMore(block2) && ex.request.getOption(CoapMessage.OPT_BLOCK2) == null){
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			body.write(response.getPayload(), 0, response.getPayload().length);
+			this.fetchBlocks(source, ex.request.getUriPath(), response.getOption(CoapMessage.OPT_ETAG), CoapMessage.blockNum(block2) + 1, body)
+				.whenComplete((bytes, t) -> {
+					if(t != null){
+						LOGGER.warn("Failed to fetch the remaining blocks from " + source + " : " + t.getMessage());
+						ex.future.completeExceptionally(t);
+						return;
+					}
+					response.setPayload(bytes);
+					this.complete(ex, response);
+				});
+			return;
+		}
+		this.complete(ex, response);
+	}
+
+	/**
+	 * Complete an exchange, or pass a notification to its listener.
+	 */
+	private void complete(Exchange ex, CoapMessage response){
+		if(ex.listener != null && response.getPayload().length > 0 && response.getCode() == CoapMessage.CONTENT){
+			try{
+				ex.listener.accept(response.getPayload());
+			}catch(RuntimeException e){
+				LOGGER.error("Notification listener error : " + e.getMessage());
+			}
+		}
+		ex.future.complete(response);
+	}
+
+	/**
+	 * Fetch the remaining Block2 blocks of a representation.
+	 */
+	private CompletableFuture<byte[]> fetchBlocks(InetSocketAddress dest, String path, byte[] etag, int num, ByteArrayOutputStream body){
+		CoapMessage request = new CoapMessage(CoapMessage.CON, CoapMessage.GET);
+		request.setUriPath(path);
+		if(etag != null){
+			request.addOption(CoapMessage.OPT_ETAG, etag);
+		}
+		request.addOption(CoapMessage.OPT_BLOCK2, CoapMessage.block(num, false, this.szx));
+		return this.request(dest, request, null, null).thenCompose(response -> {
+			int block2 = response.getIntOption(CoapMessage.OPT_BLOCK2);
+			if(response.getCode() != CoapMessage.CONTENT || block2 < 0 || CoapMessage.blockNum(block2) != num){
+				throw new IllegalStateException("Unexpected block response " + response.getCode());
+			}
+			body.write(response.getPayload(), 0, response.getPayload().length);
+			if(CoapMessage.blockMore(block2) && body.size() < MAX_BODY){
+				return this.fetchBlocks(dest, path, etag, num + 1, body);
+			}
+			return CompletableFuture.completedFuture(body.toByteArray());
+		});
+	}
+
+	/////////////////////////////////////////////////server//////////////////////////////////////////////////////
+	/**
+	 * Notify the observers of a path.
+	 * <p>
+	 * @param path			the observed path
+	 * @param payload		the notification body
+	 * @param confirmable	true to send confirmable notifications
+	 * @return the number of observers notified
+	 */
+	public int notifyObservers(String path, byte[] payload, boolean confirmable){
+		Map<InetSocketAddress, Observer> map = this.observers.get(path);
+		if(map == null || map.isEmpty()){
+			return 0;
+		}
+		List<Observer> targets = new ArrayList<Observer>(map.values());
+		for(Observer observer : targets){
+			CoapMessage notification = new CoapMessage(confirmable ? CoapMessage.CON : CoapMessage.NON, CoapMessage.CONTENT);
+			notification.setToken(observer.token);
+			notification.addOption(CoapMessage.OPT_OBSERVE, observer.seq.incrementAndGet() & 0xffffff);
+			this.setBody(notification, payload);
+			//drop the observer if it never acknowledges
+			this.send(notification, observer.address, () -> this.removeObserver(path, observer));
+		}
+		return targets.size();
+	}
+
+	/**
+	 * @return true if the path has at least one observer
+	 */
+	public boolean hasObservers(String path){
+		Map<InetSocketAddress, Observer> map = this.observers.get(path);
+		return map != null && !map.isEmpty();
+	}
+
+	/**
+	 * @param prefix	the path prefix
+	 * @return the number of observers of the paths starting with the prefix
+	 */
+	public int getObserverCount(String prefix){
+		int count = 0;
+		for(Map.Entry<String, ConcurrentHashMap<InetSocketAddress, Observer>> entry : this.observers.entrySet()){
+			if(entry.getKey().startsWith(prefix)){
+				count += entry.getValue().size();
+			}
+		}
+		return count;
+	}
+
+	private void removeObserver(String path, Observer observer){
+		Map<InetSocketAddress, Observer> map = this.observers.get(path);
+		if(map != null && map.remove(observer.address, observer)){
+			LOGGER.debug("Removed observer " + observer.address + " of " + path);
+		}
+	}
+
+	/**
+	 * Handle a request, returning the response to send or null for none.
+	 */
+	private CoapMessage handleRequest(CoapMessage request, InetSocketAddress source){
+		String path = request.getUriPath();
+		//a later block of a representation we served
+		int block2 = request.getIntOption(CoapMessage.OPT_BLOCK2);
+		if(block2 >= 0 && CoapMessage.blockNum(block2) > 0 && request.getCode() == CoapMessage.GET && request.getOption(CoapMessage.OPT_ETAG) != null){
+			Representation rep = this.representations.get(tokenKey(request.getOption(CoapMessage.OPT_ETAG)));
+			if(rep == null){
+				return new CoapMessage(CoapMessage.ACK, CoapMessage.NOT_FOUND);
+			}
+			CoapMessage response = new CoapMessage(CoapMessage.ACK, CoapMessage.CONTENT);
+			response.addOption(CoapMessage.OPT_ETAG, request.getOption(CoapMessage.OPT_ETAG));
+			this.setBlock2(response, rep.body, CoapMessage.blockNum(block2), CoapMessage.blockSize(block2));
+			return response;
+		}
+		//reassemble a block-wise request body
+		int block1 = request.getIntOption(CoapMessage.OPT_BLOCK1);
+		if(block1 >= 0){
+			String key = source + "/" + path;
+			int num = CoapMessage.blockNum(block1);
+			ByteArrayOutputStream body = (num == 0 ? new ByteArrayOutputStream() : this.block1.get(key));
+			if(body == null || body.size() != num * CoapMessage.blockSize(block1)){
+				this.block1.remove(key);
+				return new CoapMessage(CoapMessage.ACK, CoapMessage.REQUEST_INCOMPLETE);
+			}
+			body.write(request.getPayload(), 0, request.getPayload().length);
+			if(body.size() > MAX_BODY){
+				this.block1.remove(key);
+				return new CoapMessage(CoapMessage.ACK, CoapMessage.TOO_LARGE);
+			}
+			if(CoapMessage.blockMore(block1)){
+				this.block1.put(key, body);
+				CoapMessage response = new CoapMessage(CoapMessage.ACK, CoapMessage.CONTINUE);
+				response.addOption(CoapMessage.OPT_BLOCK1, block1);
+				return response;
+			}
+			this.block1.remove(key);
+			request.setPayload(body.toByteArray());
+		}
+		CoapMessage response = null;
+		if(this.handler != null){
+			try{
+				response = this.handler.handle(source, request);
+			}catch(RuntimeException e){
+				LOGGER.error("Error handling CoAP request for " + path + " : " + e.getMessage());
+				response = new CoapMessage(CoapMessage.ACK, CoapMessage.BAD_REQUEST);
+			}
+		}else{
+			response = new CoapMessage(CoapMessage.ACK, CoapMessage.NOT_FOUND);
+		}
+		if(request.getType() == CoapMessage.NON){
+			return null;
+		}
+		if(response == null){
+			response = new CoapMessage(CoapMessage.ACK, CoapMessage.CHANGED);
+		}
+		if(block1 >= 0){
+			response.addOption(CoapMessage.OPT_BLOCK1, block1);
+		}
+		int observe = request.getIntOption(CoapMessage.OPT_OBSERVE);
+		if(request.getCode() == CoapMessage.GET && observe >= 0){
+			ConcurrentHashMap<InetSocketAddress, Observer> map = this.observers.computeIfAbsent(path, p -> new ConcurrentHashMap<InetSocketAddress, Observer>());
+			if(observe == 0 && response.getCode() == CoapMessage.CONTENT){
+				Observer observer = new Observer(source, request.getToken());
+				map.put(source, observer);
+				response.addOption(CoapMessage.OPT_OBSERVE, observer.seq.get());
+			}else if(observe == 1){
+				map.remove(source);
+			}
+		}
+		this.setBody(response, response.getPayload());
+		return response;
+	}
+
+	/**
+	 * Set a response body, switching to Block2 if it does not fit one block.
+	 */
+	private void setBody(CoapMessage response, byte[] body){
+		if(body.length <= this.blockSize()){
+			response.setPayload(body);
+			return;
+		}
+		long etag = this.nextToken.incrementAndGet();
+		this.representations.put(etag, new Representation(body, System.currentTimeMillis() + EXCHANGE_LIFETIME_MS));
+		response.addOption(CoapMessage.OPT_ETAG, longBytes(etag));
+		this.setBlock2(response, body, 0, this.blockSize());
+	}
+
+	private void setBlock2(CoapMessage response, byte[] body, int num, int size){
+		size = Math.min(size, this.blockSize());
+		int offset = Math.min(num * size, body.length);
+		int length = Math.min(size, body.length - offset);
+		byte[] block = new byte[length];
+		System.arraycopy(body, offset, block, 0, length);
+		response.removeOption(CoapMessage.OPT_BLOCK2);
+		response.addOption(CoapMessage.OPT_BLOCK2, CoapMessage.block(num, offset + length < body.length, Integer.numberOfTrailingZeros(size) - 4));
+		response.setPayload(block);
+	}
+
+	/////////////////////////////////////////////////I/O//////////////////////////////////////////////////////
+	/**
+	 * Send a message with a fresh message id, tracking it for retransmission if it is confirmable.
+	 * <p>
+	 * @param msg		the message
+	 * @param dest		the destination
+	 * @param onFail	called on the I&#47;O thread if a confirmable message is reset or never acknowledged
+	 */
+	private void send(CoapMessage msg, InetSocketAddress dest, Runnable onFail){
+		msg.setMessageId(this.nextMid.getAndIncrement());
+		byte[] data = msg.encode();
+		if(msg.getType() == CoapMessage.CON){
+			long timeout = ACK_TIMEOUT_MS + ThreadLocalRandom.current().nextLong(ACK_TIMEOUT_MS / 2);
+			this.pending.put(msg.getMessageId(), new Transmission(data, dest, timeout, onFail));
+		}
+		this.transmit(data, dest);
+	}
+
+	/**
+	 * Answer a received message with an ACK or RST, echoing its message id.
+	 */
+	private byte[] reply(CoapMessage received, InetSocketAddress dest, CoapMessage answer){
+		answer.setMessageId(received.getMessageId());
+		if(answer.getCode() != CoapMessage.EMPTY){
+			answer.setToken(received.getToken());
+		}
+		byte[] data = answer.encode();
+		this.transmit(data, dest);
+		return data;
+	}
+
+	private void transmit(byte[] data, InetSocketAddress dest){
+		try {
+			if(this.channel.send(ByteBuffer.wrap(data), dest) == 0){
+				LOGGER.debug("Send buffer full, datagram to " + dest + " dropped");
+			}
+		} catch (IOException e) {
+			LOGGER.debug("Error sending datagram to " + dest + " : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * The I&#47;O loop.
+	 */
+	private void run(){
+		ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM);
+		long nextTick = System.currentTimeMillis() + TICK_MS;
+		long nextPurge = nextTick + 1000;
+		while(this.running){
+			try {
+				this.selector.select(TICK_MS);
+				this.selector.selectedKeys().clear();
+				InetSocketAddress source;
+				while((source = (InetSocketAddress) this.channel.receive(buffer)) != null){
+					buffer.flip();
+					try{
+						this.process(CoapMessage.decode(buffer.array(), buffer.limit()), source);
+					}catch(IllegalArgumentException e){
+						LOGGER.debug("Malformed datagram from " + source + " : " + e.getMessage());
+					}
+					buffer.clear();
+				}
+				Runnable task;
+				while((task = this.tasks.poll()) != null){
+					task.run();
+				}
+				long now = System.currentTimeMillis();
+				if(now >= nextTick){
+					this.retransmit(now);
+					nextTick = now + TICK_MS;
+				}
+				if(now >= nextPurge){
+					this.purge(now);
+					nextPurge = now + 1000;
+				}
+			} catch (IOException e) {
+				if(this.running){
+					LOGGER.error("CoAP endpoint I/O error : " + e.getMessage());
+				}
+			} catch (RuntimeException e) {
+				LOGGER.error("CoAP endpoint error : " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Process a received message.
+	 */
+	private void process(CoapMessage msg, InetSocketAddress source){
+		switch(msg.getType()){
+			case CoapMessage.ACK:
+			case CoapMessage.RST:
+				Transmission t = this.pending.remove(msg.getMessageId());
+				if(msg.getType() == CoapMessage.RST){
+					if(t != null && t.onFail != null){
+						t.onFail.run();
+					}
+				}else if(msg.getCode() != CoapMessage.EMPTY){
+					//piggybacked response
+					this.handleResponse(msg, source);
+				}
+				return;
+			default:
+				if(msg.getCode() == CoapMessage.EMPTY){
+					//ping
+					this.reply(msg, source, new CoapMessage(CoapMessage.RST, CoapMessage.EMPTY));
+					return;
+				}
+				String key = source + "#" + msg.getMessageId();
+				Object[] seen = this.recent.get(key);
+				if(seen != null){
+					//duplicate, repeat the answer
+					if(seen[1] != null){
+						this.transmit((byte[]) seen[1], source);
+					}
+					return;
+				}
+				byte[] answer = null;
+				if(msg.isRequest()){
+					CoapMessage response = this.handleRequest(msg, source);
+					if(response != null){
+						if(msg.getType() == CoapMessage.CON){
+							response.setType(CoapMessage.ACK);
+							answer = this.reply(msg, source, response);
+						}else{
+							response.setType(CoapMessage.NON);
+							response.setToken(msg.getToken());
+							this.send(response, source, null);
+						}
+					}
+				}else{
+					//separate response or notification
+					if(msg.getType() == CoapMessage.CON){
+						answer = this.reply(msg, source, new CoapMessage(CoapMessage.ACK, CoapMessage.EMPTY));
+					}
+					this.handleResponse(msg, source);
+				}
+				this.recent.put(key, new Object[]{System.currentTimeMillis() + EXCHANGE_LIFETIME_MS, answer});
+		}
+	}
+
+	/**
+	 * Retransmit unacknowledged confirmable messages, failing those out of attempts.
+	 */
+	private void retransmit(long now){
+		Iterator<Map.Entry<Integer, Transmission>> it = this.pending.entrySet().iterator();
+		while(it.hasNext()){
+			Transmission t = it.next().getValue();
+			if(now < t.deadline){
+				continue;
+			}
+			if(t.attempts >= MAX_RETRANSMIT){
+				it.remove();
+				if(t.onFail != null){
+					t.onFail.run();
+				}
+				continue;
+			}
+			t.attempts++;
+			t.timeout *= 2;
+			t.deadline = now + t.timeout;
+			this.transmit(t.data, t.dest);
+		}
+	}
+
+	/**
+	 * Forget expired message ids, partial bodies and representations.
+	 */
+	private void purge(long now){
+		Iterator<Object[]> it = this.recent.values().iterator();
+		while(it.hasNext() && (long) it.next()[0] < now){
+			it.remove();
+		}
+		this.representations.values().removeIf(rep -> rep.expiry < now);
+		if(this.block1.size() > 1024){
+			//abandoned transfers
+			this.block1.clear();
+		}
+	}
+
+	//////////////////////////////////////////////////////utilities////////////////////////////////////////////////////
+	private int blockSize(){
+		return 1 << (this.szx + 4);
+	}
+	private byte[] token(){
+		return longBytes(this.nextToken.incrementAndGet());
+	}
+	private static byte[] longBytes(long value){
+		byte[] bytes = new byte[8];
+		for(int i = 7; i >= 0; i--){
+			bytes[i] = (byte) value;
+			value >>>= 8;
+		}
+		return bytes;
+	}
+	private static long tokenKey(byte[] token){
+		long value = 0;
+		for(byte b : token){
+			value = (value << 8) | (b & 0xff);
+		}
+		return value;
+	}
+
+	/**
+	 * A confirmable message awaiting acknowledgement.
+	 */
+	private static class Transmission {
+		private final byte[] data;
+		private final InetSocketAddress dest;
+		private final Runnable onFail;
+		private long timeout;
+		private long deadline;
+		private int attempts = 0;
+
+		private Transmission(byte[] data, InetSocketAddress dest, long timeout, Runnable onFail){
+			this.data = data;
+			this.dest = dest;
+			this.timeout = timeout;
+			this.deadline = System.currentTimeMillis() + timeout;
+			this.onFail = onFail;
+		}
+	}
+
+	/**
+	 * A client exchange.
+	 */
+	private static class Exchange {
+		private final CompletableFuture<CoapMessage> future = new CompletableFuture<CoapMessage>();
+		private final CoapMessage request;
+		private final byte[] body;
+		private final Consumer<byte[]> listener;
+
+		private Exchange(CoapMessage request, byte[] body, Consumer<byte[]> listener){
+			this.request = request;
+			this.body = body;
+			this.listener = listener;
+		}
+	}
+
+	/**
+	 * A registered observer.
+	 */
+	private static class Observer {
+		private final InetSocketAddress address;
+		private final byte[] token;
+		private final AtomicInteger seq = new AtomicInteger(1);
+
+		private Observer(InetSocketAddress address, byte[] token){
+			this.address = address;
+			this.token = token;
+		}
+	}
+
+	/**
+	 * A representation served block&#45;wise.
+	 */
+	private static class Representation {
+		private final byte[] body;
+		private final long expiry;
+
+		private Representation(byte[] body, long expiry){
+			this.body = body;
+			this.expiry = expiry;
+		}
+	}
+}
@@ -0,0 +1,299 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.protocol.coap;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import net.minidev.json.JSONValue;
+
+import org.apache.log4j.Logger;
+
+import eu.mf2c.security.comm.Channel;
+import eu.mf2c.security.comm.protocol.ProtocolHandler;
+import eu.mf2c.security.comm.util.Base64Helper;
+import eu.mf2c.security.comm.util.ChannelMetrics;
+import eu.mf2c.security.comm.util.Protocol;
+import eu.mf2c.security.comm.util.QoS;
+import eu.mf2c.security.comm.util.Security;
+import eu.mf2c.security.data.Message;
+import eu.mf2c.security.exception.ProtocolHandlerException;
+
+/**
+ * CoAP messaging protocol handler for constrained fog devices.  The broker address is the
+ * <code>coap://host:port</code> URI of a CoAP relay, such as the {@link CoapRelay <em>CoapRelay</em>}, and the topic
+ * names are the same as for Mqtt, so <code>publish</code> maps onto a POST to the topic path.  ATMOSTONCE messages
+ * are sent non&#45;confirmable and not waited for, other messages are sent confirmable and the call returns once
+ * the relay has acknowledged them.  Messages larger than a block are sent block&#45;wise.
+ * <p>
+ * Incoming messages arrive as notifications of an observe registration on <code>inbox/[friendyName]</code>,
+ * renewed every keep alive interval so that a restarted relay picks us up again, and are dispatched to the same
+ * queues as the Mqtt handler uses.  The handler&#39;s own endpoint also accepts messages posted straight to it,
+ * so that a node can act as a hub for others without a relay.
+ */
+public class CoapHandler extends ProtocolHandler {
+	/** message logger */
+	private static Logger LOGGER = Logger.getLogger(CoapHandler.class.getName());
+
+	/***************Constants**********************/
+	/** Default CoAP port */
+	private static final int DEFAULT_COAP_PORT = 5683;
+
+	/***************Topics**********************/
+	/** Actions applied to messages arriving on our topics */
+	private final HashMap<String, Consumer<byte[]>> routes = new HashMap<String, Consumer<byte[]>>();
+
+	/** The local endpoint */
+	private CoapEndpoint endpoint;
+	/** The relay address */
+	private InetSocketAddress relay;
+	/** Renews the inbox observation */
+	private ScheduledExecutorService refresher;
+
+	/**
+	 * Construct an instant. {@link Channel <em>Channel</em>} needs to call {@link #setup(HashMap) <em>setup</em>}
+	 * to initialise the handler.
+	 */
+	public CoapHandler() {
+		super();
+		this.protocol = Protocol.COAP;
+	}
+	/**
+	 * Map our topics to the queues, as the Mqtt handler does.
+	 */
+	private void buildRoutes(){
+		this.routes.clear();
+		Consumer<byte[]> toMsgQ = bytes -> {
+			Message message = new Message(bytes, null);
+			if(!this.isDuplicate(message)){
+				this.msgQ.offer(message);
+			}
+		};
+		this.routes.put(topicPublic, toMsgQ);
+		this.routes.put(topicProtected, toMsgQ);
+		this.routes.put(topicPrivate, toMsgQ);
+		this.routes.put(topicPingReq, bytes -> this.pingReqQ.offer(new Message(bytes, null)));
+		this.routes.put(topicPingAck, bytes -> this.pingAckQ.offer(new Message(bytes, null)));
+		this.routes.put(topicMyHandshake, bytes -> this.offerHandshake(new Message(bytes, null)));
+		this.routes.put(topicMyReply, bytes -> this.offerReply(bytes));
+		this.routes.put(topicMyResync, bytes -> this.offerResync(bytes));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Besides the common properties, the handler reads <code>coapPort</code>, the local UDP port &#40;default
+	 * ephemeral&#41;, and <code>coapBlockSzx</code>, the block size exponent &#40;default 6, 1024 byte blocks&#41;.
+	 * The <code>broker</code> property is the URI of the CoAP relay.
+	 */
+	public void setup(HashMap<String, String> properties) throws ProtocolHandlerException {
+		super.setup(properties);
+		if(this.broker == null || !this.broker.startsWith("coap://")){
+			throw new ProtocolHandlerException("The broker must be the coap:// URI of a CoAP relay : " + this.broker);
+		}
+		URI uri = URI.create(this.broker);
+		this.relay = new InetSocketAddress(uri.getHost(), uri.getPort() < 0 ? DEFAULT_COAP_PORT : uri.getPort());
+		this.buildRoutes();
+		try {
+			int port = (properties.get("coapPort") == null ? 0 : Integer.parseInt(properties.get("coapPort")));
+			int szx = (properties.get("coapBlockSzx") == null ? CoapEndpoint.DEFAULT_SZX : Integer.parseInt(properties.get("coapBlockSzx")));
+			this.endpoint = new CoapEndpoint(new InetSocketAddress(port), this::handle, szx, this.friendyName);
+		} catch (IOException e) {
+			LOGGER.error("Failed to open the CoAP endpoint : " + e.getMessage());
+			throw new ProtocolHandlerException(e);
+		}
+		try{
+			this.endpoint.observe(this.relay, "inbox/" + this.friendyName, this::dispatch).get(this.timeOut, TimeUnit.SECONDS);
+			this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "CoapHandler-" + this.friendyName);
+				t.setDaemon(true);
+				return t;
+			});
+			long period = Math.max(1, this.keepAlive);
+			this.refresher.scheduleWithFixedDelay(this::renew, period, period, TimeUnit.SECONDS);
+			Message msg = new Message(this.getStatusMessage(STATUS_CONNECTED));
+			msg.packMsg(Security.PROTECTED, Protocol.COAP, QoS.ATLEASTONCE, null);
+			this.publish(topicMyStatus, QoS.ATLEASTONCE, msg.getPayloadHM());
+			this.connack = true;
+			LOGGER.info("Connected to CoAP relay(" + this.broker + ")");
+			if(destination != null && !destination.isEmpty()){
+				if(this.getPeerKey(destination) != null){
+					this.sendPK(destination, true);
+				}
+				try{
+					this.requestPeerKey(destination).get(super.timeOut, TimeUnit.SECONDS);
+				}catch(TimeoutException te){
+					LOGGER.error("Failed to get destination public key.  Timed out!");
+					throw new ProtocolHandlerException("Failed to get destination public key.  Timed out!");
+				}
+			}
+		}catch(ProtocolHandlerException pe){
+			this.disconnect();
+			throw pe;
+		}catch(Exception e){
+			LOGGER.error("Failed to set up coap protocol handler: " + e.getMessage());
+			this.disconnect();
+			throw new ProtocolHandlerException(e);
+		}
+	}
+
+	/*********************************** CoAP Publisher handling  *************************************************/
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void publish(String topicName, QoS qos, HashMap<String, Object> payload) throws ProtocolHandlerException {
+		//generate unix timestamp unless packMsg has already stamped and signed it
+		payload.putIfAbsent("timestamp", Instant.now().getEpochSecond());
+		byte[] bytes = Base64Helper.encodeToBytes(JSONValue.toJSONString(payload));
+		this.metrics.published(bytes.length);
+		if(qos.equals(QoS.ATMOSTONCE)){
+			this.endpoint.post(this.relay, topicName, bytes, false);
+			return;
+		}
+		LOGGER.debug("Publishing confirmable to topic \"" + topicName + "\" qos " + qos);
+		try {
+			long t0 = System.nanoTime();
+			CoapMessage response = this.endpoint.post(this.relay, topicName, bytes, true).get(this.timeOut, TimeUnit.SECONDS);
+			this.metrics.record(ChannelMetrics.PUBLISH, System.nanoTime() - t0);
+			if(response.getCode() >= CoapMessage.BAD_REQUEST){
+				throw new ProtocolHandlerException("CoAP response " + (response.getCode() >> 5) + "." + String.format("%02d", response.getCode() & 0x1f) + " from " + topicName);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ProtocolHandlerException(e);
+		} catch (ExecutionException | TimeoutException e) {
+			LOGGER.error("Error publishing message to " + topicName + " : " + e.getMessage());
+			throw new ProtocolHandlerException(e);
+		}
+	}
+
+	/*********************************** CoAP Subscriber handling *************************************************/
+	/**
+	 * Renew the inbox observation, tracking the relay&#39;s reachability.
+	 */
+	private void renew(){
+		this.endpoint.observe(this.relay, "inbox/" + this.friendyName, this::dispatch).whenComplete((response, t) -> {
+			if(t != null){
+				if(this.connack){
+					this.connack = false;
+					LOGGER.warn("Lost CoAP relay(" + this.broker + ") : " + t.getMessage());
+				}
+			}else if(!this.connack){
+				this.connack = true;
+				this.reconnected();
+				LOGGER.info("Reconnected to CoAP relay(" + this.broker + ") at " + Instant.now());
+			}
+		});
+	}
+	/**
+	 * Dispatch a <code>topic payload</code> notification.
+	 * <p>
+	 * @param line	the notification body
+	 */
+	private void dispatch(byte[] line){
+		int space = 0;
+		while(space < line.length && line[space] != ' '){
+			space++;
+		}
+		if(space == 0 || space >= line.length - 1){
+			LOGGER.debug("Malformed notification dropped");
+			return;
+		}
+		byte[] payload = new byte[line.length - space - 1];
+		System.arraycopy(line, space + 1, payload, 0, payload.length);
+		this.deliver(new String(line, 0, space, StandardCharsets.US_ASCII), payload);
+	}
+	/**
+	 * Handle a message posted straight to our endpoint.
+	 */
+	private CoapMessage handle(InetSocketAddress source, CoapMessage request){
+		if(request.getCode() == CoapMessage.POST && this.deliver(request.getUriPath(), request.getPayload())){
+			return new CoapMessage(CoapMessage.ACK, CoapMessage.CHANGED);
+		}
+		return new CoapMessage(CoapMessage.ACK, CoapMessage.NOT_FOUND);
+	}
+	/**
+	 * Apply the route for a received message.
+	 * <p>
+	 * @param topic		the topic the message was sent to
+	 * @param payload	the base64 encoded message
+	 * @return false if there is no route for the topic
+	 */
+	private boolean deliver(String topic, byte[] payload){
+		Consumer<byte[]> action = this.routes.get(topic);
+		if(action == null){
+			LOGGER.debug("No route for message on " + topic + ", dropped");
+			return false;
+		}
+		this.metrics.received(payload.length);
+		action.accept(payload);
+		return true;
+	}
+	/**
+	 * @return the local UDP port, or -1 if the handler is not set up
+	 */
+	public int getListenPort(){
+		return (this.endpoint == null ? -1 : this.endpoint.getPort());
+	}
+
+	/************************************** Instance methods *******************************************************************************/
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void disconnect() {
+		if(this.connack){
+			try {
+				Message msg = new Message(this.getStatusMessage(STATUS_GRACE_DISCONNECT));
+				msg.packMsg(Security.PROTECTED, Protocol.COAP, QoS.ATLEASTONCE, null);
+				this.publish(topicMyStatus, QoS.ATLEASTONCE, msg.getPayloadHM());
+			} catch (Exception e) {
+				LOGGER.error("Error publishing disconnect status : " + e.getMessage());
+			}
+		}
+		this.connack = false;
+		this.handshakeExecutor.shutdown();
+		this.metrics.unregister();
+		if(this.refresher != null){
+			this.refresher.shutdownNow();
+		}
+		if(this.endpoint != null){
+			this.endpoint.close();
+		}
+		LOGGER.info("Disconnected from CoAP relay(" + this.broker + ")");
+	}
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Non&#45;confirmable messages are not queued, so there is nothing to flush.
+	 */
+	@Override
+	public void flush() throws ProtocolHandlerException {
+		//nothing held
+	}
+
+}
@@ -0,0 +1,325 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.protocol.coap;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A CoAP message &#40;RFC 7252&#41; with the options used by the mF2C CoAP transport&#58; Uri&#45;Path,
+ * Uri&#45;Query, ETag, Observe &#40;RFC 7641&#41; and Block1&#47;Block2 &#40;RFC 7959&#41;.  Other options are
+ * carried through but not interpreted.
+ */
+public class CoapMessage {
+	/** message types */
+	public static final int CON = 0, NON = 1, ACK = 2, RST = 3;
+	/** request codes */
+	public static final int EMPTY = 0, GET = 1, POST = 2;
+	/** response codes, class &lt;&lt; 5 | detail */
+	public static final int CHANGED = 68, CONTENT = 69, CONTINUE = 95, BAD_REQUEST = 128, NOT_FOUND = 132,
+			REQUEST_INCOMPLETE = 136, TOO_LARGE = 141;
+	/** option numbers */
+	public static final int OPT_ETAG = 4, OPT_OBSERVE = 6, OPT_URI_PATH = 11, OPT_URI_QUERY = 15, OPT_BLOCK2 = 23, OPT_BLOCK1 = 27;
+
+	/** the message type */
+	private int type;
+	/** the request or response code */
+	private int code;
+	/** the message id */
+	private int messageId;
+	/** the token */
+	private byte[] token = new byte[0];
+	/** the options as {number, value} pairs, kept in ascending option order */
+	private final List<Object[]> options = new ArrayList<Object[]>();
+	/** the payload */
+	private byte[] payload = new byte[0];
+
+	/**
+	 * Construct a message.
+	 * <p>
+	 * @param type	the message type
+	 * @param code	the request or response code
+	 */
+	public CoapMessage(int type, int code){
+		this.type = type;
+		this.code = code;
+	}
+
+	/////////////////////////////getters and setters
+	public int getType() {
+		return type;
+	}
+	public void setType(int type) {
+		this.type = type;
+	}
+	public int getCode() {
+		return code;
+	}
+	public void setCode(int code) {
+		this.code = code;
+	}
+	public int getMessageId() {
+		return messageId;
+	}
+	public void setMessageId(int messageId) {
+		this.messageId = messageId & 0xffff;
+	}
+	public byte[] getToken() {
+		return token;
+	}
+	public void setToken(byte[] token) {
+		this.token = token;
+	}
+	public byte[] getPayload() {
+		return payload;
+	}
+	public void setPayload(byte[] payload) {
+		this.payload = (payload == null ? new byte[0] : payload);
+	}
+	/**
+	 * @return true for a request code
+	 */
+	public boolean isRequest(){
+		return this.code >= 1 && this.code < 32;
+	}
+
+	/////////////////////////////options
+	/**
+	 * Add an option, keeping the options in order.
+	 * <p>
+	 * @param number	the option number
+	 * @param value		the option value
+	 */
+	public void addOption(int number, byte[] value){
+		int i = this.options.size();
+		while(i > 0 && (int) this.options.get(i - 1)[0] > number){
+			i--;
+		}
+		this.options.add(i, new Object[]{number, value});
+	}
+	/**
+	 * Add an unsigned integer option.
+	 */
+	public void addOption(int number, int value){
+		this.addOption(number, encodeUint(value));
+	}
+	/**
+	 * Remove every instance of an option.
+	 */
+	public void removeOption(int number){
+		this.options.removeIf(o -> (int) o[0] == number);
+	}
+	/**
+	 * @return the value of the first instance of the option, or null
+	 */
+	public byte[] getOption(int number){
+		for(Object[] o : this.options){
+			if((int) o[0] == number){
+				return (byte[]) o[1];
+			}
+		}
+		return null;
+	}
+	/**
+	 * @return the unsigned integer value of the option, or -1 if it is absent
+	 */
+	public int getIntOption(int number){
+		byte[] value = this.getOption(number);
+		return (value == null ? -1 : decodeUint(value));
+	}
+	/**
+	 * Set the Uri&#45;Path options from a path.
+	 * <p>
+	 * @param path	the path, segments separated by <code>/</code>
+	 */
+	public void setUriPath(String path){
+		this.removeOption(OPT_URI_PATH);
+		for(String segment : path.split("/")){
+			if(!segment.isEmpty()){
+				this.addOption(OPT_URI_PATH, segment.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+	}
+	/**
+	 * @return the Uri&#45;Path segments joined by <code>/</code>
+	 */
+	public String getUriPath(){
+		return this.join(OPT_URI_PATH, '/');
+	}
+	/**
+	 * @return the Uri&#45;Query options joined by <code>&amp;</code>
+	 */
+	public String getUriQuery(){
+		return this.join(OPT_URI_QUERY, '&');
+	}
+	private String join(int number, char separator){
+		StringBuilder sb = new StringBuilder();
+		for(Object[] o : this.options){
+			if((int) o[0] == number){
+				if(sb.length() > 0){
+					sb.append(separator);
+				}
+				sb.append(new String((byte[]) o[1], StandardCharsets.UTF_8));
+			}
+		}
+		return sb.toString();
+	}
+
+	/////////////////////////////block options
+	/**
+	 * Encode a Block1&#47;Block2 value.
+	 * <p>
+	 * @param num	the block number
+	 * @param more	true if more blocks follow
+	 * @param szx	the size exponent, the block size is 2^(szx+4)
+	 * @return	the option value
+	 */
+	public static int block(int num, boolean more, int szx){
+		return (num << 4) | (more ? 0x8 : 0) | (szx & 0x7);
+	}
+	public static int blockNum(int block){
+		return block >>> 4;
+	}
+	public static boolean blockMore(int block){
+		return (block & 0x8) != 0;
+	}
+	public static int blockSize(int block){
+		return 1 << ((block & 0x7) + 4);
+	}
+
+	/////////////////////////////serialisation
+	/**
+	 * Serialise the message.
+	 * <p>
+	 * @return the datagram bytes
+	 */
+	public byte[] encode(){
+		ByteArrayOutputStream out = new ByteArrayOutputStream(16 + this.payload.length);
+		out.write(0x40 | (this.type << 4) | this.token.length);
+		out.write(this.code);
+		out.write(this.messageId >> 8);
+		out.write(this.messageId);
+		out.write(this.token, 0, this.token.length);
+		int last = 0;
+		for(Object[] o : this.options){
+			int delta = (int) o[0] - last;
+			byte[] value = (byte[]) o[1];
+			last = (int) o[0];
+			out.write((nibble(delta) << 4) | nibble(value.length));
+			extended(out, delta);
+			extended(out, value.length);
+			out.write(value, 0, value.length);
+		}
+		if(this.payload.length > 0){
+			out.write(0xff);
+			out.write(this.payload, 0, this.payload.length);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Parse a datagram.
+	 * <p>
+	 * @param data		the datagram bytes
+	 * @param length	the datagram length
+	 * @return	the {@link CoapMessage <em>CoapMessage</em>}
+	 * @throws IllegalArgumentException if the datagram is not a valid CoAP message
+	 */
+	public static CoapMessage decode(byte[] data, int length){
+		if(length < 4 || (data[0] & 0xc0) != 0x40){
+			throw new IllegalArgumentException("Not a CoAP version 1 message");
+		}
+		int tkl = data[0] & 0x0f;
+		if(tkl > 8 || 4 + tkl > length){
+			throw new IllegalArgumentException("Bad token length");
+		}
+		CoapMessage msg = new CoapMessage((data[0] >> 4) & 0x3, data[1] & 0xff);
+		msg.messageId = ((data[2] & 0xff) << 8) | (data[3] & 0xff);
+		msg.token = new byte[tkl];
+		System.arraycopy(data, 4, msg.token, 0, tkl);
+		int i = 4 + tkl;
+		int number = 0;
+		while(i < length){
+			int b = data[i++] & 0xff;
+			if(b == 0xff){
+				msg.payload = new byte[length - i];
+				System.arraycopy(data, i, msg.payload, 0, msg.payload.length);
+				break;
+			}
+			int[] cursor = {i};
+			int delta = readExtended(data, length, cursor, b >> 4);
+			int optLength = readExtended(data, length, cursor, b & 0x0f);
+			i = cursor[0];
+			if(i + optLength > length){
+				throw new IllegalArgumentException("Truncated option");
+			}
+			number += delta;
+			byte[] value = new byte[optLength];
+			System.arraycopy(data, i, value, 0, optLength);
+			msg.options.add(new Object[]{number, value});
+			i += optLength;
+		}
+		return msg;
+	}
+
+	//////////////////////////////////////////////////////utilities////////////////////////////////////////////////////
+	private static int nibble(int value){
+		return (value < 13 ? value : (value < 269 ? 13 : 14));
+	}
+	private static void extended(ByteArrayOutputStream out, int value){
+		if(value >= 269){
+			out.write((value - 269) >> 8);
+			out.write(value - 269);
+		}else if(value >= 13){
+			out.write(value - 13);
+		}
+	}
+	private static int readExtended(byte[] data, int length, int[] cursor, int nibble){
+		if(nibble < 13){
+			return nibble;
+		}
+		if(nibble == 15 || cursor[0] + (nibble - 12) > length){
+			throw new IllegalArgumentException("Bad option header");
+		}
+		if(nibble == 13){
+			return (data[cursor[0]++] & 0xff) + 13;
+		}
+		int value = ((data[cursor[0]] & 0xff) << 8) | (data[cursor[0] + 1] & 0xff);
+		cursor[0] += 2;
+		return value + 269;
+	}
+	private static byte[] encodeUint(int value){
+		if(value == 0){
+			return new byte[0];
+		}
+		int length = (value >>> 24 != 0 ? 4 : (value >>> 16 != 0 ? 3 : (value >>> 8 != 0 ? 2 : 1)));
+		byte[] bytes = new byte[length];
+		for(int i = length - 1; i >= 0; i--){
+			bytes[i] = (byte) value;
+			value >>>= 8;
+		}
+		return bytes;
+	}
+	private static int decodeUint(byte[] bytes){
+		int value = 0;
+		for(byte b : bytes){
+			value = (value << 8) | (b & 0xff);
+		}
+		return value;
+	}
+}
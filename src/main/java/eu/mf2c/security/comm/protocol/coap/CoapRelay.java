@@ -0,0 +1,153 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.protocol.coap;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * CoAP relay standing in for the message broker, so that the {@link CoapHandler <em>CoapHandler</em>} can be run
+ * over loopback without external services.  The resources are&#58;
+ * <pre>
+ *  POST mf2c/[friendyName]/[...]		one base64 encoded message, the path is the topic
+ *  GET  inbox/[friendyName]		observe, each notification is one <code>topic payload</code> message
+ * </pre>
+ * A message is notified confirmable if it was posted confirmable.  Messages for an owner without an observer are
+ * held in a bounded backlog, dropping the oldest, and notified when the owner registers.
+ */
+public class CoapRelay {
+	/** message logger */
+	private static final Logger LOGGER = Logger.getLogger(CoapRelay.class.getName());
+	/** default backlog capacity in messages per owner */
+	public static final int DEFAULT_BACKLOG = 1000;
+	/** the endpoint */
+	private final CoapEndpoint endpoint;
+	/** backlog capacity */
+	private final int capacity;
+	/** number of messages accepted */
+	private final AtomicLong messages = new AtomicLong();
+	/** messages waiting for an observer, keyed on owner, each entry {line, confirmable}, I/O thread only */
+	private final HashMap<String, ArrayDeque<Object[]>> backlogs = new HashMap<String, ArrayDeque<Object[]>>();
+
+	/**
+	 * Start a relay.
+	 * <p>
+	 * @param port		the UDP port, 0 for an ephemeral port
+	 * @param capacity	backlog capacity in messages per owner
+	 * @throws IOException if the port cannot be bound
+	 */
+	public CoapRelay(int port, int capacity) throws IOException {
+		this.capacity = capacity;
+		this.endpoint = new CoapEndpoint(new InetSocketAddress("127.0.0.1", port), this::handle, CoapEndpoint.DEFAULT_SZX, "relay");
+		LOGGER.info("CoAP relay listening on " + this.getUri());
+	}
+
+	/**
+	 * @return the URI to use as the broker address of the {@link CoapHandler <em>CoapHandler</em>}
+	 */
+	public String getUri(){
+		return "coap://127.0.0.1:" + this.endpoint.getPort();
+	}
+
+	/**
+	 * @return the UDP port
+	 */
+	public int getPort(){
+		return this.endpoint.getPort();
+	}
+
+	/**
+	 * @return the number of messages accepted since the relay started
+	 */
+	public long getMessageCount(){
+		return this.messages.get();
+	}
+
+	/**
+	 * @return the number of channels observing their inbox
+	 */
+	public int getSubscriberCount(){
+		return this.endpoint.getObserverCount("inbox/");
+	}
+
+	/**
+	 * Stop the relay.
+	 */
+	public void stop(){
+		this.endpoint.close();
+	}
+
+	/**
+	 * Handle a request on the I&#47;O thread.
+	 */
+	private CoapMessage handle(InetSocketAddress source, CoapMessage request){
+		String path = request.getUriPath();
+		if(request.getCode() == CoapMessage.POST && path.startsWith("mf2c/")){
+			int slash = path.indexOf('/', 5);
+			String owner = (slash < 0 ? path.substring(5) : path.substring(5, slash));
+			byte[] payload = request.getPayload();
+			if(payload.length == 0){
+				return new CoapMessage(CoapMessage.ACK, CoapMessage.BAD_REQUEST);
+			}
+			byte[] line = new byte[path.length() + 1 + payload.length];
+			System.arraycopy(path.getBytes(StandardCharsets.US_ASCII), 0, line, 0, path.length());
+			line[path.length()] = ' ';
+			System.arraycopy(payload, 0, line, path.length() + 1, payload.length);
+			this.messages.incrementAndGet();
+			this.deliver(owner, line, request.getType() == CoapMessage.CON);
+			return new CoapMessage(CoapMessage.ACK, CoapMessage.CHANGED);
+		}
+		if(request.getCode() == CoapMessage.GET && path.startsWith("inbox/")){
+			String owner = path.substring(6);
+			if(request.getIntOption(CoapMessage.OPT_OBSERVE) == 0){
+				//flush the backlog once the registration has been answered
+				this.endpoint.execute(() -> this.flush(owner));
+			}
+			return new CoapMessage(CoapMessage.ACK, CoapMessage.CONTENT);
+		}
+		return new CoapMessage(CoapMessage.ACK, CoapMessage.NOT_FOUND);
+	}
+
+	/**
+	 * Notify the owner&#39;s observers, or hold the message if there are none.
+	 */
+	private void deliver(String owner, byte[] line, boolean confirmable){
+		if(this.endpoint.notifyObservers("inbox/" + owner, line, confirmable) > 0){
+			return;
+		}
+		ArrayDeque<Object[]> backlog = this.backlogs.computeIfAbsent(owner, o -> new ArrayDeque<Object[]>());
+		if(backlog.size() >= this.capacity){
+			backlog.poll();
+		}
+		backlog.add(new Object[]{line, confirmable});
+	}
+
+	private void flush(String owner){
+		ArrayDeque<Object[]> backlog = this.backlogs.remove(owner);
+		if(backlog != null){
+			LOGGER.debug("Notifying " + backlog.size() + " held message(s) to " + owner);
+			for(Object[] entry : backlog){
+				this.endpoint.notifyObservers("inbox/" + owner, (byte[]) entry[0], (boolean) entry[1]);
+			}
+		}
+	}
+}
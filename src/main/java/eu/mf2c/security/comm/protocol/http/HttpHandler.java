@@ -11,19 +11,59 @@
    distributed under the License is distributed on an "AS IS" BASIS,
    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
    See the License for the specific language governing permissions and
-   limitations under the License 
+   limitations under the License
  */
 package eu.mf2c.security.comm.protocol.http;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
+import net.minidev.json.JSONValue;
+
+import org.apache.log4j.Logger;
+
+import eu.mf2c.security.comm.Channel;
 import eu.mf2c.security.comm.protocol.ProtocolHandler;
+import eu.mf2c.security.comm.util.Base64Helper;
+import eu.mf2c.security.comm.util.ChannelMetrics;
+import eu.mf2c.security.comm.util.Protocol;
 import eu.mf2c.security.comm.util.QoS;
 import eu.mf2c.security.comm.util.Security;
 import eu.mf2c.security.data.Message;
 import eu.mf2c.security.exception.ProtocolHandlerException;
 
 /**
+ * HTTP messaging protocol handler for agents that cannot reach an Mqtt broker.  The broker address is
+ * the base URL of an HTTP relay, such as the {@link HttpRelayServer <em>HttpRelayServer</em>}, and the topic
+ * names are the same as for Mqtt, so <code>publish</code> maps onto a POST to <code>[broker]/[topic]</code>.
+ * <p>
+ * Connections are pooled and kept alive by the JDK {@link java.net.HttpURLConnection <em>HttpURLConnection</em>}, whose
+ * cache is shared by the whole JVM and sized by the <code>http.maxConnections</code> system property&#59; the handler uses
+ * at most one connection per sender thread and one for polling, and leaves the property to the application.
+ * ATMOSTONCE messages are queued and posted asynchronously by {@link #senders <em>senders</em>} threads, each
+ * draining a batch of queued messages into one request to <code>[broker]/publish</code>, which gives most of the
+ * benefit of pipelining with an HTTP/1.1 client.  Other messages are posted synchronously.  Incoming messages are
+ * fetched by long polling <code>[broker]/inbox/[friendyName]</code> and dispatched to the same queues as the
+ * Mqtt handler uses.  If <code>httpListenPort</code> is set, an {@link HttpReceiver <em>HttpReceiver</em>} also
+ * accepts messages posted straight to this agent, so that a node can act as a hub for others without a relay&#59;
+ * setting <code>httpPoll</code> to false then turns the long polling off.
+ * <p>
  * @author Shirley Crompton
  * @email  shirley.crompton@stfc.ac.uk
  * @org Data Science and Technology Group,
@@ -32,69 +72,395 @@ import eu.mf2c.security.exception.ProtocolHandlerException;
  *
  */
 public class HttpHandler extends ProtocolHandler {
+	/** message logger */
+	private static Logger LOGGER = Logger.getLogger(HttpHandler.class.getName());
 
-	@Override
-	public Message pop() {
-		// TODO Auto-generated method stub
-		return null;
-	}
+	/***************Constants**********************/
+	/** Default number of asynchronous sender threads */
+	private static final int DEFAULT_SENDERS = 4;
+	/** Default maximum number of messages posted in one batch */
+	private static final int DEFAULT_BATCH = 256;
+	/** Default capacity of the asynchronous send queue in messages */
+	private static final int DEFAULT_QUEUE = 65536;
+	/** Long poll wait in milliseconds */
+	private static final long POLL_WAIT_MS = 10000;
+	/** Connect and read time out margin in milliseconds */
+	private static final int HTTP_TIMEOUT_MS = 30000;
+	/** Number of idle connections per host the JDK keeps alive unless <code>http.maxConnections</code> is set */
+	private static final int JDK_KEEP_ALIVE_CONNECTIONS = 5;
 
-	@Override
-	public void disconnect() {
-		// TODO Auto-generated method stub
-		
-	}
+	/***************Topics**********************/
+	/** Actions applied to messages arriving on our topics */
+	private final HashMap<String, Consumer<byte[]>> routes = new HashMap<String, Consumer<byte[]>>();
 
-	@Override
-	public HashMap<String, Object> getStatusMessage(String status)
-			throws ProtocolHandlerException {
-		// TODO Auto-generated method stub
-		return null;
-	}
+	/** Queue of <code>topic payload</code> lines waiting for an asynchronous send */
+	private LinkedBlockingQueue<String> sendQ;
+	/** Maximum number of messages posted in one batch */
+	private int batchSize = DEFAULT_BATCH;
+	/** Number of asynchronous sender threads */
+	private int senders = DEFAULT_SENDERS;
+	/** Sender and poller threads */
+	private ExecutorService workers;
+	/** Embedded endpoint for messages posted straight to us, null if not enabled */
+	private HttpReceiver receiver;
+	/** flag indicating state of the worker threads */
+	private volatile boolean keepRunning = false;
 
-	@Override
-	public void publish(String topicName, QoS qos,
-			HashMap<String, Object> payload) throws ProtocolHandlerException {
-		// TODO Auto-generated method stub
-		
+	/**
+	 * Construct an instant. {@link Channel <em>Channel</em>} needs to call {@link #setup(HashMap) <em>setup</em>}
+	 * to initialise the handler.
+	 */
+	public HttpHandler() {
+		super();
+		this.protocol = Protocol.HTTP;
 	}
-
-	@Override
-	public void flush() throws ProtocolHandlerException {
-		// TODO Auto-generated method stub
-		
+	/**
+	 * Map our topics to the queues, as the Mqtt handler does.
+	 */
+	private void buildRoutes(){
+		this.routes.clear();
+		Consumer<byte[]> toMsgQ = bytes -> {
+			Message message = new Message(bytes, null);
+			if(!this.isDuplicate(message)){
+				this.msgQ.offer(message);
+			}
+		};
+		this.routes.put(topicPublic, toMsgQ);
+		this.routes.put(topicProtected, toMsgQ);
+		this.routes.put(topicPrivate, toMsgQ);
+		this.routes.put(topicPingReq, bytes -> this.pingReqQ.offer(new Message(bytes, null)));
+		this.routes.put(topicPingAck, bytes -> this.pingAckQ.offer(new Message(bytes, null)));
+		this.routes.put(topicMyHandshake, bytes -> this.offerHandshake(new Message(bytes, null)));
+		this.routes.put(topicMyReply, bytes -> this.offerReply(bytes));
+		this.routes.put(topicMyResync, bytes -> this.offerResync(bytes));
 	}
+
 	/**
 	 * {@inheritDoc}
+	 * <p>
+	 * Besides the common properties, the handler reads <code>httpSenders</code>, <code>httpBatchSize</code>,
+	 * <code>httpQueueSize</code>, <code>httpListenPort</code> and <code>httpPoll</code>.  The <code>broker</code> property is the base URL of the HTTP relay.
 	 */
-	@SuppressWarnings("unchecked")
 	public void setup(HashMap<String, String> properties) throws ProtocolHandlerException {
-		//TODO
+		super.setup(properties);
+		if(this.broker == null || !this.broker.startsWith("http")){
+			throw new ProtocolHandlerException("The broker must be the base URL of an HTTP relay : " + this.broker);
+		}
+		if(this.broker.endsWith("/")){
+			this.broker = this.broker.substring(0, this.broker.length() - 1);
+		}
+		this.buildRoutes();
+		if(properties.get("httpSenders") != null){
+			this.senders = Integer.parseInt(properties.get("httpSenders"));
+		}
+		//the JDK keep-alive cache is sized for the whole JVM, so it is left to the application and only checked here
+		if(this.senders > Integer.getInteger("http.maxConnections", JDK_KEEP_ALIVE_CONNECTIONS)){
+			LOGGER.warn(this.senders + " HTTP senders exceed the JVM keep-alive cache of " + Integer.getInteger("http.maxConnections", JDK_KEEP_ALIVE_CONNECTIONS)
+					+ " connections per relay, raise http.maxConnections to avoid reconnecting");
+		}
+		if(properties.get("httpBatchSize") != null){
+			this.batchSize = Integer.parseInt(properties.get("httpBatchSize"));
+		}
+		this.sendQ = new LinkedBlockingQueue<String>(properties.get("httpQueueSize") == null ? DEFAULT_QUEUE : Integer.parseInt(properties.get("httpQueueSize")));
+		this.keepRunning = true;
+		this.workers = Executors.newFixedThreadPool(this.senders + 1, r -> {
+			Thread t = new Thread(r, "HttpHandler-" + this.friendyName);
+			t.setDaemon(true);
+			return t;
+		});
+		for(int i = 0; i < this.senders; i++){
+			this.workers.execute(this::sendLoop);
+		}
+		if(!"false".equalsIgnoreCase(properties.get("httpPoll"))){
+			this.workers.execute(this::pollLoop);
+		}
+		if(properties.get("httpListenPort") != null){
+			try {
+				this.receiver = new HttpReceiver(new InetSocketAddress(Integer.parseInt(properties.get("httpListenPort"))), this::deliver, this.friendyName);
+			} catch (IOException e) {
+				LOGGER.error("Failed to start the HTTP receiver : " + e.getMessage());
+				this.disconnect();
+				throw new ProtocolHandlerException(e);
+			}
+		}
+		try{
+			Message msg = new Message(this.getStatusMessage(STATUS_CONNECTED));
+			msg.packMsg(Security.PROTECTED, Protocol.HTTP, QoS.ATLEASTONCE, null);
+			this.publish(topicMyStatus, QoS.ATLEASTONCE, msg.getPayloadHM());
+			this.connack = true;
+			LOGGER.info("Connected to HTTP relay(" + this.broker + ")");
+			if(destination != null && !destination.isEmpty()){
+				if(this.getPeerKey(destination) != null){
+					this.sendPK(destination, true);
+				}
+				try{
+					this.requestPeerKey(destination).get(super.timeOut, TimeUnit.SECONDS);
+				}catch(TimeoutException te){
+					LOGGER.error("Failed to get destination public key.  Timed out!");
+					throw new ProtocolHandlerException("Failed to get destination public key.  Timed out!");
+				}
+			}
+		}catch(ProtocolHandlerException pe){
+			this.disconnect();
+			throw pe;
+		}catch(Exception e){
+			LOGGER.error("Failed to set up http protocol handler: " + e.getMessage());
+			this.disconnect();
+			throw new ProtocolHandlerException(e);
+		}
 	}
 
+	/*********************************** Http Publisher handling  *************************************************/
+	/**
+	 * {@inheritDoc}
+	 */
 	@Override
-	public HashMap<String, Object> getPingMessage(Object reqTS)
-			throws ProtocolHandlerException {
-		// TODO Auto-generated method stub
-		return null;
+	public void publish(String topicName, QoS qos, HashMap<String, Object> payload) throws ProtocolHandlerException {
+		//generate unix timestamp unless packMsg has already stamped and signed it
+		payload.putIfAbsent("timestamp", Instant.now().getEpochSecond());
+		byte[] bytes = Base64Helper.encodeToBytes(JSONValue.toJSONString(payload));
+		if(qos.equals(QoS.ATMOSTONCE)){//asynchronous
+			if(!this.sendQ.offer(topicName + " " + new String(bytes, StandardCharsets.US_ASCII))){
+				this.metrics.sendFailed();
+				LOGGER.warn("Send queue full, dropped message to " + topicName);
+			}else{
+				this.metrics.published(bytes.length);
+			}
+		}else{
+			LOGGER.debug("Publishing synchronously to topic \"" + topicName + "\" qos " + qos);
+			try {
+				long t0 = System.nanoTime();
+				this.post("/" + topicName, bytes);
+				this.metrics.record(ChannelMetrics.PUBLISH, System.nanoTime() - t0);
+				this.metrics.published(bytes.length);
+			} catch (IOException e) {
+				LOGGER.error("Error publishing message to " + topicName + " : " + e.getMessage());
+				throw new ProtocolHandlerException(e);
+			}
+		}
+	}
+	/**
+	 * Post queued messages in batches until the handler is disconnected.  Failed batches are retried
+	 * with a back off, so messages are not lost while the relay is unreachable.
+	 */
+	private void sendLoop(){
+		List<String> batch = new ArrayList<String>(this.batchSize);
+		long backoff = 0;
+		StringBuilder sb = new StringBuilder();
+		while(this.keepRunning || !this.sendQ.isEmpty()){
+			try {
+				if(batch.isEmpty()){
+					String first = this.sendQ.poll(100, TimeUnit.MILLISECONDS);
+					if(first == null){
+						continue;
+					}
+					batch.add(first);
+					this.sendQ.drainTo(batch, this.batchSize - 1);
+				}
+				sb.setLength(0);
+				for(String line : batch){
+					sb.append(line).append('\n');
+				}
+				this.post("/publish", sb.toString().getBytes(StandardCharsets.US_ASCII));
+				batch.clear();
+				backoff = 0;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (IOException e) {
+				if(!this.keepRunning){
+					LOGGER.warn("Dropped " + batch.size() + " unsent message(s) on disconnect");
+					break;
+				}
+				backoff = Math.min(Math.max(100, backoff * 2), 30000);
+				LOGGER.warn("Error posting batch of " + batch.size() + " message(s), retrying in " + backoff + "ms : " + e.getMessage());
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+	}
+	/**
+	 * POST a body to the relay.
+	 * <p>
+	 * @param path	the request path
+	 * @param body	the request body
+	 * @throws IOException on connection errors or an error status
+	 */
+	private void post(String path, byte[] body) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(this.broker + path).openConnection();
+		conn.setRequestMethod("POST");
+		conn.setDoOutput(true);
+		conn.setConnectTimeout(HTTP_TIMEOUT_MS);
+		conn.setReadTimeout(HTTP_TIMEOUT_MS);
+		conn.setFixedLengthStreamingMode(body.length);
+		conn.setRequestProperty("Content-Type", "text/plain");
+		try(OutputStream out = conn.getOutputStream()){
+			out.write(body);
+		}
+		int status = conn.getResponseCode();
+		//the response must be read to the end for the connection to go back to the pool
+		this.drain(status >= 400 ? conn.getErrorStream() : conn.getInputStream());
+		if(status >= 300){
+			throw new IOException("HTTP status " + status + " from " + path);
+		}
 	}
 
-	@Override
-	public String getPingRequestDest() {
-		// TODO Auto-generated method stub
-		return null;
+	/*********************************** Http Subscriber handling *************************************************/
+	/**
+	 * Long poll our inbox until the handler is disconnected, dispatching the messages by topic.
+	 */
+	private void pollLoop(){
+		String inbox = "/inbox/" + this.friendyName + "?max=" + this.batchSize + "&wait=" + POLL_WAIT_MS;
+		long backoff = 0;
+		while(this.keepRunning){
+			try {
+				HttpURLConnection conn = (HttpURLConnection) new URL(this.broker + inbox).openConnection();
+				conn.setConnectTimeout(HTTP_TIMEOUT_MS);
+				conn.setReadTimeout((int) POLL_WAIT_MS + HTTP_TIMEOUT_MS);
+				int status = conn.getResponseCode();
+				if(status != 200){
+					this.drain(conn.getErrorStream());
+					throw new IOException("HTTP status " + status + " polling the inbox");
+				}
+				byte[] body = this.drain(conn.getInputStream());
+				if(!this.connack){
+					this.connack = true;
+					this.reconnected();
+					LOGGER.info("Reconnected to HTTP relay(" + this.broker + ") at " + Instant.now());
+				}
+				backoff = 0;
+				this.dispatch(body);
+			} catch (IOException e) {
+				if(this.keepRunning){
+					this.connack = false;
+					backoff = Math.min(Math.max(1000, backoff * 2), 120000);
+					LOGGER.warn("Lost HTTP relay(" + this.broker + "), retrying in " + backoff + "ms : " + e.getMessage());
+					try {
+						Thread.sleep(backoff);
+					} catch (InterruptedException ie) {
+						break;
+					}
+				}
+			}
+		}
+		LOGGER.debug("HttpHandler poller stopping.....");
+	}
+	/**
+	 * Dispatch a response body of <code>topic payload</code> lines.
+	 * <p>
+	 * @param body	the response body
+	 */
+	private void dispatch(byte[] body){
+		int start = 0;
+		while(start < body.length){
+			int end = start;
+			int space = -1;
+			while(end < body.length && body[end] != '\n'){
+				if(space < 0 && body[end] == ' '){
+					space = end;
+				}
+				end++;
+			}
+			if(space > start){
+				byte[] payload = new byte[end - space - 1];
+				System.arraycopy(body, space + 1, payload, 0, payload.length);
+				this.deliver(new String(body, start, space - start, StandardCharsets.US_ASCII), payload);
+			}
+			start = end + 1;
+		}
+	}
+	/**
+	 * Apply the route for a received message.
+	 * <p>
+	 * @param topic		the topic the message was sent to
+	 * @param payload	the base64 encoded message
+	 * @return false if there is no route for the topic
+	 */
+	private boolean deliver(String topic, byte[] payload){
+		Consumer<byte[]> action = this.routes.get(topic);
+		if(action == null){
+			LOGGER.debug("No route for message on " + topic + ", dropped");
+			return false;
+		}
+		this.metrics.received(payload.length);
+		action.accept(payload);
+		return true;
+	}
+	/**
+	 * @return the port of the embedded {@link HttpReceiver <em>HttpReceiver</em>}, or -1 if it is not enabled
+	 */
+	public int getListenPort(){
+		return (this.receiver == null ? -1 : this.receiver.getPort());
+	}
+	/**
+	 * Read a stream to the end and close it.
+	 * <p>
+	 * @param in	the stream, may be null
+	 * @return the bytes read
+	 * @throws IOException on read errors
+	 */
+	private byte[] drain(InputStream in) throws IOException {
+		if(in == null){
+			return new byte[0];
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(InputStream is = in){
+			byte[] buffer = new byte[8192];
+			int length;
+			while((length = is.read(buffer)) > 0){
+				out.write(buffer, 0, length);
+			}
+		}
+		return out.toByteArray();
 	}
 
+	/************************************** Instance methods *******************************************************************************/
+	/**
+	 * {@inheritDoc}
+	 */
 	@Override
-	public String getPingAckDest(String target) {
-		// TODO Auto-generated method stub
-		return null;
+	public void disconnect() {
+		if(this.keepRunning){
+			try {
+				Message msg = new Message(this.getStatusMessage(STATUS_GRACE_DISCONNECT));
+				msg.packMsg(Security.PROTECTED, Protocol.HTTP, QoS.ATLEASTONCE, null);
+				this.publish(topicMyStatus, QoS.ATLEASTONCE, msg.getPayloadHM());
+			} catch (Exception e) {
+				LOGGER.error("Error publishing disconnect status : " + e.getMessage());
+			}
+		}
+		this.connack = false;
+		this.keepRunning = false;
+		this.handshakeExecutor.shutdown();
+		this.metrics.unregister();
+		if(this.receiver != null){
+			this.receiver.close();
+		}
+		if(this.workers != null){
+			//the senders finish the queued messages first
+			this.workers.shutdown();
+			try {
+				if(!this.workers.awaitTermination(this.timeOut, TimeUnit.SECONDS)){
+					this.workers.shutdownNow();
+				}
+			} catch (InterruptedException e) {
+				this.workers.shutdownNow();
+			}
+		}
+		LOGGER.info("Disconnected from HTTP relay(" + this.broker + ")");
 	}
-
+	/**
+	 * {@inheritDoc}
+	 */
 	@Override
-	public String getDestination(Security sec) {
-		// TODO Auto-generated method stub
-		return null;
+	public void flush() throws ProtocolHandlerException {
+		if(this.sendQ != null){
+			this.sendQ.clear();
+		}
 	}
 
 }
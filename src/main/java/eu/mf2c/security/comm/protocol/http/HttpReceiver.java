@@ -0,0 +1,369 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.protocol.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Embedded HTTP&#47;1.1 endpoint receiving messages posted straight to an agent, without a relay or a servlet
+ * container.  A single thread runs a {@link java.nio.channels.Selector <em>Selector</em>} over non&#45;blocking
+ * connections.  Connections are kept alive and pipelined requests are handled in order, their responses being
+ * written back together once the requests read in one go have been processed.  The endpoints are&#58;
+ * <pre>
+ *  POST /mf2c/[friendyName]/[...]	one base64 encoded message, the path is the topic
+ *  POST /publish					a batch of messages, one <code>topic payload</code> line each
+ * </pre>
+ * Messages are handed to a {@link Sink <em>Sink</em>}, normally the routing table of the {@link HttpHandler <em>HttpHandler</em>}.
+ */
+public class HttpReceiver implements Runnable {
+	/** message logger */
+	private static final Logger LOGGER = Logger.getLogger(HttpReceiver.class.getName());
+	/** largest request accepted, headers and body */
+	public static final int MAX_REQUEST_BYTES = 1024 * 1024;
+	/** initial size of a connection read buffer */
+	private static final int INITIAL_BUFFER = 4096;
+	/** canned responses */
+	private static final byte[] NO_CONTENT = response("204 No Content");
+	private static final byte[] BAD_REQUEST = response("400 Bad Request");
+	private static final byte[] NOT_FOUND = response("404 Not Found");
+	private static final byte[] BAD_METHOD = response("405 Method Not Allowed");
+	private static final byte[] TOO_LARGE = response("413 Payload Too Large");
+	private static final byte[] NOT_IMPLEMENTED = response("501 Not Implemented");
+
+	/**
+	 * Consumer of the received messages.
+	 */
+	public interface Sink {
+		/**
+		 * Accept a received message.
+		 * <p>
+		 * @param topic		the topic the message was posted to
+		 * @param payload	the base64 encoded message
+		 * @return false if nothing handles the topic
+		 */
+		public boolean accept(String topic, byte[] payload);
+	}
+
+	/** per connection state */
+	private static class Connection {
+		/** bytes read but not yet processed */
+		private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER);
+		/** responses not yet written */
+		private ByteBuffer out = ByteBuffer.allocate(256);
+		/** close once the responses are written */
+		private boolean closeAfterWrite = false;
+	}
+
+	/** the message consumer */
+	private final Sink sink;
+	/** the selector */
+	private final Selector selector;
+	/** the listening socket */
+	private final ServerSocketChannel server;
+	/** the selector thread */
+	private final Thread thread;
+	/** flag indicating state of the selector thread */
+	private volatile boolean keepRunning = true;
+
+	/**
+	 * Bind the endpoint and start the selector thread.
+	 * <p>
+	 * @param address	the address to listen on, port 0 for an ephemeral port
+	 * @param sink		the {@link Sink <em>Sink</em>} for the received messages
+	 * @param name		name used for the selector thread
+	 * @throws IOException if the address cannot be bound
+	 */
+	public HttpReceiver(InetSocketAddress address, Sink sink, String name) throws IOException {
+		this.sink = sink;
+		this.selector = Selector.open();
+		this.server = ServerSocketChannel.open();
+		this.server.configureBlocking(false);
+		this.server.bind(address, 1024);
+		this.server.register(this.selector, SelectionKey.OP_ACCEPT);
+		this.thread = new Thread(this, "HttpReceiver-" + name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+		LOGGER.info("HTTP receiver listening on " + this.server.getLocalAddress());
+	}
+
+	/**
+	 * @return the port the endpoint is bound to
+	 */
+	public int getPort(){
+		return this.server.socket().getLocalPort();
+	}
+
+	/**
+	 * Stop the selector thread and close all the connections.
+	 */
+	public void close(){
+		this.keepRunning = false;
+		this.selector.wakeup();
+		try {
+			this.thread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Run the selector loop.
+	 */
+	@Override
+	public void run() {
+		while(this.keepRunning){
+			try {
+				this.selector.select();
+				Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+				while(keys.hasNext()){
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if(!key.isValid()){
+							continue;
+						}
+						if(key.isAcceptable()){
+							this.accept();
+						}else{
+							if(key.isReadable()){
+								this.read(key);
+							}
+							if(key.isValid() && key.isWritable()){
+								this.write(key);
+							}
+						}
+					} catch (IOException e) {
+						//the peer went away
+						this.closeConnection(key);
+					}
+				}
+			} catch (IOException e) {
+				LOGGER.error("HTTP receiver selector error : " + e.getMessage());
+			}
+		}
+		for(SelectionKey key : this.selector.keys()){
+			this.closeConnection(key);
+		}
+		try {
+			this.selector.close();
+		} catch (IOException e) {
+			LOGGER.debug("Error closing selector : " + e.getMessage());
+		}
+		LOGGER.debug("HTTP receiver stopping.....");
+	}
+
+	//////////////////////////////////////////////////////utilities////////////////////////////////////////////////////
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while((channel = this.server.accept()) != null){
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			channel.register(this.selector, SelectionKey.OP_READ, new Connection());
+		}
+	}
+
+	/**
+	 * Read what is available, process every complete request and write the responses.
+	 */
+	private void read(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Connection conn = (Connection) key.attachment();
+		int read;
+		while((read = channel.read(conn.in)) > 0){
+			if(!conn.in.hasRemaining()){
+				if(conn.in.capacity() >= MAX_REQUEST_BYTES){
+					break;
+				}
+				conn.in = grow(conn.in, Math.min(MAX_REQUEST_BYTES, conn.in.capacity() * 2));
+			}
+		}
+		conn.in.flip();
+		while(!conn.closeAfterWrite && this.process(conn)){
+			//keep going through pipelined requests
+		}
+		conn.in.compact();
+		if(read < 0){
+			conn.closeAfterWrite = true;
+		}else if(!conn.in.hasRemaining() && conn.in.capacity() >= MAX_REQUEST_BYTES && !conn.closeAfterWrite){
+			this.respond(conn, TOO_LARGE, true);
+		}
+		this.write(key);
+	}
+
+	/**
+	 * Process one request from the read buffer.
+	 * <p>
+	 * @return true if a request was processed, false if more bytes are needed
+	 */
+	private boolean process(Connection conn){
+		ByteBuffer in = conn.in;
+		int start = in.position();
+		int headerEnd = indexOfHeaderEnd(in, start, in.limit());
+		if(headerEnd < 0){
+			return false;
+		}
+		String head = new String(in.array(), in.arrayOffset() + start, headerEnd - start, StandardCharsets.US_ASCII);
+		String[] lines = head.split("\r\n");
+		String[] requestLine = lines[0].split(" ");
+		if(requestLine.length != 3){
+			this.respond(conn, BAD_REQUEST, true);
+			return false;
+		}
+		int contentLength = 0;
+		boolean close = requestLine[2].equals("HTTP/1.0");
+		for(int i = 1; i < lines.length; i++){
+			int colon = lines[i].indexOf(':');
+			if(colon <= 0){
+				continue;
+			}
+			String name = lines[i].substring(0, colon).trim();
+			String value = lines[i].substring(colon + 1).trim();
+			if(name.equalsIgnoreCase("Content-Length")){
+				try{
+					contentLength = Integer.parseInt(value);
+				}catch(NumberFormatException e){
+					this.respond(conn, BAD_REQUEST, true);
+					return false;
+				}
+			}else if(name.equalsIgnoreCase("Connection")){
+				close = value.equalsIgnoreCase("close") || (close && !value.equalsIgnoreCase("keep-alive"));
+			}else if(name.equalsIgnoreCase("Transfer-Encoding") && !value.equalsIgnoreCase("identity")){
+				this.respond(conn, NOT_IMPLEMENTED, true);
+				return false;
+			}
+		}
+		int bodyStart = headerEnd + 4;
+		if(contentLength < 0 || bodyStart - start + contentLength > MAX_REQUEST_BYTES){
+			this.respond(conn, TOO_LARGE, true);
+			return false;
+		}
+		if(in.limit() - bodyStart < contentLength){
+			//wait for the rest of the body, the read buffer grows as it fills
+			return false;
+		}
+		byte[] body = new byte[contentLength];
+		in.position(bodyStart);
+		in.get(body);
+		this.respond(conn, this.handle(requestLine[0], requestLine[1], body), close);
+		return true;
+	}
+
+	/**
+	 * Hand the posted messages to the sink.
+	 * <p>
+	 * @return the response
+	 */
+	private byte[] handle(String method, String path, byte[] body){
+		if(!method.equals("POST")){
+			return BAD_METHOD;
+		}
+		if(path.equals("/publish")){
+			int start = 0;
+			while(start < body.length){
+				int end = start;
+				int space = -1;
+				while(end < body.length && body[end] != '\n'){
+					if(space < 0 && body[end] == ' '){
+						space = end;
+					}
+					end++;
+				}
+				if(space > start){
+					byte[] payload = new byte[end - space - 1];
+					System.arraycopy(body, space + 1, payload, 0, payload.length);
+					this.sink.accept(new String(body, start, space - start, StandardCharsets.US_ASCII), payload);
+				}
+				start = end + 1;
+			}
+			return NO_CONTENT;
+		}
+		if(path.startsWith("/mf2c/") && body.length > 0){
+			return (this.sink.accept(path.substring(1), body) ? NO_CONTENT : NOT_FOUND);
+		}
+		return (body.length == 0 ? BAD_REQUEST : NOT_FOUND);
+	}
+
+	private void respond(Connection conn, byte[] response, boolean close){
+		if(conn.out.remaining() < response.length){
+			conn.out = grow(conn.out, conn.out.position() + response.length);
+		}
+		conn.out.put(response);
+		conn.closeAfterWrite |= close;
+	}
+
+	/**
+	 * Write the pending responses, waiting for the socket to drain if it is full.
+	 */
+	private void write(SelectionKey key) throws IOException {
+		Connection conn = (Connection) key.attachment();
+		conn.out.flip();
+		((SocketChannel) key.channel()).write(conn.out);
+		boolean done = !conn.out.hasRemaining();
+		conn.out.compact();
+		if(done && conn.closeAfterWrite){
+			this.closeConnection(key);
+		}else{
+			key.interestOps(done ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	private void closeConnection(SelectionKey key){
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			LOGGER.debug("Error closing connection : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the index of the blank line ending the headers, or -1
+	 */
+	private static int indexOfHeaderEnd(ByteBuffer in, int from, int to){
+		byte[] a = in.array();
+		int offset = in.arrayOffset();
+		for(int i = from; i + 3 < to; i++){
+			if(a[offset + i] == '\r' && a[offset + i + 1] == '\n' && a[offset + i + 2] == '\r' && a[offset + i + 3] == '\n'){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Copy a buffer in write mode into a bigger one.
+	 */
+	private static ByteBuffer grow(ByteBuffer buffer, int capacity){
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(capacity, buffer.capacity()));
+		buffer.flip();
+		bigger.put(buffer);
+		return bigger;
+	}
+
+	private static byte[] response(String status){
+		return ("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,265 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.protocol.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal in&#45;process HTTP relay standing in for the message broker, so that the {@link HttpHandler <em>HttpHandler</em>}
+ * can be run and benchmarked without external services.  Messages are held in a bounded inbox per channel, the
+ * owner being the friendy name following <code>mf2c/</code> in the topic.  The endpoints are&#58;
+ * <pre>
+ *  POST /mf2c/[friendyName]/[...]		one base64 encoded message, the path is the topic
+ *  POST /publish						a batch of messages, one <code>topic payload</code> line each
+ *  GET  /inbox/[friendyName]?max=n&amp;wait=ms	long poll for up to n messages, returned as <code>topic payload</code> lines
+ * </pre>
+ * When an inbox is full the oldest message is dropped, as the Mqtt broker does with an overflowing session.
+ */
+public class HttpRelayServer {
+	/** message logger */
+	private static final Logger LOGGER = Logger.getLogger(HttpRelayServer.class.getName());
+	/** default inbox capacity in messages */
+	public static final int DEFAULT_INBOX_CAPACITY = 10000;
+	/** longest a poll may wait in milliseconds */
+	private static final long MAX_WAIT_MS = 30000;
+	/** the server */
+	private final HttpServer server;
+	/** the request threads */
+	private final ExecutorService executor;
+	/** inbox capacity in messages */
+	private final int capacity;
+	/** number of messages accepted */
+	private final AtomicLong messages = new AtomicLong();
+	/** friendy names that have polled their inbox */
+	private final Set<String> pollers = ConcurrentHashMap.newKeySet();
+	/** inboxes keyed on friendy name */
+	private final ConcurrentHashMap<String, LinkedBlockingQueue<String>> inboxes = new ConcurrentHashMap<String, LinkedBlockingQueue<String>>();
+
+	/**
+	 * Construct an instance.  Call {@link #start() <em>start</em>} to begin serving.
+	 * <p>
+	 * @param port		the port to listen on, 0 for an ephemeral port
+	 * @param threads	number of request threads, long polls hold one each
+	 * @param capacity	inbox capacity in messages
+	 * @throws IOException if the port cannot be bound
+	 */
+	public HttpRelayServer(int port, int threads, int capacity) throws IOException {
+		this.capacity = capacity;
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+		this.executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "HttpRelay");
+			t.setDaemon(true);
+			return t;
+		});
+		this.server.setExecutor(this.executor);
+		this.server.createContext("/mf2c/", this::handleMessage);
+		this.server.createContext("/publish", this::handleBatch);
+		this.server.createContext("/inbox/", this::handleInbox);
+	}
+
+	/**
+	 * Start serving requests.
+	 */
+	public void start(){
+		this.server.start();
+		LOGGER.info("HTTP relay listening on " + this.getBaseUrl());
+	}
+
+	/**
+	 * Stop the server.
+	 */
+	public void stop(){
+		this.server.stop(0);
+		this.executor.shutdownNow();
+	}
+
+	/**
+	 * @return the base URL to use as the broker address of the {@link HttpHandler <em>HttpHandler</em>}
+	 */
+	public String getBaseUrl(){
+		return "http://127.0.0.1:" + this.server.getAddress().getPort();
+	}
+
+	/**
+	 * @return the TCP port
+	 */
+	public int getPort(){
+		return this.server.getAddress().getPort();
+	}
+
+	/**
+	 * @return the number of messages accepted since the relay started
+	 */
+	public long getMessageCount(){
+		return this.messages.get();
+	}
+
+	/**
+	 * @return the number of channels that have polled their inbox since the relay started
+	 */
+	public int getSubscriberCount(){
+		return this.pollers.size();
+	}
+
+	////////////////////////////////////////////////////handlers////////////////////////////////////////////////
+	/**
+	 * Accept a single message, the request path is the topic.
+	 */
+	private void handleMessage(HttpExchange exchange) throws IOException {
+		if(!"POST".equals(exchange.getRequestMethod())){
+			this.respond(exchange, 405, null);
+			return;
+		}
+		String topic = exchange.getRequestURI().getPath().substring(1);
+		String payload = new String(this.readBody(exchange), StandardCharsets.US_ASCII).trim();
+		this.respond(exchange, (this.deliver(topic, payload) ? 204 : 400), null);
+	}
+
+	/**
+	 * Accept a batch of <code>topic payload</code> lines.
+	 */
+	private void handleBatch(HttpExchange exchange) throws IOException {
+		if(!"POST".equals(exchange.getRequestMethod())){
+			this.respond(exchange, 405, null);
+			return;
+		}
+		String body = new String(this.readBody(exchange), StandardCharsets.US_ASCII);
+		int start = 0;
+		while(start < body.length()){
+			int end = body.indexOf('\n', start);
+			if(end < 0){
+				end = body.length();
+			}
+			int space = body.indexOf(' ', start);
+			if(space > start && space < end){
+				this.deliver(body.substring(start, space), body.substring(space + 1, end));
+			}
+			start = end + 1;
+		}
+		this.respond(exchange, 204, null);
+	}
+
+	/**
+	 * Long poll an inbox.
+	 */
+	private void handleInbox(HttpExchange exchange) throws IOException {
+		if(!"GET".equals(exchange.getRequestMethod())){
+			this.respond(exchange, 405, null);
+			return;
+		}
+		URI uri = exchange.getRequestURI();
+		String owner = uri.getPath().substring("/inbox/".length());
+		int max = 256;
+		long wait = 0;
+		if(uri.getQuery() != null){
+			for(String param : uri.getQuery().split("&")){
+				if(param.startsWith("max=")){
+					max = Integer.parseInt(param.substring(4));
+				}else if(param.startsWith("wait=")){
+					wait = Math.min(MAX_WAIT_MS, Long.parseLong(param.substring(5)));
+				}
+			}
+		}
+		this.pollers.add(owner);
+		LinkedBlockingQueue<String> inbox = this.inbox(owner);
+		List<String> batch = new ArrayList<String>();
+		try {
+			String first = inbox.poll(wait, TimeUnit.MILLISECONDS);
+			if(first != null){
+				batch.add(first);
+				inbox.drainTo(batch, max - 1);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		StringBuilder sb = new StringBuilder();
+		for(String line : batch){
+			sb.append(line).append('\n');
+		}
+		this.respond(exchange, 200, sb.toString().getBytes(StandardCharsets.US_ASCII));
+	}
+
+	////////////////////////////////////////////////////utilties////////////////////////////////////////////////
+	/**
+	 * Queue a message in its owner&#39;s inbox.
+	 * <p>
+	 * @return false if the topic is not an mF2C topic
+	 */
+	private boolean deliver(String topic, String payload){
+		if(!topic.startsWith("mf2c/") || payload.isEmpty()){
+			return false;
+		}
+		int slash = topic.indexOf('/', 5);
+		String owner = (slash < 0 ? topic.substring(5) : topic.substring(5, slash));
+		LinkedBlockingQueue<String> inbox = this.inbox(owner);
+		this.messages.incrementAndGet();
+		String line = topic + " " + payload;
+		while(!inbox.offer(line)){
+			//full, drop the oldest
+			inbox.poll();
+		}
+		return true;
+	}
+
+	private LinkedBlockingQueue<String> inbox(String owner){
+		return this.inboxes.computeIfAbsent(owner, o -> new LinkedBlockingQueue<String>(this.capacity));
+	}
+
+	private byte[] readBody(HttpExchange exchange) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(InputStream in = exchange.getRequestBody()){
+			byte[] buffer = new byte[8192];
+			int length;
+			while((length = in.read(buffer)) > 0){
+				out.write(buffer, 0, length);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+		if(body == null || body.length == 0){
+			exchange.sendResponseHeaders(status, -1);
+		}else{
+			exchange.getResponseHeaders().set("Content-Type", "text/plain");
+			exchange.sendResponseHeaders(status, body.length);
+			try(OutputStream out = exchange.getResponseBody()){
+				out.write(body);
+			}
+		}
+		exchange.close();
+	}
+}
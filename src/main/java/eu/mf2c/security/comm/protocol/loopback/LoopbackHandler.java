@@ -0,0 +1,287 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.protocol.loopback;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import net.minidev.json.JSONValue;
+
+import org.apache.log4j.Logger;
+
+import eu.mf2c.security.comm.Channel;
+import eu.mf2c.security.comm.protocol.ProtocolHandler;
+import eu.mf2c.security.comm.util.Base64Helper;
+import eu.mf2c.security.comm.util.ChannelMetrics;
+import eu.mf2c.security.comm.util.Protocol;
+import eu.mf2c.security.comm.util.QoS;
+import eu.mf2c.security.comm.util.RingBuffer;
+import eu.mf2c.security.comm.util.Security;
+import eu.mf2c.security.data.Message;
+import eu.mf2c.security.exception.ProtocolHandlerException;
+
+/**
+ * Broker&#45;free protocol handler for channels in the same JVM.  Messages are packed, encoded and unpacked exactly
+ * as for the other handlers, but travel through the mailboxes of a {@link LoopbackHub <em>LoopbackHub</em>} instead
+ * of a network, so co&#45;located services get a fast path and everything above the transport can be tested and
+ * benchmarked without external services.
+ * <p>
+ * A dispatcher thread drains our mailbox and applies the same routes as the Mqtt handler.  When the recipient&#39;s
+ * mailbox is full, ATMOSTONCE messages are dropped and other messages wait for room up to the time out.  If the
+ * <code>inboundJournal</code> property is true, application messages are journalled as by the Mqtt handler.
+ */
+public class LoopbackHandler extends ProtocolHandler {
+	/** message logger */
+	private static Logger LOGGER = Logger.getLogger(LoopbackHandler.class.getName());
+
+	/***************Constants**********************/
+	/** Default hub name */
+	private static final String DEFAULT_HUB = "default";
+
+	/***************Topics**********************/
+	/** Actions applied to messages arriving on our topics */
+	private final HashMap<String, Consumer<byte[]>> routes = new HashMap<String, Consumer<byte[]>>();
+
+	/** The hub */
+	private LoopbackHub hub;
+	/** Our mailbox */
+	private RingBuffer<Object[]> mailbox;
+	/** The dispatcher thread */
+	private Thread dispatcher;
+	/** flag indicating state of the dispatcher */
+	private volatile boolean keepRunning = false;
+
+	/**
+	 * Construct an instant. {@link Channel <em>Channel</em>} needs to call {@link #setup(HashMap) <em>setup</em>}
+	 * to initialise the handler.
+	 */
+	public LoopbackHandler() {
+		super();
+		this.protocol = Protocol.LOOPBACK;
+	}
+	/**
+	 * Map our topics to the queues, as the Mqtt handler does.
+	 */
+	private void buildRoutes(){
+		this.routes.clear();
+		for(String topic : new String[]{topicPublic, topicProtected, topicPrivate}){
+			this.routes.put(topic, bytes -> this.offerMessage(topic, bytes));
+		}
+		this.routes.put(topicPingReq, bytes -> this.pingReqQ.offer(new Message(bytes, null)));
+		this.routes.put(topicPingAck, bytes -> this.pingAckQ.offer(new Message(bytes, null)));
+		this.routes.put(topicMyHandshake, bytes -> this.offerHandshake(new Message(bytes, null)));
+		this.routes.put(topicMyReply, bytes -> this.offerReply(bytes));
+		this.routes.put(topicMyResync, bytes -> this.offerResync(bytes));
+	}
+
+	/**
+	 * Offer an application message to the message queue, appending it to the inbound journal first if it is enabled.
+	 * Redeliveries caught by the replay filter are dropped.
+	 * <p>
+	 * @param topic	the topic the message arrived on
+	 * @param bytes	the received message
+	 */
+	private void offerMessage(String topic, byte[] bytes){
+		Message message = new Message(bytes, null);
+		if(this.isDuplicate(message)){
+			return;
+		}
+		if(this.journal != null){
+			try {
+				message.setJournalPosition(this.journal.append(topic, bytes));
+			} catch (IOException e) {
+				//there is no redelivery, the message is still handed over
+				LOGGER.error("Error journalling message on " + topic + " : " + e.getMessage());
+			}
+		}
+		this.msgQ.offer(message);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The <code>broker</code> property is optional, <code>loopback://[hubName]</code> selects a hub other than the
+	 * default one.  Any other address is ignored, so a channel with the default broker uses the default hub.
+	 * <code>loopbackCapacity</code> sets the mailbox capacity of a new hub &#40;default {@link LoopbackHub#DEFAULT_CAPACITY <em>DEFAULT_CAPACITY</em>}&#41;.
+	 */
+	public void setup(HashMap<String, String> properties) throws ProtocolHandlerException {
+		super.setup(properties);
+		String hubName = DEFAULT_HUB;
+		if(this.broker != null && this.broker.startsWith("loopback://")){
+			hubName = this.broker.substring("loopback://".length());
+		}
+		this.hub = LoopbackHub.getHub(hubName, properties.get("loopbackCapacity") == null ? LoopbackHub.DEFAULT_CAPACITY : Integer.parseInt(properties.get("loopbackCapacity")));
+		this.mailbox = this.hub.getMailbox(this.friendyName);
+		this.startPresence(properties);
+		if(this.presence != null){
+			this.hub.watchStatus(this.friendyName);
+		}
+		if(Boolean.parseBoolean(properties.get("inboundJournal"))){
+			try {
+				this.openJournal(properties);
+			} catch (Exception e) {
+				LOGGER.error("Failed to open the inbound journal: " + e.getMessage());
+				throw new ProtocolHandlerException(e);
+			}
+		}
+		this.buildRoutes();
+		this.keepRunning = true;
+		this.dispatcher = new Thread(this::dispatchLoop, "LoopbackHandler-" + this.friendyName);
+		this.dispatcher.setDaemon(true);
+		this.dispatcher.start();
+		try{
+			Message msg = new Message(this.getStatusMessage(STATUS_CONNECTED));
+			msg.packMsg(Security.PROTECTED, Protocol.LOOPBACK, QoS.ATLEASTONCE, null);
+			this.publish(topicMyStatus, QoS.ATLEASTONCE, msg.getPayloadHM());
+			this.connack = true;
+			LOGGER.info("Connected to loopback hub(" + hubName + ")");
+			if(destination != null && !destination.isEmpty()){
+				if(this.getPeerKey(destination) != null){
+					this.sendPK(destination, true);
+				}
+				try{
+					this.requestPeerKey(destination).get(super.timeOut, TimeUnit.SECONDS);
+				}catch(TimeoutException te){
+					LOGGER.error("Failed to get destination public key.  Timed out!");
+					throw new ProtocolHandlerException("Failed to get destination public key.  Timed out!");
+				}
+			}
+		}catch(ProtocolHandlerException pe){
+			this.disconnect();
+			throw pe;
+		}catch(Exception e){
+			LOGGER.error("Failed to set up loopback protocol handler: " + e.getMessage());
+			this.disconnect();
+			throw new ProtocolHandlerException(e);
+		}
+	}
+
+	/*********************************** Loopback Publisher handling  *************************************************/
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void publish(String topicName, QoS qos, HashMap<String, Object> payload) throws ProtocolHandlerException {
+		//generate unix timestamp unless packMsg has already stamped and signed it
+		payload.putIfAbsent("timestamp", Instant.now().getEpochSecond());
+		byte[] bytes = Base64Helper.encodeToBytes(JSONValue.toJSONString(payload));
+		try{
+			if(this.hub.deliver(topicName, bytes)){
+				this.metrics.published(bytes.length);
+				return;
+			}
+		}catch(IllegalArgumentException e){
+			throw new ProtocolHandlerException(e.getMessage());
+		}
+		if(qos.equals(QoS.ATMOSTONCE)){
+			this.metrics.sendFailed();
+			LOGGER.warn("Mailbox full, dropped message to " + topicName);
+			return;
+		}
+		//wait for the recipient to make room
+		long t0 = System.nanoTime();
+		long deadline = t0 + TimeUnit.SECONDS.toNanos(this.timeOut);
+		while(!this.hub.deliver(topicName, bytes)){
+			if(System.nanoTime() > deadline){
+				throw new ProtocolHandlerException("Timed out waiting for room in the mailbox of " + topicName);
+			}
+			LockSupport.parkNanos(50000);
+		}
+		this.metrics.record(ChannelMetrics.PUBLISH, System.nanoTime() - t0);
+		this.metrics.published(bytes.length);
+	}
+
+	/*********************************** Loopback Subscriber handling *************************************************/
+	/**
+	 * Drain our mailbox until the handler is disconnected, dispatching the messages by topic.
+	 */
+	private void dispatchLoop(){
+		while(this.keepRunning){
+			Object[] entry = this.mailbox.poll(100, TimeUnit.MILLISECONDS);
+			if(entry == null){
+				continue;
+			}
+			Consumer<byte[]> action = this.routes.get((String) entry[0]);
+			if(action == null && this.presence != null && ((String) entry[0]).endsWith("/status")){
+				action = this::offerStatus;
+			}
+			if(action == null){
+				LOGGER.debug("No route for message on " + entry[0] + ", dropped");
+				continue;
+			}
+			try{
+				this.metrics.received(((byte[]) entry[1]).length);
+				action.accept((byte[]) entry[1]);
+			}catch(RuntimeException e){
+				LOGGER.error("Error dispatching message on " + entry[0] + " : " + e.getMessage());
+			}
+		}
+		LOGGER.debug("LoopbackHandler dispatcher stopping.....");
+	}
+
+	/************************************** Instance methods *******************************************************************************/
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Messages arriving after the disconnect stay in the mailbox for the next handler of this friendy name.
+	 */
+	@Override
+	public void disconnect() {
+		if(this.keepRunning){
+			try {
+				Message msg = new Message(this.getStatusMessage(STATUS_GRACE_DISCONNECT));
+				msg.packMsg(Security.PROTECTED, Protocol.LOOPBACK, QoS.ATLEASTONCE, null);
+				this.publish(topicMyStatus, QoS.ATLEASTONCE, msg.getPayloadHM());
+			} catch (Exception e) {
+				LOGGER.error("Error publishing disconnect status : " + e.getMessage());
+			}
+		}
+		this.connack = false;
+		this.keepRunning = false;
+		this.handshakeExecutor.shutdown();
+		this.metrics.unregister();
+		if(this.presence != null){
+			this.hub.unwatchStatus(this.friendyName);
+			this.presence.close();
+		}
+		if(this.dispatcher != null){
+			try {
+				this.dispatcher.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if(this.journal != null){
+			this.journal.close();
+		}
+		LOGGER.info("Disconnected from loopback hub");
+	}
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Messages are handed straight to the recipient&#39;s mailbox, so there is nothing to flush.
+	 */
+	@Override
+	public void flush() throws ProtocolHandlerException {
+		//nothing held
+	}
+
+}
@@ -0,0 +1,142 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.protocol.loopback;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import eu.mf2c.security.comm.util.RingBuffer;
+
+/**
+ * In&#45;memory hub linking the {@link LoopbackHandler <em>LoopbackHandler</em>} channels of one JVM.  Each channel
+ * owns a mailbox, a {@link RingBuffer <em>RingBuffer</em>} of <code>{topic, payload}</code> pairs, and a message is
+ * routed to the mailbox of the friendy name following <code>mf2c/</code> in its topic.  Mailboxes are created on
+ * first use, so messages sent to a channel before it connects are held until it does, up to the capacity.
+ * <p>
+ * Hubs are named, the <code>broker</code> property of a handler being <code>loopback://[hubName]</code>, so that
+ * independent groups of channels can share a JVM.
+ */
+public class LoopbackHub {
+	/** the hubs, keyed on name */
+	private static final ConcurrentHashMap<String, LoopbackHub> HUBS = new ConcurrentHashMap<String, LoopbackHub>();
+	/** default mailbox capacity in messages */
+	public static final int DEFAULT_CAPACITY = 65536;
+	/** mailbox capacity */
+	private final int capacity;
+	/** number of messages delivered */
+	private final LongAdder messages = new LongAdder();
+	/** the mailboxes, keyed on friendy name */
+	private final ConcurrentHashMap<String, RingBuffer<Object[]>> mailboxes = new ConcurrentHashMap<String, RingBuffer<Object[]>>();
+	/** the channels watching the status topics */
+	private final Set<String> statusWatchers = ConcurrentHashMap.newKeySet();
+	/** the last status message of each channel, keyed on topic, as retained by an Mqtt broker */
+	private final ConcurrentHashMap<String, byte[]> statuses = new ConcurrentHashMap<String, byte[]>();
+
+	private LoopbackHub(int capacity){
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Get a hub, creating it if needed.
+	 * <p>
+	 * @param name		the hub name
+	 * @param capacity	mailbox capacity, used if the hub is created
+	 * @return the {@link LoopbackHub <em>LoopbackHub</em>}
+	 */
+	public static LoopbackHub getHub(String name, int capacity){
+		return HUBS.computeIfAbsent(name, n -> new LoopbackHub(capacity));
+	}
+
+	/**
+	 * Get a channel&#39;s mailbox, creating it if needed.
+	 * <p>
+	 * @param owner	the friendy name
+	 * @return the mailbox
+	 */
+	public RingBuffer<Object[]> getMailbox(String owner){
+		return this.mailboxes.computeIfAbsent(owner, o -> new RingBuffer<Object[]>(this.capacity));
+	}
+
+	/**
+	 * Put a message into its owner&#39;s mailbox.
+	 * <p>
+	 * @param topic		the topic
+	 * @param payload	the base64 encoded message
+	 * @return false if the mailbox is full
+	 * @throws IllegalArgumentException if the topic is not an mF2C topic
+	 */
+	public boolean deliver(String topic, byte[] payload){
+		if(!topic.startsWith("mf2c/")){
+			throw new IllegalArgumentException("Not an mF2C topic : " + topic);
+		}
+		int slash = topic.indexOf('/', 5);
+		String owner = (slash < 0 ? topic.substring(5) : topic.substring(5, slash));
+		if(topic.endsWith("/status")){
+			//mf2c/+/status subscribers get a copy, best effort
+			this.statuses.put(topic, payload);
+			for(String watcher : this.statusWatchers){
+				if(!watcher.equals(owner)){
+					this.getMailbox(watcher).offer(new Object[]{topic, payload});
+				}
+			}
+		}
+		if(this.getMailbox(owner).offer(new Object[]{topic, payload})){
+			this.messages.increment();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Copy the status messages of the other channels to a channel&#39;s mailbox, starting with the last status of
+	 * each channel.
+	 * <p>
+	 * @param watcher	the friendy name
+	 */
+	public void watchStatus(String watcher){
+		this.statusWatchers.add(watcher);
+		for(Map.Entry<String, byte[]> entry : this.statuses.entrySet()){
+			if(!entry.getKey().equals("mf2c/" + watcher + "/status")){
+				this.getMailbox(watcher).offer(new Object[]{entry.getKey(), entry.getValue()});
+			}
+		}
+	}
+
+	/**
+	 * Stop copying the status messages to a channel.
+	 * <p>
+	 * @param watcher	the friendy name
+	 */
+	public void unwatchStatus(String watcher){
+		this.statusWatchers.remove(watcher);
+	}
+
+	/**
+	 * @return the number of messages delivered since the hub was created
+	 */
+	public long getMessageCount(){
+		return this.messages.sum();
+	}
+
+	/**
+	 * @return the number of mailboxes
+	 */
+	public int getSubscriberCount(){
+		return this.mailboxes.size();
+	}
+}
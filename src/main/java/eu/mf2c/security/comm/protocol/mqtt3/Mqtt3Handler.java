@@ -22,6 +22,8 @@ import java.time.Instant;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import net.minidev.json.JSONValue;
 import net.minidev.json.parser.ParseException;
@@ -33,26 +35,24 @@ import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
-import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
 import eu.mf2c.security.comm.Channel;
 import eu.mf2c.security.comm.Receiver;
 import eu.mf2c.security.comm.protocol.ProtocolHandler;
 import eu.mf2c.security.comm.util.Base64Helper;
+import eu.mf2c.security.comm.util.ChannelMetrics;
 import eu.mf2c.security.comm.util.Privacy;
 import eu.mf2c.security.comm.util.Protocol;
 import eu.mf2c.security.comm.util.QoS;
 import eu.mf2c.security.comm.util.Security;
-import eu.mf2c.security.data.Identity;
 import eu.mf2c.security.data.Message;
-import eu.mf2c.security.exception.IdentityException;
 import eu.mf2c.security.exception.MessageException;
 import eu.mf2c.security.exception.ProtocolHandlerException;
+import eu.mf2c.security.jfr.Profiler;
 
 /**
  * Mqtt3 messaging protocol handler.  The {@link Channel <em>Channel</em>} object
@@ -79,39 +79,35 @@ public class Mqtt3Handler extends ProtocolHandler implements MqttCallbackExtende
 	//private static String dest;	
 	
 	
-	/***************Constants**********************/
-	/** Constant name for the public destination topic */
-	private static final String TOPIC_PUBLIC = "mf2c/" + friendyName + "/public";
-	/** Constant name for the private destination topic */
-	private static final String TOPIC_PRIVATE = "mf2c/" + friendyName + "/private";
-	/** Constant name for the protected destination topic */
-	private static final String TOPIC_PROTECTED = "mf2c/" + friendyName + "/protected";
-	/** Constant name for the handshake topic with the recipient  //??? not sure if this is quite right, is destination an endpoint or a friendy name
-	private static final String TOPIC_HANDSHAKE = "mf2c/" + destination + "/handshake"; //for exchanging PK until we switch to certificate, publish to this*/
-	/** Constant name for the handshake topic */
-	private static final String TOPIC_MY_HANDSHAKE = "mf2c/" + friendyName + "/handshake"; //for exchanging PK until we switch to certificate, subscribe to this
-	/** Constant name for the ping request topic */
-	private static final String TOPIC_PINGREQ = "mf2c/" + friendyName + "/public/pingreq";
-	/** Constant name for the ping acknowledgement topic */
-	private static final String TOPIC_PINGACK = "mf2c/" + friendyName + "/public/pingack";
-	
-	/** Constant name for the recipient status topic 
-	private static final String TOPIC_STATUS = "mf2c/"+ destination + "/status"; //we subscribe to this, why not just rely on pingack??*/
-	/** Constant name for this channel&#39;s status topic */
-	private static final String TOPIC_MY_STATUS = "mf2c/" + friendyName + "/status"; //we just publish to this
+	/***************Topics**********************/
+	/** Wildcard filter covering all the topics under this channel&#39;s root */
+	private String topicMyRoot;
+	/** Subscribe to {@link #topicMyRoot <em>topicMyRoot</em>} instead of the individual default topics */
+	private boolean wildcardSubscription = false;
+	/** Routing table from incoming topic to the action handling it, built on subscribe */
+	private final TopicRouter router = new TopicRouter();
+	/** The route offering application messages to the message queue, acknowledged through the journal if enabled */
+	private TopicRouter.Action toMsgQ;
 	
-	/** Constant for connected connection status */
-	private static final String STATUS_CONNECTED = "C";
-	/** Constant for gracefully disconnected connection status */
-	private static final String STATUS_GRACE_DISCONNECT = "DG";
+	/***************Constants**********************/
 	/** Constant for ungraceful disconnected connection status */
 	private static final String STATUS_UG_DISCONNECT = "DU";
+	/** Default root directory of the durable outbox */
+	private static final String DEFAULT_OUTBOX_DIR = System.getProperty("java.io.tmpdir") + "/mf2c-outbox";
+	/** Default outbox segment file size in bytes */
+	private static final int DEFAULT_SEGMENT_BYTES = 8 * 1024 * 1024;
+	/** Default byte budget of the disconnected buffer */
+	private static final long DEFAULT_BUFFER_BYTES = 64L * 1024 * 1024;
+	/** Cap on the number of buffered messages, each of them holds one of the 65535 Mqtt message ids */
+	private static final int MAX_BUFFERED_MESSAGES = 60000;
 	
 	
 	/** the Mqtt client */
 	private MqttAsyncClient client; //asynchronous client is non-blocking, but can also be used in a blocking mode
-	/** Mqtt persistency attribute */
-	private MqttClientPersistence persistency;
+	/** Mqtt persistency attribute, a durable outbox that also holds the disconnected buffer */
+	private SegmentLogPersistence persistency;
+	/** Byte budget of the disconnected buffer */
+	private long bufferBytes = DEFAULT_BUFFER_BYTES;
 	/** public key sent to recipient flag 
 	private boolean PKsent = false; //have we sent PK to this recipient in the handshake process?*/
 	
@@ -121,6 +117,7 @@ public class Mqtt3Handler extends ProtocolHandler implements MqttCallbackExtende
 	 */
 	public Mqtt3Handler() {
 		super();
+		this.protocol = Protocol.MQTT;
 		//dest = super.destination;
 	}	
 	/**
@@ -151,6 +148,16 @@ public class Mqtt3Handler extends ProtocolHandler implements MqttCallbackExtende
 	}*/
 	
 	/*********************************** Mqtt3 client set up ********************************************************/
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The Mqtt handler also compiles the wildcard filter of its root.
+	 */
+	@Override
+	protected void initTopics(){
+		super.initTopics();
+		this.topicMyRoot = "mf2c/" + this.friendyName + "/#";
+	}
 	//there should be a separate step to discover the broker and distribute keys before setting up the client!!!!!!!!!!!
 	
 	
@@ -159,8 +166,7 @@ public class Mqtt3Handler extends ProtocolHandler implements MqttCallbackExtende
 	 */
 	@SuppressWarnings("unchecked")
 	public void setup(HashMap<String, String> properties) throws ProtocolHandlerException {
-		super.setup(properties);
-		//protocol specific set up
+		this.configure(properties);
 		try{
 			MqttConnectOptions connOpt = new MqttConnectOptions();		
 			connOpt.setCleanSession(false); //durable subscription.  Info and queued messages are retained after client disconnect
@@ -177,20 +183,28 @@ public class Mqtt3Handler extends ProtocolHandler implements MqttCallbackExtende
 			//note there is no sent timestamp in the last will, as we don't know when the last will is sent
 			Message msg = new Message((HashMap<String, Object>) getStatusMessage(STATUS_UG_DISCONNECT));
 			msg.packMsg( Security.PROTECTED, Protocol.MQTT, QoS.ATLEASTONCE, null);
-			connOpt.setWill(TOPIC_MY_STATUS, Base64Helper.encodeToBytes(JSONValue.toJSONString(msg.getPayloadHM())), QoS.ATLEASTONCE.ordinal(), true);
+			connOpt.setWill(topicMyStatus, Base64Helper.encodeToBytes(JSONValue.toJSONString(msg.getPayloadHM())), QoS.ATLEASTONCE.ordinal(), true);
 			//default MQTT version is 3.1.1, then falls back to 3.1f
-			persistency = new MemoryPersistence();
+			//in-flight and buffered messages are kept in a memory-mapped log so that they survive an outage or a restart
+			String outboxDir = properties.get("outboxDir");
+			String segmentBytes = properties.get("outboxSegmentBytes");
+			String budget = properties.get("outboxBufferBytes");
+			if(budget != null){
+				this.bufferBytes = Long.parseLong(budget);
+			}
+			persistency = new SegmentLogPersistence((outboxDir == null ? DEFAULT_OUTBOX_DIR : outboxDir), 
+					(segmentBytes == null ? DEFAULT_SEGMENT_BYTES : Integer.parseInt(segmentBytes)));
 			client = new MqttAsyncClient(broker, friendyName, persistency); 
-			//may need to use persistent storage for more reliable service instead of MemoryPersistence
-			//String tmpDir = System.getProperty("java.io.tmpdir");
-	    	//MqttDefaultFilePersistence dataStore = new MqttDefaultFilePersistence(tmpDir);
+			if(Boolean.parseBoolean(properties.get("inboundJournal"))){
+				this.openJournal(properties);
+			}
 	    	//
-			//enable disconnected publishing, will need to tweak these params
+			//enable disconnected publishing, the buffer is persisted and bounded in bytes by reserveBufferSpace
 			DisconnectedBufferOptions bufferOpts = new DisconnectedBufferOptions();
 			bufferOpts.setBufferEnabled(true); // Enable Disconnected Publishing
-			bufferOpts.setBufferSize(100); // Only Store 1000 messages in the buffer
-			bufferOpts.setPersistBuffer(false); // Do not persist the buffer
-			bufferOpts.setDeleteOldestMessages(true); // Delete oldest messages once the buffer is full
+			bufferOpts.setBufferSize(MAX_BUFFERED_MESSAGES); // the byte budget is the effective limit
+			bufferOpts.setPersistBuffer(true); // Persist the buffer to the outbox
+			bufferOpts.setDeleteOldestMessages(false); // we evict the oldest ourselves so the outbox is kept in step
 			//
             client.setBufferOpts(bufferOpts);
 			client.setCallback(this);  //do we use another class to handle the call back?
@@ -203,13 +217,7 @@ public class Mqtt3Handler extends ProtocolHandler implements MqttCallbackExtende
 			if(this.connack){
 				LOGGER.info("First connection established!");
 				//publish a status message to tell everybody that we are connected to the broker
-				Message msg1 = new Message((HashMap<String, Object>) getStatusMessage(STATUS_CONNECTED));
-				msg1.packMsg( Security.PROTECTED, Protocol.MQTT, QoS.ATLEASTONCE, null);
-				this.publish(TOPIC_MY_STATUS, QoS.ATLEASTONCE, msg1.getPayloadHM());
-				if(destination != null && !destination.isEmpty()){					
-					//bit of a botch here until we change to use certificate, request a public key.  Tell the recipient that we are connected
-					this.publish(this.getHandshakeDest(destination), QoS.ATLEASTONCE, msg1.getPayloadHM());
-				}
+				this.publishStatus(STATUS_CONNECTED, true);
 			}else{
 				String errMsg = "Failed to connect the first time due to error or timedout: " + (connectToken.getException() == null ? "exception not set" : connectToken.getException());
 				LOGGER.error(errMsg);
@@ -217,20 +225,20 @@ public class Mqtt3Handler extends ProtocolHandler implements MqttCallbackExtende
 			}
 			//subscribe to the default topics
 			this.subscribe();
-			//wait for receipient's public key
-			long startTime = Instant.now().getEpochSecond();
-			//continue with botch
-			if(destination != null || !destination.isEmpty()){
-				//wait for target to send PK
-				while(this.destPK == null){
-					if(Instant.now().getEpochSecond() - startTime < super.timeOut){
-						Thread.sleep(100);	//idle for 0.1 sec				
-					}else{
-						LOGGER.error("Failed to get destination public key.  Timed out!");
-						throw new ProtocolHandlerException("Failed to get destination public key.  Timed out!");
-					}
-				}			
-			}			
+			//bit of a botch here until we change to use certificate.  Tell the recipient that we are connected
+			if(destination != null && !destination.isEmpty()){
+				if(this.getPeerKey(destination) != null){
+					//key known from a previous run, just announce ours in case it has changed
+					this.sendPK(destination, true);
+				}
+				//completes straight away with a known key, else waits for the handshake reply
+				try{
+					this.requestPeerKey(destination).get(super.timeOut, TimeUnit.SECONDS);
+				}catch(TimeoutException te){
+					LOGGER.error("Failed to get destination public key.  Timed out!");
+					throw new ProtocolHandlerException("Failed to get destination public key.  Timed out!");
+				}
+			}
 			//if we get to here w/o kneeling over, the client should be ready for action			
 		}catch(MqttException me){
 			LOGGER.error("Mqtt exception on setting up mqtt3 protocol handler: " + me.getMessage());
@@ -242,6 +250,21 @@ public class Mqtt3Handler extends ProtocolHandler implements MqttCallbackExtende
 			throw new ProtocolHandlerException(e);
 		}
 	}
+	/**
+	 * Read the properties, compile the topics and build the routes of this instance, everything short of
+	 * connecting to the broker.  The routes are in place before connecting, as a durable session may deliver
+	 * messages straight away.
+	 * <p>
+	 * @param properties	a {@link java.util.HashMap <em>HashMap</em>} of configuration key value pairs
+	 * @throws ProtocolHandlerException on set up errors
+	 */
+	void configure(HashMap<String, String> properties) throws ProtocolHandlerException {
+		super.setup(properties);
+		//protocol specific set up
+		this.wildcardSubscription = Boolean.parseBoolean(properties.get("wildcardSubscription"));
+		this.startPresence(properties);
+		this.buildRoutes();
+	}
 	/**
 	 * {@inheritDoc}
 	 */
@@ -261,15 +284,43 @@ public class Mqtt3Handler extends ProtocolHandler implements MqttCallbackExtende
 		//We assume that there is only one topic per destination (excluding the default ones like pingack, pingreq....)	
 		//assuming security flag, sourceId, publicKey(if used) are already embedded in hashmap
 		
-		//generate unix timestamp as a String
-		payload.put("timestamp", Instant.now().getEpochSecond());
+		//generate unix timestamp unless packMsg has already stamped and signed it
+		payload.putIfAbsent("timestamp", Instant.now().getEpochSecond());
 		//payload.put("security",qos.ordinal()); //0=public/AMO, 1=protected/ALO, 2 = private/EO 
 		//
+		Object event = Profiler.begin(Profiler.PUBLISH);
+		byte[] bytes = Base64Helper.encodeToBytes(JSONValue.toJSONString(payload));
+		this.metrics.published(bytes.length);
+		if(client != null && !client.isConnected()){
+			this.reserveBufferSpace(bytes.length);
+		}
 		if(qos.equals(QoS.ATMOSTONCE)){//asynchronous
-			this.asyncPublish(topicName, qos, Base64Helper.encodeToBytes(JSONValue.toJSONString(payload)));
+			this.asyncPublish(topicName, qos, bytes);
 			
 		}else{
-			this.syncPublish(topicName, qos, Base64Helper.encodeToBytes(JSONValue.toJSONString(payload)));
+			this.syncPublish(topicName, qos, bytes);
+		}
+		Profiler.end(event, bytes.length, (payload.get("sec") instanceof Number ? Security.values()[((Number) payload.get("sec")).intValue()] : null), this.protocol);
+	}
+	
+	/**
+	 * Make room in the disconnected buffer for a message of the given size by evicting the oldest
+	 * buffered messages once the {@link #bufferBytes <em>bufferBytes</em>} budget would be exceeded.
+	 * <p>
+	 * @param size	the size of the message payload in bytes
+	 * @throws ProtocolHandlerException on errors updating the outbox
+	 */
+	private void reserveBufferSpace(int size) throws ProtocolHandlerException {
+		try {
+			while(client.getBufferedMessageCount() > 0 && 
+					(this.persistency.getBufferedBytes() + size > this.bufferBytes || client.getBufferedMessageCount() >= MAX_BUFFERED_MESSAGES)){
+				client.deleteBufferedMessage(0);
+				this.persistency.removeOldestBuffered();
+				LOGGER.warn("Disconnected buffer full, dropped the oldest buffered message");
+			}
+		} catch (MqttPersistenceException e) {
+			LOGGER.error("Error evicting from the disconnected buffer: " + e.getMessage());
+			throw new ProtocolHandlerException(e);
 		}
 	}
 	
@@ -307,7 +358,7 @@ public class Mqtt3Handler extends ProtocolHandler implements MqttCallbackExtende
 		};
 
     	try {
-    		//the client is configured to do disconnect publishing and can buffer up to 100 messages
+    		//the client is configured to do disconnect publishing into the durable outbox
 	    	client.publish(topicName, message, friendyName + "_async publisher", pubListener);
 	    	
     	} catch (MqttException e) {
@@ -333,8 +384,10 @@ public class Mqtt3Handler extends ProtocolHandler implements MqttCallbackExtende
     	LOGGER.debug("Publishing synchronously to topic \"" + topicName + "\" qos " + qos); //use the logger timestamp
     	//
     	try {
+			long t0 = System.nanoTime();
 			IMqttDeliveryToken dt = client.publish(topicName, message);
 			dt.waitForCompletion();
+			this.metrics.record(ChannelMetrics.PUBLISH, System.nanoTime() - t0);
 			LOGGER.debug("Published message to " + topicName);
 		} catch (MqttException e) {
 			LOGGER.error(e.getMessage());
@@ -345,11 +398,128 @@ public class Mqtt3Handler extends ProtocolHandler implements MqttCallbackExtende
 		}
 	}
 	
+	/**
+	 * Publish our status as the retained message of {@link #topicMyStatus <em>topicMyStatus</em>}, so that it replaces
+	 * the last will and a channel tracking presence learns it as soon as it subscribes.
+	 * <p>
+	 * @param status	the status code
+	 * @param wait		true to wait for the acknowledgement
+	 * @throws Exception on processing errors
+	 */
+	@SuppressWarnings("unchecked")
+	private void publishStatus(String status, boolean wait) throws Exception {
+		Message msg = new Message((HashMap<String, Object>) getStatusMessage(status));
+		msg.packMsg(Security.PROTECTED, Protocol.MQTT, QoS.ATLEASTONCE, null);
+		byte[] bytes = Base64Helper.encodeToBytes(JSONValue.toJSONString(msg.getPayloadHM()));
+		IMqttDeliveryToken dt = client.publish(topicMyStatus, bytes, QoS.ATLEASTONCE.ordinal(), true);
+		this.metrics.published(bytes.length);
+		if(wait){
+			dt.waitForCompletion(super.timeOut);
+		}
+	}
 	/*********************************** Mqtt3 Subscriber handling *************************************************/
 	
+	/**
+	 * Build the {@link #router <em>router</em>} table mapping the default topics to their actions.
+	 * Ping and application messages are queued for the {@link Channel <em>Channel</em>}, handshake
+	 * messages are handed to the handshake thread, replies complete their pending calls and resync requests
+	 * go to the resync listener.
+	 */
+	private void buildRoutes(){
+		this.router.clear();
+		this.toMsgQ = (topic, mqttMsg) -> this.offerMessage(topic, mqttMsg);
+		this.router.addRoute(topicPublic, toMsgQ);
+		this.router.addRoute(topicProtected, toMsgQ);
+		this.router.addRoute(topicPrivate, toMsgQ);
+		this.router.addRoute(topicPingReq, (topic, mqttMsg) -> this.pingReqQ.offer(new Message(mqttMsg.getPayload(), null)));
+		this.router.addRoute(topicPingAck, (topic, mqttMsg) -> this.pingAckQ.offer(new Message(mqttMsg.getPayload(), null)));
+		this.router.addRoute(topicMyHandshake, (topic, mqttMsg) -> this.offerHandshake(new Message(mqttMsg.getPayload(), null)));
+		this.router.addRoute(topicMyReply, (topic, mqttMsg) -> this.offerReply(mqttMsg.getPayload()));
+		this.router.addRoute(topicMyResync, (topic, mqttMsg) -> this.offerResync(mqttMsg.getPayload()));
+		if(this.presence != null){
+			this.router.addFilter(STATUS_TOPIC_FILTER, (topic, mqttMsg) -> this.offerStatus(mqttMsg.getPayload()));
+		}
+	}
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The Mqtt handler also switches the client to manual acknowledgements.
+	 */
+	@Override
+	protected void openJournal(HashMap<String, String> properties) throws Exception {
+		super.openJournal(properties);
+		//the broker is only acknowledged once a message is durable in the journal
+		client.setManualAcks(true);
+	}
+	/**
+	 * Offer an application message to the message queue.  Redeliveries caught by the replay filter are
+	 * dropped, and acknowledged if manual acknowledgements are in use.  With the journal enabled, the message is
+	 * appended to it first and the broker acknowledgement is deferred until the journal batch is synced.
+	 * <p>
+	 * @param topic		the topic the message arrived on
+	 * @param mqttMsg	the Mqtt message
+	 * @throws Exception on journal errors, the message is then redelivered
+	 */
+	private void offerMessage(String topic, MqttMessage mqttMsg) throws Exception {
+		Message message = new Message(mqttMsg.getPayload(), null);
+		if(this.isDuplicate(message)){
+			LOGGER.debug("Dropped duplicate delivery of message(" + message.getPayloadHM().get("msgId") + ") on " + topic);
+			if(this.journal != null){
+				this.acknowledge(mqttMsg.getId(), mqttMsg.getQos());
+			}
+			return;
+		}
+		if(this.journal != null){
+			long position = this.journal.append(topic, mqttMsg.getPayload());
+			message.setJournalPosition(position);
+			final int id = mqttMsg.getId();
+			final int qos = mqttMsg.getQos();
+			this.journal.whenDurable(position, () -> this.acknowledge(id, qos));
+		}
+		this.msgQ.offer(message);
+	}
+	/**
+	 * Send the acknowledgement for a message when the client uses manual acknowledgements.
+	 * <p>
+	 * @param id	the Mqtt message id
+	 * @param qos	the Mqtt qos of the message
+	 */
+	private void acknowledge(int id, int qos){
+		try {
+			client.messageArrivedComplete(id, qos);
+		} catch (MqttException e) {
+			//the broker redelivers the message
+			LOGGER.error("Error acknowledging message(" + id + ") : " + e.getMessage());
+		}
+	}
+	/**
+	 * Get the topics subscribed to.  If {@link #wildcardSubscription <em>wildcardSubscription</em>}
+	 * is set, a single subscription to {@link #topicMyRoot <em>topicMyRoot</em>} replaces the individual ones.
+	 * <p>
+	 * @return the topic names and filters
+	 */
+	String[] getSubscriptions(){
+		String[] topics;
+		if(this.wildcardSubscription){
+			topics = new String[]{topicMyRoot};
+		}else{
+			topics = new String[]{topicPublic, topicPrivate, topicProtected, topicPingReq, topicPingAck, topicMyHandshake, topicMyReply, topicMyResync/*, TOPIC_STATUS*/};
+		}
+		if(this.presence != null){
+			//the retained status of every channel arrives straight away
+			topics = Arrays.copyOf(topics, topics.length + 1);
+			topics[topics.length - 1] = STATUS_TOPIC_FILTER;
+		}
+		return topics;
+	}
+	/**
+	 * Subscribe to the {@link #getSubscriptions() <em>default topics</em>}.
+	 * <p>
+	 * @throws ProtocolHandlerException on subscription errors
+	 */
 	private void subscribe() throws ProtocolHandlerException{
 			//we subscribe to the default topics sequentially using a blocking method, we won't store the subscription tokens.
-			String[] topics = {TOPIC_PUBLIC, TOPIC_PRIVATE, TOPIC_PROTECTED, TOPIC_PINGREQ, TOPIC_PINGACK, TOPIC_MY_HANDSHAKE/*, TOPIC_STATUS*/};
+			String[] topics = this.getSubscriptions();
 			int[] qoss = new int[topics.length];
 			Arrays.fill(qoss, 1);
 			//
@@ -406,7 +576,8 @@ public class Mqtt3Handler extends ProtocolHandler implements MqttCallbackExtende
 	@Override
 	public void deliveryComplete(IMqttDeliveryToken dq) {
 		// 
-		LOGGER.info("Message(" + dq.getMessageId() + ") delivered");
+		//per message, so not logged at INFO, the ChannelMetrics count the traffic
+		LOGGER.debug("Message(" + dq.getMessageId() + ") delivered");
 		//what else?
 	}
 	/**
@@ -439,48 +610,28 @@ public class Mqtt3Handler extends ProtocolHandler implements MqttCallbackExtende
 	 * @throws Exception if a terminal error has occurred, and the client should be
 	 * shut down.
 	 */
-	@SuppressWarnings("static-access")
 	@Override
 	public void messageArrived(String topic, MqttMessage mqttMsg) throws Exception {
 		//we are assuming that the pingack and pingreq have their own topics, and the rest are mF2C application/infrastructure messages		
-		//handshake will be handled in a blocking call, bit of a botch using this key exchange process. The recipient must be on-line before the 
-		//subscriber and there is no validation of the integrity of both parties.  PKs are just send and cached.  This will be
-		//corrected in the next version when we introduce the use of PKI
-		if(topic.equals(TOPIC_MY_HANDSHAKE)){
-			//we handle this right now. We don't know who this msg is from, so we don't add the target PK even if we have it
-			Message message = new Message(mqttMsg.getPayload(), null);
-			message.unpackMsg();			
-			//
-			if(((String) message.getPayloadHM().get("payload")).equals("status : " + STATUS_CONNECTED)){
-			//check if this is from the destination.  We are assuming a 1to1 mapping between sender/recipient. 
-				if(this.destPK == null){//only do it if we haven't got it.  Now see if this is the one we want
-					if(destination != null && !destination.isEmpty()){
-						if(destination.equals(((String) message.getPayloadHM().get("source")))){
-							if(message.getDestKey() != null){
-								this.destPK = message.getDestKey();
-							}else{
-								throw new Exception("No sender's public key in this connect status message!");
-							}
-						}else{ //not from target, we treat this as a request for our PK
-							sendPK((String) message.getPayloadHM().get("source"));
-						}
-					}//end matching destination friendy name
-				}else{//already has destination PK, only send PK to other requester
-					if(!destination.equals((String) message.getPayloadHM().get("source"))){
-						sendPK((String) message.getPayloadHM().get("source"));
-					}
-				}
-			}	
-		}else if(topic.equals(TOPIC_PINGACK)){
-			this.pingAckQ.offer(new Message(mqttMsg.getPayload(), null));
-		}else if(topic.equals(TOPIC_PINGREQ)){
-			this.pingReqQ.offer(new Message(mqttMsg.getPayload(), null));
-		}else if (topic.equals(TOPIC_PRIVATE)  || topic.equals(TOPIC_PROTECTED) || topic.equals(TOPIC_PUBLIC)){
-			this.msgQ.offer(new Message(mqttMsg.getPayload(), null));
-		}		
+		//a single lookup in the routing table finds the action for the topic
+		Object event = Profiler.begin(Profiler.ARRIVAL);
+		TopicRouter.Action action = this.router.route(topic);
+		this.metrics.received(mqttMsg.getPayload().length);
+		if(action == null){
+			LOGGER.debug("No route for message(" +  mqttMsg.getId()+ ") on " + topic + ", dropped");
+			if(this.journal != null){
+				this.acknowledge(mqttMsg.getId(), mqttMsg.getQos());
+			}
+			return;
+		}
+		action.handle(topic, mqttMsg);
+		if(this.journal != null && action != this.toMsgQ){
+			//manual acknowledgements are on, only journalled messages defer theirs
+			this.acknowledge(mqttMsg.getId(), mqttMsg.getQos());
+		}
 		LOGGER.debug("Offered message(" +  mqttMsg.getId()+ ") to " + topic + " queue");
+		Profiler.end(event, mqttMsg.getPayload().length, null, this.protocol);
 	}
-
 	/**
 	 * This method is called when a message arrives from the server.	
 	 * <p>
@@ -560,6 +711,15 @@ public class Mqtt3Handler extends ProtocolHandler implements MqttCallbackExtende
 		}
 		LOGGER.info(a +"Connected to broker(" + this.broker + ") at " + Instant.now()); //get the timestamp
 		this.connack = true;
+		if(reconnect){
+			this.reconnected();
+			//replace the retained last will, we cannot wait for the acknowledgement on the callback thread
+			try {
+				this.publishStatus(STATUS_CONNECTED, false);
+			} catch (Exception e) {
+				LOGGER.error("Error publishing reconnected status : " + e.getMessage());
+			}
+		}
 		/*  as we don't (can't) send a disconnected message, is there any point of doing this?
 		try {
 			this.publish(TOPIC_STATUS, QoS.ATLEASTONCE, super.processPayload(getStatusMessage(STATUS_CONNECTED),Security.PUBLIC));
@@ -582,9 +742,17 @@ public class Mqtt3Handler extends ProtocolHandler implements MqttCallbackExtende
 	public void disconnect(){		
 				
 		this.connack = false;
+		this.handshakeExecutor.shutdown();
+		this.metrics.unregister();
+		if(this.presence != null){
+			this.presence.close();
+		}
 		if(client != null && client.isConnected()){
 			try {
 				this.cleanUp(); //send disconnect message to broker & other clean up operations
+				if(this.journal != null){
+					this.journal.close(); //syncs and acknowledges the last batch
+				}
 				IMqttToken disconnectToken = client.disconnect();
 				disconnectToken.waitForCompletion(); //blocking
 				//
@@ -621,10 +789,7 @@ public class Mqtt3Handler extends ProtocolHandler implements MqttCallbackExtende
 	public void cleanUp(){
 		
 		try{
-			Message msg = new Message((HashMap<String, Object>) getStatusMessage(STATUS_GRACE_DISCONNECT));
-			msg.packMsg( Security.PROTECTED, Protocol.MQTT, QoS.ATLEASTONCE, null);
-			//
-			this.publish(TOPIC_MY_STATUS, QoS.ATLEASTONCE, msg.getPayloadHM());
+			this.publishStatus(STATUS_GRACE_DISCONNECT, true);
 			//??anything else we need to tidy up?? here????
 			//
 		}catch(Exception e){
@@ -663,92 +828,4 @@ public class Mqtt3Handler extends ProtocolHandler implements MqttCallbackExtende
 		return payloadHM;
 	} */
 	
-	/************************************ utilities ***************************************************************************************/
-	/**		
-	 *{@inheritDoc}
-	 */
-	public HashMap<String, Object> getStatusMessage(String status) throws ProtocolHandlerException{	
-		//we use String, Object to comply with the Smart-Json processing further downstream
-		//status messages are public	
-		HashMap<String, Object> statusHM = new HashMap<String, Object>();
-		statusHM.put("source", friendyName); //always do this in as soon as possible
-		statusHM.put("payload", "status : " + status);
-		
-		if(status.equals(STATUS_CONNECTED)){
-			try {
-				statusHM.put("public_key", Identity.getInstance().getPublicKey().toString());
-			} catch (IdentityException e) {
-				LOGGER.error("Failed to get a String representation of the public key : " + e.getMessage());
-				throw new ProtocolHandlerException(e);
-			}
-		}
-		return statusHM;
-	}
-	/**
-	 * {@inheritDoc}
-	 */
-	public HashMap<String, Object>  getPingMessage(Object reqTS){
-			//we use String, Object to comply with the Smart-Json processing further downstream
-			//ping messages are public	
-			//payload.timestamp is added by the protocolHandler.publish function
-			HashMap<String, Object> pingHM = new HashMap<String, Object>();
-			pingHM.put("source", this.friendyName); //always do this in as soon as possible
-			if(reqTS != null){ //ping ack message
-				pingHM.put("pingRequestTS", reqTS); //the ping request publish timestamp in epoch seconds
-			}
-						
-			//
-			return pingHM;
-	}
-	
-	/**
-	 * Compile the target handshake topic name.
-	 * <p>
-	 * @param target 	The target friendy name.
-	 * @return			The topic name.
-	 */
-	public String getHandshakeDest(String target){		
-		return "mf2c/" + target + "/handshake";
-	}
-	/**
-	 * {@inheritDoc}
-	 */
-	public String getPingRequestDest(){		
-		return "mf2c/" + destination + "/public/pingreq";
-	}
-	/**
-	 * {@inheritDoc}
-	 */
-	public String getPingAckDest(String target){
-		return "mf2c/" + target + "/public/pingack";
-	}
-	/**
-	 * {@inheritDoc}
-	 */
-	public String getDestination(Security sec){
-		switch(sec){
-			case PRIVATE :
-				return TOPIC_PRIVATE;
-			case PROTECTED :
-				return TOPIC_PROTECTED;
-			case PUBLIC :
-				return TOPIC_PUBLIC;				 
-			default :
-				return null;
-		}
-			 
-	}
-	/**
-	 * Send public key to the handshake topic associated with the provided friendy name.
-	 * <p>
-	 * @param source	friendy name of the destination
-	 * @throws Exception on processing errors 
-	 */
-	private void sendPK(String source) throws Exception {
-		//this is part of the botch until we move to use certificate
-		Message msg1 = new Message((HashMap<String, Object>) getStatusMessage(STATUS_CONNECTED));
-		msg1.packMsg( Security.PROTECTED, Protocol.MQTT, QoS.ATLEASTONCE, null); //sign the payload
-		this.publish(getHandshakeDest(source), QoS.ATLEASTONCE, msg1.getPayloadHM());
-	}
-	
 }
@@ -0,0 +1,390 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.protocol.mqtt3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+
+import eu.mf2c.security.comm.util.SegmentLog;
+
+/**
+ * Durable Mqtt client persistence backed by a memory&#45;mapped {@link SegmentLog <em>SegmentLog</em>}.
+ * <p>
+ * Every <code>put</code>, <code>remove</code> and <code>clear</code> is appended to the log as a record and
+ * an in&#45;memory index maps each live key to the position of its latest record.  A <code>put</code> only
+ * returns once its record is durable; concurrent puts share one fsync through the log&#39;s group commit.
+ * Removals are not synced on their own as a lost removal only causes a redelivery, which QoS 1 and 2 tolerate.
+ * <p>
+ * When the oldest segment holds less than {@link #COMPACT_RATIO <em>COMPACT_RATIO</em>} live data,
+ * its live records are copied forward and the segment is deleted.  Only the oldest segment is compacted
+ * so that a removal record can never outlive the older record it cancels.
+ * <p>
+ * The store also keeps count of the bytes held by the disconnected buffer &#40;keys prefixed
+ * <code>sb&#45;</code>&#41; so that the handler can bound the buffer in bytes rather than in messages.
+ */
+public class SegmentLogPersistence implements MqttClientPersistence {
+	/** message logger */
+	private static final Logger LOGGER = Logger.getLogger(SegmentLogPersistence.class.getName());
+	/** Paho key prefix for messages held in the disconnected buffer */
+	private static final String BUFFERED_PREFIX = "sb-";
+	/** compact the oldest segment when its live fraction drops below this ratio */
+	private static final double COMPACT_RATIO = 0.5;
+	/** record type for a put */
+	private static final byte OP_PUT = 1;
+	/** record type for a remove */
+	private static final byte OP_REMOVE = 2;
+	/** record type for a clear */
+	private static final byte OP_CLEAR = 3;
+
+	/**
+	 * Index entry for a live key.
+	 */
+	private static class Entry {
+		/** position of the put record */
+		private final long position;
+		/** size of the record including its frame */
+		private final int size;
+		private Entry(long position, int size){
+			this.position = position;
+			this.size = size;
+		}
+	}
+
+	/** root directory for the client stores */
+	private final File rootDir;
+	/** size of new segment files in bytes */
+	private final int segmentSize;
+	/** the log for the currently open client */
+	private SegmentLog log;
+	/** live keys in insertion order */
+	private final LinkedHashMap<String, Entry> index = new LinkedHashMap<String, Entry>();
+	/** live record bytes per segment base */
+	private final HashMap<Long, Long> liveBytes = new HashMap<Long, Long>();
+	/** bytes held by the disconnected buffer */
+	private long bufferedBytes = 0;
+
+	/**
+	 * Construct an instance.
+	 * <p>
+	 * @param directory		root directory, each client gets its own sub&#45;directory
+	 * @param segmentSize	size of the segment files in bytes
+	 */
+	public SegmentLogPersistence(String directory, int segmentSize) {
+		this.rootDir = new File(directory);
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException {
+		if(this.log != null){
+			return; //Paho re-opens the store after a disconnect
+		}
+		File clientDir = new File(this.rootDir, (clientId + "-" + serverURI).replaceAll("[^a-zA-Z0-9_.-]", "_"));
+		try {
+			this.log = new SegmentLog(clientDir, this.segmentSize);
+			this.index.clear();
+			this.liveBytes.clear();
+			this.bufferedBytes = 0;
+			//rebuild the index from the records
+			this.log.scan(0, (position, body) -> this.replay(position, body));
+			LOGGER.info("Opened outbox " + clientDir + " holding " + this.index.size() + " message(s)");
+		} catch (IOException e) {
+			LOGGER.error("Failed to open outbox " + clientDir + " : " + e.getMessage());
+			throw new MqttPersistenceException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void close() throws MqttPersistenceException {
+		if(this.log != null){
+			this.log.close();
+			this.log = null;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+		long position;
+		SegmentLog current;
+		synchronized(this){
+			this.checkOpen();
+			current = this.log;
+			try{
+				byte[] header = persistable.getHeaderBytes();
+				int hdrOffset = persistable.getHeaderOffset();
+				int hdrLength = persistable.getHeaderLength();
+				byte[] payload = persistable.getPayloadBytes();
+				int payOffset = persistable.getPayloadOffset();
+				int payLength = (payload == null ? 0 : persistable.getPayloadLength());
+				byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+				ByteBuffer body = ByteBuffer.allocate(1 + 2 + keyBytes.length + 4 + hdrLength + 4 + payLength);
+				body.put(OP_PUT).putShort((short) keyBytes.length).put(keyBytes);
+				body.putInt(hdrLength).put(header, hdrOffset, hdrLength);
+				body.putInt(payLength);
+				if(payLength > 0){
+					body.put(payload, payOffset, payLength);
+				}
+				position = this.log.append(body.array());
+				this.unindex(key);
+				this.index(key, new Entry(position, SegmentLog.FRAME + body.capacity()));
+			}catch(IOException e){
+				LOGGER.error("Failed to append " + key + " to the outbox : " + e.getMessage());
+				throw new MqttPersistenceException(e);
+			}
+		}
+		//wait outside the lock so that concurrent puts batch into one fsync
+		try {
+			current.sync(position);
+		} catch (IOException e) {
+			LOGGER.error("Failed to sync the outbox : " + e.getMessage());
+			throw new MqttPersistenceException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+		this.checkOpen();
+		Entry entry = this.index.get(key);
+		if(entry == null){
+			return null;
+		}
+		try {
+			ByteBuffer body = ByteBuffer.wrap(this.log.read(entry.position));
+			body.get(); //op
+			int keyLength = body.getShort();
+			body.position(body.position() + keyLength);
+			byte[] header = new byte[body.getInt()];
+			body.get(header);
+			byte[] payload = new byte[body.getInt()];
+			body.get(payload);
+			return new MqttPersistentData(key, header, 0, header.length, payload, 0, payload.length);
+		} catch (IOException e) {
+			LOGGER.error("Failed to read " + key + " from the outbox : " + e.getMessage());
+			throw new MqttPersistenceException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void remove(String key) throws MqttPersistenceException {
+		this.checkOpen();
+		if(!this.index.containsKey(key)){
+			return;
+		}
+		this.appendControl(OP_REMOVE, key);
+		this.unindex(key);
+		this.compact();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@SuppressWarnings("rawtypes")
+	@Override
+	public synchronized Enumeration keys() throws MqttPersistenceException {
+		this.checkOpen();
+		return Collections.enumeration(new ArrayList<String>(this.index.keySet()));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void clear() throws MqttPersistenceException {
+		this.checkOpen();
+		this.appendControl(OP_CLEAR, "");
+		this.index.clear();
+		this.liveBytes.clear();
+		this.bufferedBytes = 0;
+		try {
+			this.log.syncAll();
+		} catch (IOException e) {
+			throw new MqttPersistenceException(e);
+		}
+		//everything before the clear record is dead
+		this.log.truncateBefore(this.log.segmentOf(this.log.getWritePosition() - 1));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+		this.checkOpen();
+		return this.index.containsKey(key);
+	}
+
+	/**
+	 * @return the number of bytes held by the disconnected buffer
+	 */
+	public synchronized long getBufferedBytes(){
+		return this.bufferedBytes;
+	}
+
+	/**
+	 * Remove the oldest message of the disconnected buffer.  The handler calls this together with
+	 * <code>MqttAsyncClient.deleteBufferedMessage(0)</code>, which does not remove the message from persistence.
+	 * <p>
+	 * @return true if a buffered message was removed
+	 * @throws MqttPersistenceException on errors writing the log
+	 */
+	public synchronized boolean removeOldestBuffered() throws MqttPersistenceException {
+		for(String key : this.index.keySet()){
+			if(key.startsWith(BUFFERED_PREFIX)){
+				this.remove(key);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	//////////////////////////////////////////////////////utilities////////////////////////////////////////////////////
+	private void checkOpen() throws MqttPersistenceException {
+		if(this.log == null){
+			throw new MqttPersistenceException(); //not open
+		}
+	}
+
+	private void appendControl(byte op, String key) throws MqttPersistenceException {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer body = ByteBuffer.allocate(1 + 2 + keyBytes.length);
+		body.put(op).putShort((short) keyBytes.length).put(keyBytes);
+		try {
+			this.log.append(body.array());
+		} catch (IOException e) {
+			throw new MqttPersistenceException(e);
+		}
+	}
+
+	private void index(String key, Entry entry){
+		this.index.put(key, entry);
+		long base = this.log.segmentOf(entry.position);
+		Long live = this.liveBytes.get(base);
+		this.liveBytes.put(base, (live == null ? 0 : live) + entry.size);
+		if(key.startsWith(BUFFERED_PREFIX)){
+			this.bufferedBytes += entry.size;
+		}
+	}
+
+	private void unindex(String key){
+		Entry entry = this.index.remove(key);
+		if(entry != null){
+			long base = this.log.segmentOf(entry.position);
+			Long live = this.liveBytes.get(base);
+			if(live != null){
+				this.liveBytes.put(base, live - entry.size);
+			}
+			if(key.startsWith(BUFFERED_PREFIX)){
+				this.bufferedBytes -= entry.size;
+			}
+		}
+	}
+
+	/**
+	 * Apply a record read back from the log while opening the store.
+	 */
+	private void replay(long position, byte[] record){
+		ByteBuffer body = ByteBuffer.wrap(record);
+		byte op = body.get();
+		byte[] keyBytes = new byte[body.getShort()];
+		body.get(keyBytes);
+		String key = new String(keyBytes, StandardCharsets.UTF_8);
+		switch(op){
+			case OP_PUT :
+				this.unindex(key);
+				this.index(key, new Entry(position, SegmentLog.FRAME + record.length));
+				break;
+			case OP_REMOVE :
+				this.unindex(key);
+				break;
+			case OP_CLEAR :
+				this.index.clear();
+				this.liveBytes.clear();
+				this.bufferedBytes = 0;
+				break;
+			default :
+				LOGGER.warn("Unknown outbox record type " + op + " at " + position);
+		}
+	}
+
+	/**
+	 * Compact the oldest segments while they are sealed and mostly dead.  Live records are
+	 * re&#45;appended to the active segment and made durable before the old segment is deleted.
+	 */
+	private void compact() throws MqttPersistenceException {
+		while(this.log.getSegmentCount() > 1){
+			long head = this.log.getHeadSegment();
+			Long live = this.liveBytes.get(head);
+			long liveHead = (live == null ? 0 : live);
+			if(liveHead >= this.log.getSegmentUsed(head) * COMPACT_RATIO){
+				return;
+			}
+			try {
+				long headEnd = head + this.log.getSegmentUsed(head);
+				ArrayList<String> moved = new ArrayList<String>();
+				for(Map.Entry<String, Entry> e : this.index.entrySet()){
+					if(e.getValue().position >= head && e.getValue().position < headEnd){
+						moved.add(e.getKey());
+					}
+				}
+				for(String key : moved){
+					Entry old = this.index.get(key);
+					long position = this.log.append(this.log.read(old.position));
+					//replace in place to keep the insertion order of the index
+					this.index.put(key, new Entry(position, old.size));
+					long base = this.log.segmentOf(position);
+					Long bytes = this.liveBytes.get(base);
+					this.liveBytes.put(base, (bytes == null ? 0 : bytes) + old.size);
+				}
+				this.log.syncAll();
+				this.liveBytes.remove(head);
+				this.log.deleteSegment(head);
+				LOGGER.debug("Compacted outbox segment " + head + ", moved " + moved.size() + " live record(s)");
+			} catch (IOException e) {
+				LOGGER.error("Failed to compact the outbox : " + e.getMessage());
+				throw new MqttPersistenceException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.protocol.mqtt3;
+
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+/**
+ * Routing table for incoming Mqtt messages.  Exact topic names and wildcard topic filters
+ * &#40;e.g. <code>mf2c/[friendyName]/#</code>&#41; are mapped to {@link Action <em>Action</em>}s when
+ * the handler subscribes.  Dispatching an exact topic is a single hash lookup.  A topic only
+ * matched by a filter is resolved once and the result is cached, so subsequent messages on
+ * the same topic are also dispatched with a single lookup.
+ */
+public class TopicRouter {
+	/** upper bound on the number of filter resolutions cached */
+	private static final int MAX_RESOLVED = 8192;
+	/** sentinel cached for topics that match no route */
+	private static final Action NO_ROUTE = (topic, msg) -> {};
+
+	/**
+	 * Handler action applied to a message arriving on a routed topic.
+	 */
+	public interface Action {
+		/**
+		 * Handle an incoming message.
+		 * <p>
+		 * @param topic		the topic the message was published to
+		 * @param mqttMsg	the Mqtt message
+		 * @throws Exception on processing errors
+		 */
+		public void handle(String topic, MqttMessage mqttMsg) throws Exception;
+	}
+
+	/** exact topic routes */
+	private final ConcurrentHashMap<String, Action> exact = new ConcurrentHashMap<String, Action>();
+	/** wildcard filter routes, consulted in insertion order on a miss */
+	private final CopyOnWriteArrayList<Map.Entry<String, Action>> filters = new CopyOnWriteArrayList<Map.Entry<String, Action>>();
+	/** cache of topics resolved through the filters */
+	private final ConcurrentHashMap<String, Action> resolved = new ConcurrentHashMap<String, Action>();
+
+	/**
+	 * Map an exact topic name to an action.
+	 * <p>
+	 * @param topic		the topic name
+	 * @param action	the {@link Action <em>Action</em>} to apply
+	 */
+	public void addRoute(String topic, Action action){
+		this.exact.put(topic, action);
+		this.resolved.clear();
+	}
+	/**
+	 * Map a wildcard topic filter to an action.  Exact routes take precedence over filters.
+	 * <p>
+	 * @param filter	the topic filter, using the Mqtt <code>+</code> and <code>#</code> wildcards
+	 * @param action	the {@link Action <em>Action</em>} to apply
+	 */
+	public void addFilter(String filter, Action action){
+		MqttTopic.validate(filter, true);
+		this.filters.add(new AbstractMap.SimpleImmutableEntry<String, Action>(filter, action));
+		this.resolved.clear();
+	}
+	/**
+	 * Remove all the routes.
+	 */
+	public void clear(){
+		this.exact.clear();
+		this.filters.clear();
+		this.resolved.clear();
+	}
+	/**
+	 * Look up the action for a topic.
+	 * <p>
+	 * @param topic		the topic the message was published to
+	 * @return the {@link Action <em>Action</em>} or null if no route matches
+	 */
+	public Action route(String topic){
+		Action action = this.exact.get(topic);
+		if(action != null){
+			return action;
+		}
+		action = this.resolved.get(topic);
+		if(action == null){
+			action = NO_ROUTE;
+			for(Map.Entry<String, Action> entry : this.filters){
+				if(MqttTopic.isMatched(entry.getKey(), topic)){
+					action = entry.getValue();
+					break;
+				}
+			}
+			if(this.resolved.size() < MAX_RESOLVED){
+				this.resolved.put(topic, action);
+			}
+		}
+		return (action == NO_ROUTE ? null : action);
+	}
+}
@@ -0,0 +1,393 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Metrics of one {@link eu.mf2c.security.comm.Channel <em>Channel</em>} and its
+ * {@link eu.mf2c.security.comm.protocol.ProtocolHandler <em>ProtocolHandler</em>}&#58; message and byte counters,
+ * queue depth gauges and latency histograms in nanoseconds for the stages below.
+ * <pre>
+ *  sign, verify, encrypt, decrypt	the RSA operations on the messages of the channel
+ *  publish				publish to broker acknowledgement, fire and forget publishes excluded
+ *  handshake			handshake request to the peer&#39;s key arriving
+ *  trace.pack			traced messages, creation to packed
+ *  trace.ack			traced messages, published to publish returning
+ *  trace.transit			traced messages, published to received
+ *  trace.queue			traced messages, received to popped
+ *  trace.unpack			traced messages, popped to unpacked
+ *  trace.total			traced messages, creation to unpacked
+ * </pre>
+ * Recording only updates striped counters and an uncontended histogram, and gauges are evaluated when they are
+ * read, so the cost is negligible when nobody is reading.  The metrics are read through
+ * {@link #snapshot() <em>snapshot</em>} or over JMX once {@link #register() <em>registered</em>}, as
+ * <code>eu.mf2c.security:type=ChannelMetrics,name=[friendyName]</code>.
+ */
+public class ChannelMetrics implements ChannelMetricsMBean {
+	/** message logger */
+	private static final Logger LOGGER = Logger.getLogger(ChannelMetrics.class.getName());
+	/** signature latency stage */
+	public static final String SIGN = "sign";
+	/** signature verification latency stage */
+	public static final String VERIFY = "verify";
+	/** encryption latency stage */
+	public static final String ENCRYPT = "encrypt";
+	/** decryption latency stage */
+	public static final String DECRYPT = "decrypt";
+	/** publish to acknowledgement latency stage */
+	public static final String PUBLISH = "publish";
+	/** handshake latency stage */
+	public static final String HANDSHAKE = "handshake";
+	/** request to reply latency stage */
+	public static final String RPC = "rpc";
+	/** traced creation to packed latency stage */
+	public static final String TRACE_PACK = "trace.pack";
+	/** traced publish to publish returned latency stage */
+	public static final String TRACE_ACK = "trace.ack";
+	/** traced publish to receipt latency stage */
+	public static final String TRACE_TRANSIT = "trace.transit";
+	/** traced receipt to pop latency stage */
+	public static final String TRACE_QUEUE = "trace.queue";
+	/** traced pop to unpacked latency stage */
+	public static final String TRACE_UNPACK = "trace.unpack";
+	/** traced creation to unpacked latency stage */
+	public static final String TRACE_TOTAL = "trace.total";
+	/** incoming message queue gauge */
+	public static final String MSG_QUEUE = "msgQ";
+	/** ping request queue gauge */
+	public static final String PING_REQUEST_QUEUE = "pingReqQ";
+	/** ping acknowledgement queue gauge */
+	public static final String PING_ACK_QUEUE = "pingAckQ";
+	/** outbound pipeline gauge */
+	public static final String OUT_QUEUE = "outQ";
+	/** journalled messages not yet committed gauge */
+	public static final String JOURNAL = "journal";
+	/** messages waiting for their bundle gauge */
+	public static final String COALESCE_QUEUE = "coalesceQ";
+	/** messages waiting for their key to be sent gauge */
+	public static final String CONFLATE_QUEUE = "conflateQ";
+	/** messages replaced by a newer one of the same key before they were sent, a counter */
+	public static final String CONFLATED = "conflated";
+	/** requests waiting for their reply gauge */
+	public static final String PENDING_CALLS = "rpcQ";
+	/** messages held back for an earlier one gauge */
+	public static final String REORDER_QUEUE = "reorderQ";
+	/** gaps in the sequence of a source skipped after the time out, a counter */
+	public static final String GAPS = "gaps";
+	/** messages never received in the skipped gaps, a counter */
+	public static final String MISSING = "missing";
+	/** messages dropped as they arrived after their place in the sequence, a counter */
+	public static final String LATE = "late";
+	/** messages retained for a resync gauge */
+	public static final String OUTBOX = "outbox";
+	/** friendy name of the channel */
+	private final String name;
+	/** messages published */
+	private final LongAdder sent = new LongAdder();
+	/** messages received */
+	private final LongAdder received = new LongAdder();
+	/** bytes published */
+	private final LongAdder bytesSent = new LongAdder();
+	/** bytes received */
+	private final LongAdder bytesReceived = new LongAdder();
+	/** failed sends */
+	private final LongAdder sendErrors = new LongAdder();
+	/** reconnections */
+	private final LongAdder reconnects = new LongAdder();
+	/** latency histograms keyed on stage, fixed at construction, each guarded by its own monitor */
+	private final LinkedHashMap<String, LatencyHistogram> latencies = new LinkedHashMap<String, LatencyHistogram>();
+	/** gauges keyed on name */
+	private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+	/** JMX name, null if not registered */
+	private volatile ObjectName objectName = null;
+
+	/**
+	 * Construct an instance.
+	 * <p>
+	 * @param name	friendy name of the channel
+	 */
+	public ChannelMetrics(String name){
+		this.name = name;
+		for(String stage : new String[]{SIGN, VERIFY, ENCRYPT, DECRYPT, PUBLISH, HANDSHAKE, RPC,
+				TRACE_PACK, TRACE_ACK, TRACE_TRANSIT, TRACE_QUEUE, TRACE_UNPACK, TRACE_TOTAL}){
+			this.latencies.put(stage, new LatencyHistogram());
+		}
+	}
+
+	///////////////////////////////////////////////////recording//////////////////////////////////////////////////
+
+	/**
+	 * Count a published message.
+	 * <p>
+	 * @param bytes	encoded size in bytes
+	 */
+	public void published(int bytes){
+		this.sent.increment();
+		this.bytesSent.add(bytes);
+	}
+	/**
+	 * Count a received message.
+	 * <p>
+	 * @param bytes	encoded size in bytes
+	 */
+	public void received(int bytes){
+		this.received.increment();
+		this.bytesReceived.add(bytes);
+	}
+	/**
+	 * Count a failed send.
+	 */
+	public void sendFailed(){
+		this.sendErrors.increment();
+	}
+	/**
+	 * Count a reconnection to the broker.
+	 */
+	public void reconnected(){
+		this.reconnects.increment();
+	}
+	/**
+	 * Record a latency.
+	 * <p>
+	 * @param stage	the stage name
+	 * @param nanos	the latency in nanoseconds
+	 * @throws IllegalArgumentException on an unknown stage
+	 */
+	public void record(String stage, long nanos){
+		LatencyHistogram histogram = this.histogram(stage);
+		synchronized(histogram){
+			histogram.record(nanos);
+		}
+	}
+	/**
+	 * Record the intervals of a message trace, those between stages missing from the trace are skipped.
+	 * Negative intervals, from clock skew between hosts, are recorded as 0.
+	 * <p>
+	 * @param trace	the trace times in epoch microseconds keyed on {@link Trace <em>Trace</em>} stage
+	 */
+	public void recordTrace(Map<String, Long> trace){
+		this.recordInterval(TRACE_PACK, trace.get(Trace.CREATED), trace.get(Trace.PACKED));
+		this.recordInterval(TRACE_ACK, trace.get(Trace.PUBLISHED), trace.get(Trace.ACKED));
+		this.recordInterval(TRACE_TRANSIT, trace.get(Trace.PUBLISHED), trace.get(Trace.RECEIVED));
+		this.recordInterval(TRACE_QUEUE, trace.get(Trace.RECEIVED), trace.get(Trace.POPPED));
+		this.recordInterval(TRACE_UNPACK, trace.get(Trace.POPPED), trace.get(Trace.UNPACKED));
+		this.recordInterval(TRACE_TOTAL, trace.get(Trace.CREATED), trace.get(Trace.UNPACKED));
+	}
+	/**
+	 * Add a gauge, replacing any gauge of the same name.
+	 * <p>
+	 * @param gauge		the gauge name
+	 * @param supplier	supplier of the value, called when the gauge is read
+	 */
+	public void gauge(String gauge, LongSupplier supplier){
+		this.gauges.put(gauge, supplier);
+	}
+
+	/////////////////////////////////////////////////////reading///////////////////////////////////////////////////
+
+	/**
+	 * @param gauge	the gauge name
+	 * @return the gauge value, -1 if there is no such gauge
+	 */
+	public long getGauge(String gauge){
+		LongSupplier supplier = this.gauges.get(gauge);
+		return (supplier == null ? -1 : supplier.getAsLong());
+	}
+	/**
+	 * Get a copy of a latency histogram.
+	 * <p>
+	 * @param stage	the stage name
+	 * @return the copy, in nanoseconds
+	 * @throws IllegalArgumentException on an unknown stage
+	 */
+	public LatencyHistogram getLatency(String stage){
+		LatencyHistogram histogram = this.histogram(stage);
+		LatencyHistogram copy = new LatencyHistogram();
+		synchronized(histogram){
+			copy.add(histogram);
+		}
+		return copy;
+	}
+	/**
+	 * Take a snapshot of all the metrics.  Each latency stage is summarised as
+	 * <code>[stage].count</code>, <code>.mean</code>, <code>.p50</code>, <code>.p99</code> and <code>.max</code>,
+	 * in microseconds.
+	 * <p>
+	 * @return a {@link java.util.HashMap <em>HashMap</em>} of metric names and values
+	 */
+	public HashMap<String, Object> snapshot(){
+		HashMap<String, Object> hm = new HashMap<String, Object>();
+		hm.put("name", this.name);
+		hm.put("messagesSent", this.getMessagesSent());
+		hm.put("messagesReceived", this.getMessagesReceived());
+		hm.put("bytesSent", this.getBytesSent());
+		hm.put("bytesReceived", this.getBytesReceived());
+		hm.put("sendErrors", this.getSendErrors());
+		hm.put("reconnects", this.getReconnects());
+		for(Map.Entry<String, LongSupplier> entry : this.gauges.entrySet()){
+			hm.put(entry.getKey(), entry.getValue().getAsLong());
+		}
+		for(String stage : this.latencies.keySet()){
+			LatencyHistogram copy = this.getLatency(stage);
+			hm.put(stage + ".count", copy.getCount());
+			hm.put(stage + ".mean", copy.getMean() / 1e3);
+			hm.put(stage + ".p50", copy.getValueAtPercentile(50) / 1e3);
+			hm.put(stage + ".p99", copy.getValueAtPercentile(99) / 1e3);
+			hm.put(stage + ".max", copy.getMax() / 1e3);
+		}
+		return hm;
+	}
+
+	@Override
+	public String getName(){
+		return this.name;
+	}
+	@Override
+	public long getMessagesSent(){
+		return this.sent.sum();
+	}
+	@Override
+	public long getMessagesReceived(){
+		return this.received.sum();
+	}
+	@Override
+	public long getBytesSent(){
+		return this.bytesSent.sum();
+	}
+	@Override
+	public long getBytesReceived(){
+		return this.bytesReceived.sum();
+	}
+	@Override
+	public long getSendErrors(){
+		return this.sendErrors.sum();
+	}
+	@Override
+	public long getReconnects(){
+		return this.reconnects.sum();
+	}
+	@Override
+	public long getMsgQueueDepth(){
+		return this.getGauge(MSG_QUEUE);
+	}
+	@Override
+	public long getPingRequestQueueDepth(){
+		return this.getGauge(PING_REQUEST_QUEUE);
+	}
+	@Override
+	public long getPingAckQueueDepth(){
+		return this.getGauge(PING_ACK_QUEUE);
+	}
+	@Override
+	public long getOutQueueDepth(){
+		return this.getGauge(OUT_QUEUE);
+	}
+	@Override
+	public String[] getLatencyStages(){
+		return this.latencies.keySet().toArray(new String[0]);
+	}
+	@Override
+	public long getLatencyCount(String stage){
+		LatencyHistogram histogram = this.histogram(stage);
+		synchronized(histogram){
+			return histogram.getCount();
+		}
+	}
+	@Override
+	public double getLatencyMeanMicros(String stage){
+		LatencyHistogram histogram = this.histogram(stage);
+		synchronized(histogram){
+			return histogram.getMean() / 1e3;
+		}
+	}
+	@Override
+	public double getLatencyPercentileMicros(String stage, double percentile){
+		LatencyHistogram histogram = this.histogram(stage);
+		synchronized(histogram){
+			return histogram.getValueAtPercentile(percentile) / 1e3;
+		}
+	}
+	@Override
+	public void resetLatencies(){
+		for(LatencyHistogram histogram : this.latencies.values()){
+			synchronized(histogram){
+				histogram.reset();
+			}
+		}
+	}
+
+	//////////////////////////////////////////////////////JMX//////////////////////////////////////////////////////
+
+	/**
+	 * Register with the platform MBean server.  Errors are logged, the metrics stay readable through
+	 * {@link #snapshot() <em>snapshot</em>}.
+	 */
+	public void register(){
+		try {
+			ObjectName on = new ObjectName("eu.mf2c.security:type=ChannelMetrics,name=" + ObjectName.quote(this.name));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if(server.isRegistered(on)){
+				//a channel of the same name was not destroyed, the newest one wins
+				server.unregisterMBean(on);
+			}
+			server.registerMBean(this, on);
+			this.objectName = on;
+		} catch (Exception e) {
+			LOGGER.warn("Failed to register the metrics of " + this.name + " with JMX : " + e.getMessage());
+		}
+	}
+	/**
+	 * Unregister from the platform MBean server, if registered.
+	 */
+	public void unregister(){
+		ObjectName on = this.objectName;
+		if(on == null){
+			return;
+		}
+		this.objectName = null;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(on);
+		} catch (Exception e) {
+			LOGGER.debug("Metrics of " + this.name + " already unregistered : " + e.getMessage());
+		}
+	}
+
+	private void recordInterval(String stage, Long from, Long to){
+		if(from != null && to != null){
+			this.record(stage, Math.max(0, to - from) * 1000);
+		}
+	}
+
+	private LatencyHistogram histogram(String stage){
+		LatencyHistogram histogram = this.latencies.get(stage);
+		if(histogram == null){
+			throw new IllegalArgumentException("Unknown latency stage : " + stage);
+		}
+		return histogram;
+	}
+}
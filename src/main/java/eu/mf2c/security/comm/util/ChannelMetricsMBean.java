@@ -0,0 +1,91 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.util;
+
+/**
+ * JMX management interface of {@link ChannelMetrics <em>ChannelMetrics</em>}.  Latencies are in microseconds
+ * and addressed by stage name, see {@link #getLatencyStages() <em>getLatencyStages</em>}.
+ */
+public interface ChannelMetricsMBean {
+	/**
+	 * @return the friendy name of the channel
+	 */
+	public String getName();
+	/**
+	 * @return the number of messages published
+	 */
+	public long getMessagesSent();
+	/**
+	 * @return the number of messages received, including ping and handshake messages
+	 */
+	public long getMessagesReceived();
+	/**
+	 * @return the number of encoded bytes published
+	 */
+	public long getBytesSent();
+	/**
+	 * @return the number of encoded bytes received
+	 */
+	public long getBytesReceived();
+	/**
+	 * @return the number of failed sends
+	 */
+	public long getSendErrors();
+	/**
+	 * @return the number of reconnections to the broker
+	 */
+	public long getReconnects();
+	/**
+	 * @return the number of messages waiting in the incoming message queue
+	 */
+	public long getMsgQueueDepth();
+	/**
+	 * @return the number of messages waiting in the ping request queue
+	 */
+	public long getPingRequestQueueDepth();
+	/**
+	 * @return the number of messages waiting in the ping acknowledgement queue
+	 */
+	public long getPingAckQueueDepth();
+	/**
+	 * @return the number of messages waiting in the outbound pipeline
+	 */
+	public long getOutQueueDepth();
+	/**
+	 * @return the names of the latency stages
+	 */
+	public String[] getLatencyStages();
+	/**
+	 * @param stage	the stage name
+	 * @return the number of latencies recorded for the stage
+	 */
+	public long getLatencyCount(String stage);
+	/**
+	 * @param stage	the stage name
+	 * @return the mean latency of the stage in microseconds
+	 */
+	public double getLatencyMeanMicros(String stage);
+	/**
+	 * @param stage			the stage name
+	 * @param percentile	the percentile, 0 to 100
+	 * @return the latency of the stage at the percentile in microseconds
+	 */
+	public double getLatencyPercentileMicros(String stage, double percentile);
+	/**
+	 * Clear the latencies, so that the next reading covers a fresh interval.
+	 */
+	public void resetLatencies();
+}
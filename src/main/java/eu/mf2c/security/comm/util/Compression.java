@@ -0,0 +1,103 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Payload compression helper using the JDK Deflate implementation.  Compression must happen
+ * before encryption, as encrypted data does not compress.  The codec used is recorded in the
+ * message header as the ordinal of {@link Codec <em>Codec</em>}, so that other codecs can be added
+ * without breaking existing peers.
+ */
+public class Compression {
+	/** Suggested payload size in bytes below which compression is not attempted, compression is off unless a threshold is configured */
+	public static final int DEFAULT_THRESHOLD = 512;
+	/** Upper bound on the inflated size, guarding against decompression bombs */
+	public static final int MAX_INFLATED_BYTES = 16 * 1024 * 1024;
+	/** per thread deflater, these hold native memory and are expensive to create */
+	private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+	/** per thread inflater */
+	private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+	/**
+	 * Compression codecs, the ordinal is carried in the message header.
+	 */
+	public enum Codec {
+		/** not compressed */
+		NONE,
+		/** zlib Deflate */
+		DEFLATE
+	}
+
+	/**
+	 * Deflate the input if it is at least threshold bytes long and the result is smaller.
+	 * <p>
+	 * @param input		the uncompressed bytes
+	 * @param threshold	minimum input size in bytes, a negative value disables compression
+	 * @return	the compressed bytes, or null if the input was left uncompressed
+	 */
+	public static byte[] deflate(byte[] input, int threshold){
+		if(threshold < 0 || input.length < threshold){
+			return null;
+		}
+		Deflater deflater = DEFLATER.get();
+		deflater.reset();
+		deflater.setInput(input);
+		deflater.finish();
+		//anything not smaller than the input is not worth sending
+		byte[] output = new byte[input.length];
+		int length = 0;
+		while(!deflater.finished() && length < output.length){
+			length += deflater.deflate(output, length, output.length - length);
+		}
+		if(!deflater.finished()){
+			return null;
+		}
+		byte[] result = new byte[length];
+		System.arraycopy(output, 0, result, 0, length);
+		return result;
+	}
+
+	/**
+	 * Inflate Deflate compressed bytes.
+	 * <p>
+	 * @param input	the compressed bytes
+	 * @return	the uncompressed bytes
+	 * @throws DataFormatException if the input is corrupt or inflates beyond {@link #MAX_INFLATED_BYTES <em>MAX_INFLATED_BYTES</em>}
+	 */
+	public static byte[] inflate(byte[] input) throws DataFormatException {
+		Inflater inflater = INFLATER.get();
+		inflater.reset();
+		inflater.setInput(input);
+		ByteArrayOutputStream output = new ByteArrayOutputStream(input.length * 4);
+		byte[] buffer = new byte[8192];
+		while(!inflater.finished()){
+			int length = inflater.inflate(buffer);
+			if(length == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+				throw new DataFormatException("Truncated compressed payload");
+			}
+			output.write(buffer, 0, length);
+			if(output.size() > MAX_INFLATED_BYTES){
+				throw new DataFormatException("Compressed payload inflates beyond " + MAX_INFLATED_BYTES + " bytes");
+			}
+		}
+		return output.toByteArray();
+	}
+}
@@ -0,0 +1,109 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Last&#45;value&#45;wins queue.  Elements are keyed and an element replaces the pending element of the same
+ * key in place, so a key keeps its place in the queue and only its latest value is taken.  The queue holds at
+ * most one element per key, however many updates are put while the consumer is stalled.
+ *
+ * @param <K> the key type
+ * @param <E> the element type
+ */
+public class ConflatingQueue<K, E> {
+	/** the pending elements in queue order, the map keeps the first insertion order on replacement */
+	private final LinkedHashMap<K, E> pending = new LinkedHashMap<K, E>();
+	/** elements replaced before they were taken */
+	private final LongAdder conflated = new LongAdder();
+
+	/**
+	 * Add an element, replacing the pending element of the same key.
+	 * <p>
+	 * @param key	the key
+	 * @param e		the element
+	 * @return the replaced element or null
+	 */
+	public synchronized E put(K key, E e){
+		E old = this.pending.put(key, e);
+		if(old != null){
+			this.conflated.increment();
+		}
+		this.notifyAll();
+		return old;
+	}
+
+	/**
+	 * Add an element unless a newer one of the same key is already pending, e.g. to put back an element
+	 * that failed to send.  The element goes to the head of the queue.
+	 * <p>
+	 * @param key	the key
+	 * @param e		the element
+	 * @return false if a newer element is pending
+	 */
+	public synchronized boolean putBack(K key, E e){
+		if(this.pending.containsKey(key)){
+			return false;
+		}
+		LinkedHashMap<K, E> rest = new LinkedHashMap<K, E>(this.pending);
+		this.pending.clear();
+		this.pending.put(key, e);
+		this.pending.putAll(rest);
+		this.notifyAll();
+		return true;
+	}
+
+	/**
+	 * Take the element at the head of the queue, waiting for one if the queue is empty.
+	 * <p>
+	 * @param timeOut	longest wait in milliseconds
+	 * @return the element, or null if none arrived in time
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized E poll(long timeOut) throws InterruptedException{
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeOut);
+		while(this.pending.isEmpty()){
+			long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if(wait <= 0){
+				return null;
+			}
+			this.wait(wait);
+		}
+		Iterator<Map.Entry<K, E>> it = this.pending.entrySet().iterator();
+		E e = it.next().getValue();
+		it.remove();
+		return e;
+	}
+
+	/**
+	 * @return the number of pending elements, one per key at most
+	 */
+	public synchronized int size(){
+		return this.pending.size();
+	}
+
+	/**
+	 * @return the number of elements replaced before they were taken
+	 */
+	public long getConflated(){
+		return this.conflated.sum();
+	}
+}
@@ -0,0 +1,332 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import net.minidev.json.JSONValue;
+import net.minidev.json.parser.ParseException;
+
+import eu.mf2c.security.exception.MessageException;
+
+/**
+ * Delta codec for repetitive message streams.  The sender keeps the last message sent on each stream as the
+ * base and sends only the fields that changed since, with a full keyframe every
+ * {@link #keyframeInterval <em>keyframeInterval</em>} messages, whenever the base is unknown and whenever the
+ * delta would not be smaller.  The receiver keeps the last few messages of each stream and rebuilds the full
+ * key values from the base the delta names.  Fields holding a Json object as a {@link java.lang.String <em>String</em>},
+ * e.g. a telemetry payload, are diffed field by field if the string is already in canonical form, compact Json with
+ * sorted keys, so that they are delivered byte for byte as sent.  Other strings are sent whole when they change.
+ * <p>
+ * A frame carries a digest of the canonical form of the full key values.  It is checked once the receiver has
+ * rebuilt them, and as the frame is signed with the message, the rebuilt content is as authentic as a full
+ * message.  A mismatch or a missing base drops the message until the next keyframe.
+ * <p>
+ * A frame is a Json object&#58;
+ * <ul>
+ * <ui>sq&#58; the frame sequence number in the stream</ui>
+ * <ui>b&#58; the sequence number of the base, absent for a keyframe</ui>
+ * <ui>f&#58; the full key values of a keyframe</ui>
+ * <ui>s&#58; the fields set by a delta</ui>
+ * <ui>d&#58; the fields removed by a delta</ui>
+ * <ui>n&#58; the deltas of the Json object fields</ui>
+ * <ui>j&#58; the fields carried as Json object strings</ui>
+ * <ui>h&#58; the canonical form digest</ui>
+ * </ul>
+ */
+public class DeltaCodec {
+	/** header key of the stream name of a delta encoded message */
+	public static final String KEY = "dlt";
+	/** default number of messages between keyframes */
+	public static final int DEFAULT_KEYFRAME_INTERVAL = 16;
+	/** number of bases kept per received stream, deltas may be built on any of them */
+	private static final int HISTORY = 4;
+	/** number of messages between keyframes */
+	private final int keyframeInterval;
+	/** the base of each sent stream */
+	private final HashMap<String, Base> sent = new HashMap<String, Base>();
+	/** the next sequence number of each sent stream */
+	private final HashMap<String, Long> sequences = new HashMap<String, Long>();
+	/** the last messages of each received stream, keyed on sequence number */
+	private final HashMap<String, LinkedHashMap<Long, Base>> received = new HashMap<String, LinkedHashMap<Long, Base>>();
+
+	/**
+	 * A message of a stream.
+	 */
+	private static class Base {
+		/** sequence number */
+		final long seq;
+		/** key values with the Json object strings expanded */
+		final Map<String, Object> fields;
+		/** the expanded fields */
+		final TreeSet<String> json;
+		/** frames since the last keyframe */
+		final int sinceKeyframe;
+
+		Base(long seq, Map<String, Object> fields, TreeSet<String> json, int sinceKeyframe){
+			this.seq = seq;
+			this.fields = fields;
+			this.json = json;
+			this.sinceKeyframe = sinceKeyframe;
+		}
+	}
+
+	/**
+	 * Construct a codec.
+	 * <p>
+	 * @param keyframeInterval	number of messages between keyframes
+	 */
+	public DeltaCodec(int keyframeInterval){
+		this.keyframeInterval = Math.max(1, keyframeInterval);
+	}
+
+	/**
+	 * Encode the key values of the next message of a stream against the last one.
+	 * <p>
+	 * @param stream	the stream, including the recipient
+	 * @param fields	the key values
+	 * @return the frame as Json
+	 */
+	public synchronized String encode(String stream, Map<String, Object> fields){
+		TreeSet<String> json = new TreeSet<String>();
+		Map<String, Object> expanded = expand(fields, json);
+		long seq = this.sequences.merge(stream, 1L, Long::sum);
+		Base base = this.sent.get(stream);
+		HashMap<String, Object> frame = new HashMap<String, Object>();
+		frame.put("sq", seq);
+		frame.put("j", new ArrayList<String>(json));
+		frame.put("h", digest(restore(expanded, json)));
+		String encoded = null;
+		boolean keyframe = true;
+		if(base != null && base.sinceKeyframe + 1 < this.keyframeInterval && base.json.equals(json)){
+			frame.put("b", base.seq);
+			frame.putAll(diff(base.fields, expanded));
+			encoded = JSONValue.toJSONString(frame);
+			keyframe = false;
+		}
+		HashMap<String, Object> full = new HashMap<String, Object>(frame);
+		full.remove("b");
+		full.remove("s");
+		full.remove("d");
+		full.remove("n");
+		full.put("f", expanded);
+		String fullEncoded = JSONValue.toJSONString(full);
+		if(encoded == null || encoded.length() >= fullEncoded.length()){
+			encoded = fullEncoded;
+			keyframe = true;
+		}
+		this.sent.put(stream, new Base(seq, expanded, json, keyframe ? 0 : base.sinceKeyframe + 1));
+		return encoded;
+	}
+
+	/**
+	 * Forget the base of a sent stream, e.g. when a message failed to send, so the next message is a keyframe.
+	 * <p>
+	 * @param stream	the stream, including the recipient
+	 */
+	public synchronized void reset(String stream){
+		this.sent.remove(stream);
+	}
+
+	/**
+	 * Rebuild the key values of a received frame.
+	 * <p>
+	 * @param stream	the stream, including the sender
+	 * @param encoded	the frame as Json
+	 * @return the key values
+	 * @throws MessageException if the frame is malformed, its base is unknown or the digest does not match
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized HashMap<String, Object> decode(String stream, String encoded) throws MessageException{
+		Map<String, Object> frame;
+		try{
+			frame = (Map<String, Object>) JSONValue.parseStrict(encoded);
+		}catch(ParseException | ClassCastException e){
+			throw new MessageException("Malformed delta frame : " + e.getMessage());
+		}
+		if(!(frame.get("sq") instanceof Number) || !(frame.get("j") instanceof List) || !(frame.get("h") instanceof String)){
+			throw new MessageException("Malformed delta frame!");
+		}
+		long seq = ((Number) frame.get("sq")).longValue();
+		TreeSet<String> json = new TreeSet<String>((List<String>) frame.get("j"));
+		LinkedHashMap<Long, Base> history = this.received.computeIfAbsent(stream, k -> new LinkedHashMap<Long, Base>());
+		Map<String, Object> expanded;
+		if(frame.get("f") instanceof Map){
+			expanded = (Map<String, Object>) frame.get("f");
+		}else{
+			Base base = (frame.get("b") instanceof Number ? history.get(((Number) frame.get("b")).longValue()) : null);
+			if(base == null){
+				throw new MessageException("Unknown delta base " + frame.get("b") + " of stream " + stream + ", waiting for a keyframe");
+			}
+			expanded = patch(base.fields, frame);
+		}
+		HashMap<String, Object> fields = restore(expanded, json);
+		if(!digest(fields).equals(frame.get("h"))){
+			throw new MessageException("Delta frame " + seq + " of stream " + stream + " does not match its digest");
+		}
+		history.put(seq, new Base(seq, expanded, json, 0));
+		if(history.size() > HISTORY){
+			history.remove(history.keySet().iterator().next());
+		}
+		return fields;
+	}
+
+	////////////////////////////////////////////////////utilties////////////////////////////////////////////////
+
+	/**
+	 * Parse the Json object strings that are in canonical form, only these are restored byte for byte.
+	 */
+	private static Map<String, Object> expand(Map<String, Object> fields, TreeSet<String> json){
+		HashMap<String, Object> expanded = new HashMap<String, Object>(fields);
+		for(Map.Entry<String, Object> entry : fields.entrySet()){
+			if(entry.getValue() instanceof String && ((String) entry.getValue()).startsWith("{")){
+				try{
+					Object parsed = JSONValue.parseStrict((String) entry.getValue());
+					if(parsed instanceof Map && JSONValue.toJSONString(canonical(parsed)).equals(entry.getValue())){
+						expanded.put(entry.getKey(), parsed);
+						json.add(entry.getKey());
+					}
+				}catch(ParseException e){
+					//not Json, an ordinary string
+				}
+			}
+		}
+		return expanded;
+	}
+
+	/**
+	 * Turn the expanded fields back into Json object strings with sorted keys.
+	 */
+	private static HashMap<String, Object> restore(Map<String, Object> expanded, TreeSet<String> json){
+		HashMap<String, Object> fields = new HashMap<String, Object>(expanded);
+		for(String key : json){
+			fields.put(key, JSONValue.toJSONString(canonical(expanded.get(key))));
+		}
+		return fields;
+	}
+
+	/**
+	 * @return the changes from base to current as the s, d and n frame entries
+	 */
+	@SuppressWarnings("unchecked")
+	private static HashMap<String, Object> diff(Map<String, Object> base, Map<String, Object> current){
+		HashMap<String, Object> set = new HashMap<String, Object>();
+		HashMap<String, Object> nested = new HashMap<String, Object>();
+		ArrayList<String> deleted = new ArrayList<String>();
+		for(Map.Entry<String, Object> entry : current.entrySet()){
+			Object old = base.get(entry.getKey());
+			if(old instanceof Map && entry.getValue() instanceof Map){
+				HashMap<String, Object> sub = diff((Map<String, Object>) old, (Map<String, Object>) entry.getValue());
+				if(!sub.isEmpty()){
+					nested.put(entry.getKey(), sub);
+				}
+			}else if(!base.containsKey(entry.getKey()) || !Objects.equals(old, entry.getValue())){
+				set.put(entry.getKey(), entry.getValue());
+			}
+		}
+		for(String key : base.keySet()){
+			if(!current.containsKey(key)){
+				deleted.add(key);
+			}
+		}
+		HashMap<String, Object> changes = new HashMap<String, Object>();
+		if(!set.isEmpty()){
+			changes.put("s", set);
+		}
+		if(!deleted.isEmpty()){
+			changes.put("d", deleted);
+		}
+		if(!nested.isEmpty()){
+			changes.put("n", nested);
+		}
+		return changes;
+	}
+
+	/**
+	 * @return the base with the s, d and n frame entries applied
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> patch(Map<String, Object> base, Map<String, Object> changes) throws MessageException{
+		HashMap<String, Object> patched = new HashMap<String, Object>(base);
+		try{
+			if(changes.get("d") != null){
+				for(Object key : (List<Object>) changes.get("d")){
+					patched.remove(key);
+				}
+			}
+			if(changes.get("s") != null){
+				patched.putAll((Map<String, Object>) changes.get("s"));
+			}
+			if(changes.get("n") != null){
+				for(Map.Entry<String, Object> entry : ((Map<String, Object>) changes.get("n")).entrySet()){
+					patched.put(entry.getKey(), patch((Map<String, Object>) base.get(entry.getKey()), (Map<String, Object>) entry.getValue()));
+				}
+			}
+		}catch(ClassCastException | NullPointerException e){
+			throw new MessageException("Malformed delta frame : " + e.getMessage());
+		}
+		return patched;
+	}
+
+	/**
+	 * @return a copy with the maps sorted on key, at every level
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object canonical(Object value){
+		if(value instanceof Map){
+			TreeMap<String, Object> sorted = new TreeMap<String, Object>();
+			for(Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()){
+				sorted.put(entry.getKey(), canonical(entry.getValue()));
+			}
+			return sorted;
+		}
+		if(value instanceof List){
+			ArrayList<Object> list = new ArrayList<Object>();
+			for(Object item : (List<Object>) value){
+				list.add(canonical(item));
+			}
+			return list;
+		}
+		if(value instanceof Object[]){
+			return canonical(Arrays.asList((Object[]) value));
+		}
+		return value;
+	}
+
+	/**
+	 * @return the base64 SHA&#45;256 digest of the canonical Json form, truncated to 128 bits
+	 */
+	private static String digest(Map<String, Object> fields){
+		try{
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(JSONValue.toJSONString(canonical(fields)).getBytes(StandardCharsets.UTF_8));
+			return Base64.getEncoder().encodeToString(Arrays.copyOf(hash, 16));
+		}catch(Exception e){
+			//SHA-256 is always available
+			throw new IllegalStateException(e);
+		}
+	}
+}
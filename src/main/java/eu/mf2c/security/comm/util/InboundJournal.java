@@ -0,0 +1,347 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Crash&#45;safe journal of incoming messages stored in a memory&#45;mapped {@link SegmentLog <em>SegmentLog</em>}.
+ * <p>
+ * A protocol handler appends the raw bytes of each message as it arrives and registers a callback, normally
+ * the transport acknowledgement, with {@link #whenDurable(long, Runnable) <em>whenDurable</em>}.  A flusher
+ * thread syncs the log every {@link #syncInterval <em>syncInterval</em>} milliseconds, or sooner once
+ * {@link #maxBatch <em>maxBatch</em>} messages are waiting, and then runs the callbacks of the whole batch.
+ * A message is therefore never acknowledged before it is on disk, and the fsync is paid once per batch.
+ * <p>
+ * The application marks a message consumed with {@link #markConsumed(long) <em>markConsumed</em>}.  The position
+ * of the oldest unconsumed message is checkpointed in the log and whole segments before it are deleted.  After a
+ * restart, {@link #replay(EntryVisitor) <em>replay</em>} hands back every message that was not consumed, giving
+ * at&#45;least&#45;once processing.  Messages that are never marked consumed keep the journal growing, so a warning is
+ * logged once more than {@link #maxOutstanding <em>maxOutstanding</em>} of them are outstanding.
+ */
+public class InboundJournal implements Runnable {
+	/** message logger */
+	private static final Logger LOGGER = Logger.getLogger(InboundJournal.class.getName());
+	/** record type for a message */
+	private static final byte REC_MESSAGE = 1;
+	/** record type for a consumed checkpoint */
+	private static final byte REC_COMMIT = 2;
+	/** default number of outstanding messages above which a warning is logged */
+	public static final int DEFAULT_MAX_OUTSTANDING = 100000;
+
+	/**
+	 * Callback used to hand back unconsumed messages.
+	 */
+	public interface EntryVisitor {
+		/**
+		 * Visit an unconsumed message.
+		 * <p>
+		 * @param position	the journal position of the message
+		 * @param topic		the topic the message arrived on
+		 * @param payload	the raw message bytes
+		 */
+		public void visit(long position, String topic, byte[] payload);
+	}
+
+	/** the underlying log */
+	private final SegmentLog log;
+	/** maximum time in milliseconds a message waits for its sync */
+	private final long syncInterval;
+	/** number of waiting messages that triggers an early sync */
+	private final int maxBatch;
+	/** positions appended but not yet consumed */
+	private final ConcurrentSkipListSet<Long> outstanding = new ConcurrentSkipListSet<Long>();
+	/** number of positions in {@link #outstanding <em>outstanding</em>}, whose size is not a constant time count */
+	private final AtomicInteger outstandingCount = new AtomicInteger();
+	/** number of outstanding messages above which a warning is logged */
+	private final int maxOutstanding;
+	/** true from the warning until the outstanding messages fall back below half the limit */
+	private volatile boolean overLimit = false;
+	/** lock guarding the pending batch */
+	private final Object batchLock = new Object();
+	/** highest position waiting for a sync */
+	private long pendingPosition = -1;
+	/** callbacks waiting for the sync */
+	private List<Runnable> pendingCallbacks = new ArrayList<Runnable>();
+	/** last checkpointed consumed position */
+	private long checkpoint = 0;
+	/** position of the latest message record */
+	private volatile long lastMessage = -1;
+	/** flag indicating state of the flusher thread */
+	private volatile boolean keepRunning = true;
+	/** the flusher thread */
+	private final Thread flusher;
+
+	/**
+	 * Open a journal and start its flusher thread, warning above {@link #DEFAULT_MAX_OUTSTANDING <em>DEFAULT_MAX_OUTSTANDING</em>}
+	 * outstanding messages.
+	 * <p>
+	 * @param directory		the journal directory
+	 * @param segmentSize	size of the segment files in bytes
+	 * @param syncInterval	maximum time in milliseconds between syncs
+	 * @param maxBatch		number of waiting messages that triggers an early sync
+	 * @throws IOException on file errors
+	 */
+	public InboundJournal(File directory, int segmentSize, long syncInterval, int maxBatch) throws IOException {
+		this(directory, segmentSize, syncInterval, maxBatch, DEFAULT_MAX_OUTSTANDING);
+	}
+
+	/**
+	 * Open a journal and start its flusher thread.
+	 * <p>
+	 * @param directory			the journal directory
+	 * @param segmentSize		size of the segment files in bytes
+	 * @param syncInterval		maximum time in milliseconds between syncs
+	 * @param maxBatch			number of waiting messages that triggers an early sync
+	 * @param maxOutstanding	number of outstanding messages above which a warning is logged
+	 * @throws IOException on file errors
+	 */
+	public InboundJournal(File directory, int segmentSize, long syncInterval, int maxBatch, int maxOutstanding) throws IOException {
+		this.log = new SegmentLog(directory, segmentSize);
+		this.syncInterval = syncInterval;
+		this.maxBatch = maxBatch;
+		this.maxOutstanding = maxOutstanding;
+		this.flusher = new Thread(this, "InboundJournal-" + directory.getName());
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	/**
+	 * Append a message.  It is not durable until the callbacks registered for its position have run.
+	 * <p>
+	 * @param topic		the topic the message arrived on
+	 * @param payload	the raw message bytes
+	 * @return the journal position of the message
+	 * @throws IOException on file errors
+	 */
+	public long append(String topic, byte[] payload) throws IOException {
+		byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer body = ByteBuffer.allocate(1 + 2 + topicBytes.length + payload.length);
+		body.put(REC_MESSAGE).putShort((short) topicBytes.length).put(topicBytes).put(payload);
+		long position = this.log.append(body.array());
+		this.addOutstanding(position);
+		this.lastMessage = position;
+		return position;
+	}
+
+	/**
+	 * Run a callback once the message at the given position is durable.  The callback runs on the flusher thread.
+	 * <p>
+	 * @param position	the journal position
+	 * @param callback	the callback, e.g. the broker acknowledgement
+	 */
+	public void whenDurable(long position, Runnable callback){
+		synchronized(this.batchLock){
+			this.pendingPosition = Math.max(this.pendingPosition, position);
+			this.pendingCallbacks.add(callback);
+			if(this.pendingCallbacks.size() >= this.maxBatch){
+				this.batchLock.notify();
+			}
+		}
+	}
+
+	/**
+	 * Mark the message at the given position as consumed by the application.
+	 * <p>
+	 * @param position	the journal position
+	 */
+	public void markConsumed(long position){
+		if(this.outstanding.remove(position)){
+			int count = this.outstandingCount.decrementAndGet();
+			if(this.overLimit && count < this.maxOutstanding / 2){
+				this.overLimit = false;
+				LOGGER.info("The inbound journal is back to " + count + " outstanding message(s)");
+			}
+		}
+	}
+
+	/**
+	 * @return the number of messages not yet consumed
+	 */
+	public int getOutstanding(){
+		return this.outstandingCount.get();
+	}
+
+	/**
+	 * Hand back every message that was not consumed before the journal was last closed.  Call this
+	 * once after opening the journal and before appending.
+	 * <p>
+	 * @param visitor	the {@link EntryVisitor <em>EntryVisitor</em>}
+	 * @throws IOException on file errors
+	 */
+	public void replay(EntryVisitor visitor) throws IOException {
+		final long[] consumed = {0};
+		final ArrayList<Long> positions = new ArrayList<Long>();
+		final ArrayList<byte[]> records = new ArrayList<byte[]>();
+		this.log.scan(0, (position, body) -> {
+			if(body[0] == REC_COMMIT){
+				consumed[0] = ByteBuffer.wrap(body, 1, 8).getLong();
+			}else{
+				positions.add(position);
+				records.add(body);
+			}
+		});
+		this.checkpoint = consumed[0];
+		if(!positions.isEmpty()){
+			this.lastMessage = positions.get(positions.size() - 1);
+		}
+		int count = 0;
+		for(int i = 0; i < positions.size(); i++){
+			long position = positions.get(i);
+			if(position < consumed[0]){
+				continue;
+			}
+			ByteBuffer body = ByteBuffer.wrap(records.get(i));
+			body.get();
+			byte[] topic = new byte[body.getShort()];
+			body.get(topic);
+			byte[] payload = new byte[body.remaining()];
+			body.get(payload);
+			this.addOutstanding(position);
+			visitor.visit(position, new String(topic, StandardCharsets.UTF_8), payload);
+			count++;
+		}
+		LOGGER.info("Replayed " + count + " unconsumed message(s) from the inbound journal");
+	}
+
+	/**
+	 * Stop the flusher thread, run the outstanding callbacks and close the journal.
+	 */
+	public void close(){
+		this.keepRunning = false;
+		synchronized(this.batchLock){
+			this.batchLock.notify();
+		}
+		try {
+			this.flusher.join(this.syncInterval * 10);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.flush();
+		this.log.close();
+	}
+
+	/**
+	 * Sync the pending batch and run its callbacks.
+	 */
+	@Override
+	public void run() {
+		boolean synced = true;
+		while(this.keepRunning){
+			synchronized(this.batchLock){
+				//after a failed sync the batch is full again, wait before retrying it
+				if((this.pendingCallbacks.size() < this.maxBatch || !synced) && this.keepRunning){
+					try {
+						this.batchLock.wait(this.syncInterval);
+					} catch (InterruptedException e) {
+						LOGGER.info("InboundJournal flusher interrupted : " + e.getMessage());
+					}
+				}
+			}
+			synced = this.flush();
+		}
+		LOGGER.debug("InboundJournal flusher stopping.....");
+	}
+
+	//////////////////////////////////////////////////////utilities////////////////////////////////////////////////////
+	/**
+	 * Record an appended or replayed position as outstanding and warn if too many are.
+	 */
+	private void addOutstanding(long position){
+		if(this.outstanding.add(position)){
+			int count = this.outstandingCount.incrementAndGet();
+			if(!this.overLimit && count > this.maxOutstanding){
+				this.overLimit = true;
+				LOGGER.warn("The inbound journal holds " + count + " messages that were not committed and keeps growing until they are, "
+						+ "the application must commit the messages it has processed");
+			}
+		}
+	}
+
+	/**
+	 * Sync the batch, run its callbacks, then checkpoint the consumed position and drop dead segments.  If the sync
+	 * fails the batch is put back, ahead of the callbacks registered since, and retried on the next flush.
+	 * <p>
+	 * @return false if the sync failed
+	 */
+	private boolean flush(){
+		long position;
+		List<Runnable> callbacks;
+		synchronized(this.batchLock){
+			position = this.pendingPosition;
+			callbacks = this.pendingCallbacks;
+			this.pendingPosition = -1;
+			this.pendingCallbacks = new ArrayList<Runnable>();
+		}
+		try {
+			if(position >= 0){
+				this.log.sync(position);
+			}
+		} catch (Exception e) {
+			LOGGER.error("Error syncing the inbound journal, " + callbacks.size() + " callback(s) put back : " + e.getMessage());
+			synchronized(this.batchLock){
+				callbacks.addAll(this.pendingCallbacks);
+				this.pendingCallbacks = callbacks;
+				this.pendingPosition = Math.max(this.pendingPosition, position);
+			}
+			return false;
+		}
+		for(Runnable callback : callbacks){
+			try {
+				callback.run();
+			} catch (RuntimeException e) {
+				LOGGER.error("Error running an inbound journal callback : " + e.getMessage());
+			}
+		}
+		try {
+			this.checkpointConsumed();
+		} catch (Exception e) {
+			//retried on the next flush
+			LOGGER.error("Error checkpointing the inbound journal : " + e.getMessage());
+		}
+		return true;
+	}
+
+	/**
+	 * Record the position of the oldest unconsumed message if it has moved on.
+	 */
+	private void checkpointConsumed() throws IOException {
+		Long oldest = this.outstanding.isEmpty() ? null : this.outstanding.first();
+		//with nothing outstanding everything up to the latest message is consumed, checkpoint records do not count
+		long consumed = (oldest == null ? this.lastMessage + 1 : oldest);
+		if(consumed <= this.checkpoint){
+			return;
+		}
+		ByteBuffer body = ByteBuffer.allocate(9);
+		body.put(REC_COMMIT).putLong(consumed);
+		long position = this.log.append(body.array());
+		this.log.sync(position);
+		this.checkpoint = consumed;
+		int deleted = this.log.truncateBefore(consumed);
+		if(deleted > 0){
+			LOGGER.debug("Deleted " + deleted + " consumed journal segment(s)");
+		}
+	}
+}
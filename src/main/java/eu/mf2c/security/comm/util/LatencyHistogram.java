@@ -0,0 +1,190 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.util;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Fixed&#45;memory histogram of non&#45;negative long values, such as latencies in nanoseconds.  Values are
+ * counted in log&#45;linear buckets&#58; each power of two is split into 128 sub&#45;buckets, so a recorded value is
+ * reported as the highest value of its sub&#45;bucket, within 0.8&#37; of the value, over the whole long range.
+ * This is the layout of an HdrHistogram with two significant digits, and
+ * {@link #outputPercentileDistribution(PrintStream, double) <em>outputPercentileDistribution</em>} writes the
+ * HdrHistogram <code>.hgrm</code> text format, so the output can be plotted with the HdrHistogram tools.
+ * <p>
+ * Recording is not thread safe.  Keep one histogram per thread and {@link #add(LatencyHistogram) <em>add</em>} them.
+ */
+public class LatencyHistogram {
+	/** sub&#45;bucket bits */
+	private static final int SUB_BITS = 7;
+	/** sub&#45;buckets per power of two */
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	/** values below this are counted exactly */
+	private static final int LINEAR = SUB_COUNT << 1;
+	/** the counts */
+	private final long[] counts = new long[LINEAR + (63 - SUB_BITS - 1) * SUB_COUNT];
+	/** total count */
+	private long total = 0;
+	/** smallest value recorded */
+	private long min = Long.MAX_VALUE;
+	/** largest value recorded */
+	private long max = 0;
+	/** sum of the values */
+	private double sum = 0;
+	/** sum of the squared values */
+	private double sumSquares = 0;
+
+	/**
+	 * Record a value.  Negative values are recorded as zero.
+	 * <p>
+	 * @param value	the value
+	 */
+	public void record(long value){
+		long v = Math.max(0, value);
+		this.counts[index(v)]++;
+		this.total++;
+		this.min = Math.min(this.min, v);
+		this.max = Math.max(this.max, v);
+		this.sum += v;
+		this.sumSquares += (double) v * v;
+	}
+
+	/**
+	 * Add the counts of another histogram.
+	 * <p>
+	 * @param other	the other histogram
+	 */
+	public void add(LatencyHistogram other){
+		for(int i = 0; i < this.counts.length; i++){
+			this.counts[i] += other.counts[i];
+		}
+		this.total += other.total;
+		this.min = Math.min(this.min, other.min);
+		this.max = Math.max(this.max, other.max);
+		this.sum += other.sum;
+		this.sumSquares += other.sumSquares;
+	}
+
+	/**
+	 * Clear the histogram.
+	 */
+	public void reset(){
+		Arrays.fill(this.counts, 0);
+		this.total = 0;
+		this.min = Long.MAX_VALUE;
+		this.max = 0;
+		this.sum = 0;
+		this.sumSquares = 0;
+	}
+
+	/////////////////////////////////////////////////statistics//////////////////////////////////////////////////
+	public long getCount(){
+		return this.total;
+	}
+	public long getMin(){
+		return (this.total == 0 ? 0 : this.min);
+	}
+	public long getMax(){
+		return this.max;
+	}
+	public double getMean(){
+		return (this.total == 0 ? 0 : this.sum / this.total);
+	}
+	public double getStdDeviation(){
+		if(this.total == 0){
+			return 0;
+		}
+		double mean = this.getMean();
+		return Math.sqrt(Math.max(0, this.sumSquares / this.total - mean * mean));
+	}
+
+	/**
+	 * @param percentile	the percentile, 0 to 100
+	 * @return the value at or below which the given percentage of the values lie
+	 */
+	public long getValueAtPercentile(double percentile){
+		if(this.total == 0){
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * this.total));
+		long seen = 0;
+		for(int i = 0; i < this.counts.length; i++){
+			seen += this.counts[i];
+			if(seen >= target){
+				return Math.min(highestEquivalent(i), this.max);
+			}
+		}
+		return this.max;
+	}
+
+	/**
+	 * Write the percentile distribution in the HdrHistogram <code>.hgrm</code> format, five reporting ticks per
+	 * halving of the distance to the 100th percentile.
+	 * <p>
+	 * @param out	the stream
+	 * @param scale	values are divided by this, e.g. 1000.0 to report nanoseconds in microseconds
+	 */
+	public void outputPercentileDistribution(PrintStream out, double scale){
+		out.println(String.format("%12s %14s %10s %14s%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)"));
+		if(this.total > 0){
+			double percentile = 0;
+			for(int half = 0; ; half++){
+				double step = Math.pow(0.5, half + 1) / 5;
+				for(int tick = 0; tick < 5; tick++, percentile += step){
+					long value = this.getValueAtPercentile(percentile * 100);
+					long below = this.countAtOrBelow(value);
+					out.println(String.format("%12.3f %2.12f %10d %14.2f", value / scale, percentile, below, 1 / (1 - percentile)));
+					if(below >= this.total){
+						break;
+					}
+				}
+				if(this.countAtOrBelow(this.getValueAtPercentile(percentile * 100)) >= this.total || half > 40){
+					break;
+				}
+			}
+			out.println(String.format("%12.3f %2.12f %10d", this.max / scale, 1.0, this.total));
+		}
+		out.println(String.format("#[Mean    = %12.3f, StdDeviation   = %12.3f]", this.getMean() / scale, this.getStdDeviation() / scale));
+		out.println(String.format("#[Max     = %12.3f, Total count    = %12d]", this.max / scale, this.total));
+		out.println(String.format("#[Buckets = %12d, SubBuckets     = %12d]", (this.counts.length - LINEAR) / SUB_COUNT + 1, LINEAR));
+	}
+
+	//////////////////////////////////////////////////////utilities////////////////////////////////////////////////////
+	private long countAtOrBelow(long value){
+		long seen = 0;
+		int last = index(value);
+		for(int i = 0; i <= last; i++){
+			seen += this.counts[i];
+		}
+		return seen;
+	}
+	private static int index(long v){
+		if(v < LINEAR){
+			return (int) v;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+		return LINEAR + (shift - 1) * SUB_COUNT + (int) ((v >>> shift) - SUB_COUNT);
+	}
+	private static long highestEquivalent(int index){
+		if(index < LINEAR){
+			return index;
+		}
+		int shift = (index - LINEAR) / SUB_COUNT + 1;
+		long lowest = ((long) (SUB_COUNT + (index - LINEAR) % SUB_COUNT)) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Retains the latest messages sent to each recipient, keyed on their sequence number, so that a recipient that
+ * missed some can ask for them again.  At most the capacity is retained per recipient, the oldest messages are
+ * dropped first.  The messages must be retained in sequence order.
+ *
+ * @param <E> the element type
+ */
+public class Outbox<E> {
+	/** the retained messages keyed on recipient, oldest first */
+	private final HashMap<String, ArrayDeque<Entry<E>>> retained = new HashMap<String, ArrayDeque<Entry<E>>>();
+	/** maximum number of messages retained per recipient */
+	private final int capacity;
+	/** number of messages retained */
+	private int size = 0;
+
+	/**
+	 * A retained message.
+	 * <p>
+	 * @param <E> the element type
+	 */
+	public static class Entry<E> {
+		/** the sequence number */
+		public final long seq;
+		/** the message */
+		public final E item;
+
+		Entry(long seq, E item){
+			this.seq = seq;
+			this.item = item;
+		}
+	}
+
+	/**
+	 * Construct an outbox.
+	 * <p>
+	 * @param capacity	maximum number of messages retained per recipient
+	 */
+	public Outbox(int capacity){
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * Retain a message, dropping the oldest message of the recipient if it is full.
+	 * <p>
+	 * @param target	friendy name of the recipient
+	 * @param seq		sequence number of the message, above those already retained for the recipient
+	 * @param item		the message
+	 */
+	public synchronized void retain(String target, long seq, E item){
+		ArrayDeque<Entry<E>> entries = this.retained.computeIfAbsent(target, k -> new ArrayDeque<Entry<E>>());
+		if(entries.size() >= this.capacity){
+			entries.pollFirst();
+			this.size--;
+		}
+		entries.addLast(new Entry<E>(seq, item));
+		this.size++;
+	}
+
+	/**
+	 * Get the retained messages of a recipient from a sequence number on.
+	 * <p>
+	 * @param target	friendy name of the recipient
+	 * @param from		the first sequence number wanted
+	 * @param max		maximum number of messages returned
+	 * @return the messages in sequence order, possibly none
+	 */
+	public synchronized List<Entry<E>> range(String target, long from, int max){
+		List<Entry<E>> range = new ArrayList<Entry<E>>();
+		ArrayDeque<Entry<E>> entries = this.retained.get(target);
+		if(entries == null){
+			return range;
+		}
+		for(Entry<E> entry : entries){
+			if(range.size() >= max){
+				break;
+			}
+			if(entry.seq >= from){
+				range.add(entry);
+			}
+		}
+		return range;
+	}
+
+	/**
+	 * @param target	friendy name of the recipient
+	 * @return the sequence number of the oldest message retained for the recipient, or -1 if there is none
+	 */
+	public synchronized long first(String target){
+		ArrayDeque<Entry<E>> entries = this.retained.get(target);
+		return (entries == null || entries.isEmpty() ? -1 : entries.peekFirst().seq);
+	}
+
+	/**
+	 * @return the number of messages retained
+	 */
+	public synchronized int size(){
+		return this.size;
+	}
+}
@@ -18,7 +18,7 @@ package eu.mf2c.security.comm.util;
 /**
  * An {@link java.lang.Enum Enum <em>Enum<em>} of communication protocols supported in mF2C.
  * Based on the prototype created by Cheney Ketley.
- * In Iteration 1, mF2C only supports MQTT, HTTP and BLE.
+ * In Iteration 1, mF2C only supports MQTT, HTTP and BLE.  COAP was added for constrained fog devices.
  * <p>
  * @author Shirley Crompton
  * @email  shirley.crompton@stfc.ac.uk
@@ -34,6 +34,10 @@ public enum Protocol {
     HTTP,
     /** Bluetooth Low Energy communication protocol */
     BLE,
+    /** COAP communication protocol */
+    COAP,
+    /** In-memory transport between channels of the same JVM */
+    LOOPBACK,
     /** Bluetooth communication protocol */
     /* these are not yet implemented
     B,
@@ -41,8 +45,6 @@ public enum Protocol {
     LORA,
     /** LORA Wide Area Network communication protocol 
     LORAWAN,
-    /** COAP communication protocol 
-    COAP,
     /** ZIGBEE communication protocol 
     ZIGBEE,
     /** SIGFOX communication protocol 
@@ -0,0 +1,329 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Bounded per&#45;source reorder buffer.  Each source numbers its messages from 0 at the start of its session and
+ * the buffer releases them in that order.  A message arriving ahead of a missing one is held until the missing one
+ * arrives, until the gap is older than the time out or until the source has more messages held than the capacity.
+ * The gap is then skipped and reported to the {@link GapListener <em>GapListener</em>}.  Messages arriving after
+ * their place was released, i.e. late or duplicated, are dropped and handed to the drop listener.  A new session of a source releases whatever is
+ * held from the previous one and starts from message 0.  A buffer joining a session late waits
+ * for the earlier messages like for any other gap.
+ * <p>
+ * The buffer has no thread of its own, the owner checks the gap time outs with {@link #expire(long) <em>expire</em>}.
+ *
+ * @param <E> the element type
+ */
+public class ReorderBuffer<E> {
+	/** default maximum number of messages held per source */
+	public static final int DEFAULT_CAPACITY = 256;
+	/** the sources keyed on name */
+	private final HashMap<String, Stream<E>> streams = new HashMap<String, Stream<E>>();
+	/** longest time in milliseconds a gap holds up its source */
+	private final long timeOut;
+	/** maximum number of messages held per source */
+	private final int capacity;
+	/** notified of the skipped gaps */
+	private final GapListener listener;
+	/** handed the messages dropped as late or duplicated */
+	private final Consumer<E> dropped;
+	/** number of messages held */
+	private int held = 0;
+	/** gaps skipped */
+	private final LongAdder gaps = new LongAdder();
+	/** messages skipped in the gaps */
+	private final LongAdder missing = new LongAdder();
+	/** messages dropped as late or duplicated */
+	private final LongAdder late = new LongAdder();
+
+	/**
+	 * Notified of a skipped gap.
+	 */
+	public interface GapListener {
+		/**
+		 * @param source	the source name
+		 * @param session	the source session
+		 * @param first		sequence number of the first missing message
+		 * @param last		sequence number of the last missing message
+		 */
+		void gap(String source, String session, long first, long last);
+	}
+
+	/**
+	 * The state of a source.
+	 */
+	private static class Stream<E> {
+		/** the session of the source */
+		final String session;
+		/** sequence number of the next message to release */
+		long next;
+		/** messages held, keyed on sequence number */
+		final TreeMap<Long, E> held = new TreeMap<Long, E>();
+		/** time the gap at the head opened in milliseconds */
+		long since;
+
+		Stream(String session, long next){
+			this.session = session;
+			this.next = next;
+		}
+	}
+
+	/**
+	 * Construct a buffer.
+	 * <p>
+	 * @param timeOut	longest time in milliseconds a gap holds up its source
+	 * @param capacity	maximum number of messages held per source
+	 * @param listener	notified of the skipped gaps, may be null
+	 */
+	public ReorderBuffer(long timeOut, int capacity, GapListener listener){
+		this(timeOut, capacity, listener, null);
+	}
+
+	/**
+	 * Construct a buffer handing the messages it drops to the owner, e.g. to release their resources.
+	 * <p>
+	 * @param timeOut	longest time in milliseconds a gap holds up its source
+	 * @param capacity	maximum number of messages held per source
+	 * @param listener	notified of the skipped gaps, may be null
+	 * @param dropped	handed the messages dropped as late or duplicated, on the thread offering them, may be null
+	 */
+	public ReorderBuffer(long timeOut, int capacity, GapListener listener, Consumer<E> dropped){
+		this.timeOut = timeOut;
+		this.capacity = Math.max(1, capacity);
+		this.listener = listener;
+		this.dropped = dropped;
+	}
+
+	/**
+	 * Add a message and take the messages it releases.
+	 * <p>
+	 * @param source	the source name
+	 * @param session	the source session
+	 * @param seq		sequence number of the message in the session
+	 * @param e			the message
+	 * @param now		the current time in milliseconds
+	 * @return the released messages in order, possibly none
+	 */
+	public List<E> offer(String source, String session, long seq, E e, long now){
+		List<E> released = new ArrayList<E>();
+		List<long[]> skipped = new ArrayList<long[]>();
+		Stream<E> stream;
+		boolean drop = false;
+		synchronized(this){
+			stream = this.streams.get(source);
+			if(stream == null || !stream.session.equals(session)){
+				if(stream != null){
+					//the source restarted, what it sent before is not coming any more
+					this.held -= stream.held.size();
+					released.addAll(stream.held.values());
+				}
+				//sessions number from 0, the first message to arrive is not necessarily the first sent
+				stream = new Stream<E>(session, 0);
+				this.streams.put(source, stream);
+			}
+			if(seq < stream.next || stream.held.containsKey(seq)){
+				this.late.increment();
+				drop = true;
+			}else if(seq > stream.next){
+				if(stream.held.isEmpty()){
+					stream.since = now;
+				}
+				stream.held.put(seq, e);
+				this.held++;
+				if(stream.held.size() > this.capacity){
+					skipped.add(this.skip(stream, now, released));
+				}
+			}else{
+				released.add(e);
+				stream.next++;
+				this.release(stream, now, released);
+			}
+		}
+		if(drop && this.dropped != null){
+			this.dropped.accept(e);
+		}
+		this.report(source, stream.session, skipped);
+		return released;
+	}
+
+	/**
+	 * Skip the gaps older than the time out and take the messages released.
+	 * <p>
+	 * @param now	the current time in milliseconds
+	 * @return the released messages, in order per source
+	 */
+	public List<E> expire(long now){
+		List<E> released = new ArrayList<E>();
+		HashMap<String, List<long[]>> skipped = new HashMap<String, List<long[]>>();
+		HashMap<String, String> sessions = new HashMap<String, String>();
+		synchronized(this){
+			if(this.held == 0){
+				return released;
+			}
+			for(Map.Entry<String, Stream<E>> entry : this.streams.entrySet()){
+				Stream<E> stream = entry.getValue();
+				while(!stream.held.isEmpty() && now - stream.since >= this.timeOut){
+					skipped.computeIfAbsent(entry.getKey(), k -> new ArrayList<long[]>()).add(this.skip(stream, now, released));
+					sessions.put(entry.getKey(), stream.session);
+				}
+			}
+		}
+		for(Map.Entry<String, List<long[]>> entry : skipped.entrySet()){
+			this.report(entry.getKey(), sessions.get(entry.getKey()), entry.getValue());
+		}
+		return released;
+	}
+
+	/**
+	 * Skip to a sequence number of a source, e.g. when the source can no longer send the messages before it,
+	 * and take the messages released.  This has no effect unless the number is ahead of the next message of the
+	 * same session.
+	 * <p>
+	 * @param source	the source name
+	 * @param session	the source session
+	 * @param seq		sequence number of the next message the source can send
+	 * @param now		the current time in milliseconds
+	 * @return the released messages in order, possibly none
+	 */
+	public List<E> skipTo(String source, String session, long seq, long now){
+		List<E> released = new ArrayList<E>();
+		List<long[]> skipped = new ArrayList<long[]>();
+		synchronized(this){
+			Stream<E> stream = this.streams.get(source);
+			if(stream == null || !stream.session.equals(session) || seq <= stream.next){
+				return released;
+			}
+			//the messages held before the new start are released, they are not missing
+			while(!stream.held.isEmpty() && stream.held.firstKey() < seq){
+				skipped.add(this.skip(stream, now, released));
+			}
+			if(stream.next < seq){
+				this.gaps.increment();
+				this.missing.add(seq - stream.next);
+				skipped.add(new long[]{stream.next, seq - 1});
+				stream.next = seq;
+				this.release(stream, now, released);
+			}
+		}
+		this.report(source, session, skipped);
+		return released;
+	}
+
+	/**
+	 * @return the names of the sources seen
+	 */
+	public synchronized List<String> getSources(){
+		return new ArrayList<String>(this.streams.keySet());
+	}
+
+	/**
+	 * @param source	the source name
+	 * @return the session of the source, or null if the source is not known
+	 */
+	public synchronized String getSession(String source){
+		Stream<E> stream = this.streams.get(source);
+		return (stream == null ? null : stream.session);
+	}
+
+	/**
+	 * @param source	the source name
+	 * @return sequence number of the next message to release from the source, or -1 if the source is not known
+	 */
+	public synchronized long getNext(String source){
+		Stream<E> stream = this.streams.get(source);
+		return (stream == null ? -1 : stream.next);
+	}
+
+	/**
+	 * @return the number of messages held
+	 */
+	public synchronized int size(){
+		return this.held;
+	}
+
+	/**
+	 * @return the number of gaps skipped
+	 */
+	public long getGaps(){
+		return this.gaps.sum();
+	}
+
+	/**
+	 * @return the number of messages skipped in the gaps
+	 */
+	public long getMissing(){
+		return this.missing.sum();
+	}
+
+	/**
+	 * @return the number of messages dropped as late or duplicated
+	 */
+	public long getLate(){
+		return this.late.sum();
+	}
+
+	/**
+	 * Skip the gap at the head of a stream and release the messages after it.
+	 * <p>
+	 * @return the skipped range
+	 */
+	private long[] skip(Stream<E> stream, long now, List<E> released){
+		long first = stream.next;
+		long last = stream.held.firstKey() - 1;
+		this.gaps.increment();
+		this.missing.add(last - first + 1);
+		stream.next = last + 1;
+		this.release(stream, now, released);
+		return new long[]{first, last};
+	}
+
+	/**
+	 * Release the held messages following on from the next one, restarting the gap clock if one remains.
+	 */
+	private void release(Stream<E> stream, long now, List<E> released){
+		Iterator<Map.Entry<Long, E>> it = stream.held.entrySet().iterator();
+		while(it.hasNext()){
+			Map.Entry<Long, E> entry = it.next();
+			if(entry.getKey() != stream.next){
+				break;
+			}
+			released.add(entry.getValue());
+			it.remove();
+			this.held--;
+			stream.next++;
+		}
+		stream.since = now;
+	}
+
+	private void report(String source, String session, List<long[]> skipped){
+		if(this.listener == null){
+			return;
+		}
+		for(long[] range : skipped){
+			this.listener.gap(source, session, range[0], range[1]);
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.util;
+
+import java.util.Arrays;
+
+/**
+ * Receiver&#45;side replay filter.  A message is accepted once if its timestamp lies within
+ * &#177;{@link #window <em>window</em>} seconds of the local clock.  Accepted &#40;source, signing key, message id&#41;
+ * triples are reduced to a 64&#45;bit fingerprint and kept in compact open&#45;addressing sets, one per
+ * time bucket.  A replayed message carries the same timestamp, so only the bucket of its timestamp
+ * is checked, and buckets are recycled as the clock moves on, so memory stays bounded by the number
+ * of messages accepted within the window.
+ * <p>
+ * The header of a message is not trusted until its signature is verified.  {@link #isFresh(String, String, long, long, long) <em>isFresh</em>}
+ * only looks the message up, so replays can be dropped before the signature is verified, and the message is
+ * {@link #record(String, String, long, long, long) <em>recorded</em>} once it is.  A forged header therefore never
+ * blocks the genuine message, and a forgery signed with another key does not share its fingerprint.
+ */
+public class ReplayFilter {
+	/** acceptance window in seconds on either side of the local clock */
+	private final long window;
+	/** width of a bucket in seconds */
+	private final long bucketWidth;
+	/** fingerprint sets, one per bucket */
+	private final LongSet[] buckets;
+	/** the bucket number each slot currently holds */
+	private final long[] bucketIds;
+
+	/**
+	 * Construct an instance.
+	 * <p>
+	 * @param window		acceptance window in seconds
+	 * @param bucketWidth	width of a time bucket in seconds
+	 */
+	public ReplayFilter(long window, long bucketWidth) {
+		this.window = window;
+		this.bucketWidth = Math.max(1, bucketWidth);
+		//cover the past and future halves of the window plus a partial bucket at each end
+		int slots = (int) ((2 * window) / this.bucketWidth) + 2;
+		this.buckets = new LongSet[slots];
+		this.bucketIds = new long[slots];
+		Arrays.fill(this.bucketIds, Long.MIN_VALUE);
+		for(int i = 0; i < slots; i++){
+			this.buckets[i] = new LongSet();
+		}
+	}
+
+	/**
+	 * Look a message up without recording it.
+	 * <p>
+	 * @param source	friendy name of the sender
+	 * @param key		the sender&#39;s public key the message is signed with
+	 * @param msgId		the message id
+	 * @param timestamp	the send timestamp in epoch seconds
+	 * @param now		the local time in epoch seconds
+	 * @return true if the message is within the window and was not recorded, false if it is stale or a replay
+	 */
+	public synchronized boolean isFresh(String source, String key, long msgId, long timestamp, long now){
+		if(timestamp < now - this.window || timestamp > now + this.window){
+			return false;
+		}
+		long bucket = Math.floorDiv(timestamp, this.bucketWidth);
+		int slot = (int) Math.floorMod(bucket, (long) this.buckets.length);
+		return this.bucketIds[slot] != bucket || !this.buckets[slot].contains(fingerprint(source, key, msgId));
+	}
+
+	/**
+	 * Record a message whose signature has been verified.
+	 * <p>
+	 * @param source	friendy name of the sender
+	 * @param key		the sender&#39;s public key the message is signed with
+	 * @param msgId		the message id
+	 * @param timestamp	the send timestamp in epoch seconds
+	 * @param now		the local time in epoch seconds
+	 * @return true if the message is fresh, false if it is outside the window or was already recorded
+	 */
+	public synchronized boolean record(String source, String key, long msgId, long timestamp, long now){
+		if(timestamp < now - this.window || timestamp > now + this.window){
+			return false;
+		}
+		long bucket = Math.floorDiv(timestamp, this.bucketWidth);
+		int slot = (int) Math.floorMod(bucket, (long) this.buckets.length);
+		if(this.bucketIds[slot] != bucket){
+			//the slot holds an expired bucket, recycle it
+			this.buckets[slot].clear();
+			this.bucketIds[slot] = bucket;
+		}
+		return this.buckets[slot].add(fingerprint(source, key, msgId));
+	}
+
+	/**
+	 * @return the number of fingerprints held
+	 */
+	public synchronized int size(){
+		int size = 0;
+		for(LongSet set : this.buckets){
+			size += set.size;
+		}
+		return size;
+	}
+
+	/**
+	 * Mix the source, key and message id into a 64&#45;bit fingerprint.  The strings are hashed in full, a 32&#45;bit
+	 * {@link String#hashCode() <em>hashCode</em>} would let different sources collide.
+	 */
+	private static long fingerprint(String source, String key, long msgId){
+		long h = hash(key, hash(source, 0xcbf29ce484222325L));
+		h ^= msgId * 0x9E3779B97F4A7C15L;
+		//murmur3 finaliser
+		h ^= (h >>> 33);
+		h *= 0xff51afd7ed558ccdL;
+		h ^= (h >>> 33);
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= (h >>> 33);
+		return h;
+	}
+
+	/**
+	 * Continue a 64&#45;bit FNV&#45;1a hash over every character of a string, and its length so that the boundary
+	 * between strings counts.
+	 */
+	private static long hash(String s, long h){
+		if(s != null){
+			for(int i = 0; i < s.length(); i++){
+				h ^= s.charAt(i);
+				h *= 0x100000001b3L;
+			}
+		}
+		h ^= (s == null ? -1 : s.length());
+		h *= 0x100000001b3L;
+		return h;
+	}
+
+	/**
+	 * Open&#45;addressing set of primitive longs.  Zero is used as the empty marker, so a zero
+	 * fingerprint is stored as one.
+	 */
+	private static class LongSet {
+		/** the slots */
+		private long[] table = new long[16];
+		/** number of entries */
+		private int size = 0;
+
+		private boolean contains(long value){
+			long v = (value == 0 ? 1 : value);
+			int mask = this.table.length - 1;
+			int i = (int) v & mask;
+			while(this.table[i] != 0){
+				if(this.table[i] == v){
+					return true;
+				}
+				i = (i + 1) & mask;
+			}
+			return false;
+		}
+
+		private boolean add(long value){
+			long v = (value == 0 ? 1 : value);
+			if((this.size + 1) * 4 > this.table.length * 3){
+				this.resize(this.table.length * 2);
+			}
+			int mask = this.table.length - 1;
+			int i = (int) v & mask;
+			while(this.table[i] != 0){
+				if(this.table[i] == v){
+					return false;
+				}
+				i = (i + 1) & mask;
+			}
+			this.table[i] = v;
+			this.size++;
+			return true;
+		}
+
+		private void resize(int capacity){
+			long[] old = this.table;
+			this.table = new long[capacity];
+			int mask = capacity - 1;
+			for(long v : old){
+				if(v != 0){
+					int i = (int) v & mask;
+					while(this.table[i] != 0){
+						i = (i + 1) & mask;
+					}
+					this.table[i] = v;
+				}
+			}
+		}
+
+		private void clear(){
+			if(this.table.length > 1024){
+				//give back the memory of a burst
+				this.table = new long[16];
+			}else{
+				Arrays.fill(this.table, 0);
+			}
+			this.size = 0;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock&#45;free ring buffer for many producers and a single consumer.  Each slot carries a sequence
+ * number, so a producer claims a slot with one compare&#45;and&#45;set on the tail and publishes it by advancing
+ * the slot sequence, and the consumer never contends with the producers.  An idle consumer parks and is
+ * woken by the next producer.
+ *
+ * @param <E> the element type
+ */
+public class RingBuffer<E> {
+	/** the elements */
+	private final Object[] items;
+	/** slot sequence numbers */
+	private final AtomicLongArray seqs;
+	/** index mask */
+	private final int mask;
+	/** next slot to claim */
+	private final AtomicLong tail = new AtomicLong();
+	/** next slot to consume, consumer only */
+	private volatile long head = 0;
+	/** the parked consumer, if any */
+	private volatile Thread waiter;
+
+	/**
+	 * Construct a ring.
+	 * <p>
+	 * @param capacity	the capacity, rounded up to a power of two
+	 */
+	public RingBuffer(int capacity){
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.items = new Object[size];
+		this.seqs = new AtomicLongArray(size);
+		this.mask = size - 1;
+		for(int i = 0; i < size; i++){
+			this.seqs.set(i, i);
+		}
+	}
+
+	/**
+	 * Add an element if there is room.
+	 * <p>
+	 * @param e	the element
+	 * @return false if the ring is full
+	 */
+	public boolean offer(E e){
+		while(true){
+			long t = this.tail.get();
+			int i = (int) t & this.mask;
+			long s = this.seqs.get(i);
+			if(s == t){
+				if(this.tail.compareAndSet(t, t + 1)){
+					this.items[i] = e;
+					this.seqs.lazySet(i, t + 1);
+					Thread w = this.waiter;
+					if(w != null){
+						LockSupport.unpark(w);
+					}
+					return true;
+				}
+			}else if(s < t){
+				//the consumer has not freed the slot yet
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Take the next element.  Consumer thread only.
+	 * <p>
+	 * @return the element, or null if the ring is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll(){
+		long h = this.head;
+		int i = (int) h & this.mask;
+		if(this.seqs.get(i) != h + 1){
+			return null;
+		}
+		E e = (E) this.items[i];
+		this.items[i] = null;
+		this.seqs.lazySet(i, h + this.items.length);
+		this.head = h + 1;
+		return e;
+	}
+
+	/**
+	 * Take the next element, waiting for one if the ring is empty.  Consumer thread only.
+	 * <p>
+	 * @param timeout	how long to wait
+	 * @param unit		the unit of the time out
+	 * @return the element, or null on time out or interrupt
+	 */
+	public E poll(long timeout, TimeUnit unit){
+		E e = this.poll();
+		if(e != null){
+			return e;
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		this.waiter = Thread.currentThread();
+		try{
+			while((e = this.poll()) == null){
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0 || Thread.currentThread().isInterrupted()){
+					return null;
+				}
+				LockSupport.parkNanos(this, remaining);
+			}
+			return e;
+		}finally{
+			this.waiter = null;
+		}
+	}
+
+	/**
+	 * @return the approximate number of elements held
+	 */
+	public int size(){
+		return (int) Math.max(0, this.tail.get() - this.head);
+	}
+
+	/**
+	 * @return the capacity
+	 */
+	public int capacity(){
+		return this.items.length;
+	}
+}
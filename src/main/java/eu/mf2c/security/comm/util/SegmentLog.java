@@ -0,0 +1,429 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append&#45;only record log stored in a directory of memory&#45;mapped segment files.
+ * <p>
+ * Each record is framed as <code>[int length][int crc32][body]</code> and is addressed by its
+ * position, a global byte offset across all the segments.  A segment file is named after the
+ * position of its first byte, so the position of every record survives a restart.
+ * A zero length marks the end of the data written to a segment.
+ * <p>
+ * Appends only write to the mapped memory.  Durability is obtained by calling {@link #sync(long) <em>sync</em>},
+ * which implements group commit&#58; concurrent callers share a single <code>force</code> of the dirty
+ * segments, so the cost of an fsync is paid once per batch rather than once per record.
+ */
+public class SegmentLog {
+	/** message logger */
+	private static final Logger LOGGER = Logger.getLogger(SegmentLog.class.getName());
+	/** segment file suffix */
+	private static final String SUFFIX = ".seg";
+	/** record frame overhead in bytes */
+	public static final int FRAME = 8;
+
+	/**
+	 * Callback used to replay the records in position order.
+	 */
+	public interface RecordVisitor {
+		/**
+		 * Visit a record.
+		 * <p>
+		 * @param position	the record position
+		 * @param body		the record body
+		 * @throws IOException to abort the scan
+		 */
+		public void visit(long position, byte[] body) throws IOException;
+	}
+
+	/**
+	 * A single memory&#45;mapped segment file.
+	 */
+	private static class Segment {
+		/** position of the first byte of the segment */
+		private final long base;
+		/** the segment file */
+		private final File file;
+		/** the file channel */
+		private final FileChannel channel;
+		/** the mapped memory */
+		private final MappedByteBuffer buffer;
+		/** offset of the next write within the segment */
+		private int writeOffset;
+
+		private Segment(long base, File file, int size) throws IOException {
+			this.base = base;
+			this.file = file;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			this.channel = raf.getChannel();
+			int mapSize = (int) Math.max(size, this.channel.size());
+			this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, mapSize);
+		}
+
+		private int capacity(){
+			return this.buffer.capacity();
+		}
+
+		private void close(){
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+				LOGGER.warn("Error closing segment " + this.file + " : " + e.getMessage());
+			}
+		}
+	}
+
+	/** the log directory */
+	private final File dir;
+	/** nominal size of a new segment in bytes */
+	private final int segmentSize;
+	/** segments keyed by base position */
+	private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+	/** segment currently appended to */
+	private Segment active;
+	/** segments written to since the last sync */
+	private final LinkedHashSet<Segment> dirty = new LinkedHashSet<Segment>();
+	/** lock serialising the sync leaders */
+	private final Object syncLock = new Object();
+	/** every record before this position is durable */
+	private volatile long syncedPosition = 0;
+
+	/**
+	 * Open a log, creating the directory if needed.  Existing segments are mapped and the write
+	 * position is recovered by scanning the last segment up to the first empty or corrupt record.
+	 * <p>
+	 * @param directory		the log directory
+	 * @param segmentSize	the size of new segment files in bytes
+	 * @throws IOException on file errors
+	 */
+	public SegmentLog(File directory, int segmentSize) throws IOException {
+		this.dir = directory;
+		this.segmentSize = segmentSize;
+		if(!this.dir.isDirectory() && !this.dir.mkdirs()){
+			throw new IOException("Cannot create log directory " + this.dir);
+		}
+		File[] files = this.dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+		if(files != null){
+			for(File f : files){
+				String name = f.getName();
+				long base = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+				this.segments.put(base, new Segment(base, f, 0));
+			}
+		}
+		for(Segment seg : this.segments.values()){
+			seg.writeOffset = this.scanEnd(seg);
+		}
+		if(this.segments.isEmpty()){
+			this.active = this.newSegment(0, segmentSize);
+		}else{
+			this.active = this.segments.lastEntry().getValue();
+		}
+		this.syncedPosition = this.active.base + this.active.writeOffset;
+		LOGGER.debug("Opened segment log " + this.dir + " with " + this.segments.size() + " segment(s), write position " + this.syncedPosition);
+	}
+
+	/**
+	 * Append a record.  The record is not durable until {@link #sync(long) <em>sync</em>} returns for its position.
+	 * <p>
+	 * @param body	the record body
+	 * @return the position of the record
+	 * @throws IOException on file errors
+	 */
+	public synchronized long append(byte[] body) throws IOException {
+		int needed = FRAME + body.length;
+		if(this.active.writeOffset + needed + 4 > this.active.capacity()){
+			long base = this.active.base + this.active.writeOffset;
+			this.dirty.add(this.active);
+			this.active = this.newSegment(base, Math.max(this.segmentSize, needed + 4));
+		}
+		CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		ByteBuffer buf = this.active.buffer.duplicate();
+		buf.position(this.active.writeOffset);
+		//write the body and checksum before the length so that a torn write is never seen as a record
+		buf.putInt(0);
+		buf.putInt((int) crc.getValue());
+		buf.put(body);
+		this.active.buffer.putInt(this.active.writeOffset, body.length);
+		long position = this.active.base + this.active.writeOffset;
+		this.active.writeOffset += needed;
+		this.dirty.add(this.active);
+		return position;
+	}
+
+	/**
+	 * Read a record.
+	 * <p>
+	 * @param position	the record position
+	 * @return the record body
+	 * @throws IOException if there is no record at the position
+	 */
+	public byte[] read(long position) throws IOException {
+		Segment seg;
+		synchronized(this){
+			Map.Entry<Long, Segment> entry = this.segments.floorEntry(position);
+			if(entry == null){
+				throw new IOException("No segment holds position " + position);
+			}
+			seg = entry.getValue();
+		}
+		int offset = (int) (position - seg.base);
+		ByteBuffer buf = seg.buffer.duplicate();
+		buf.position(offset);
+		int length = buf.getInt();
+		buf.getInt(); //crc is checked on recovery
+		if(length <= 0 || length > buf.remaining()){
+			throw new IOException("No record at position " + position);
+		}
+		byte[] body = new byte[length];
+		buf.get(body);
+		return body;
+	}
+
+	/**
+	 * Make every record up to and including the one at the given position durable.  Callers
+	 * arriving while a sync is in progress wait for it and return straight away if it covered
+	 * their position, so one <code>force</code> serves a whole batch of appends.
+	 * <p>
+	 * @param position	the record position
+	 * @throws IOException on file errors
+	 */
+	public void sync(long position) throws IOException {
+		if(position < this.syncedPosition){
+			return;
+		}
+		synchronized(this.syncLock){
+			if(position < this.syncedPosition){
+				return; //covered by the previous leader
+			}
+			List<Segment> toForce;
+			long target;
+			synchronized(this){
+				target = this.active.base + this.active.writeOffset;
+				toForce = new ArrayList<Segment>(this.dirty);
+				this.dirty.clear();
+			}
+			for(Segment seg : toForce){
+				seg.buffer.force();
+			}
+			this.syncedPosition = target;
+		}
+	}
+
+	/**
+	 * Make every record appended so far durable.
+	 * <p>
+	 * @throws IOException on file errors
+	 */
+	public void syncAll() throws IOException {
+		long end;
+		synchronized(this){
+			end = this.active.base + this.active.writeOffset;
+		}
+		if(end > 0){
+			this.sync(end - 1);
+		}
+	}
+
+	/**
+	 * Replay the records in position order, starting with the segment holding the given position.
+	 * <p>
+	 * @param from		the first position of interest
+	 * @param visitor	the {@link RecordVisitor <em>RecordVisitor</em>}
+	 * @throws IOException on file errors or if aborted by the visitor
+	 */
+	public void scan(long from, RecordVisitor visitor) throws IOException {
+		List<Segment> segs;
+		synchronized(this){
+			Long start = this.segments.floorKey(from);
+			segs = new ArrayList<Segment>(this.segments.tailMap(start == null ? from : start, true).values());
+		}
+		for(Segment seg : segs){
+			ByteBuffer buf = seg.buffer.duplicate();
+			int offset = 0;
+			int end;
+			synchronized(this){
+				end = seg.writeOffset;
+			}
+			while(offset < end){
+				buf.position(offset);
+				int length = buf.getInt();
+				buf.getInt();
+				byte[] body = new byte[length];
+				buf.get(body);
+				long position = seg.base + offset;
+				if(position >= from){
+					visitor.visit(position, body);
+				}
+				offset += FRAME + length;
+			}
+		}
+	}
+
+	/**
+	 * @return the position of the next record to be appended
+	 */
+	public synchronized long getWritePosition(){
+		return this.active.base + this.active.writeOffset;
+	}
+	/**
+	 * @return the base position of the oldest segment
+	 */
+	public synchronized long getHeadSegment(){
+		return this.segments.firstKey();
+	}
+	/**
+	 * @return the base position of the segment being appended to
+	 */
+	public synchronized long getActiveSegment(){
+		return this.active.base;
+	}
+	/**
+	 * @param position	a record position
+	 * @return the base position of the segment holding the position
+	 */
+	public synchronized long segmentOf(long position){
+		Long base = this.segments.floorKey(position);
+		return (base == null ? -1 : base);
+	}
+	/**
+	 * @param base	the base position of a segment
+	 * @return the number of bytes written to the segment, or 0 if there is no such segment
+	 */
+	public synchronized int getSegmentUsed(long base){
+		Segment seg = this.segments.get(base);
+		return (seg == null ? 0 : seg.writeOffset);
+	}
+	/**
+	 * @return the number of segments
+	 */
+	public synchronized int getSegmentCount(){
+		return this.segments.size();
+	}
+
+	/**
+	 * Delete a sealed segment.  The active segment is never deleted.
+	 * <p>
+	 * @param base	the base position of the segment
+	 * @return true if the segment was deleted
+	 */
+	public synchronized boolean deleteSegment(long base){
+		Segment seg = this.segments.get(base);
+		if(seg == null || seg == this.active){
+			return false;
+		}
+		this.segments.remove(base);
+		this.dirty.remove(seg);
+		seg.close();
+		if(!seg.file.delete()){
+			LOGGER.warn("Unable to delete segment file " + seg.file);
+		}
+		return true;
+	}
+	/**
+	 * Delete all the sealed segments that only hold records before the given position.
+	 * <p>
+	 * @param position	the first position to keep
+	 * @return the number of segments deleted
+	 */
+	public synchronized int truncateBefore(long position){
+		int count = 0;
+		while(this.segments.size() > 1){
+			Map.Entry<Long, Segment> head = this.segments.firstEntry();
+			Segment seg = head.getValue();
+			if(seg == this.active || seg.base + seg.writeOffset > position){
+				break;
+			}
+			this.deleteSegment(seg.base);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Sync and close the log.
+	 */
+	public void close(){
+		try {
+			this.syncAll();
+		} catch (IOException e) {
+			LOGGER.error("Error syncing segment log on close : " + e.getMessage());
+		}
+		synchronized(this){
+			for(Segment seg : this.segments.values()){
+				seg.close();
+			}
+			this.segments.clear();
+			this.dirty.clear();
+		}
+	}
+
+	/////////////////////////////////////////////////////////utilities///////////////////////////////////////////////
+	/**
+	 * Create and map a new segment file.
+	 */
+	private Segment newSegment(long base, int size) throws IOException {
+		File f = new File(this.dir, String.format("%020d", base) + SUFFIX);
+		Segment seg = new Segment(base, f, size);
+		this.segments.put(base, seg);
+		return seg;
+	}
+	/**
+	 * Find the end of the valid records in a segment.  A record with a bad checksum and
+	 * everything after it is treated as a torn write and discarded.
+	 */
+	private int scanEnd(Segment seg){
+		ByteBuffer buf = seg.buffer.duplicate();
+		int offset = 0;
+		while(offset + FRAME <= seg.capacity()){
+			buf.position(offset);
+			int length = buf.getInt();
+			int storedCrc = buf.getInt();
+			if(length <= 0 || length > buf.remaining()){
+				break;
+			}
+			byte[] body = new byte[length];
+			buf.get(body);
+			CRC32 crc = new CRC32();
+			crc.update(body, 0, length);
+			if((int) crc.getValue() != storedCrc){
+				LOGGER.warn("Discarding torn record at offset " + offset + " in " + seg.file);
+				break;
+			}
+			offset += FRAME + length;
+		}
+		//clear the tail so that a later scan does not pick up stale data
+		if(offset + 4 <= seg.capacity()){
+			seg.buffer.putInt(offset, 0);
+		}
+		return offset;
+	}
+}
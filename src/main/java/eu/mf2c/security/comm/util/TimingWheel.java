@@ -0,0 +1,182 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel of keyed deadlines.  A deadline is put in the slot of its tick and each tick only walks its
+ * own slot, so scheduling, rescheduling and cancelling a key are O(1) and a tick costs the keys due in it, whatever
+ * the number of keys scheduled.  Deadlines more than a turn of the wheel away share a slot with nearer ones and are
+ * passed over until their tick comes, so the wheel should span the usual delay.
+ * <p>
+ * The wheel has no thread of its own, the owner advances it with the current time, e.g. from a periodic task.
+ *
+ * @param <K> the key type
+ */
+public class TimingWheel<K> {
+	/** tick length in milliseconds */
+	private final long tickMillis;
+	/** slot list heads, sentinels */
+	private final Node<K>[] slots;
+	/** slot index mask */
+	private final int mask;
+	/** scheduled keys */
+	private final HashMap<K, Node<K>> index = new HashMap<K, Node<K>>();
+	/** start time in milliseconds, tick 0 */
+	private final long start;
+	/** the next tick to process */
+	private long current = 0;
+
+	/**
+	 * A scheduled key, linked into its slot.
+	 */
+	private static class Node<K> {
+		/** the key, null for a sentinel */
+		final K key;
+		/** the tick the key is due */
+		long deadline;
+		/** slot links */
+		Node<K> prev = this, next = this;
+
+		Node(K key){
+			this.key = key;
+		}
+
+		void unlink(){
+			this.prev.next = this.next;
+			this.next.prev = this.prev;
+			this.prev = this.next = this;
+		}
+	}
+
+	/**
+	 * Construct a wheel.
+	 * <p>
+	 * @param tickMillis	tick length in milliseconds
+	 * @param size			number of slots, rounded up to a power of two
+	 * @param now			the current time in milliseconds
+	 */
+	public TimingWheel(long tickMillis, int size, long now){
+		int slots = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+		this.tickMillis = Math.max(1, tickMillis);
+		//the array only ever holds Node<K>
+		@SuppressWarnings("unchecked")
+		Node<K>[] heads = (Node<K>[]) new Node<?>[slots];
+		for(int i = 0; i < slots; i++){
+			heads[i] = new Node<K>(null);
+		}
+		this.slots = heads;
+		this.mask = slots - 1;
+		this.start = now;
+	}
+
+	/**
+	 * Schedule a key, replacing its previous deadline.
+	 * <p>
+	 * @param key		the key
+	 * @param delay		delay in milliseconds
+	 * @param now		the current time in milliseconds
+	 */
+	public synchronized void schedule(K key, long delay, long now){
+		Node<K> node = this.index.get(key);
+		if(node == null){
+			node = new Node<K>(key);
+			this.index.put(key, node);
+		}else{
+			node.unlink();
+		}
+		//round up, a key never expires early
+		node.deadline = Math.max(this.current, (now - this.start + delay + this.tickMillis - 1) / this.tickMillis);
+		Node<K> head = this.slots[(int) node.deadline & this.mask];
+		node.prev = head.prev;
+		node.next = head;
+		head.prev.next = node;
+		head.prev = node;
+	}
+
+	/**
+	 * Cancel the deadline of a key.
+	 * <p>
+	 * @param key	the key
+	 * @return false if the key was not scheduled
+	 */
+	public synchronized boolean cancel(K key){
+		Node<K> node = this.index.remove(key);
+		if(node == null){
+			return false;
+		}
+		node.unlink();
+		return true;
+	}
+
+	/**
+	 * Process the ticks up to the current time.  The expired keys are handed over once the wheel is released,
+	 * so the handler may schedule them again.
+	 * <p>
+	 * @param now		the current time in milliseconds
+	 * @param expired	handler of the expired keys
+	 */
+	public void advance(long now, Consumer<K> expired){
+		List<K> due = new ArrayList<K>();
+		synchronized(this){
+			long target = (now - this.start) / this.tickMillis;
+			if(target < this.current){
+				return;
+			}
+			if(target - this.current >= this.slots.length){
+				//a turn or more behind, every slot is due once
+				for(Node<K> head : this.slots){
+					this.expire(head, target, due);
+				}
+			}else{
+				for(long tick = this.current; tick <= target; tick++){
+					this.expire(this.slots[(int) tick & this.mask], tick, due);
+				}
+			}
+			this.current = target + 1;
+		}
+		for(K key : due){
+			expired.accept(key);
+		}
+	}
+
+	/**
+	 * @return the number of keys scheduled
+	 */
+	public synchronized int size(){
+		return this.index.size();
+	}
+
+	/**
+	 * Unlink the keys of a slot due by a tick.
+	 */
+	private void expire(Node<K> head, long tick, List<K> due){
+		Node<K> node = head.next;
+		while(node != head){
+			Node<K> next = node.next;
+			if(node.deadline <= tick){
+				node.unlink();
+				this.index.remove(node.key);
+				due.add(node.key);
+			}
+			node = next;
+		}
+	}
+}
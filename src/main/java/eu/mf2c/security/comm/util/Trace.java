@@ -0,0 +1,71 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Message tracing constants and clock.  A traced message carries the <code>trc</code> header, an array of the
+ * epoch microsecond times it was created, packed and published, and the receiver adds the times it was received,
+ * popped and unpacked.  The stage intervals are aggregated into the <code>trace.*</code> latencies of the
+ * {@link ChannelMetrics <em>ChannelMetrics</em>}.
+ * <p>
+ * The clock is the wall clock read once and advanced by {@link System#nanoTime() <em>nanoTime</em>}, so it has
+ * microsecond resolution and does not step back.  Transit times between hosts are only as good as the clock
+ * synchronisation of the hosts.
+ */
+public final class Trace {
+	/** header key of the trace times */
+	public static final String KEY = "trc";
+	/** created by the application */
+	public static final String CREATED = "created";
+	/** signed and encrypted */
+	public static final String PACKED = "packed";
+	/** handed to the {@link eu.mf2c.security.comm.protocol.ProtocolHandler <em>ProtocolHandler</em>} */
+	public static final String PUBLISHED = "published";
+	/** publish returned, acknowledged by the broker unless sent at most once, sender only */
+	public static final String ACKED = "acked";
+	/** arrived at the receiver */
+	public static final String RECEIVED = "received";
+	/** popped from the message queue */
+	public static final String POPPED = "popped";
+	/** verified and decrypted */
+	public static final String UNPACKED = "unpacked";
+	/** the stages carried in the header, in order */
+	public static final String[] HEADER_STAGES = {CREATED, PACKED, PUBLISHED};
+	/** epoch microseconds at nanoTime 0 */
+	private static final long BASE_MICROS = System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+
+	private Trace(){
+	}
+
+	/**
+	 * @return the current time in microseconds since the epoch
+	 */
+	public static long nowMicros(){
+		return BASE_MICROS + System.nanoTime() / 1000;
+	}
+
+	/**
+	 * Decide whether to trace a message.
+	 * <p>
+	 * @param rate	the sampling rate, 0 to 1
+	 * @return true to trace
+	 */
+	public static boolean sample(double rate){
+		return rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate);
+	}
+}
@@ -25,6 +25,7 @@ import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.util.Base64;
 
 import javax.crypto.Cipher;
 
@@ -145,18 +146,26 @@ public class Identity {
 	public PublicKey getPublicKey(){
 		return keyPair.getPublic();
 	}
+	/**
+	 * Getter for the RSA public key of this identity object in its portable form.
+	 * <p>
+	 * @return the base64 encoded X.509 representation of the public key.
+	 */
+	public String getPublicKeyString(){
+		return Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded());
+	}
 	/**
 	 * Sign a message using SHA256withRSA algorithm.
 	 * <p>	
 	 * @param payloadBytes  the input message represented as a {@link java.lang.Byte <em>Byte</em>} object
-	 * @return the signed message as a {@link java.lang.String <em>String</em>} object
+	 * @return the base64 encoded signature as a {@link java.lang.String <em>String</em>} object
 	 * @throws IdentityException on processing error
 	 */
 	public String signMessageAsString(byte[] payloadBytes) throws IdentityException{
 		
 		byte[] signatureValue = signMessage(payloadBytes);
-		
-		return (signatureValue == null ? null : new String(signatureValue, StandardCharsets.UTF_8));
+		//base64 encode, the raw signature bytes are not valid UTF-8
+		return (signatureValue == null ? null : Base64.getEncoder().encodeToString(signatureValue));
 		
 	}
 	/**
@@ -209,7 +218,7 @@ public class Identity {
 		Cipher cipher = Cipher.getInstance("RSA");
 		cipher.init(Cipher.DECRYPT_MODE, this.keyPair.getPrivate());
 		//the input string should be decoded from base64
-		return new String(cipher.doFinal(enc_string.getBytes()), StandardCharsets.UTF_8); 	
+		return new String(cipher.doFinal(Base64.getDecoder().decode(enc_string)), StandardCharsets.UTF_8); 	
 	}
 	
 	/**
@@ -18,12 +18,19 @@ package eu.mf2c.security.data;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyFactory;
 import java.security.PublicKey;
+import java.security.SecureRandom;
 import java.security.Signature;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.X509EncodedKeySpec;
 import java.time.Instant;
 import java.util.Base64;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.crypto.Cipher;
 
@@ -33,11 +40,17 @@ import net.minidev.json.parser.ParseException;
 import org.apache.log4j.Logger;
 
 import eu.mf2c.security.comm.util.Base64Helper;
+import eu.mf2c.security.comm.util.ChannelMetrics;
+import eu.mf2c.security.comm.util.Compression;
+import eu.mf2c.security.comm.util.DeltaCodec;
 import eu.mf2c.security.comm.util.Protocol;
 import eu.mf2c.security.comm.util.QoS;
+import eu.mf2c.security.comm.util.ReplayFilter;
 import eu.mf2c.security.comm.util.Security;
+import eu.mf2c.security.comm.util.Trace;
 import eu.mf2c.security.exception.IdentityException;
 import eu.mf2c.security.exception.MessageException;
+import eu.mf2c.security.jfr.Profiler;
 
 /**
  * The Message object wraps the client message with sufficient metadata to be portable
@@ -49,13 +62,22 @@ import eu.mf2c.security.exception.MessageException;
  * In the current version, the {@link #payloadHM <em>payloadHM</em>} is populated with these key&#45;value pairs:
  * <ul>
  * <ui>timestamp&#58; channel publication timestamp</ui>
+ * <ui>msgId&#58; message id, unique per source within the replay window</ui>
  * <ui>qos&#58; delivery quality of service represented as the ordinal of the QoS enum</ui>
  * <ui>sec&#58; security level applicable represented as the ordinal of the Security enum</ui>
  * <ui>pro&#58; transport protocol used represented as the ordinal of the Protocol enum</ui>
  * <ui>source&#58; friendly name of sending channel</ui>
  * <ui>payload&#58; the message content</ui>
- * <ui>signature&#58; the signature data if message is protected &#40;the payload is signed with the sender's private key&#41;</ui>
+ * <ui>cmp&#58; compression codec of the payload represented as the ordinal of the Compression.Codec enum &#40;absent if uncompressed&#41;</ui>
+ * <ui>signature&#58; the signature data if message is protected &#40;the payload, msgId, timestamp, source, cmp, bdl, dlt, ssn, seq, rsy and cid are signed with the sender's private key&#41;</ui>
  * <ui>publicKey&#58; the sender&#58;s public key &#40;if message is signed&#41;</ui>
+ * <ui>trc&#58; epoch microsecond times the message was created, packed and published &#40;if traced, not signed&#41;</ui>
+ * <ui>bdl&#58; number of messages in a bundle, the payload is then the Json array of their key values &#40;absent if not a bundle&#41;</ui>
+ * <ui>dlt&#58; stream name of a delta encoded message, the payload is then a DeltaCodec frame of its key values &#40;absent if not delta encoded&#41;</ui>
+ * <ui>cid&#58; correlation id of a request, echoed by its reply &#40;absent unless a request or reply&#41;</ui>
+ * <ui>ssn&#58; session of the sending channel, random per channel instance</ui>
+ * <ui>seq&#58; sequence number of the message in the session, counted per recipient</ui>
+ * <ui>rsy&#58; sequence number of the oldest message the sender can resend, on the messages it resends &#40;absent otherwise&#41;</ui>
  * </ul>
  * <p>
  * @author Shirley Crompton
@@ -68,6 +90,20 @@ import eu.mf2c.security.exception.MessageException;
 public class Message {
 	/** logger attribute */
 	private final static Logger LOGGER = Logger.getLogger(Message.class.getName());
+	/** header key of the bundle message count */
+	public static final String BUNDLE = "bdl";
+	/** header key of the correlation id of a request and its reply */
+	public static final String CORRELATION = "cid";
+	/** header key of the sender&#39;s session */
+	public static final String SESSION = "ssn";
+	/** header key of the sequence number in the sender&#39;s session */
+	public static final String SEQUENCE = "seq";
+	/** header key of the oldest sequence number the sender of a resent message can resend */
+	public static final String RESYNC = "rsy";
+	/** header keys signed together with the payload when they are present */
+	private static final String[] SIGNED_KEYS = {"source", "cmp", BUNDLE, DeltaCodec.KEY, SESSION, SEQUENCE, RESYNC, CORRELATION};
+	/** message id counter, starting from a random base so that ids are not reused across restarts */
+	private static final AtomicLong MSG_ID = new AtomicLong(new SecureRandom().nextLong() & 0x7fffffffffffffffL);
 	
 	private boolean isIncoming = true; //default to incoming (received) message
 	/** the full base64encoded message serialised as a byte array */
@@ -78,6 +114,22 @@ public class Message {
 	private HashMap<String, Object> payloadHM;	
 	/** The recipient&#39;s public key attribute */ 
 	private PublicKey destKey = null; //may need to swap to using keystore later on
+	/** Position of the message in the inbound journal, -1 if it was not journalled */
+	private long journalPosition = -1;
+	/** Parts of the bundle this message was split from still to be committed, shared by the parts, null unless split from a bundle */
+	private AtomicInteger uncommittedParts = null;
+	/** Set once the message is committed, so that committing it again does not count */
+	private final AtomicBoolean committed = new AtomicBoolean(false);
+	/** Metrics recording the crypto times, null if not recorded */
+	private ChannelMetrics metrics = null;
+	/** Creation or receipt time in epoch microseconds, see {@link Trace <em>Trace</em>} */
+	private final long stampMicros = Trace.nowMicros();
+	/** Trace times in epoch microseconds keyed on {@link Trace <em>Trace</em>} stage, null if not traced */
+	private LinkedHashMap<String, Long> trace = null;
+	/** Application key of an outgoing message superseded by the next one of the same key, not sent */
+	private String conflationKey = null;
+	/** Application stream name of an outgoing message delta encoded against the previous one, not sent as such */
+	private String deltaStream = null;
 	
 	/**
 	 * Construct an instant using the received message payload.  To minimise processing time, we will not
@@ -102,7 +154,7 @@ public class Message {
 	public Message(HashMap<String, Object> payloadHM/*, PublicKey pk*/){ //PK should be in the payload for the prototype
 		//Dealing with instantiating a message for sending
 		this.isIncoming = false;
-		this.payloadHM.putAll(payloadHM);
+		this.payloadHM = new HashMap<String, Object>(payloadHM);
 //		if(pk != null){
 //			this.destKey = pk; 
 //		}else{
@@ -133,6 +185,106 @@ public class Message {
 	public HashMap<String, Object> getPayloadHM() {
 		return payloadHM;
 	}	
+	/**
+	 * Getter for the {@link #journalPosition <em>journalPosition</em>} attribute
+	 * @return the position in the inbound journal or -1 if the message was not journalled
+	 */
+	public long getJournalPosition() {
+		return journalPosition;
+	}
+	/**
+	 * Setter for the {@link #journalPosition <em>journalPosition</em>} attribute
+	 * @param journalPosition	the position in the inbound journal
+	 */
+	public void setJournalPosition(long journalPosition) {
+		this.journalPosition = journalPosition;
+	}
+	/**
+	 * Count the commit of this message.  The messages split from a bundle share its journal position, which is
+	 * only consumed once every one of them is committed, whether processed or dropped.
+	 * <p>
+	 * @return true if the {@link #journalPosition <em>journalPosition</em>} is consumed by this commit
+	 */
+	public boolean commitJournal() {
+		if(this.journalPosition < 0 || !this.committed.compareAndSet(false, true)){
+			return false;
+		}
+		return this.uncommittedParts == null || this.uncommittedParts.decrementAndGet() == 0;
+	}
+	/**
+	 * Setter for the {@link #metrics <em>metrics</em>} attribute
+	 * @param metrics	the {@link ChannelMetrics <em>ChannelMetrics</em>} recording the crypto times, or null
+	 */
+	public void setMetrics(ChannelMetrics metrics) {
+		this.metrics = metrics;
+	}
+	/**
+	 * Getter for the {@link #trace <em>trace</em>} attribute
+	 * @return the trace times in epoch microseconds keyed on {@link Trace <em>Trace</em>} stage, in stage order,
+	 * 		or null if the message is not traced
+	 */
+	public LinkedHashMap<String, Long> getTrace() {
+		return trace;
+	}
+	/**
+	 * Trace an outgoing message from its creation.  The packed time is stamped by
+	 * {@link #packMsg(Security, Protocol, QoS, PublicKey, int) <em>packMsg</em>}.
+	 */
+	public void startTrace() {
+		this.trace = new LinkedHashMap<String, Long>();
+		this.trace.put(Trace.CREATED, this.stampMicros);
+	}
+	/**
+	 * Stamp a trace stage with the current time, if the message is traced.
+	 * @param stage	the {@link Trace <em>Trace</em>} stage
+	 */
+	public void traceStage(String stage) {
+		if(this.trace != null){
+			this.trace.put(stage, Trace.nowMicros());
+		}
+	}
+	/**
+	 * Stamp the published time of a traced outgoing message and add the times so far to the header.
+	 */
+	public void tracePublished() {
+		if(this.trace != null){
+			this.traceStage(Trace.PUBLISHED);
+			this.payloadHM.put(Trace.KEY, new ArrayList<Long>(this.trace.values()));
+		}
+	}
+	/**
+	 * Getter for the {@link #conflationKey <em>conflationKey</em>} attribute
+	 * @return the conflation key or null
+	 */
+	public String getConflationKey() {
+		return conflationKey;
+	}
+	/**
+	 * Setter for the {@link #conflationKey <em>conflationKey</em>} attribute.  Only the latest of the messages
+	 * with the same key still waiting to be sent is sent, e.g. the latest reading of a sensor.
+	 * @param conflationKey	the key, e.g. a sensor id, or null to send every message
+	 */
+	public void setConflationKey(String conflationKey) {
+		this.conflationKey = conflationKey;
+	}
+	/**
+	 * Getter for the {@link #deltaStream <em>deltaStream</em>} attribute
+	 * @return the delta stream name or null
+	 */
+	public String getDeltaStream() {
+		return deltaStream;
+	}
+	/**
+	 * Setter for the {@link #deltaStream <em>deltaStream</em>} attribute.  Only the key values that changed
+	 * since the previous message of the same stream to the same recipient are sent, see {@link DeltaCodec <em>DeltaCodec</em>}.
+	 * The payload is delivered byte for byte as sent.  A Json object payload is only diffed field by field if it is
+	 * compact Json with sorted keys, e.g. serialised from a {@link java.util.TreeMap <em>TreeMap</em>}, otherwise it is
+	 * sent whole whenever it changes.
+	 * @param deltaStream	the stream name, e.g. the telemetry type, or null to send the message in full
+	 */
+	public void setDeltaStream(String deltaStream) {
+		this.deltaStream = deltaStream;
+	}
 	/**
 	 * Getter for the  {@link #destKey <em>destKey</em>}&#58; the sender&#39;s public key
 	 * @return the {@link #destKey <em>destKey</em>}&#58; attribute
@@ -140,7 +292,167 @@ public class Message {
 	public PublicKey getDestKey() {
 		return destKey;
 	}
+	/**
+	 * @return the correlation id of a request or reply, or null
+	 */
+	public String getCorrelationId() {
+		Object cid = (this.payloadHM == null ? null : this.payloadHM.get(CORRELATION));
+		return (cid instanceof String ? (String) cid : null);
+	}
+	/**
+	 * @return the sender&#39;s session, or null if the message is not sequenced
+	 */
+	public String getSession() {
+		Object session = (this.payloadHM == null ? null : this.payloadHM.get(SESSION));
+		return (session instanceof String ? (String) session : null);
+	}
+	/**
+	 * @return the sequence number in the sender&#39;s session, or -1 if the message is not sequenced
+	 */
+	public long getSequence() {
+		Object seq = (this.payloadHM == null ? null : this.payloadHM.get(SEQUENCE));
+		return (seq instanceof Number ? ((Number) seq).longValue() : -1);
+	}
+	/**
+	 * Construct an outgoing bundle of messages from the same source, packed and unpacked as one message.
+	 * <p>
+	 * @param source	friendy name of the sending channel
+	 * @param items		the key values of the bundled messages, in order
+	 * @return the bundle {@link Message <em>Message</em>}
+	 */
+	public static Message bundle(String source, List<HashMap<String, Object>> items){
+		HashMap<String, Object> hm = new HashMap<String, Object>();
+		hm.put("source", source);
+		hm.put("payload", JSONValue.toJSONString(items));
+		hm.put(BUNDLE, items.size());
+		return new Message(hm);
+	}
+	/**
+	 * @return true if this unpacked message is a bundle
+	 */
+	public boolean isBundle() {
+		return this.payloadHM != null && this.payloadHM.get(BUNDLE) != null;
+	}
+	/**
+	 * Split an unpacked bundle into its messages.  They were verified with the bundle, take its security, protocol,
+	 * quality of service, message id and timestamp and are returned unpacked.
+	 * <p>
+	 * @return the messages, in the order they were bundled
+	 * @throws MessageException if this is not an unpacked bundle or the bundle is malformed
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Message> unbundle() throws MessageException{
+		if(!this.isIncoming || !this.isBundle()){
+			LOGGER.error("This is not an incoming bundle!");
+			throw new MessageException("This is not an incoming bundle!");
+		}
+		Object content = this.payloadHM.containsKey("decryptedPayload") ? this.payloadHM.get("decryptedPayload") : this.payloadHM.get("payload");
+		List<Object> items;
+		try{
+			items = (List<Object>) JSONValue.parseStrict((String) content);
+		}catch(ParseException | ClassCastException e){
+			LOGGER.error("Malformed bundle: " + e.getMessage());
+			throw new MessageException(e);
+		}
+		List<Message> messages = new ArrayList<Message>(items.size());
+		for(Object item : items){
+			if(!(item instanceof HashMap)){
+				LOGGER.error("Malformed bundle item!");
+				throw new MessageException("Malformed bundle item!");
+			}
+			Message msg = new Message((HashMap<String, Object>) item);
+			msg.isIncoming = true;
+			msg.received_tmsp = this.received_tmsp;
+			msg.destKey = this.destKey;
+			for(String key : new String[]{"sec", "pro", "qos", "msgId", "timestamp"}){
+				if(this.payloadHM.containsKey(key)){
+					msg.payloadHM.put(key, this.payloadHM.get(key));
+				}
+			}
+			messages.add(msg);
+		}
+		//committing every message commits the bundle, whatever order they are released or dropped in
+		AtomicInteger parts = new AtomicInteger(messages.size());
+		for(Message msg : messages){
+			msg.journalPosition = this.journalPosition;
+			msg.uncommittedParts = parts;
+		}
+		return messages;
+	}
+	/**
+	 * Replace the key values of an outgoing message of a {@link #deltaStream <em>delta stream</em>} with their
+	 * delta frame, before the message is packed.
+	 * <p>
+	 * @param codec		the sender&#39;s {@link DeltaCodec <em>DeltaCodec</em>}
+	 * @param target	friendy name of the recipient
+	 * @return the codec stream name, to reset the stream if the message fails to send
+	 * @throws MessageException if this is not an outgoing message of a delta stream
+	 */
+	public String encodeDelta(DeltaCodec codec, String target) throws MessageException{
+		if(this.isIncoming || this.deltaStream == null){
+			LOGGER.error("This is not an outgoing message of a delta stream!");
+			throw new MessageException("This is not an outgoing message of a delta stream!");
+		}
+		String stream = target + "|" + this.deltaStream;
+		String frame = codec.encode(stream, this.payloadHM);
+		Object source = this.payloadHM.get("source");
+		this.payloadHM.clear();
+		this.payloadHM.put("source", source);
+		this.payloadHM.put("payload", frame);
+		this.payloadHM.put(DeltaCodec.KEY, this.deltaStream);
+		return stream;
+	}
+	/**
+	 * @return true if this unpacked message is delta encoded
+	 */
+	public boolean isDelta() {
+		return this.payloadHM != null && this.payloadHM.get(DeltaCodec.KEY) instanceof String;
+	}
+	/**
+	 * Rebuild the key values of an unpacked delta encoded message.  The payload of a private message is
+	 * restored as its decrypted payload.
+	 * <p>
+	 * @param codec		the receiver&#39;s {@link DeltaCodec <em>DeltaCodec</em>}
+	 * @throws MessageException if this is not an unpacked delta encoded message or it cannot be rebuilt
+	 */
+	public void decodeDelta(DeltaCodec codec) throws MessageException{
+		if(!this.isIncoming || !this.isDelta()){
+			LOGGER.error("This is not an incoming delta encoded message!");
+			throw new MessageException("This is not an incoming delta encoded message!");
+		}
+		boolean isPrivate = this.payloadHM.containsKey("decryptedPayload");
+		String frame = (String) (isPrivate ? this.payloadHM.get("decryptedPayload") : this.payloadHM.get("payload"));
+		HashMap<String, Object> fields = codec.decode(this.payloadHM.get("source") + "|" + this.payloadHM.get(DeltaCodec.KEY), frame);
+		this.payloadHM.remove(DeltaCodec.KEY);
+		if(isPrivate){
+			this.payloadHM.put("decryptedPayload", fields.remove("payload"));
+		}
+		this.payloadHM.putAll(fields);
+	}
 	////////////////////////instant methods
+	/**
+	 * Parse the received message into its key values without verifying or decrypting the payload, so that
+	 * the header can be inspected on arrival.  The result is kept and reused by {@link #unpackMsg(ReplayFilter) <em>unpackMsg</em>}.
+	 * <p>
+	 * @return	the {@link java.util.HashMap <em>HashMap</em>} of message key values
+	 * @throws MessageException on parsing errors.
+	 */
+	@SuppressWarnings("unchecked")
+	public HashMap<String, Object> peekHeader() throws MessageException{
+		if(this.payloadHM == null){
+			if(this.msgB64Bytes == null){
+				LOGGER.error("This there is nothing to unpack!");
+				throw new MessageException("This there is nothing to unpack!");
+			}
+			try{
+				this.payloadHM = (HashMap<String, Object>) JSONValue.parseStrict((Base64Helper.decodeToString(msgB64Bytes)));
+			}catch (ParseException e) {
+				LOGGER.error("Parse error extracting the payload from byte[]: " + e.getMessage());
+				throw new MessageException(e);
+			}
+		}
+		return this.payloadHM;
+	}
 	/**
 	 * Deserialise the received payload which is a Base64encoded {@link java.lang.String <em>String</em>}.
 	 * If the payload is signed, the signature is verified against the sender&#39;s public key.
@@ -148,8 +460,20 @@ public class Message {
 	 * <p>
 	 * @throws MessageException on processing errors.
 	 */
-	@SuppressWarnings("unchecked")
 	public void unpackMsg() throws MessageException{
+		this.unpackMsg(null);
+	}
+	/**
+	 * Deserialise the received payload as {@link #unpackMsg() <em>unpackMsg</em>} does, but also reject
+	 * stale or replayed signed messages using the provided {@link ReplayFilter <em>ReplayFilter</em>}.  Known
+	 * replays are dropped before the signature is verified or the payload decrypted, and the message is only recorded
+	 * in the filter once its signature is verified.  Public messages are unsigned and are not checked.
+	 * <p>
+	 * @param filter	the {@link ReplayFilter <em>ReplayFilter</em>} or null to skip the check
+	 * @throws MessageException on processing errors or if the message is stale or replayed.
+	 */
+	@SuppressWarnings("unchecked")
+	public void unpackMsg(ReplayFilter filter) throws MessageException{
 		
 		//assuming that it is an incoming msg
 		if(!this.isIncoming ){
@@ -160,14 +484,27 @@ public class Message {
 			LOGGER.error("This there is nothing to unpack!");
 			throw new MessageException("This there is nothing to unpack!");
 		}
-        try{
-        	this.payloadHM = (HashMap<String, Object>) JSONValue.parseStrict((Base64Helper.decodeToString(msgB64Bytes)));
-        }catch (ParseException e) {
-        	LOGGER.error("Parse error extracting the payload from byte[]: " + e.getMessage());
-            throw new MessageException(e);
-        } 
+        Object unpackEvent = Profiler.begin(Profiler.UNPACK);
+        //the header may already have been parsed on arrival
+        this.peekHeader();
+        if(this.payloadHM.get(Trace.KEY) instanceof List){
+        	this.readTrace((List<?>) this.payloadHM.get(Trace.KEY));
+        }
         //convert from ordinal to value
-        Security secFlag = Security.values()[(int) this.payloadHM.get("security")];
+        Security secFlag = Security.values()[((Number) this.payloadHM.get("sec")).intValue()];
+        Protocol protocolFlag = (this.payloadHM.get("pro") instanceof Number ? Protocol.values()[((Number) this.payloadHM.get("pro")).intValue()] : null);
+        //the header of an unsigned message cannot be trusted, so public messages are not checked for replays
+        boolean checkReplay = (filter != null && !secFlag.equals(Security.PUBLIC));
+        if(checkReplay){
+        	if(!(this.payloadHM.get("msgId") instanceof Number) || !(this.payloadHM.get("timestamp") instanceof Number)){
+        		LOGGER.error("Message has no msgId or timestamp, cannot check freshness!");
+        		throw new MessageException("Message has no msgId or timestamp, cannot check freshness!");
+        	}
+        	if(!this.isFresh(filter, false)){
+        		LOGGER.warn("Rejected stale or replayed message(" + this.payloadHM.get("msgId") + ") from " + this.payloadHM.get("source"));
+        		throw new MessageException("Stale or replayed message(" + this.payloadHM.get("msgId") + ") from " + this.payloadHM.get("source"));
+        	}
+        }
         
         if(!secFlag.equals(Security.PUBLIC)){
         	try {
@@ -178,19 +515,33 @@ public class Message {
 		    	//sender's public key always sent with the 
 		    	this.destKey = this.convertPK((String) this.payloadHM.get("publicKey"));
 		    	LOGGER.debug("About to verify signature using the accompanying public key....");
-				if(!this.verifySignature((String) this.payloadHM.get("signature"), (String) this.payloadHM.get("payload"))){
+				long t0 = System.nanoTime();
+				Object event = Profiler.begin(Profiler.VERIFY);
+				if(!this.verifySignature((String) this.payloadHM.get("signature"), signedContent(this.payloadHM))){
 					throw new Exception("mismatched signature on non-public payload!");
 				}
+				Profiler.end(event, ((String) this.payloadHM.get("payload")).length(), secFlag, protocolFlag);
+				this.record(ChannelMetrics.VERIFY, t0);
+				//the message is genuine, remember it, unless a copy verified concurrently got there first
+				if(checkReplay && !this.isFresh(filter, true)){
+					throw new Exception("Stale or replayed message(" + this.payloadHM.get("msgId") + ") from " + this.payloadHM.get("source"));
+				}
 				//now decrypt the payload
 				if(secFlag.equals(Security.PRIVATE)){
 					LOGGER.debug("About to decrypt payload using owner's private key....");
+					t0 = System.nanoTime();
+					event = Profiler.begin(Profiler.DECRYPT);
 					this.payloadHM.put("decryptedPayload", (Identity.getInstance()).decryptPayload((String) this.payloadHM.get("payload")));
+					Profiler.end(event, ((String) this.payloadHM.get("payload")).length(), secFlag, protocolFlag);
+					this.record(ChannelMetrics.DECRYPT, t0);
 				}
 			} catch (Exception e) {
 				LOGGER.error("Error unpacking message: " + e.getMessage());
 				throw new MessageException(e);
 			}        	
         }
+        this.inflatePayload(secFlag);
+        Profiler.end(unpackEvent, this.msgB64Bytes.length, secFlag, protocolFlag);
         LOGGER.debug("Unpacked payload");
 	}
 
@@ -205,7 +556,8 @@ public class Message {
 	 * are key&#45;value elements in passed in {@link java.util.HashMap <em>HashMap</em>}.
 	 * The payload is signed using the owner&#39;s private key for protected content and a signature is added.
 	 * The payload is encrypted using the recipient&#39;s public key for private content. 
-	 * The timestamp is added just before publication. 
+	 * A message id and the timestamp are added and signed together with the payload. 
+	 * The payload is not compressed.
 	 * <p>
 	 * @param secFlag		the security level applicable to the message.
 	 * @param protocolFlag	the transport protocol applicable used represented
@@ -214,6 +566,20 @@ public class Message {
 	 * @throws MessageException if there are errors in fetching the public key, signing or encrypting the payload.
 	 */
 	public void packMsg(Security secFlag, Protocol protocolFlag, QoS qosFlag, PublicKey recipientPK) throws MessageException{
+		this.packMsg(secFlag, protocolFlag, qosFlag, recipientPK, -1);
+	}
+	/**
+	 * Complete metadata for the payload and enforce the security requirement as {@link #packMsg(Security, Protocol, QoS, PublicKey) <em>packMsg</em>}
+	 * does.  Payloads of at least compressThreshold bytes are compressed before they are signed and encrypted, provided
+	 * that compression actually shrinks them.
+	 * <p>
+	 * @param secFlag			the security level applicable to the message.
+	 * @param protocolFlag		the transport protocol applicable used represented
+	 * @param recipientPK		the recipient&#39;s public key object
+	 * @param compressThreshold	minimum payload size in bytes for compression, a negative value disables compression
+	 * @throws MessageException if there are errors in fetching the public key, signing or encrypting the payload.
+	 */
+	public void packMsg(Security secFlag, Protocol protocolFlag, QoS qosFlag, PublicKey recipientPK, int compressThreshold) throws MessageException{
 		//Jens wants to use JOSE but there may be a size limit to the payload as normally the payload contains claims
 		
 		if(this.isIncoming){
@@ -226,11 +592,37 @@ public class Message {
 		}
 		if(recipientPK != null){
 			this.destKey = recipientPK;
-		}		
+		}
+		Object packEvent = Profiler.begin(Profiler.PACK);
 		//this.payload.put("source", this.friendlyName); the caller must populate this in the HashMap
 		this.payloadHM.put("sec", secFlag.ordinal());
 		this.payloadHM.put("pro", protocolFlag.ordinal());
 		this.payloadHM.put("qos", qosFlag.ordinal());			
+		//freshness data, stamped here so that it is covered by the signature
+		this.payloadHM.put("msgId", MSG_ID.incrementAndGet());
+		this.payloadHM.put("timestamp", Instant.now().getEpochSecond());
+		//compress first, encrypted data does not compress
+		this.deflatePayload(compressThreshold);
+		//encrypt before signing, so the signature covers the ciphertext that is sent
+		if(secFlag.equals(Security.PRIVATE)){//private message, needs to encrypt payload with recipient's public key
+			//
+			if(this.destKey == null){
+				LOGGER.error("No recipient's public key, cannot encrypt message!");
+				throw new MessageException("No recipient's public key, cannot encrypt message!");
+			}
+			//go ahead
+			try{
+				long t0 = System.nanoTime();
+				Object event = Profiler.begin(Profiler.ENCRYPT);
+				byte[] en_byte = encryptPayload((String) this.payloadHM.get("payload"));
+				Profiler.end(event, en_byte.length, secFlag, protocolFlag);
+				this.record(ChannelMetrics.ENCRYPT, t0);
+				this.payloadHM.put("payload", Base64.getEncoder().encodeToString(en_byte)); //replace the payload, the ciphertext is binary
+			}catch(Exception e){
+				LOGGER.error("Error tyring to encrypt payload using recipient's public key: " + e.getMessage());
+				throw new MessageException(e);
+			}
+		}
 		//enforce security
 		if(!secFlag.equals(Security.PUBLIC)){
 			//needs to sign protected and private messages
@@ -238,9 +630,14 @@ public class Message {
 				//need to get the payload element and sign that using owner's private key
 				if(this.payloadHM.containsKey("payload") && this.payloadHM.get("payload") != null && !((String) this.payloadHM.get("payload")).isEmpty()){
 					if(this.payloadHM.get("publicKey") == null){ //might have been populated by the getStatusMessage method
-						this.payloadHM.put("publicKey", Identity.getInstance().getPublicKey().toString());
+						this.payloadHM.put("publicKey", Identity.getInstance().getPublicKeyString());
 					}							
-					String signature = Identity.getInstance().signMessageAsString(((String) this.payloadHM.get("payload")).getBytes());
+					long t0 = System.nanoTime();
+					Object event = Profiler.begin(Profiler.SIGN);
+					byte[] signed = signedContent(this.payloadHM).getBytes(StandardCharsets.UTF_8);
+					String signature = Identity.getInstance().signMessageAsString(signed);
+					Profiler.end(event, signed.length, secFlag, protocolFlag);
+					this.record(ChannelMetrics.SIGN, t0);
 					if(signature != null){
 						this.payloadHM.put("signature", signature); //add the signature for verifying the payload
 					}else{
@@ -263,21 +660,8 @@ public class Message {
 				}
 			}
 		}
-		if(secFlag.equals(Security.PRIVATE)){//private message, needs to encrypt payload with recipient's public key
-			//
-			if(this.destKey == null){
-				LOGGER.error("No recipient's public key, cannot encrypt message!");
-				throw new MessageException("No recipient's public key, cannot encrypt message!");
-			}
-			//go ahead
-			try{
-				byte[] en_byte = encryptPayload((String) this.payloadHM.get("payload"));
-				this.payloadHM.put("payload", new String(en_byte, StandardCharsets.UTF_8)); //replace the payload
-			}catch(Exception e){
-				LOGGER.error("Error tyring to encrypt payload using recipient's public key: " + e.getMessage());
-				throw new MessageException(e);
-			}
-		}
+		this.traceStage(Trace.PACKED);
+		Profiler.end(packEvent, String.valueOf(this.payloadHM.get("payload")).length(), secFlag, protocolFlag);
 		//we can now turn the whole payloadHM into a Json String, then base64 encoded it
 		//this.msgB64Bytes = Base64Helper.encodeToBytes(JSONValue.toJSONString(this.payloadHM));
 	}
@@ -379,8 +763,8 @@ public class Message {
 	/**
 	 * Verify the integrity of the signed payload.
 	 * <p>
-	 * @param value		{@link java.lang.String <em>String</em>} representation of the signature.
-	 * @param payload	a {@link java.lang.String <em>String</em>} representation of the payload, this should not be base64 encoded.
+	 * @param value		base64 encoded {@link java.lang.String <em>String</em>} representation of the signature.
+	 * @param payload	a {@link java.lang.String <em>String</em>} representation of the signed content, this should not be base64 encoded.
 	 * @return			true if the signature is good, else false
 	 * @throws Exception 	on any processing error
 	 */
@@ -388,8 +772,118 @@ public class Message {
 		//
 		Signature signAlg = Signature.getInstance("SHA256withRSA");
 		signAlg.initVerify(this.destKey);
-		signAlg.update(payload.getBytes()); //load the payload message
-		return signAlg.verify(value.getBytes()); //load the signature and verify
+		signAlg.update(payload.getBytes(StandardCharsets.UTF_8)); //load the payload message
+		return signAlg.verify(Base64.getDecoder().decode(value)); //load the signature and verify
+	}
+	/**
+	 * Rebuild the sender&#39;s trace times from the header and add the receipt time.  A malformed header
+	 * is ignored, tracing is diagnostic only.
+	 * <p>
+	 * @param times	the header times
+	 */
+	private void readTrace(List<?> times){
+		if(times.size() != Trace.HEADER_STAGES.length){
+			return;
+		}
+		LinkedHashMap<String, Long> hm = new LinkedHashMap<String, Long>();
+		for(int i = 0; i < times.size(); i++){
+			if(!(times.get(i) instanceof Number)){
+				return;
+			}
+			hm.put(Trace.HEADER_STAGES[i], ((Number) times.get(i)).longValue());
+		}
+		hm.put(Trace.RECEIVED, this.stampMicros);
+		this.trace = hm;
+	}
+	/**
+	 * Look this message up in a {@link ReplayFilter <em>ReplayFilter</em>}, or record it once its signature is verified.
+	 * <p>
+	 * @param filter	the {@link ReplayFilter <em>ReplayFilter</em>}
+	 * @param record	true to record the message
+	 * @return true if the message is fresh
+	 */
+	private boolean isFresh(ReplayFilter filter, boolean record){
+		String source = (String) this.payloadHM.get("source");
+		String key = (String) this.payloadHM.get("publicKey");
+		long msgId = ((Number) this.payloadHM.get("msgId")).longValue();
+		long timestamp = ((Number) this.payloadHM.get("timestamp")).longValue();
+		long now = Instant.now().getEpochSecond();
+		return (record ? filter.record(source, key, msgId, timestamp, now) : filter.isFresh(source, key, msgId, timestamp, now));
+	}
+	/**
+	 * Record the time since t0 in the {@link #metrics <em>metrics</em>}, if set.
+	 * <p>
+	 * @param stage	the {@link ChannelMetrics <em>ChannelMetrics</em>} stage
+	 * @param t0	the start time from {@link System#nanoTime() <em>nanoTime</em>}
+	 */
+	private void record(String stage, long t0){
+		if(this.metrics != null){
+			this.metrics.record(stage, System.nanoTime() - t0);
+		}
+	}
+	/**
+	 * Replace the payload with its base64 encoded Deflate compressed form if it is large enough and
+	 * compression shrinks it, and flag the codec in the header.
+	 * <p>
+	 * @param threshold	minimum payload size in bytes, a negative value disables compression
+	 */
+	private void deflatePayload(int threshold){
+		Object payload = this.payloadHM.get("payload");
+		if(!(payload instanceof String)){
+			return;
+		}
+		byte[] plain = ((String) payload).getBytes(StandardCharsets.UTF_8);
+		byte[] compressed = Compression.deflate(plain, threshold);
+		//base64 inflates by a third, only keep the compressed form if it still wins
+		if(compressed != null && ((compressed.length + 2) / 3) * 4 < plain.length){
+			this.payloadHM.put("payload", Base64.getEncoder().encodeToString(compressed));
+			this.payloadHM.put("cmp", Compression.Codec.DEFLATE.ordinal());
+		}
+	}
+	/**
+	 * Restore a compressed payload once it has been verified and, if private, decrypted.  The inflated
+	 * content replaces the decrypted payload for private messages and the payload otherwise.
+	 * <p>
+	 * @param secFlag	the {@link Security <em>Security</em>} flag of the message
+	 * @throws MessageException on an unknown codec or a corrupt payload
+	 */
+	private void inflatePayload(Security secFlag) throws MessageException{
+		Object cmp = this.payloadHM.get("cmp");
+		if(!(cmp instanceof Number) || ((Number) cmp).intValue() == Compression.Codec.NONE.ordinal()){
+			return;
+		}
+		if(((Number) cmp).intValue() != Compression.Codec.DEFLATE.ordinal()){
+			LOGGER.error("Unsupported compression codec : " + cmp);
+			throw new MessageException("Unsupported compression codec : " + cmp);
+		}
+		String key = (secFlag.equals(Security.PRIVATE) ? "decryptedPayload" : "payload");
+		try {
+			byte[] plain = Compression.inflate(Base64.getDecoder().decode((String) this.payloadHM.get(key)));
+			this.payloadHM.put(key, new String(plain, StandardCharsets.UTF_8));
+		} catch (Exception e) {
+			LOGGER.error("Error decompressing the payload: " + e.getMessage());
+			throw new MessageException(e);
+		}
+	}
+	/**
+	 * Compile the content covered by the signature&#58; the payload together with the message id and
+	 * timestamp, so that a replayed message cannot be passed off as fresh by altering its header, and
+	 * the {@link #SIGNED_KEYS <em>SIGNED_KEYS</em>} present in the message, so that neither the source, which
+	 * the replay filter and the receiving channel key on, nor the header fields deciding how the payload is read
+	 * can be altered.
+	 * <p>
+	 * @param hm	the message key values
+	 * @return	the {@link java.lang.String <em>String</em>} to sign or verify
+	 */
+	private static String signedContent(HashMap<String, Object> hm){
+		StringBuilder content = new StringBuilder();
+		content.append(hm.get("payload")).append('\n').append(hm.get("msgId")).append('\n').append(hm.get("timestamp"));
+		for(String key : SIGNED_KEYS){
+			if(hm.containsKey(key)){
+				content.append('\n').append(key).append(':').append(hm.get(key));
+			}
+		}
+		return content.toString();
 	}
 	/**
 	 * Encrypt the payload using the recipient&#39;s {@link java.security.PublicKey <em>PublicKey</em>}
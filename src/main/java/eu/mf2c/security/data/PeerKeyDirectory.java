@@ -0,0 +1,253 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License 
+ */
+package eu.mf2c.security.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Directory of the public keys of peer agents, keyed by friendy name.  Keys are learnt through the handshake
+ * and held for {@link #ttl <em>ttl</em>} milliseconds.  The directory is saved to a properties file on every
+ * change, so a restarted channel can use the keys of known peers straight away.  A caller needing a key that is
+ * not yet known gets a {@link java.util.concurrent.CompletableFuture <em>CompletableFuture</em>} that completes
+ * when the handshake delivers it.
+ * <p>
+ * The first key learnt for a name is pinned until it expires&#58; a handshake carrying a different key for a
+ * known name is rejected, as anyone can send a handshake under any name.  A peer that generates a new key
+ * pair when it restarts is therefore only learnt again once the old key expires, or once an operator
+ * {@link #replace(String, PublicKey) <em>replaces</em>} or {@link #remove(String) <em>removes</em>} the entry.
+ */
+public class PeerKeyDirectory {
+	/** Message logger attribute */
+	private final static Logger LOGGER = Logger.getLogger(PeerKeyDirectory.class.getName());
+	/** the backing file, null for an in&#45;memory directory */
+	private final File file;
+	/** time in milliseconds a key is held */
+	private final long ttl;
+	/** the known keys */
+	private final ConcurrentHashMap<String, Entry> keys = new ConcurrentHashMap<String, Entry>();
+	/** callers waiting for a key */
+	private final ConcurrentHashMap<String, CompletableFuture<PublicKey>> waiters = new ConcurrentHashMap<String, CompletableFuture<PublicKey>>();
+
+	/**
+	 * A key and its expiry time.
+	 */
+	private static class Entry {
+		/** the peer&#39;s public key */
+		private final PublicKey key;
+		/** expiry in epoch milliseconds */
+		private final long expiry;
+
+		private Entry(PublicKey key, long expiry){
+			this.key = key;
+			this.expiry = expiry;
+		}
+	}
+
+	/**
+	 * Construct an instance and load the keys saved in the backing file.
+	 * <p>
+	 * @param file	the backing properties file, or null to hold the keys in memory only
+	 * @param ttl	time in milliseconds a key is held
+	 */
+	public PeerKeyDirectory(File file, long ttl) {
+		this.file = file;
+		this.ttl = ttl;
+		this.load();
+	}
+
+	/**
+	 * Get the key of a peer.
+	 * <p>
+	 * @param name	friendy name of the peer
+	 * @return the {@link java.security.PublicKey <em>PublicKey</em>} or null if it is unknown or expired
+	 */
+	public PublicKey get(String name){
+		Entry entry = this.keys.get(name);
+		if(entry == null){
+			return null;
+		}
+		if(entry.expiry <= System.currentTimeMillis()){
+			this.keys.remove(name, entry);
+			return null;
+		}
+		return entry.key;
+	}
+
+	/**
+	 * Get a future for the key of a peer.  The future is already complete if the key is known.
+	 * <p>
+	 * @param name	friendy name of the peer
+	 * @return a {@link java.util.concurrent.CompletableFuture <em>CompletableFuture</em>} completed with the key
+	 */
+	public CompletableFuture<PublicKey> await(String name){
+		PublicKey key = this.get(name);
+		if(key != null){
+			return CompletableFuture.completedFuture(key);
+		}
+		CompletableFuture<PublicKey> future = this.waiters.computeIfAbsent(name, n -> new CompletableFuture<PublicKey>());
+		//the key may have arrived in between
+		key = this.get(name);
+		if(key != null){
+			this.waiters.remove(name, future);
+			future.complete(key);
+		}
+		return future;
+	}
+
+	/**
+	 * Record the key of a peer and complete the callers waiting for it.  The expiry of a known key is
+	 * refreshed, a different key is rejected while the pinned one is live.
+	 * <p>
+	 * @param name	friendy name of the peer
+	 * @param key	the peer&#39;s {@link java.security.PublicKey <em>PublicKey</em>}
+	 * @return true if the key was recorded, false if a different key is pinned for the name
+	 */
+	public boolean put(String name, PublicKey key){
+		long now = System.currentTimeMillis();
+		Entry entry = new Entry(key, now + this.ttl);
+		Entry old = this.keys.get(name);
+		while(old == null || old.expiry <= now || old.key.equals(key)){
+			if(old == null ? this.keys.putIfAbsent(name, entry) == null : this.keys.replace(name, old, entry)){
+				//only a new key needs writing out, refreshed entries are rewritten with the next change
+				this.learnt(name, key, (old == null || !old.key.equals(key)));
+				return true;
+			}
+			old = this.keys.get(name);
+		}
+		LOGGER.warn("Rejected a different public key for " + name + ", the pinned key is held until it expires or is replaced");
+		return false;
+	}
+
+	/**
+	 * Replace the key of a peer regardless of the key pinned for it, e.g. when an operator has confirmed that
+	 * the peer generated a new key pair.
+	 * <p>
+	 * @param name	friendy name of the peer
+	 * @param key	the peer&#39;s new {@link java.security.PublicKey <em>PublicKey</em>}
+	 */
+	public void replace(String name, PublicKey key){
+		this.keys.put(name, new Entry(key, System.currentTimeMillis() + this.ttl));
+		LOGGER.info("Replaced public key of " + name);
+		this.learnt(name, key, true);
+	}
+
+	/**
+	 * Forget the key of a peer, e.g. when it can no longer decrypt our messages.
+	 * <p>
+	 * @param name	friendy name of the peer
+	 */
+	public void remove(String name){
+		if(this.keys.remove(name) != null){
+			this.save();
+		}
+	}
+
+	/**
+	 * @return the number of keys held, including any that have expired but not been looked up since
+	 */
+	public int size(){
+		return this.keys.size();
+	}
+
+	////////////////////////////////////////////////////utilties////////////////////////////////////////////////
+	/**
+	 * Complete the callers waiting for a key, and save the directory if the key is new.
+	 */
+	private void learnt(String name, PublicKey key, boolean changed){
+		CompletableFuture<PublicKey> future = this.waiters.remove(name);
+		if(future != null){
+			future.complete(key);
+		}
+		if(changed){
+			LOGGER.debug("Learnt public key of " + name);
+			this.save();
+		}
+	}
+
+	/**
+	 * Load the unexpired keys from the backing file.
+	 */
+	private void load(){
+		if(this.file == null || !this.file.exists()){
+			return;
+		}
+		Properties props = new Properties();
+		try(InputStream in = new FileInputStream(this.file)){
+			props.load(in);
+			KeyFactory kf = KeyFactory.getInstance("RSA");
+			long now = System.currentTimeMillis();
+			for(String name : props.stringPropertyNames()){
+				//value is expiry,base64 X.509 encoded key
+				String[] value = props.getProperty(name).split(",", 2);
+				long expiry = Long.parseLong(value[0]);
+				if(expiry > now && value.length == 2){
+					PublicKey key = kf.generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(value[1])));
+					this.keys.put(name, new Entry(key, expiry));
+				}
+			}
+			LOGGER.info("Loaded " + this.keys.size() + " peer key(s) from " + this.file);
+		}catch(Exception e){
+			//not fatal, the keys are learnt again through the handshake
+			LOGGER.error("Error loading the peer key directory(" + this.file + ") : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Write the unexpired keys to a temporary file and move it over the backing file.
+	 */
+	private synchronized void save(){
+		if(this.file == null){
+			return;
+		}
+		Properties props = new Properties();
+		long now = System.currentTimeMillis();
+		for(Map.Entry<String, Entry> e : this.keys.entrySet()){
+			if(e.getValue().expiry > now){
+				props.setProperty(e.getKey(), e.getValue().expiry + "," + Base64.getEncoder().encodeToString(e.getValue().key.getEncoded()));
+			}
+		}
+		try{
+			File dir = this.file.getAbsoluteFile().getParentFile();
+			if(dir != null && !dir.exists() && !dir.mkdirs()){
+				throw new IOException("Unable to create " + dir);
+			}
+			File tmp = new File(this.file.getPath() + ".tmp");
+			try(OutputStream out = new FileOutputStream(tmp)){
+				props.store(out, "mF2C peer public keys");
+			}
+			Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch(IOException e){
+			LOGGER.error("Error saving the peer key directory(" + this.file + ") : " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.jfr;
+
+import org.apache.log4j.Logger;
+
+import eu.mf2c.security.comm.util.Protocol;
+import eu.mf2c.security.comm.util.Security;
+
+/**
+ * Fa&#231;ade emitting Java Flight Recorder events for the security hot path.  A probe is bracketed as&#58;
+ * <pre>
+ *  Object event = Profiler.begin(Profiler.SIGN);
+ *  ...
+ *  Profiler.end(event, size, sec, protocol);
+ * </pre>
+ * The events are defined in <code>JfrProbes</code>, which needs the <code>jdk.jfr</code> module of JDK 11 or
+ * OpenJDK 8u262 and later.  It lives in the optional <code>src/main/java11</code> source folder, so the rest of
+ * the library still compiles for Java 8, and is loaded reflectively, so the library also runs on JVMs without
+ * Flight Recorder, where <code>begin</code> returns null and the probes cost a null check.  With Flight
+ * Recorder, an event is only started if its type is enabled in the recording, so the cost is a small allocation
+ * when nothing is recording.  Setting the system property <code>mf2c.jfr</code> to false disables the probes.
+ */
+public final class Profiler {
+	/** message logger */
+	private static final Logger LOGGER = Logger.getLogger(Profiler.class.getName());
+	/** Message.packMsg */
+	public static final int PACK = 0;
+	/** Message.unpackMsg */
+	public static final int UNPACK = 1;
+	/** signature */
+	public static final int SIGN = 2;
+	/** signature verification */
+	public static final int VERIFY = 3;
+	/** payload encryption */
+	public static final int ENCRYPT = 4;
+	/** payload decryption */
+	public static final int DECRYPT = 5;
+	/** ProtocolHandler publish */
+	public static final int PUBLISH = 6;
+	/** message arrival from the transport */
+	public static final int ARRIVAL = 7;
+	/** the probes, null if Flight Recorder is not available */
+	private static final Probes PROBES = load();
+
+	private Profiler(){
+	}
+
+	/**
+	 * @return true if the events are emitted to Flight Recorder
+	 */
+	public static boolean isAvailable(){
+		return PROBES != null;
+	}
+
+	/**
+	 * Start an event.
+	 * <p>
+	 * @param kind	the event kind
+	 * @return the event to pass to {@link #end(Object, int, Security, Protocol) <em>end</em>}, null if the event
+	 * 		is not recorded
+	 */
+	public static Object begin(int kind){
+		return (PROBES == null ? null : PROBES.begin(kind));
+	}
+
+	/**
+	 * End an event and commit it if the recording keeps it.
+	 * <p>
+	 * @param event		the event from {@link #begin(int) <em>begin</em>}, may be null
+	 * @param size		payload size in bytes
+	 * @param sec		the {@link Security <em>Security</em>} level, may be null
+	 * @param protocol	the {@link Protocol <em>Protocol</em>}, may be null
+	 */
+	public static void end(Object event, int size, Security sec, Protocol protocol){
+		if(event != null){
+			PROBES.end(event, size, sec, protocol);
+		}
+	}
+
+	private static Probes load(){
+		if("false".equals(System.getProperty("mf2c.jfr"))){
+			return null;
+		}
+		try {
+			Class.forName("jdk.jfr.Event");
+			return (Probes) Class.forName(Profiler.class.getPackage().getName() + ".JfrProbes").getDeclaredConstructor().newInstance();
+		} catch (ClassNotFoundException | LinkageError e) {
+			LOGGER.debug("Flight Recorder not available, profiling events disabled");
+		} catch (Exception e) {
+			LOGGER.warn("Failed to load the Flight Recorder probes : " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * The probe implementation.
+	 */
+	interface Probes {
+		/**
+		 * @param kind	the event kind
+		 * @return the started event, or null if its type is not enabled
+		 */
+		Object begin(int kind);
+		/**
+		 * @param event		the started event
+		 * @param size		payload size in bytes
+		 * @param sec		the security level, may be null
+		 * @param protocol	the protocol, may be null
+		 */
+		void end(Object event, int size, Security sec, Protocol protocol);
+	}
+}
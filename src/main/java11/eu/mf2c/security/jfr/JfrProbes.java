@@ -0,0 +1,141 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import eu.mf2c.security.comm.util.Protocol;
+import eu.mf2c.security.comm.util.Security;
+
+/**
+ * Flight Recorder events of the {@link Profiler <em>Profiler</em>}.  This is the only class of the library
+ * needing the <code>jdk.jfr</code> module, so it is kept in the optional <code>src/main/java11</code> source folder,
+ * compiled for Java 11 against the main classes, and only loaded when that module is present.  The events are
+ * named <code>eu.mf2c.security.[Kind]</code> and have no stack trace by default, to keep them cheap enough for
+ * continuous recording.
+ */
+class JfrProbes implements Profiler.Probes {
+
+	JfrProbes(){
+	}
+
+	@Override
+	public Object begin(int kind){
+		SecurityEvent event;
+		switch(kind){
+			case Profiler.PACK : event = new Pack(); break;
+			case Profiler.UNPACK : event = new Unpack(); break;
+			case Profiler.SIGN : event = new Sign(); break;
+			case Profiler.VERIFY : event = new Verify(); break;
+			case Profiler.ENCRYPT : event = new Encrypt(); break;
+			case Profiler.DECRYPT : event = new Decrypt(); break;
+			case Profiler.PUBLISH : event = new Publish(); break;
+			case Profiler.ARRIVAL : event = new Arrival(); break;
+			default : return null;
+		}
+		if(!event.isEnabled()){
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void end(Object event, int size, Security sec, Protocol protocol){
+		SecurityEvent e = (SecurityEvent) event;
+		e.end();
+		if(e.shouldCommit()){
+			e.payloadSize = size;
+			e.security = (sec == null ? null : sec.name());
+			e.protocol = (protocol == null ? null : protocol.name());
+			e.commit();
+		}
+	}
+
+	////////////////////////////////////////////////////events////////////////////////////////////////////////////
+
+	/**
+	 * Fields common to the events.
+	 */
+	@Category({"mF2C", "Security"})
+	@StackTrace(false)
+	abstract static class SecurityEvent extends Event {
+		/** payload size */
+		@Label("Payload Size")
+		@DataAmount
+		int payloadSize;
+		/** security level */
+		@Label("Security")
+		String security;
+		/** transport protocol */
+		@Label("Protocol")
+		String protocol;
+	}
+
+	@Name("eu.mf2c.security.Pack")
+	@Label("Pack Message")
+	@Description("Message.packMsg, compression, encryption and signature")
+	static class Pack extends SecurityEvent {
+	}
+
+	@Name("eu.mf2c.security.Unpack")
+	@Label("Unpack Message")
+	@Description("Message.unpackMsg, header parsing, verification, decryption and decompression")
+	static class Unpack extends SecurityEvent {
+	}
+
+	@Name("eu.mf2c.security.Sign")
+	@Label("Sign")
+	@Description("SHA256withRSA signature of the signed content")
+	static class Sign extends SecurityEvent {
+	}
+
+	@Name("eu.mf2c.security.Verify")
+	@Label("Verify")
+	@Description("SHA256withRSA signature verification of the signed content")
+	static class Verify extends SecurityEvent {
+	}
+
+	@Name("eu.mf2c.security.Encrypt")
+	@Label("Encrypt")
+	@Description("RSA encryption of a private payload")
+	static class Encrypt extends SecurityEvent {
+	}
+
+	@Name("eu.mf2c.security.Decrypt")
+	@Label("Decrypt")
+	@Description("RSA decryption of a private payload")
+	static class Decrypt extends SecurityEvent {
+	}
+
+	@Name("eu.mf2c.security.Publish")
+	@Label("Publish")
+	@Description("Mqtt3Handler.publish, until the broker acknowledgement for synchronous publishes")
+	static class Publish extends SecurityEvent {
+	}
+
+	@Name("eu.mf2c.security.MessageArrived")
+	@Label("Message Arrived")
+	@Description("Mqtt3Handler.messageArrived, routing of a message received from the broker")
+	static class Arrival extends SecurityEvent {
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security;
+
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Run every executable check in turn and exit with status 1 if any of them fails.
+ */
+public class AllChecks {
+	/** the checks, in the order they are run */
+	private static final String[] CHECKS = {
+		"eu.mf2c.security.comm.ManyChannelsTest",
+		"eu.mf2c.security.comm.RetaggedMessageTest",
+		"eu.mf2c.security.comm.DroppedMessageCommitTest",
+		"eu.mf2c.security.comm.PresenceTrustTest",
+		"eu.mf2c.security.comm.ReplyTrustTest",
+		"eu.mf2c.security.comm.protocol.mqtt3.Mqtt3HandlerTest",
+		"eu.mf2c.security.comm.util.SegmentLogTest",
+		"eu.mf2c.security.comm.util.ReplayFilterTest",
+		"eu.mf2c.security.comm.util.ConflatingQueueTest",
+		"eu.mf2c.security.comm.util.DeltaCodecTest",
+		"eu.mf2c.security.comm.util.TimingWheelTest",
+		"eu.mf2c.security.comm.util.ReorderBufferTest",
+		"eu.mf2c.security.comm.util.OutboxTest",
+		"eu.mf2c.security.data.MessageTest",
+		"eu.mf2c.security.data.PeerKeyDirectoryTest",
+	};
+
+	public static void main(String[] args) throws Exception {
+		int failed = 0;
+		for(String name : CHECKS){
+			long t0 = System.nanoTime();
+			try{
+				Class.forName(name).getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+				System.out.println("OK   " + name + " (" + (System.nanoTime() - t0) / 1000000 + "ms)");
+			}catch(InvocationTargetException e){
+				failed++;
+				System.out.println("FAIL " + name + " : " + e.getCause());
+				e.getCause().printStackTrace();
+			}
+		}
+		System.out.println((CHECKS.length - failed) + "/" + CHECKS.length + " checks passed");
+		System.exit(failed == 0 ? 0 : 1);
+	}
+}
@@ -0,0 +1,50 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security;
+
+/**
+ * Assertions shared by the executable checks.  The project is built without a test framework, so each check is a
+ * class with a <code>main</code> method that throws an {@link AssertionError <em>AssertionError</em>} on the first
+ * failure, and {@link AllChecks <em>AllChecks</em>} runs them all.
+ */
+public final class Checks {
+
+	private Checks(){
+	}
+
+	/**
+	 * @param condition	the condition expected to hold
+	 * @param what		description of the condition
+	 * @throws AssertionError if the condition does not hold
+	 */
+	public static void check(boolean condition, String what){
+		if(!condition){
+			throw new AssertionError(what);
+		}
+	}
+
+	/**
+	 * @param expected	the expected value
+	 * @param actual	the actual value
+	 * @param what		description of the value
+	 * @throws AssertionError if the values differ
+	 */
+	public static void equal(Object expected, Object actual, String what){
+		if(expected == null ? actual != null : !expected.equals(actual)){
+			throw new AssertionError(what + " : expected " + expected + " but was " + actual);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm;
+
+import static eu.mf2c.security.Checks.check;
+import static eu.mf2c.security.Checks.equal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import net.minidev.json.JSONValue;
+
+import eu.mf2c.security.comm.protocol.loopback.LoopbackHub;
+import eu.mf2c.security.comm.util.Base64Helper;
+import eu.mf2c.security.comm.util.ChannelMetrics;
+import eu.mf2c.security.comm.util.Protocol;
+import eu.mf2c.security.comm.util.QoS;
+import eu.mf2c.security.comm.util.Security;
+import eu.mf2c.security.data.Message;
+
+/**
+ * Check that the messages a journalling {@link Channel <em>Channel</em>} drops on their way to the application are
+ * committed&#58; a message failing verification, a duplicate dropped by the reorder buffer and the duplicate part
+ * of a bundle.  Otherwise the inbound journal keeps them outstanding, cannot be truncated past them and hands them
+ * back after every restart.
+ */
+public class DroppedMessageCommitTest {
+	/** name of the receiving channel */
+	private static final String RECEIVER = "journalled";
+
+	public static void main(String[] args) throws Exception {
+		String hubName = "dropped-" + System.nanoTime();
+		HashMap<String, String> properties = new HashMap<String, String>();
+		properties.put("broker", "loopback://" + hubName);
+		properties.put("timeOut", "10");
+		properties.put("jmx", "false");
+		properties.put("peerKeyDir", System.getProperty("java.io.tmpdir") + "/mf2c-dropped-keys-" + System.nanoTime());
+		properties.put("inboundJournal", "true");
+		properties.put("journalDir", System.getProperty("java.io.tmpdir") + "/mf2c-dropped-journal-" + System.nanoTime());
+		properties.put("reorderTimeout", "60000");
+		Channel channel = new Channel(null, Protocol.LOOPBACK, RECEIVER, properties);
+		try{
+			LoopbackHub hub = LoopbackHub.getHub(hubName, LoopbackHub.DEFAULT_CAPACITY);
+			String topic = "mf2c/" + RECEIVER + "/protected";
+			HashMap<String, Object> forged = pack(numbered("genuine", -1));
+			forged.put("payload", "forged");
+			check(hub.deliver(topic, wire(forged)), "delivered the forged message");
+			HashMap<String, Object> first = pack(numbered("first", 0));
+			check(hub.deliver(topic, wire(first)), "delivered the first message");
+			check(hub.deliver(topic, wire(first)), "delivered the first message again");
+			//a resent bundle, its messages are numbered one by one
+			Message bundle = Message.bundle("sender", Arrays.asList(numbered("first", 0), numbered("second", 1)));
+			bundle.getPayloadHM().put(Message.SESSION, "s1");
+			bundle.packMsg(Security.PROTECTED, Protocol.LOOPBACK, QoS.ATLEASTONCE, null);
+			check(hub.deliver(topic, wire(bundle.getPayloadHM())), "delivered the bundle");
+
+			List<String> received = popAll(channel, 2);
+			equal(Arrays.asList("first", "second"), received, "messages handed to the application");
+			equal(2L, channel.getMetrics().getGauge(ChannelMetrics.LATE), "duplicates dropped");
+			equal(0L, channel.getMetrics().getGauge(ChannelMetrics.JOURNAL), "messages outstanding in the journal");
+		}finally{
+			channel.destruct();
+		}
+		//nothing comes back after a restart
+		channel = new Channel(null, Protocol.LOOPBACK, RECEIVER, properties);
+		try{
+			Thread.sleep(200);
+			check(channel.pop() == null, "no message handed back after a restart");
+			equal(0L, channel.getMetrics().getGauge(ChannelMetrics.JOURNAL), "messages outstanding after a restart");
+		}finally{
+			channel.destruct();
+		}
+	}
+
+	/**
+	 * Pop and commit the given number of messages, then give the dropped ones time to go through.
+	 * <p>
+	 * @return the payloads popped
+	 */
+	private static List<String> popAll(Channel channel, int count) throws InterruptedException {
+		List<String> received = new ArrayList<String>();
+		long deadline = System.currentTimeMillis() + 10000;
+		while(System.currentTimeMillis() < deadline
+				&& (received.size() < count || channel.getMetrics().getGauge(ChannelMetrics.JOURNAL) > 0)){
+			Message msg = channel.pop();
+			if(msg == null){
+				Thread.sleep(5);
+				continue;
+			}
+			received.add((String) msg.getPayloadHM().get("payload"));
+			channel.commit(msg);
+		}
+		return received;
+	}
+
+	/**
+	 * @return the key values of a message of session s1 from the sender, numbered unless the sequence number is negative
+	 */
+	private static HashMap<String, Object> numbered(String payload, long seq){
+		HashMap<String, Object> hm = new HashMap<String, Object>();
+		hm.put("source", "sender");
+		hm.put("payload", payload);
+		if(seq >= 0){
+			hm.put(Message.SESSION, "s1");
+			hm.put(Message.SEQUENCE, seq);
+		}
+		return hm;
+	}
+
+	private static HashMap<String, Object> pack(HashMap<String, Object> hm) throws Exception {
+		Message msg = new Message(hm);
+		msg.packMsg(Security.PROTECTED, Protocol.LOOPBACK, QoS.ATLEASTONCE, null);
+		return msg.getPayloadHM();
+	}
+
+	private static byte[] wire(HashMap<String, Object> hm){
+		hm.putIfAbsent("timestamp", System.currentTimeMillis() / 1000);
+		return Base64Helper.encodeToBytes(JSONValue.toJSONString(hm));
+	}
+}
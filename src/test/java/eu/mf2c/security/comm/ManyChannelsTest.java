@@ -0,0 +1,107 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm;
+
+import static eu.mf2c.security.Checks.check;
+import static eu.mf2c.security.Checks.equal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import eu.mf2c.security.comm.util.Privacy;
+import eu.mf2c.security.comm.util.Protocol;
+import eu.mf2c.security.comm.util.QoS;
+import eu.mf2c.security.comm.util.Security;
+import eu.mf2c.security.data.Message;
+
+/**
+ * Run hundreds of {@link Channel <em>Channel</em>} instances in one JVM over the loopback handler.  The channels
+ * form a ring, each sending to the next one from its own thread, and each must receive exactly the message of its
+ * predecessor.  Handler state shared between instances would misroute or drop messages.
+ */
+public class ManyChannelsTest {
+	/** number of channels */
+	private static final int CHANNELS = 300;
+
+	public static void main(String[] args) throws Exception {
+		HashMap<String, String> properties = new HashMap<String, String>();
+		properties.put("broker", "loopback://many-" + System.nanoTime());
+		properties.put("timeOut", "10");
+		properties.put("jmx", "false");
+		properties.put("peerKeyDir", System.getProperty("java.io.tmpdir") + "/mf2c-many-" + System.nanoTime());
+		List<Channel> channels = new ArrayList<Channel>();
+		//a channel waits for the key of its destination on set up, so the ring is built all at once
+		ExecutorService builders = Executors.newFixedThreadPool(CHANNELS);
+		ExecutorService senders = Executors.newFixedThreadPool(16);
+		try{
+			List<Future<Channel>> built = new ArrayList<Future<Channel>>();
+			for(int i = 0; i < CHANNELS; i++){
+				final int n = i;
+				built.add(builders.submit(() -> new Channel(name((n + 1) % CHANNELS), Protocol.LOOPBACK, name(n), properties)));
+			}
+			for(Future<Channel> future : built){
+				channels.add(future.get(60, TimeUnit.SECONDS));
+			}
+			Set<Enum<?>> flags = new HashSet<Enum<?>>(Arrays.asList(Security.PROTECTED, QoS.ATLEASTONCE, Privacy.NOTPII));
+			List<Future<?>> sent = new ArrayList<Future<?>>();
+			for(int i = 0; i < CHANNELS; i++){
+				final int n = i;
+				sent.add(senders.submit(() -> {
+					HashMap<String, Object> hm = new HashMap<String, Object>();
+					hm.put("source", name(n));
+					hm.put("payload", "hello from " + name(n));
+					channels.get(n).send(new Message(hm), flags);
+					return null;
+				}));
+			}
+			for(Future<?> future : sent){
+				future.get(30, TimeUnit.SECONDS);
+			}
+			long deadline = System.currentTimeMillis() + 30000;
+			for(int i = 0; i < CHANNELS; i++){
+				Channel channel = channels.get(i);
+				Message msg;
+				while((msg = channel.pop()) == null && System.currentTimeMillis() < deadline){
+					Thread.sleep(1);
+				}
+				check(msg != null, name(i) + " received no message");
+				String from = name((i + CHANNELS - 1) % CHANNELS);
+				equal(from, msg.getPayloadHM().get("source"), "source of the message to " + name(i));
+				equal("hello from " + from, msg.getPayloadHM().get("payload"), "payload of the message to " + name(i));
+				check(channel.pop() == null, name(i) + " received more than one message");
+			}
+		}finally{
+			senders.shutdownNow();
+			for(Channel channel : channels){
+				builders.execute(channel::destruct);
+			}
+			builders.shutdown();
+			builders.awaitTermination(60, TimeUnit.SECONDS);
+		}
+	}
+
+	private static String name(int i){
+		return "many" + i;
+	}
+}
@@ -0,0 +1,98 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm;
+
+import static eu.mf2c.security.Checks.check;
+import static eu.mf2c.security.Checks.equal;
+
+import java.io.File;
+import java.security.KeyPairGenerator;
+import java.util.HashMap;
+
+import net.minidev.json.JSONValue;
+
+import eu.mf2c.security.comm.protocol.loopback.LoopbackHub;
+import eu.mf2c.security.comm.util.Base64Helper;
+import eu.mf2c.security.comm.util.Protocol;
+import eu.mf2c.security.comm.util.QoS;
+import eu.mf2c.security.comm.util.Security;
+import eu.mf2c.security.data.Message;
+import eu.mf2c.security.data.PeerKeyDirectory;
+
+/**
+ * Check that the {@link PresenceService <em>PresenceService</em>} of a {@link Channel <em>Channel</em>} only trusts
+ * status messages signed with the key pinned for their source&#58; an unsigned status or a status signed with
+ * another key does not mark a peer online or offline.
+ */
+public class PresenceTrustTest {
+	/** name of the watching channel */
+	private static final String WATCHER = "watcher";
+
+	public static void main(String[] args) throws Exception {
+		String hubName = "presence-" + System.nanoTime();
+		String keyDir = System.getProperty("java.io.tmpdir") + "/mf2c-presence-keys-" + System.nanoTime();
+		//another key is pinned for the impostor
+		KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+		gen.initialize(1024);
+		new PeerKeyDirectory(new File(keyDir, WATCHER + ".keys"), 3600000).put("impostor", gen.generateKeyPair().getPublic());
+		HashMap<String, String> properties = new HashMap<String, String>();
+		properties.put("broker", "loopback://" + hubName);
+		properties.put("timeOut", "10");
+		properties.put("jmx", "false");
+		properties.put("peerKeyDir", keyDir);
+		properties.put("presence", "true");
+		properties.put("presenceTtl", "60");
+		Channel channel = new Channel(null, Protocol.LOOPBACK, WATCHER, properties);
+		try{
+			LoopbackHub hub = LoopbackHub.getHub(hubName, LoopbackHub.DEFAULT_CAPACITY);
+			PresenceService presence = channel.getPresence();
+			hub.deliver("mf2c/peer/status", signed("peer", "C"));
+			hub.deliver("mf2c/spoofed/status", unsigned("spoofed", "C"));
+			hub.deliver("mf2c/impostor/status", signed("impostor", "C"));
+			hub.deliver("mf2c/peer/status", unsigned("peer", "DG"));
+			//the status messages are handled in order
+			hub.deliver("mf2c/last/status", signed("last", "C"));
+			long deadline = System.currentTimeMillis() + 10000;
+			while(presence.getState("last") == null && System.currentTimeMillis() < deadline){
+				Thread.sleep(5);
+			}
+			check(presence.isAlive("last"), "the last status is handled");
+			check(presence.isAlive("peer"), "a signed status marks the peer online, an unsigned one does not mark it offline");
+			equal(null, presence.getState("spoofed"), "an unsigned status is dropped");
+			equal(null, presence.getState("impostor"), "a status signed with another key than the pinned one is dropped");
+		}finally{
+			channel.destruct();
+		}
+	}
+
+	private static byte[] signed(String source, String status) throws Exception {
+		HashMap<String, Object> hm = new HashMap<String, Object>();
+		hm.put("source", source);
+		hm.put("payload", "status : " + status);
+		Message msg = new Message(hm);
+		msg.packMsg(Security.PROTECTED, Protocol.LOOPBACK, QoS.ATLEASTONCE, null);
+		return Base64Helper.encodeToBytes(JSONValue.toJSONString(msg.getPayloadHM()));
+	}
+
+	private static byte[] unsigned(String source, String status){
+		HashMap<String, Object> hm = new HashMap<String, Object>();
+		hm.put("source", source);
+		hm.put("payload", "status : " + status);
+		hm.put("sec", Security.PUBLIC.ordinal());
+		hm.put("timestamp", System.currentTimeMillis() / 1000);
+		return Base64Helper.encodeToBytes(JSONValue.toJSONString(hm));
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm;
+
+import static eu.mf2c.security.Checks.check;
+import static eu.mf2c.security.Checks.equal;
+
+import java.io.File;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.minidev.json.JSONValue;
+
+import eu.mf2c.security.comm.protocol.loopback.LoopbackHub;
+import eu.mf2c.security.comm.util.Base64Helper;
+import eu.mf2c.security.comm.util.Privacy;
+import eu.mf2c.security.comm.util.Protocol;
+import eu.mf2c.security.comm.util.QoS;
+import eu.mf2c.security.comm.util.Security;
+import eu.mf2c.security.data.Identity;
+import eu.mf2c.security.data.Message;
+import eu.mf2c.security.data.PeerKeyDirectory;
+
+/**
+ * Check that a pending call of a {@link Channel <em>Channel</em>} is only completed by a reply signed with the key
+ * pinned for the peer called&#58; unsigned replies, replies with a forged correlation id or source and replies
+ * signed with another key are dropped.
+ */
+public class ReplyTrustTest {
+	/** name of the calling channel */
+	private static final String CALLER = "caller";
+
+	public static void main(String[] args) throws Exception {
+		String hubName = "replies-" + System.nanoTime();
+		String keyDir = System.getProperty("java.io.tmpdir") + "/mf2c-reply-keys-" + System.nanoTime();
+		//the callee signs with our own key, another key is pinned for the stranger
+		KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+		gen.initialize(1024);
+		PeerKeyDirectory keys = new PeerKeyDirectory(new File(keyDir, CALLER + ".keys"), 3600000);
+		keys.put("callee", Identity.getInstance().getPublicKey());
+		keys.put("stranger", gen.generateKeyPair().getPublic());
+		HashMap<String, String> properties = new HashMap<String, String>();
+		properties.put("broker", "loopback://" + hubName);
+		properties.put("timeOut", "10");
+		properties.put("jmx", "false");
+		properties.put("peerKeyDir", keyDir);
+		Channel channel = new Channel(null, Protocol.LOOPBACK, CALLER, properties);
+		try{
+			Set<Enum<?>> flags = new HashSet<Enum<?>>(Arrays.asList(Security.PROTECTED, QoS.ATLEASTONCE, Privacy.NOTPII));
+			Message toStranger = request();
+			CompletableFuture<Message> strangerCall = channel.request(toStranger, flags, "stranger", 10000);
+			Message toCallee = request();
+			CompletableFuture<Message> calleeCall = channel.request(toCallee, flags, "callee", 10000);
+			String strangerCid = toStranger.getCorrelationId();
+			String calleeCid = toCallee.getCorrelationId();
+
+			LoopbackHub hub = LoopbackHub.getHub(hubName, LoopbackHub.DEFAULT_CAPACITY);
+			String topic = "mf2c/" + CALLER + "/reply";
+			hub.deliver(topic, wire(signed("stranger", strangerCid, "wrong key")));
+			HashMap<String, Object> unsigned = reply("callee", calleeCid, "unsigned");
+			unsigned.put("sec", Security.PUBLIC.ordinal());
+			hub.deliver(topic, wire(unsigned));
+			HashMap<String, Object> forgedCid = signed("callee", "other", "forged cid");
+			forgedCid.put(Message.CORRELATION, calleeCid);
+			hub.deliver(topic, wire(forgedCid));
+			HashMap<String, Object> forgedSource = signed("other", calleeCid, "forged source");
+			forgedSource.put("source", "callee");
+			hub.deliver(topic, wire(forgedSource));
+			hub.deliver(topic, wire(signed("callee", calleeCid, "genuine")));
+
+			equal("genuine", calleeCall.get(10, TimeUnit.SECONDS).getPayloadHM().get("payload"), "the call is completed by the genuine reply");
+			check(!strangerCall.isDone(), "a reply signed with another key than the pinned one is dropped");
+			strangerCall.cancel(true);
+		}finally{
+			channel.destruct();
+		}
+	}
+
+	private static Message request(){
+		HashMap<String, Object> hm = new HashMap<String, Object>();
+		hm.put("source", CALLER);
+		hm.put("payload", "question");
+		return new Message(hm);
+	}
+
+	private static HashMap<String, Object> reply(String source, String cid, String payload){
+		HashMap<String, Object> hm = new HashMap<String, Object>();
+		hm.put("source", source);
+		hm.put("payload", payload);
+		hm.put(Message.CORRELATION, cid);
+		hm.put("timestamp", System.currentTimeMillis() / 1000);
+		return hm;
+	}
+
+	private static HashMap<String, Object> signed(String source, String cid, String payload) throws Exception {
+		Message msg = new Message(reply(source, cid, payload));
+		msg.packMsg(Security.PROTECTED, Protocol.LOOPBACK, QoS.ATLEASTONCE, null);
+		return msg.getPayloadHM();
+	}
+
+	private static byte[] wire(HashMap<String, Object> hm){
+		return Base64Helper.encodeToBytes(JSONValue.toJSONString(hm));
+	}
+}
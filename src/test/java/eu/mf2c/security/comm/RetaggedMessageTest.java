@@ -0,0 +1,133 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm;
+
+import static eu.mf2c.security.Checks.check;
+import static eu.mf2c.security.Checks.equal;
+
+import java.io.File;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import net.minidev.json.JSONValue;
+
+import eu.mf2c.security.comm.protocol.loopback.LoopbackHub;
+import eu.mf2c.security.comm.util.Base64Helper;
+import eu.mf2c.security.comm.util.ChannelMetrics;
+import eu.mf2c.security.comm.util.Protocol;
+import eu.mf2c.security.comm.util.QoS;
+import eu.mf2c.security.comm.util.Security;
+import eu.mf2c.security.data.Message;
+import eu.mf2c.security.data.PeerKeyDirectory;
+
+/**
+ * Check that a {@link Channel <em>Channel</em>} does not let a numbered message pass for another source&#58; a
+ * signed message re-tagged with another source, a message signed with another key than the one pinned for its
+ * source and an unsigned message neither refresh the presence of the source claimed nor take a place in its
+ * reorder stream, so the genuine messages of that source are still released in order.
+ */
+public class RetaggedMessageTest {
+	/** name of the receiving channel */
+	private static final String RECEIVER = "receiver";
+
+	public static void main(String[] args) throws Exception {
+		String hubName = "retagged-" + System.nanoTime();
+		String keyDir = System.getProperty("java.io.tmpdir") + "/mf2c-retagged-keys-" + System.nanoTime();
+		//another key is pinned for the impostor
+		KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+		gen.initialize(1024);
+		new PeerKeyDirectory(new File(keyDir, RECEIVER + ".keys"), 3600000).put("impostor", gen.generateKeyPair().getPublic());
+		HashMap<String, String> properties = new HashMap<String, String>();
+		properties.put("broker", "loopback://" + hubName);
+		properties.put("timeOut", "10");
+		properties.put("jmx", "false");
+		properties.put("peerKeyDir", keyDir);
+		properties.put("presence", "true");
+		properties.put("presenceTtl", "60");
+		properties.put("reorderTimeout", "60000");
+		Channel channel = new Channel(null, Protocol.LOOPBACK, RECEIVER, properties);
+		try{
+			LoopbackHub hub = LoopbackHub.getHub(hubName, LoopbackHub.DEFAULT_CAPACITY);
+			PresenceService presence = channel.getPresence();
+			String topic = "mf2c/" + RECEIVER + "/protected";
+			check(hub.deliver(topic, wire(signed(numbered("impostor", "impostor", 0)))), "delivered the impostor message");
+			HashMap<String, Object> retagged = signed(numbered("other", "retagged", 0));
+			retagged.put("source", "peer");
+			check(hub.deliver(topic, wire(retagged)), "delivered the re-tagged message");
+			HashMap<String, Object> unsigned = numbered("peer", "unsigned", 0);
+			unsigned.put("sec", Security.PUBLIC.ordinal());
+			check(hub.deliver("mf2c/" + RECEIVER + "/public", wire(unsigned)), "delivered the unsigned message");
+			//the messages are handled in order, the unsigned one is released as it comes
+			equal(Arrays.asList("unsigned"), popAll(channel, 1), "messages handed to the application");
+			equal(null, presence.getState("impostor"), "a message signed with another key than the pinned one does not count as traffic");
+			equal(null, presence.getState("other"), "a re-tagged message does not count as traffic of its signer");
+			equal(null, presence.getState("peer"), "neither a re-tagged nor an unsigned message counts as traffic");
+
+			check(hub.deliver(topic, wire(signed(numbered("peer", "genuine", 0)))), "delivered the genuine message");
+			check(hub.deliver(topic, wire(signed(numbered("peer", "next", 1)))), "delivered the next message");
+			equal(Arrays.asList("genuine", "next"), popAll(channel, 2), "the genuine messages are released in order");
+			equal(0L, channel.getMetrics().getGauge(ChannelMetrics.LATE), "late messages");
+			check(presence.isAlive("peer"), "a signed message counts as traffic");
+		}finally{
+			channel.destruct();
+		}
+	}
+
+	/**
+	 * Pop the given number of messages.
+	 * <p>
+	 * @return the payloads popped
+	 */
+	private static List<String> popAll(Channel channel, int count) throws InterruptedException {
+		List<String> received = new ArrayList<String>();
+		long deadline = System.currentTimeMillis() + 10000;
+		while(received.size() < count && System.currentTimeMillis() < deadline){
+			Message msg = channel.pop();
+			if(msg == null){
+				Thread.sleep(5);
+				continue;
+			}
+			received.add((String) msg.getPayloadHM().get("payload"));
+		}
+		return received;
+	}
+
+	/**
+	 * @return the key values of a message of session s1 from the source
+	 */
+	private static HashMap<String, Object> numbered(String source, String payload, long seq){
+		HashMap<String, Object> hm = new HashMap<String, Object>();
+		hm.put("source", source);
+		hm.put("payload", payload);
+		hm.put(Message.SESSION, "s1");
+		hm.put(Message.SEQUENCE, seq);
+		return hm;
+	}
+
+	private static HashMap<String, Object> signed(HashMap<String, Object> hm) throws Exception {
+		Message msg = new Message(hm);
+		msg.packMsg(Security.PROTECTED, Protocol.LOOPBACK, QoS.ATLEASTONCE, null);
+		return msg.getPayloadHM();
+	}
+
+	private static byte[] wire(HashMap<String, Object> hm){
+		hm.putIfAbsent("timestamp", System.currentTimeMillis() / 1000);
+		return Base64Helper.encodeToBytes(JSONValue.toJSONString(hm));
+	}
+}
@@ -0,0 +1,169 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.protocol.mqtt3;
+
+import static eu.mf2c.security.Checks.check;
+import static eu.mf2c.security.Checks.equal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.minidev.json.JSONValue;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import eu.mf2c.security.comm.protocol.ProtocolHandler;
+import eu.mf2c.security.comm.util.Base64Helper;
+import eu.mf2c.security.comm.util.Security;
+import eu.mf2c.security.data.Message;
+
+/**
+ * Set up many {@link Mqtt3Handler <em>Mqtt3Handler</em>} instances in one JVM, without connecting them, and
+ * deliver every message to every instance as a broker with overlapping subscriptions would.  Each instance must
+ * subscribe to and route only its own topics, and queue only its own messages.  Topics or queues shared between
+ * instances would misroute or duplicate messages.
+ */
+public class Mqtt3HandlerTest {
+	/** number of handlers */
+	private static final int HANDLERS = 40;
+
+	public static void main(String[] args) throws Exception {
+		String keyDir = System.getProperty("java.io.tmpdir") + "/mf2c-mqtt3-" + System.nanoTime();
+		List<Mqtt3Handler> handlers = new ArrayList<Mqtt3Handler>();
+		List<ConcurrentLinkedQueue<String>> resyncs = new ArrayList<ConcurrentLinkedQueue<String>>();
+		ExecutorService pool = Executors.newFixedThreadPool(16);
+		try{
+			//the instances are set up at the same time
+			List<Future<Mqtt3Handler>> built = new ArrayList<Future<Mqtt3Handler>>();
+			for(int i = 0; i < HANDLERS; i++){
+				final int n = i;
+				built.add(pool.submit(() -> {
+					HashMap<String, String> properties = new HashMap<String, String>();
+					properties.put("friendyName", name(n));
+					properties.put("broker", "tcp://localhost:1883");
+					properties.put("keepAlive", "60");
+					properties.put("timeOut", "10");
+					properties.put("jmx", "false");
+					properties.put("peerKeyDir", keyDir);
+					Mqtt3Handler handler = new Mqtt3Handler();
+					handler.configure(properties);
+					return handler;
+				}));
+			}
+			for(int i = 0; i < HANDLERS; i++){
+				Mqtt3Handler handler = built.get(i).get(30, TimeUnit.SECONDS);
+				handlers.add(handler);
+				ConcurrentLinkedQueue<String> resync = new ConcurrentLinkedQueue<String>();
+				resyncs.add(resync);
+				handler.setResyncListener(new ProtocolHandler.ResyncListener() {
+					@Override
+					public void reconnected() {
+					}
+					@Override
+					public void peerConnected(String peer) {
+					}
+					@Override
+					public void resyncRequested(Message request) {
+						resync.add(source(request));
+					}
+				});
+			}
+			Set<String> subscribed = new HashSet<String>();
+			for(int i = 0; i < HANDLERS; i++){
+				Mqtt3Handler handler = handlers.get(i);
+				equal(name(i), handler.getFriendyName(), "friendy name of handler " + i);
+				for(String topic : handler.getSubscriptions()){
+					check(topic.startsWith("mf2c/" + name(i) + "/"), name(i) + " subscribes to " + topic);
+					check(subscribed.add(topic), topic + " is subscribed to by one handler only");
+				}
+				equal("mf2c/" + name((i + 1) % HANDLERS) + "/protected", handler.getDestination(name((i + 1) % HANDLERS), Security.PROTECTED),
+						"destination of " + name(i));
+			}
+
+			//every handler is offered the messages of every handler, from several threads at once
+			List<Future<?>> delivered = new ArrayList<Future<?>>();
+			for(int i = 0; i < HANDLERS; i++){
+				final Mqtt3Handler handler = handlers.get(i);
+				delivered.add(pool.submit(() -> {
+					for(int j = 0; j < HANDLERS; j++){
+						String root = "mf2c/" + name(j);
+						for(String topic : Arrays.asList(root + "/public", root + "/protected", root + "/private", root + "/resync")){
+							handler.messageArrived(topic, new MqttMessage(wire(name(j), topic)));
+						}
+					}
+					return null;
+				}));
+			}
+			for(Future<?> future : delivered){
+				future.get(30, TimeUnit.SECONDS);
+			}
+			for(int i = 0; i < HANDLERS; i++){
+				Mqtt3Handler handler = handlers.get(i);
+				String root = "mf2c/" + name(i);
+				Set<String> received = new HashSet<String>();
+				Message msg;
+				while((msg = handler.pop()) != null){
+					equal(name(i), source(msg), "recipient of a message queued by " + name(i));
+					received.add(String.valueOf(msg.getPayloadHM().get("payload")));
+				}
+				equal(new HashSet<String>(Arrays.asList(root + "/public", root + "/protected", root + "/private")), received,
+						"messages queued by " + name(i));
+				equal(Arrays.asList(name(i)), new ArrayList<String>(resyncs.get(i)), "resync requests handed to the listener of " + name(i));
+			}
+		}finally{
+			pool.shutdownNow();
+			for(Mqtt3Handler handler : handlers){
+				handler.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * @return the Mqtt payload of an unsigned message to a handler, carrying the topic it is published on
+	 */
+	private static byte[] wire(String recipient, String topic){
+		HashMap<String, Object> hm = new HashMap<String, Object>();
+		hm.put("source", recipient);
+		hm.put("payload", topic);
+		hm.put("sec", Security.PUBLIC.ordinal());
+		return Base64Helper.encodeToBytes(JSONValue.toJSONString(hm));
+	}
+
+	/**
+	 * @return the source of a received message, which names the handler it was sent to
+	 */
+	private static String source(Message msg){
+		try{
+			msg.unpackMsg();
+		}catch(Exception e){
+			throw new IllegalStateException(e);
+		}
+		return (String) msg.getPayloadHM().get("source");
+	}
+
+	private static String name(int i){
+		return "mqtt" + i;
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.util;
+
+import static eu.mf2c.security.Checks.check;
+import static eu.mf2c.security.Checks.equal;
+
+/**
+ * Check that {@link ConflatingQueue <em>ConflatingQueue</em>} keeps one element per key in first insertion order,
+ * that a put back element does not overwrite a newer one, and that a waiting consumer is woken.
+ */
+public class ConflatingQueueTest {
+
+	public static void main(String[] args) throws Exception {
+		ConflatingQueue<String, String> queue = new ConflatingQueue<String, String>();
+		equal(null, queue.put("a", "a1"), "first element of a");
+		queue.put("b", "b1");
+		equal("a1", queue.put("a", "a2"), "replaced element");
+		queue.put("a", "a3");
+		equal(2, queue.size(), "one element per key");
+		equal(2L, queue.getConflated(), "conflated elements");
+		equal("a3", queue.poll(0), "a keeps its place and its latest value");
+		equal("b1", queue.poll(0), "then b");
+		equal(null, queue.poll(10), "empty queue times out");
+
+		//a failed element goes back to the head, unless a newer one arrived meanwhile
+		queue.put("b", "b2");
+		check(queue.putBack("a", "a3"), "put back a");
+		equal("a3", queue.poll(0), "put back element is at the head");
+		check(!queue.putBack("b", "b1"), "a newer b is pending");
+		equal("b2", queue.poll(0), "the newer b is kept");
+
+		//a waiting consumer is woken by a put
+		Thread producer = new Thread(() -> {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.put("c", "c1");
+		});
+		producer.start();
+		equal("c1", queue.poll(5000), "waiting consumer gets the element");
+		producer.join();
+	}
+}
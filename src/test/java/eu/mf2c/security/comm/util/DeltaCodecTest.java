@@ -0,0 +1,83 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.util;
+
+import static eu.mf2c.security.Checks.check;
+import static eu.mf2c.security.Checks.equal;
+
+import java.util.HashMap;
+import java.util.TreeMap;
+
+import net.minidev.json.JSONValue;
+
+import eu.mf2c.security.exception.MessageException;
+
+/**
+ * Check that {@link DeltaCodec <em>DeltaCodec</em>} rebuilds the key values byte for byte from keyframes and deltas,
+ * sends deltas smaller than the full message, and refuses a delta whose base is unknown.
+ */
+public class DeltaCodecTest {
+
+	public static void main(String[] args) throws Exception {
+		DeltaCodec sender = new DeltaCodec(4);
+		DeltaCodec receiver = new DeltaCodec(4);
+		String first = null;
+		for(int i = 0; i < 10; i++){
+			HashMap<String, Object> fields = reading(i);
+			String frame = sender.encode("peer|telemetry", fields);
+			if(i == 0){
+				first = frame;
+			}else if(i % 4 != 0){
+				check(frame.length() < first.length() * 2 / 3, "delta " + i + " is smaller than the keyframe");
+			}
+			equal(fields, receiver.decode("peer|telemetry", frame), "rebuilt message " + i);
+		}
+
+		//a payload not in canonical form is sent whole, and still delivered as sent
+		HashMap<String, Object> loose = new HashMap<String, Object>();
+		loose.put("source", "peer");
+		loose.put("payload", "{ \"z\": 1, \"a\": [1, 2.50] }");
+		equal(loose, receiver.decode("peer|loose", sender.encode("peer|loose", loose)), "non canonical payload");
+		loose.put("payload", "{ \"z\": 2, \"a\": [1, 2.50] }");
+		equal(loose, receiver.decode("peer|loose", sender.encode("peer|loose", loose)), "changed non canonical payload");
+
+		//a receiver that missed the keyframe waits for the next one
+		DeltaCodec late = new DeltaCodec(4);
+		sender.reset("peer|telemetry");
+		sender.encode("peer|telemetry", reading(20));
+		try{
+			late.decode("peer|telemetry", sender.encode("peer|telemetry", reading(21)));
+			check(false, "delta without its base is refused");
+		}catch(MessageException e){
+			//expected
+		}
+	}
+
+	/**
+	 * @return a message whose payload is canonical Json, in which only the reading changes
+	 */
+	private static HashMap<String, Object> reading(int i){
+		TreeMap<String, Object> payload = new TreeMap<String, Object>();
+		payload.put("sensor", "thermometer-0042");
+		payload.put("location", "building 7, floor 3, room 12");
+		payload.put("unit", "celsius");
+		payload.put("value", 20 + i);
+		HashMap<String, Object> fields = new HashMap<String, Object>();
+		fields.put("source", "peer");
+		fields.put("payload", JSONValue.toJSONString(payload));
+		return fields;
+	}
+}
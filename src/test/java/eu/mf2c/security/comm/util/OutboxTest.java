@@ -0,0 +1,51 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.util;
+
+import static eu.mf2c.security.Checks.check;
+import static eu.mf2c.security.Checks.equal;
+
+import java.util.List;
+
+/**
+ * Check that {@link Outbox <em>Outbox</em>} retains the latest messages of each recipient up to its capacity and
+ * returns them in sequence order from a sequence number on.
+ */
+public class OutboxTest {
+
+	public static void main(String[] args) throws Exception {
+		Outbox<String> outbox = new Outbox<String>(3);
+		equal(-1L, outbox.first("a"), "nothing retained for a");
+		check(outbox.range("a", 0, 10).isEmpty(), "no range for a");
+		for(long seq = 0; seq < 5; seq++){
+			outbox.retain("a", seq, "a" + seq);
+		}
+		outbox.retain("b", 7, "b7");
+		equal(4, outbox.size(), "capacity per recipient");
+		equal(2L, outbox.first("a"), "the oldest messages of a are dropped");
+		equal(7L, outbox.first("b"), "b keeps its own messages");
+
+		List<Outbox.Entry<String>> range = outbox.range("a", 0, 10);
+		equal(3, range.size(), "range from before the oldest message");
+		equal(2L, range.get(0).seq, "range starts at the oldest message");
+		equal("a4", range.get(2).item, "range ends at the latest message");
+		range = outbox.range("a", 3, 1);
+		equal(1, range.size(), "range is limited");
+		equal("a3", range.get(0).item, "range starts at the sequence number");
+		check(outbox.range("a", 5, 10).isEmpty(), "nothing after the latest message");
+		check(outbox.range("b", 8, 10).isEmpty(), "nothing after the latest message of b");
+	}
+}
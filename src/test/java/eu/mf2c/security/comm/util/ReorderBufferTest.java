@@ -0,0 +1,89 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.util;
+
+import static eu.mf2c.security.Checks.equal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Check that {@link ReorderBuffer <em>ReorderBuffer</em>} releases each source in sequence order, drops late
+ * messages and hands them back, and skips a gap on time out, on capacity, on a new session and on request,
+ * reporting each gap.
+ */
+public class ReorderBufferTest {
+
+	public static void main(String[] args){
+		List<String> gaps = new ArrayList<String>();
+		List<String> dropped = new ArrayList<String>();
+		ReorderBuffer<String> buffer = new ReorderBuffer<String>(100, 4,
+				(source, session, first, last) -> gaps.add(source + ":" + session + ":" + first + "-" + last), dropped::add);
+		long now = 0;
+
+		//out of order arrivals are released in order
+		equal(Arrays.asList("a0"), buffer.offer("a", "s1", 0, "a0", now), "in order message");
+		equal(Collections.emptyList(), buffer.offer("a", "s1", 2, "a2", now), "held behind the gap");
+		equal(Collections.emptyList(), buffer.offer("a", "s1", 3, "a3", now), "held behind the gap");
+		equal(2, buffer.size(), "held messages");
+		equal(Arrays.asList("a1", "a2", "a3"), buffer.offer("a", "s1", 1, "a1", now), "gap filled");
+		equal(Collections.emptyList(), buffer.offer("a", "s1", 2, "a2", now), "duplicate dropped");
+		equal(1L, buffer.getLate(), "late messages");
+		buffer.offer("a", "s1", 5, "a5", now);
+		equal(Collections.emptyList(), buffer.offer("a", "s1", 5, "a5'", now), "duplicate of a held message dropped");
+		equal(Arrays.asList("a2", "a5'"), dropped, "dropped messages handed back");
+
+		//sources are independent
+		equal(Collections.emptyList(), buffer.offer("b", "t1", 1, "b1", now), "b waits for its first message");
+		equal(Arrays.asList("b0", "b1"), buffer.offer("b", "t1", 0, "b0", now), "b released");
+
+		//a gap is skipped once it is older than the time out
+		equal(Collections.emptyList(), buffer.expire(now + 99), "gap not yet timed out");
+		equal(Arrays.asList("a5"), buffer.expire(now + 100), "gap timed out");
+		equal(Arrays.asList("a:s1:4-4"), gaps, "gap reported");
+
+		//a gap is skipped when the source holds more than the capacity
+		gaps.clear();
+		for(long seq = 8; seq < 12; seq++){
+			equal(Collections.emptyList(), buffer.offer("a", "s1", seq, "a" + seq, now), "held " + seq);
+		}
+		equal(Arrays.asList("a8", "a9", "a10", "a11", "a12"), buffer.offer("a", "s1", 12, "a12", now), "capacity exceeded");
+		equal(Arrays.asList("a:s1:6-7"), gaps, "gap on capacity reported");
+
+		//the source can no longer resend what it sent before 15
+		gaps.clear();
+		buffer.offer("a", "s1", 14, "a14", now);
+		buffer.offer("a", "s1", 16, "a16", now);
+		equal(Arrays.asList("a14"), buffer.skipTo("a", "s1", 15, now), "skip to 15");
+		equal(Arrays.asList("a:s1:13-13"), gaps, "skipped range reported");
+		equal(Arrays.asList("a15", "a16"), buffer.offer("a", "s1", 15, "a15", now), "15 can still be sent");
+		gaps.clear();
+		equal(Collections.emptyList(), buffer.skipTo("a", "s1", 20, now), "skip over messages never held");
+		equal(Arrays.asList("a20"), buffer.offer("a", "s1", 20, "a20", now), "20 follows the skipped range");
+		equal(Arrays.asList("a:s1:17-19"), gaps, "skipped range of messages never held");
+		equal(Collections.emptyList(), buffer.skipTo("a", "s1", 3, now), "skipping backwards has no effect");
+		equal(Collections.emptyList(), buffer.skipTo("a", "other", 30, now), "skipping another session has no effect");
+
+		//a new session releases what is held and starts from 0
+		buffer.offer("a", "s1", 22, "a22", now);
+		equal(Arrays.asList("a22", "n0"), buffer.offer("a", "s2", 0, "n0", now), "new session");
+		equal("s2", buffer.getSession("a"), "session replaced");
+		equal(1L, buffer.getNext("a"), "next of the new session");
+		equal(0, buffer.size(), "nothing held");
+	}
+}
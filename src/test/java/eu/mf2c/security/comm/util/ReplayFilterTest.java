@@ -0,0 +1,61 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.util;
+
+import static eu.mf2c.security.Checks.check;
+import static eu.mf2c.security.Checks.equal;
+
+/**
+ * Check that {@link ReplayFilter <em>ReplayFilter</em>} accepts a message once within the window, that a lookup
+ * does not record, and that different sources or keys never share a fingerprint.
+ */
+public class ReplayFilterTest {
+
+	public static void main(String[] args){
+		long now = 1000000;
+		ReplayFilter filter = new ReplayFilter(60, 10);
+
+		//a lookup does not record, so a forged header looked up before verification blocks nothing
+		check(filter.isFresh("a", "k", 1, now, now), "new message is fresh");
+		check(filter.isFresh("a", "k", 1, now, now), "a lookup does not record");
+		check(filter.record("a", "k", 1, now, now), "first record of a message");
+		check(!filter.isFresh("a", "k", 1, now, now), "recorded message is a replay");
+		check(!filter.record("a", "k", 1, now, now), "second record of a message");
+		equal(1, filter.size(), "fingerprints held");
+
+		//the timestamp must lie within the window on either side of the clock
+		check(!filter.isFresh("a", "k", 2, now - 61, now), "stale message");
+		check(!filter.record("a", "k", 2, now + 61, now), "message from the future");
+		check(filter.record("a", "k", 2, now - 60, now), "message at the edge of the window");
+
+		//"Aa" and "BB" have the same String.hashCode
+		equal("Aa".hashCode(), "BB".hashCode(), "colliding hash codes");
+		check(filter.record("Aa", "k", 7, now, now), "first of two sources with the same hash code");
+		check(filter.record("BB", "k", 7, now, now), "second of two sources with the same hash code");
+		check(filter.record("a", "other", 1, now, now), "same source and id signed with another key");
+		check(filter.record("ab", "", 3, now, now) && filter.record("a", "b", 3, now, now), "the boundary between source and key counts");
+
+		//buckets are recycled once the clock has moved past them
+		long later = now + 1000;
+		check(filter.record("a", "k", 1, later, later), "same id in a later window");
+		for(int i = 0; i < 10000; i++){
+			check(filter.record("bulk", "k", i, later, later), "bulk record " + i);
+		}
+		for(int i = 0; i < 10000; i++){
+			check(!filter.isFresh("bulk", "k", i, later, later), "bulk replay " + i);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.util;
+
+import static eu.mf2c.security.Checks.check;
+import static eu.mf2c.security.Checks.equal;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Check that {@link SegmentLog <em>SegmentLog</em>} records survive a roll over and a reopen, that a torn record
+ * is discarded on recovery and that truncation only deletes sealed segments.
+ */
+public class SegmentLogTest {
+
+	public static void main(String[] args) throws Exception {
+		File dir = Files.createTempDirectory("segmentlog").toFile();
+		try{
+			//small segments, so that the records roll over several of them
+			SegmentLog log = new SegmentLog(dir, 256);
+			List<Long> positions = new ArrayList<Long>();
+			for(int i = 0; i < 50; i++){
+				positions.add(log.append(record(i)));
+			}
+			check(log.getSegmentCount() > 1, "the records rolled over to new segments");
+			for(int i = 0; i < 50; i++){
+				equal(new String(record(i), StandardCharsets.UTF_8), new String(log.read(positions.get(i)), StandardCharsets.UTF_8), "record " + i);
+			}
+			List<Long> scanned = new ArrayList<Long>();
+			log.scan(positions.get(20), (position, body) -> scanned.add(position));
+			equal(positions.subList(20, 50), scanned, "positions scanned from record 20");
+			long end = log.getWritePosition();
+			log.syncAll();
+			log.close();
+
+			//the write position is recovered and appends carry on after it
+			log = new SegmentLog(dir, 256);
+			equal(end, log.getWritePosition(), "write position after a reopen");
+			equal("record 49", new String(log.read(positions.get(49)), StandardCharsets.UTF_8), "last record after a reopen");
+			long next = log.append(record(50));
+			equal(end, next, "position of the first record appended after a reopen");
+			log.syncAll();
+			long active = log.getActiveSegment();
+			log.close();
+
+			//a record whose body does not match its checksum is a torn write, it and what follows are dropped
+			try(RandomAccessFile raf = new RandomAccessFile(new File(dir, String.format("%020d", active) + ".seg"), "rw")){
+				raf.seek(next - active + SegmentLog.FRAME);
+				raf.write('X');
+			}
+			log = new SegmentLog(dir, 256);
+			equal(next, log.getWritePosition(), "write position after a torn record");
+			int segments = log.getSegmentCount();
+			int deleted = log.truncateBefore(positions.get(30));
+			check(deleted > 0, "sealed segments before record 30 are deleted");
+			equal(segments - deleted, log.getSegmentCount(), "segments left after truncation");
+			equal("record 30", new String(log.read(positions.get(30)), StandardCharsets.UTF_8), "record 30 after truncation");
+			log.truncateBefore(Long.MAX_VALUE);
+			equal(1, log.getSegmentCount(), "segments left after truncating everything");
+			equal(active, log.getHeadSegment(), "the active segment is kept");
+			log.close();
+		}finally{
+			for(File f : dir.listFiles()){
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	private static byte[] record(int i){
+		return ("record " + i).getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,79 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.comm.util;
+
+import static eu.mf2c.security.Checks.check;
+import static eu.mf2c.security.Checks.equal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Check that {@link TimingWheel <em>TimingWheel</em>} never expires a key early, honours rescheduling and
+ * cancelling, and keeps deadlines more than a turn of the wheel away until their tick.
+ */
+public class TimingWheelTest {
+
+	public static void main(String[] args){
+		long t0 = 1000000;
+		//8 slots of 10ms, a turn is 80ms
+		TimingWheel<String> wheel = new TimingWheel<String>(10, 8, t0);
+		List<String> expired = new ArrayList<String>();
+		wheel.schedule("a", 25, t0);
+		wheel.schedule("b", 25, t0);
+		wheel.schedule("c", 200, t0);
+		wheel.schedule("d", 30, t0);
+		equal(4, wheel.size(), "scheduled keys");
+
+		wheel.advance(t0 + 20, expired::add);
+		check(expired.isEmpty(), "nothing expires early");
+		check(wheel.cancel("b"), "cancel b");
+		check(!wheel.cancel("b"), "b is no longer scheduled");
+		wheel.schedule("d", 100, t0 + 20);
+		wheel.advance(t0 + 30, expired::add);
+		equal(Arrays.asList("a"), expired, "a expires on its tick");
+
+		//c is more than a turn away and shares a slot with nearer ticks
+		expired.clear();
+		wheel.advance(t0 + 190, expired::add);
+		equal(Arrays.asList("d"), expired, "rescheduled d expires on its new tick");
+		expired.clear();
+		wheel.advance(t0 + 200, expired::add);
+		equal(Arrays.asList("c"), expired, "c expires after more than a turn");
+		equal(0, wheel.size(), "wheel is empty");
+
+		//an expired key may be scheduled again from the handler
+		wheel.schedule("e", 10, t0 + 200);
+		expired.clear();
+		wheel.advance(t0 + 210, key -> {
+			expired.add(key);
+			if(expired.size() == 1){
+				wheel.schedule(key, 10, t0 + 210);
+			}
+		});
+		equal(1, wheel.size(), "rescheduled from the handler");
+
+		//an owner falling a turn or more behind still expires every due key once
+		for(int i = 0; i < 100; i++){
+			wheel.schedule("k" + i, i * 7, t0 + 210);
+		}
+		expired.clear();
+		wheel.advance(t0 + 2000, expired::add);
+		equal(101, expired.size(), "every due key expires once");
+		equal(0, wheel.size(), "wheel is empty again");
+	}
+}
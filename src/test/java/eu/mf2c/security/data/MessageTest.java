@@ -0,0 +1,251 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.data;
+
+import static eu.mf2c.security.Checks.check;
+import static eu.mf2c.security.Checks.equal;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import net.minidev.json.JSONValue;
+
+import eu.mf2c.security.comm.util.Base64Helper;
+import eu.mf2c.security.comm.util.DeltaCodec;
+import eu.mf2c.security.comm.util.Protocol;
+import eu.mf2c.security.comm.util.QoS;
+import eu.mf2c.security.comm.util.ReplayFilter;
+import eu.mf2c.security.comm.util.Security;
+import eu.mf2c.security.exception.MessageException;
+
+/**
+ * Check what a receiver accepts from the wire&#58; replays, and headers altered on the way.
+ */
+public class MessageTest {
+
+	public static void main(String[] args) throws Exception {
+		forgedHeaderDoesNotBlockGenuineMessage();
+		replayUnderAnotherSourceIsRejected();
+		compressionFlagIsSigned();
+		bundleCountIsSigned();
+		deltaStreamIsSigned();
+		sequenceIsSigned();
+		resyncFlagIsSigned();
+		correlationIdIsSigned();
+	}
+
+	/**
+	 * A forged message carrying the next message id of a sender is rejected and does not make the genuine message
+	 * with that id look like a replay.
+	 */
+	private static void forgedHeaderDoesNotBlockGenuineMessage() throws Exception {
+		ReplayFilter filter = new ReplayFilter(300, 10);
+		HashMap<String, Object> genuine = pack(Security.PROTECTED, "genuine");
+		HashMap<String, Object> forged = new HashMap<String, Object>(genuine);
+		forged.put("payload", "forged");
+		check(!unpacks(forged, filter), "a forged payload fails verification");
+		HashMap<String, Object> unsigned = new HashMap<String, Object>(genuine);
+		unsigned.put("sec", Security.PUBLIC.ordinal());
+		unsigned.put("payload", "unsigned");
+		check(unpacks(unsigned, filter), "an unsigned message is not replay checked");
+		check(unpacks(genuine, filter), "the genuine message is accepted");
+		check(!unpacks(genuine, filter), "the genuine message is accepted once");
+	}
+
+	/**
+	 * The replay filter keys on the source, so a message replayed under another source would look fresh unless the
+	 * source is signed.
+	 */
+	private static void replayUnderAnotherSourceIsRejected() throws Exception {
+		ReplayFilter filter = new ReplayFilter(300, 10);
+		HashMap<String, Object> genuine = pack(Security.PROTECTED, "once");
+		check(unpacks(genuine, filter), "the genuine message is accepted");
+		check(!unpacks(genuine, filter), "the replayed message is rejected");
+		HashMap<String, Object> renamed = new HashMap<String, Object>(genuine);
+		renamed.put("source", "other");
+		check(!unpacks(renamed, filter), "the message replayed under another source is rejected");
+		HashMap<String, Object> anonymous = new HashMap<String, Object>(genuine);
+		anonymous.remove("source");
+		check(!unpacks(anonymous, filter), "the message replayed without a source is rejected");
+	}
+
+	/**
+	 * The compression flag decides how the payload is read, so it may be neither added nor removed.
+	 */
+	private static void compressionFlagIsSigned() throws Exception {
+		StringBuilder text = new StringBuilder();
+		for(int i = 0; i < 200; i++){
+			text.append("reading ").append(i % 10).append(';');
+		}
+		HashMap<String, Object> compressed = pack(Security.PROTECTED, text.toString(), 512);
+		check(compressed.containsKey("cmp"), "a large payload is compressed");
+		Message msg = receive(compressed, null);
+		check(msg != null && text.toString().equals(msg.getPayloadHM().get("payload")), "a compressed payload is restored");
+		HashMap<String, Object> stripped = new HashMap<String, Object>(compressed);
+		stripped.remove("cmp");
+		check(!unpacks(stripped, null), "removing the compression flag fails verification");
+		HashMap<String, Object> plain = pack(Security.PROTECTED, "plain");
+		check(!plain.containsKey("cmp"), "compression is off unless a threshold is given");
+		plain.put("cmp", 1);
+		check(!unpacks(plain, null), "adding the compression flag fails verification");
+	}
+
+	/**
+	 * A bundle may not be passed off as a single message, nor a message as a bundle.
+	 */
+	private static void bundleCountIsSigned() throws Exception {
+		HashMap<String, Object> item = new HashMap<String, Object>();
+		item.put("payload", "item");
+		Message bundle = Message.bundle("sender", Arrays.asList(item, item));
+		bundle.packMsg(Security.PROTECTED, Protocol.LOOPBACK, QoS.ATLEASTONCE, null);
+		HashMap<String, Object> wire = bundle.getPayloadHM();
+		Message msg = receive(wire, null);
+		check(msg != null && msg.isBundle(), "a bundle is received");
+		equal(2, msg.unbundle().size(), "bundled messages");
+		HashMap<String, Object> single = new HashMap<String, Object>(wire);
+		single.remove(Message.BUNDLE);
+		check(!unpacks(single, null), "removing the bundle count fails verification");
+		HashMap<String, Object> plain = pack(Security.PROTECTED, "[]");
+		plain.put(Message.BUNDLE, 0);
+		check(!unpacks(plain, null), "adding a bundle count fails verification");
+	}
+
+	/**
+	 * The delta stream name decides how the payload is rebuilt, so it may be neither added nor removed.
+	 */
+	private static void deltaStreamIsSigned() throws Exception {
+		HashMap<String, Object> hm = new HashMap<String, Object>();
+		hm.put("source", "sender");
+		hm.put("payload", "reading");
+		Message msg = new Message(hm);
+		msg.setDeltaStream("telemetry");
+		msg.encodeDelta(new DeltaCodec(4), "receiver");
+		msg.packMsg(Security.PROTECTED, Protocol.LOOPBACK, QoS.ATLEASTONCE, null);
+		HashMap<String, Object> wire = msg.getPayloadHM();
+		Message received = receive(wire, null);
+		check(received != null && received.isDelta(), "a delta encoded message is received");
+		received.decodeDelta(new DeltaCodec(4));
+		equal("reading", received.getPayloadHM().get("payload"), "rebuilt payload");
+		HashMap<String, Object> stripped = new HashMap<String, Object>(wire);
+		stripped.remove(DeltaCodec.KEY);
+		check(!unpacks(stripped, null), "removing the delta stream fails verification");
+		HashMap<String, Object> plain = pack(Security.PROTECTED, "{}");
+		plain.put(DeltaCodec.KEY, "telemetry");
+		check(!unpacks(plain, null), "adding a delta stream fails verification");
+	}
+
+	/**
+	 * The session and sequence number decide the delivery order, so they may not be altered to hold back or
+	 * skip messages.
+	 */
+	private static void sequenceIsSigned() throws Exception {
+		HashMap<String, Object> hm = new HashMap<String, Object>();
+		hm.put("source", "sender");
+		hm.put("payload", "numbered");
+		hm.put(Message.SESSION, "s1");
+		hm.put(Message.SEQUENCE, 5L);
+		Message msg = new Message(hm);
+		msg.packMsg(Security.PROTECTED, Protocol.LOOPBACK, QoS.ATLEASTONCE, null);
+		HashMap<String, Object> wire = msg.getPayloadHM();
+		Message received = receive(wire, null);
+		check(received != null, "a numbered message is received");
+		equal(5L, received.getSequence(), "sequence number");
+		equal("s1", received.getSession(), "session");
+		HashMap<String, Object> moved = new HashMap<String, Object>(wire);
+		moved.put(Message.SEQUENCE, 1000L);
+		check(!unpacks(moved, null), "changing the sequence number fails verification");
+		HashMap<String, Object> restarted = new HashMap<String, Object>(wire);
+		restarted.put(Message.SESSION, "s2");
+		check(!unpacks(restarted, null), "changing the session fails verification");
+		HashMap<String, Object> unnumbered = new HashMap<String, Object>(wire);
+		unnumbered.remove(Message.SEQUENCE);
+		check(!unpacks(unnumbered, null), "removing the sequence number fails verification");
+	}
+
+	/**
+	 * The oldest sequence number a sender can resend lets the recipient skip the messages before it, so it may be
+	 * neither changed nor added.
+	 */
+	private static void resyncFlagIsSigned() throws Exception {
+		HashMap<String, Object> hm = new HashMap<String, Object>();
+		hm.put("source", "sender");
+		hm.put("payload", "resent");
+		hm.put(Message.RESYNC, 3L);
+		Message msg = new Message(hm);
+		msg.packMsg(Security.PROTECTED, Protocol.LOOPBACK, QoS.ATLEASTONCE, null);
+		HashMap<String, Object> wire = msg.getPayloadHM();
+		check(unpacks(new HashMap<String, Object>(wire), null), "a resent message is received");
+		HashMap<String, Object> moved = new HashMap<String, Object>(wire);
+		moved.put(Message.RESYNC, 1000L);
+		check(!unpacks(moved, null), "changing the resync flag fails verification");
+		HashMap<String, Object> added = pack(Security.PROTECTED, "fresh");
+		added.put(Message.RESYNC, 1000L);
+		check(!unpacks(added, null), "adding a resync flag fails verification");
+	}
+
+	/**
+	 * The correlation id decides which pending call a reply completes, so a genuine reply may not be re&#45;tagged
+	 * to another call.
+	 */
+	private static void correlationIdIsSigned() throws Exception {
+		HashMap<String, Object> hm = new HashMap<String, Object>();
+		hm.put("source", "sender");
+		hm.put("payload", "answer");
+		hm.put(Message.CORRELATION, "c1");
+		Message msg = new Message(hm);
+		msg.packMsg(Security.PROTECTED, Protocol.LOOPBACK, QoS.ATLEASTONCE, null);
+		HashMap<String, Object> wire = msg.getPayloadHM();
+		Message received = receive(new HashMap<String, Object>(wire), null);
+		check(received != null, "a reply is received");
+		equal("c1", received.getCorrelationId(), "correlation id");
+		HashMap<String, Object> retagged = new HashMap<String, Object>(wire);
+		retagged.put(Message.CORRELATION, "c2");
+		check(!unpacks(retagged, null), "changing the correlation id fails verification");
+	}
+
+	/**
+	 * Pack an outgoing message as a sender would and return the key values that go on the wire.
+	 */
+	static HashMap<String, Object> pack(Security sec, String payload) throws MessageException {
+		return pack(sec, payload, -1);
+	}
+
+	static HashMap<String, Object> pack(Security sec, String payload, int compressThreshold) throws MessageException {
+		HashMap<String, Object> hm = new HashMap<String, Object>();
+		hm.put("source", "sender");
+		hm.put("payload", payload);
+		Message msg = new Message(hm);
+		msg.packMsg(sec, Protocol.LOOPBACK, QoS.ATLEASTONCE, null, compressThreshold);
+		return msg.getPayloadHM();
+	}
+
+	/**
+	 * @return the received message, or null if it is rejected
+	 */
+	static Message receive(HashMap<String, Object> wire, ReplayFilter filter){
+		Message msg = new Message(Base64Helper.encodeToBytes(JSONValue.toJSONString(wire)), null);
+		try{
+			msg.unpackMsg(filter);
+			return msg;
+		}catch(MessageException e){
+			return null;
+		}
+	}
+
+	static boolean unpacks(HashMap<String, Object> wire, ReplayFilter filter){
+		return receive(wire, filter) != null;
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ Copyright 2018 UKRI Science and Technology Facilities Council
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License
+ */
+package eu.mf2c.security.data;
+
+import static eu.mf2c.security.Checks.check;
+import static eu.mf2c.security.Checks.equal;
+
+import java.io.File;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Check that {@link PeerKeyDirectory <em>PeerKeyDirectory</em>} pins the first key of a peer, and that only an
+ * explicit replacement, removal or expiry lets a different key in.
+ */
+public class PeerKeyDirectoryTest {
+
+	public static void main(String[] args) throws Exception {
+		KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+		gen.initialize(1024);
+		PublicKey first = gen.generateKeyPair().getPublic();
+		PublicKey second = gen.generateKeyPair().getPublic();
+		File file = new File(System.getProperty("java.io.tmpdir"), "mf2c-keys-" + System.nanoTime() + ".keys");
+		try{
+			PeerKeyDirectory keys = new PeerKeyDirectory(file, 60000);
+			CompletableFuture<PublicKey> waiting = keys.await("peer");
+			check(!waiting.isDone(), "unknown key is awaited");
+			check(keys.put("peer", first), "first key is recorded");
+			equal(first, waiting.getNow(null), "waiter is completed");
+			check(keys.put("peer", first), "the same key refreshes the entry");
+			check(!keys.put("peer", second), "a different key is rejected");
+			equal(first, keys.get("peer"), "the first key stays pinned");
+
+			//the pin survives a restart
+			PeerKeyDirectory reloaded = new PeerKeyDirectory(file, 60000);
+			check(!reloaded.put("peer", second), "a different key is rejected after a restart");
+			equal(first, reloaded.get("peer"), "the pinned key is reloaded");
+
+			keys.replace("peer", second);
+			equal(second, keys.get("peer"), "an operator replaces the key");
+			keys.remove("peer");
+			check(keys.put("peer", first), "a key is learnt again once removed");
+
+			PeerKeyDirectory expiring = new PeerKeyDirectory(null, 200);
+			check(expiring.put("peer", first), "first key with a short ttl");
+			Thread.sleep(300);
+			check(expiring.put("peer", second), "a different key is accepted once the pinned one expired");
+			equal(second, expiring.get("peer"), "the new key is held");
+		}finally{
+			file.delete();
+		}
+	}
+}